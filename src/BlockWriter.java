@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A channel that hands the blocks written to it to a dedicated writer thread through a bounded queue, so that the
+ *   thread filling the blocks, e.g. a TsvWriter, does not wait on the disk. write() copies the block into a pooled
+ *   buffer and only waits when the queue is full. An error on the writer thread is thrown by the next write() or by
+ *   close().
+ * <br>A file opened by open() whose name ends with ".gz" is gzip compressed by the writer thread too, so the
+ *   compression does not slow the thread filling the blocks either. The fastest level is used, the text files still
+ *   shrink several fold.
+ * @author thayer young
+ */
+public class BlockWriter implements WritableByteChannel
+{
+	/** The default number of blocks that can wait for the writer thread. */
+	public static final int DEFAULT_QUEUE_BLOCKS = 4;
+	private static final ByteBuffer END = ByteBuffer.allocate(0);	// the end marker, compared by identity
+	private static final int GZIP_BUFFER_SIZE = 1 << 16;
+
+	private WritableByteChannel channel;
+	private ArrayBlockingQueue<ByteBuffer> full;
+	private ArrayBlockingQueue<ByteBuffer> free;
+	private Thread writer;
+	private volatile IOException error = null;
+	private boolean open = true;
+
+	/**
+	 * @param channel The channel written by the writer thread, e.g. a FileChannel. It is closed by close().
+	 * @param name The name of the writer thread.
+	 */
+	public BlockWriter(WritableByteChannel channel, String name)
+	{	this(channel, name, DEFAULT_QUEUE_BLOCKS);
+	}
+
+	/**
+	 * @param channel The channel written by the writer thread, e.g. a FileChannel. It is closed by close().
+	 * @param name The name of the writer thread.
+	 * @param queueBlocks The number of blocks that can wait for the writer thread before write() waits.
+	 */
+	public BlockWriter(WritableByteChannel channel, String name, int queueBlocks)
+	{	this.channel = channel;
+		full = new ArrayBlockingQueue<ByteBuffer>(Math.max(queueBlocks, 1) + 1);
+		free = new ArrayBlockingQueue<ByteBuffer>(Math.max(queueBlocks, 1) + 1);
+		writer = new Thread(new Runnable()
+		{	public void run()
+			{	drain();
+			}
+		}, name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Opens a BlockWriter on a new or overwritten file.
+	 * @param file The file to be written. If its name ends with Witness.GZIP_EXTENSION the blocks are gzip compressed.
+	 * @param name The name of the writer thread.
+	 * @return The channel, which must be closed.
+	 * @throws IOException If the file can not be opened.
+	 */
+	public static BlockWriter open(File file, String name) throws IOException
+	{	if(Witness.isCompressed(file))
+			return new BlockWriter(Channels.newChannel(new FastGzipStream(file)), name);
+		return new BlockWriter(new FileOutputStream(file).getChannel(), name);
+	}
+
+	/**
+	 * A gzip stream at the fastest compression level.
+	 */
+	private static class FastGzipStream extends GZIPOutputStream
+	{	FastGzipStream(File file) throws IOException
+		{	super(new FileOutputStream(file), GZIP_BUFFER_SIZE);
+			def.setLevel(Deflater.BEST_SPEED);
+		}
+	}
+
+	private void drain()
+	{	ByteBuffer block;
+		try
+		{	while((block = full.take()) != END)
+			{	if(error == null)
+				{	try
+					{	while(block.hasRemaining())
+							channel.write(block);
+					}catch(IOException ioe)
+					{	error = ioe;	// keep taking blocks, so that write() is not left waiting
+					}
+				}
+				block.clear();
+				free.offer(block);
+			}
+		}catch(InterruptedException ie)
+		{	error = new InterruptedIOException("The block writer was interrupted.");
+		}
+	}
+
+	/**
+	 * Queues a copy of the remaining bytes of 'src' for the writer thread.
+	 * @return The number of bytes queued, all of the remaining bytes.
+	 * @throws IOException If an earlier block could not be written, or the wait is interrupted.
+	 */
+	public int write(ByteBuffer src) throws IOException
+	{	if(!open)
+			throw new ClosedChannelException();
+		if(error != null)
+			throw error;
+		int count = src.remaining();
+		ByteBuffer block = free.poll();
+		if(block == null || block.capacity() < count)
+			block = ByteBuffer.allocate(Math.max(count, block == null ? 0 : block.capacity()));
+		block.put(src);
+		block.flip();
+		try
+		{	full.put(block);
+		}catch(InterruptedException ie)
+		{	Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while queueing a block.");
+		}
+		return count;
+	}
+
+	public boolean isOpen()
+	{	return open;
+	}
+
+	/**
+	 * Waits for the writer thread to write the queued blocks, then closes the channel. If the wait is interrupted the
+	 *   writer thread is interrupted too, and the channel is only closed once it has stopped, so that it is never
+	 *   closed under a write.
+	 * @throws IOException If a block could not be written, the wait was interrupted or the channel could not be closed.
+	 */
+	public void close() throws IOException
+	{	if(!open)
+			return;
+		open = false;
+		try
+		{	full.put(END);
+			writer.join();
+		}catch(InterruptedException ie)
+		{	writer.interrupt();		// the queued blocks are dropped
+			boolean stopped = false;
+			while(!stopped)
+			{	try
+				{	writer.join();
+					stopped = true;
+				}catch(InterruptedException again)
+				{}
+			}
+			Thread.currentThread().interrupt();
+			if(error == null)
+				error = new InterruptedIOException("Interrupted while closing the block writer.");
+		}
+		finally
+		{	channel.close();
+		}
+		if(error != null)
+			throw error;
+	}
+}
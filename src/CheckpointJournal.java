@@ -0,0 +1,284 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * The journal of a batch run, e.g. by WitnessCLI, of the file pairs that were converted, so that a run that was cut
+ *   short, e.g. by a crash, can be started again and only convert the pairs that it had not finished. Each pair that
+ *   is converted is recorded with the hashes of its input files and settings, and the length, modification time and
+ *   hash of each output file. A pair is done if its inputs and settings are unchanged and its output files are still
+ *   there, unchanged.
+ * <br>The journal is written again after a pair, at most once a second so that a run of thousands of pairs does not
+ *   spend its time on it, and by flush() at the end of the run. It is written to a temporary file that is moved over
+ *   the journal once it is complete, so a crash leaves the last complete journal. A pair that was being converted
+ *   when the run stopped is converted again, but its files are not parsed again if their parse was saved in the
+ *   ResultCache, nor its parcels joined again if --incremental was used.
+ * <br>An input file is only hashed again if its length or modification time have changed, and an output file is only
+ *   hashed again if its length is unchanged but its modification time has changed, so a restart reads few files.
+ * @author thayer young
+ */
+public class CheckpointJournal
+{
+	/** The name of the journal, in the output folder unless it is given. */
+	public static final String DEFAULT_FILE = "witness_checkpoint.txt";
+	private static final String HEADER = "# Witness checkpoint journal 1";
+	private static final String TEMP_PREFIX = ".witness_checkpoint";
+	private static final long WRITE_INTERVAL = 1000;	// milliseconds
+
+	private File file;
+	private long written = 0;	// when the journal was last written
+	private boolean changed = false;
+	private LinkedHashMap<String,Entry> entries = new LinkedHashMap<String,Entry>();	// by the output file stub
+
+	/**
+	 * A pair that was converted: the stamps and hashes of its inputs, the counts of its summary and its output files.
+	 */
+	private static class Entry
+	{	String outputStub, settings, counts;
+		String[] inputs;		// the stamp and hash of each input file
+		ArrayList<String[]> outputs = new ArrayList<String[]>();	// the name, length, modification time and hash
+
+		String toLine()
+		{	StringBuilder line = new StringBuilder();
+			line.append(outputStub).append('\t').append(settings).append('\t').append(counts.replace('\t', ','));
+			for(String input:inputs)
+				line.append('\t').append(input);
+			line.append('\t').append(outputs.size());
+			for(String[] output:outputs)
+			{	for(String part:output)
+					line.append('\t').append(part);
+			}
+			return line.toString();
+		}
+
+		static Entry fromLine(String line)
+		{	String[] parts = line.split("\t", -1);
+			if(parts.length < 8)
+				return null;
+			Entry entry = new Entry();
+			entry.outputStub = parts[0];
+			entry.settings = parts[1];
+			entry.counts = parts[2].replace(',', '\t');
+			entry.inputs = Arrays.copyOfRange(parts, 3, 7);
+			int count = Integer.parseInt(parts[7]);
+			if(parts.length != 8 + 4 * count)
+				return null;
+			for(int i = 0; i < count; i++)
+				entry.outputs.add(Arrays.copyOfRange(parts, 8 + 4 * i, 12 + 4 * i));
+			return entry;
+		}
+	}
+
+	/**
+	 * Reads the journal, if there is one. A journal that can not be read is started again.
+	 * @param file The journal file.
+	 */
+	public CheckpointJournal(File file)
+	{	this.file = file;
+		if(!file.isFile())
+			return;
+		try
+		{	BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{	String line = in.readLine();
+				if(!HEADER.equals(line))
+					return;
+				Entry entry;
+				while((line = in.readLine()) != null)
+				{	entry = Entry.fromLine(line);
+					if(entry != null)
+						entries.put(entry.outputStub, entry);
+				}
+			}
+			finally
+			{	in.close();
+			}
+		}catch(Exception e)
+		{	entries.clear();		// every pair is converted again
+		}
+	}
+
+	/**
+	 * @param mblFile The MBL file of a pair.
+	 * @param kmlFile The KML file of a pair.
+	 * @param outputFile The output file stub of the pair.
+	 * @param settings The key of the settings of the conversion, e.g. from ResultCache.key().
+	 * @return The counts of the summary of the pair, tab delimited, if it was converted by an earlier run and is still
+	 *   up to date, otherwise null.
+	 * @throws IOException If a file can not be hashed.
+	 */
+	public String getDone(File mblFile, File kmlFile, File outputFile, String settings) throws IOException
+	{	Entry entry;
+		synchronized(this)
+		{	entry = entries.get(outputFile.getAbsolutePath());
+		}
+		if(entry == null || !entry.settings.equals(settings)
+				|| !isUnchanged(mblFile, entry.inputs[0], entry.inputs[1]) || !isUnchanged(kmlFile, entry.inputs[2], entry.inputs[3]))
+			return null;
+		File folder = outputFile.getAbsoluteFile().getParentFile();
+		for(String[] output:entry.outputs)
+		{	File file = new File(folder, output[0]);
+			if(!file.isFile() || file.length() != Long.parseLong(output[1]))
+				return null;
+			if(file.lastModified() != Long.parseLong(output[2]) && !ResultCache.hashContent(file).equals(output[3]))
+				return null;
+		}
+		return entry.counts;
+	}
+
+	private static boolean isUnchanged(File input, String stamp, String hash) throws IOException
+	{	return input.isFile() && (stampOf(input).equals(stamp) || ResultCache.hashContent(input).equals(hash));
+	}
+
+	private static String stampOf(File file)
+	{	return file.length() + " " + file.lastModified();
+	}
+
+	/**
+	 * Records a pair that was converted, and writes the journal again if it was not written in the last second.
+	 * @param mblFile The MBL file of the pair.
+	 * @param mblHash The hash of the MBL file, e.g. from the ResultCache of the conversion, or null to hash it now.
+	 * @param kmlFile The KML file of the pair.
+	 * @param kmlHash The hash of the KML file, or null to hash it now.
+	 * @param outputFile The output file stub of the pair.
+	 * @param settings The key of the settings of the conversion.
+	 * @param counts The counts of the summary of the pair, tab delimited.
+	 * @param outputs The files written by the conversion of the pair, e.g. from its OutputFiles.
+	 * @throws IOException If a file can not be hashed or the journal can not be written.
+	 */
+	public void complete(File mblFile, String mblHash, File kmlFile, String kmlHash, File outputFile, String settings, String counts,
+			File[] outputs) throws IOException
+	{	Entry entry = new Entry();
+		entry.outputStub = outputFile.getAbsolutePath();
+		entry.settings = settings;
+		entry.counts = counts;
+		entry.inputs = new String[] {stampOf(mblFile), mblHash != null ? mblHash : ResultCache.hashContent(mblFile),
+				stampOf(kmlFile), kmlHash != null ? kmlHash : ResultCache.hashContent(kmlFile)};
+		for(File output:outputs)
+			entry.outputs.add(new String[] {output.getName(), String.valueOf(output.length()), String.valueOf(output.lastModified()),
+					ResultCache.hashContent(output)});
+		synchronized(this)
+		{	entries.put(entry.outputStub, entry);
+			changed = true;
+			if(System.currentTimeMillis() - written >= WRITE_INTERVAL)
+				write();
+		}
+	}
+
+	/**
+	 * Writes the journal, if a pair was recorded since it was last written, e.g. at the end of a run.
+	 * @throws IOException If the journal can not be written.
+	 */
+	public synchronized void flush() throws IOException
+	{	if(changed)
+			write();
+	}
+
+	/**
+	 * Forgets every pair, e.g. to convert them all again.
+	 */
+	public synchronized void clear()
+	{	entries.clear();
+		changed = true;
+	}
+
+	/**
+	 * Writes the journal to a temporary file and moves it over the journal in one step, so that the journal on the disk
+	 *   is always complete, even if the conversion is killed while it is written.
+	 */
+	private void write() throws IOException
+	{	File folder = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(TEMP_PREFIX, ".tmp", folder);
+		Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try
+		{	out.write(HEADER + "\n");
+			for(Entry entry:entries.values())
+				out.write(entry.toLine() + "\n");
+		}
+		finally
+		{	out.close();
+		}
+		try
+		{	Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{	temp.delete();
+			throw new IOException("The checkpoint journal " + file + " could not be written.", e);
+		}
+		written = System.currentTimeMillis();
+		changed = false;
+	}
+
+	/**
+	 * @return The journal file.
+	 */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Records a converted pair in a journal, then reads the journal again, as a run that was started again would, and
+	 *   asks whether the pair is done after each of: nothing changed, other settings, an input file touched but not
+	 *   changed, an input file changed, an output file changed to the same length, an output file deleted, and the
+	 *   journal overwritten. Each answer is printed with the one it should be.
+	 * @param args
+	 * @throws IOException If a temporary file can not be written or read.
+	 */
+	public static void main(String[] args) throws IOException
+	{	File folder = File.createTempFile("witness", "");
+		folder.delete();
+		folder.mkdir();
+		File mblFile = new File(folder, "parcels.mbl"), kmlFile = new File(folder, "parcels.kml"), stub = new File(folder, "out.txt");
+		File geoFile = new File(folder, "out_geo.txt"), flatFile = new File(folder, "out_flat.txt"), journalFile = new File(folder, DEFAULT_FILE);
+		write(mblFile, "typ pat\nid 1000\nend\n");
+		write(kmlFile, "<kml></kml>\n");
+		write(geoFile, "geo rows\n");
+		write(flatFile, "flat rows\n");
+		String counts = "1\t2\t3";
+		CheckpointJournal journal = new CheckpointJournal(journalFile);
+		journal.complete(mblFile, null, kmlFile, null, stub, "settings", counts, new File[]{geoFile, flatFile});
+		journal.flush();
+
+		check("Nothing changed", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "settings"), counts);
+		check("Other settings", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "other settings"), null);
+		mblFile.setLastModified(mblFile.lastModified() - 5000);
+		check("Input touched", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "settings"), counts);
+		write(mblFile, "typ pat\nid 1001\nend\n");
+		check("Input changed", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "settings"), null);
+		write(mblFile, "typ pat\nid 1000\nend\n");
+		write(geoFile, "geo ROWS\n");
+		geoFile.setLastModified(geoFile.lastModified() - 5000);
+		check("Output changed", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "settings"), null);
+		geoFile.delete();
+		check("Output deleted", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "settings"), null);
+		write(geoFile, "geo rows\n");
+		write(journalFile, "not a journal\n");
+		check("Journal overwritten", new CheckpointJournal(journalFile).getDone(mblFile, kmlFile, stub, "settings"), null);
+		for(File file:folder.listFiles())
+			file.delete();
+		folder.delete();
+	}
+
+	private static void check(String name, String done, String expected)
+	{	System.out.println(name + ": " + (done == null ? "not done" : "done, counts " + done.replace('\t', ' '))
+				+ ((done == null ? expected == null : done.equals(expected)) ? "" : "\t<-- should be "
+				+ (expected == null ? "not done" : "done")));
+	}
+
+	private static void write(File file, String text) throws IOException
+	{	FileWriter out = new FileWriter(file);
+		out.write(text);
+		out.close();
+	}
+}
@@ -0,0 +1,718 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Converts an MBL and KML file pair to the geo and flat files without reading either file into a table. Each stage
+ *   runs on its own thread and passes its work on through a bounded queue, so that a stage waits when the next one
+ *   falls behind:
+ * <br>- an MBL parser and a KML parser read their files line by line and pass batches of parcels to the join. The
+ *   MBL parser also spools the flat file rows, and writes the flat file once the whole MBL file has been read.
+ * <br>- the StreamingJoin, on the calling thread, joins each parcel as soon as its match arrives from the other file.
+ * <br>- the geo file writer formats the joined parcels, and a BlockWriter for each file writes its blocks to the disk.
+ * <br>The memory used is set by the queue sizes and the parcels waiting for their match, not by the size of the
+ *   files. The geo file lists the parcels in the order they were joined, which is not always the order of the files.
+ * <br>With snapshots on, a parser reads the parcels from the TableSnapshot of its file when it is up to date, instead
+ *   of parsing the text, and otherwise writes the snapshot as it parses, for the next conversion. A ResultCache keeps
+ *   the snapshots by the content of the files instead, and the joined parcels as well, so that a conversion that only
+ *   changes the search terms skips both the parsers and the join.
+ * <br>A ProgressSink, if set, is told the progress of each stage every batch of parcels, and each stage stops once it
+ *   is cancelled. The files that the writers recorded in the OutputFiles of the conversion are then deleted, the
+ *   partly written geo and flat files, and no others.
+ * @author thayer young
+ */
+public class ConversionPipeline
+{
+	/** The default number of parcels that a parser passes to the join at a time. */
+	public static final int DEFAULT_BATCH_SIZE = 64;
+	/** The default number of batches that can wait for the join. */
+	public static final int DEFAULT_QUEUE_BATCHES = 16;
+	private static final long OFFER_WAIT_MILLISECONDS = 100;
+	private static final int PROGRESS_INTERVAL = 64;	// parcels written between the reports of the geo file writer
+
+	private FieldClassifier fields;
+	private TermMatcher terms;
+	private JoinListener listener = null;
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int queueBatches = DEFAULT_QUEUE_BATCHES;
+	private int pipeCapacity = ParcelPipe.DEFAULT_CAPACITY;
+	private int geoFormats = Witness.GEO_FORMAT_TEXT;
+	private ShardPlan shardPlan = null;
+	private boolean snapshots = false;
+	private ResultCache resultCache = null;
+	private ProgressSink progress = null;
+	private OutputFiles outputFiles = null;
+	private OutputFiles written;		// the files of the running conversion
+	private volatile boolean stopped = false;
+	private AtomicLong parsedCharacters = new AtomicLong();
+	private long totalCharacters;
+
+	/**
+	 * A batch of parcels from one of the parsers. The last batch of a parser also carries the error that stopped it.
+	 */
+	private static class Batch
+	{	boolean isKML;
+		ArrayList<Parcel<String>> parcels = new ArrayList<Parcel<String>>();
+		boolean last = false;
+		Throwable error = null;
+
+		Batch(boolean isKML)
+		{	this.isKML = isKML;
+		}
+	}
+
+	/**
+	 * @param singleLineFields The custom single line fields, as for Witness.textToTable().
+	 * @param multipleLineFields The custom multiple line fields, as for Witness.textToTable().
+	 * @param geoCommentSearchTerms The terms searched for in the course comments, as for Witness.writeOutputFiles().
+	 */
+	public ConversionPipeline(String[] singleLineFields, String[] multipleLineFields, String[] geoCommentSearchTerms)
+	{	this(new FieldClassifier(singleLineFields, multipleLineFields), new TermMatcher(geoCommentSearchTerms));
+	}
+
+	/**
+	 * @param fields The custom fields, e.g. shared by the conversions of many files.
+	 * @param terms The terms searched for in the course comments, e.g. shared by the conversions of many files.
+	 */
+	public ConversionPipeline(FieldClassifier fields, TermMatcher terms)
+	{	this.fields = fields;
+		this.terms = terms;
+	}
+
+	/**
+	 * Converts the files, showing an error dialog if the conversion fails.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files. The files are gzip compressed
+	 *   if it ends with Witness.GZIP_EXTENSION.
+	 * @return The report of the join if the files are written successfully, otherwise null, e.g. if the conversion was
+	 *   cancelled. Its joined table is null.
+	 */
+	public JoinReport convert(File mblFile, File kmlFile, File outputFile, String fileExtension)
+	{	try
+		{	return run(mblFile, kmlFile, outputFile, fileExtension);
+		}catch(CancellationException ce)
+		{	return null;		// the user knows
+		}catch(Exception e)
+		{	Witness.popupErrorDialog("There was a problem converting the files.","Conversion Error",e);
+			return null;
+		}
+	}
+
+	/**
+	 * Converts the files. With a ResultCache, the stages whose results are in the cache are not run: when both files
+	 *   and the custom fields are unchanged, only the geo files and the flat file are written again, from the cached
+	 *   join and the cached parse of the MBL file.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files. The files are gzip compressed
+	 *   if it ends with Witness.GZIP_EXTENSION.
+	 * @return The report of the join. Its joined table is null, the joined parcels are only written to the geo file.
+	 * @throws Exception The first error of any of the stages.
+	 * @throws CancellationException If the ProgressSink was cancelled, the partly written files are then deleted.
+	 */
+	public JoinReport run(File mblFile, File kmlFile, File outputFile, String fileExtension) throws Exception
+	{	written = outputFiles != null ? outputFiles : new OutputFiles();
+		Throwable error = null;
+		JoinReport report = null;
+		try
+		{	report = runStages(mblFile, kmlFile, outputFile, fileExtension);
+		}catch(Throwable t)
+		{	error = t;
+		}
+		if(progress != null && progress.isCancelled())
+		{	written.delete();
+			throw new CancellationException("The conversion was cancelled.");
+		}
+		rethrow(error);
+		return report;
+	}
+
+	private JoinReport runStages(File mblFile, File kmlFile, File outputFile, String fileExtension) throws Exception
+	{	String mblSettings = TableSnapshot.mblSettings(fields.getSingleLineFields(), fields.getMultipleLineFields());
+		File mblSnapshotFile = null, kmlSnapshotFile = null, mblSource = mblFile, kmlSource = kmlFile;
+		String joinKey = null;
+		if(resultCache != null)
+		{	String mblHash = resultCache.hash(mblFile), kmlHash = resultCache.hash(kmlFile);
+			mblSnapshotFile = resultCache.getFile(ResultCache.key(ResultCache.PARSE_STAGE, mblHash, mblSettings), TableSnapshot.SNAPSHOT_SUFFIX);
+			kmlSnapshotFile = resultCache.getFile(ResultCache.key(ResultCache.PARSE_STAGE, kmlHash, TableSnapshot.KML_SETTINGS), TableSnapshot.SNAPSHOT_SUFFIX);
+			joinKey = ResultCache.key(ResultCache.JOIN_STAGE, mblHash, kmlHash, mblSettings);
+			mblSource = kmlSource = null;		// the cached snapshots are named by the content of their files
+		}
+		else if(snapshots)
+		{	mblSnapshotFile = TableSnapshot.snapshotFileOf(mblFile);
+			kmlSnapshotFile = TableSnapshot.snapshotFileOf(kmlFile);
+		}
+		TableSnapshot mblSnapshot = mblSnapshotFile == null ? null : TableSnapshot.open(mblSnapshotFile, mblSource, false, mblSettings);
+		TableSnapshot kmlSnapshot = kmlSnapshotFile == null ? null : TableSnapshot.open(kmlSnapshotFile, kmlSource, true, TableSnapshot.KML_SETTINGS);
+		if(joinKey != null && mblSnapshot != null)
+		{	JoinReport report = resultCache.getReport(joinKey);
+			TableSnapshot joinedSnapshot = report == null ? null
+					: TableSnapshot.open(resultCache.getFile(joinKey, TableSnapshot.SNAPSHOT_SUFFIX), null, false, joinKey);
+			if(joinedSnapshot != null)
+				return rewrite(joinedSnapshot, mblSnapshot, report, outputFile, fileExtension);
+		}
+
+		File flatFile = Witness.appendSuffix(outputFile, false, false, fileExtension);
+		ArrayBlockingQueue<Batch> input = new ArrayBlockingQueue<Batch>(Math.max(queueBatches, 1));
+		ParcelPipe<String> joined = new ParcelPipe<String>(pipeCapacity);
+		JoinReport report = new JoinReport();
+		StreamingJoin join = new StreamingJoin(report, listener, joined);
+		stopped = false;
+		parsedCharacters.set(0);
+		totalCharacters = mblFile.length() + kmlFile.length();
+
+		SnapshotTee joinedTee = null;
+		if(joinKey != null)
+		{	try
+			{	joinedTee = new SnapshotTee(joined, new SnapshotWriter(resultCache.getFile(joinKey, TableSnapshot.SNAPSHOT_SUFFIX), null, false, joinKey));
+			}catch(IOException ioe)
+			{	// the join is not cached
+			}
+		}
+		OutputThread geoThread = newGeoThread(joinedTee == null ? joined : joinedTee, joined, outputFile, fileExtension);
+		LineReader mblLines = null, kmlLines = null;
+		FlatSpool spool = null;
+		try
+		{	if(mblSnapshot == null)
+				mblLines = new LineReader(mblFile);
+			if(kmlSnapshot == null)
+				kmlLines = new LineReader(kmlFile);
+			spool = new FlatSpool(flatFile.getAbsoluteFile().getParentFile());
+		}catch(IOException ioe)
+		{	if(mblLines != null)
+				mblLines.close();
+			if(kmlLines != null)
+				kmlLines.close();
+			if(joinedTee != null)
+				joinedTee.writer.abandon();
+			throw ioe;
+		}
+		ParserThread mblThread, kmlThread;
+		if(mblSnapshot != null)
+			mblThread = new ParserThread("MBL snapshot reader", mblSnapshot, false, input, spool, flatFile);
+		else
+		{	mblThread = new ParserThread("MBL parser", new MblParser(mblLines, fields), mblLines, false, input, spool, flatFile);
+			if(mblSnapshotFile != null)
+				mblThread.writeSnapshot(mblSnapshotFile, mblSource, mblSettings);
+		}
+		if(kmlSnapshot != null)
+			kmlThread = new ParserThread("KML snapshot reader", kmlSnapshot, true, input, null, null);
+		else
+		{	kmlThread = new ParserThread("KML parser", new KmlParser(kmlLines), kmlLines, true, input, null, null);
+			if(kmlSnapshotFile != null)
+				kmlThread.writeSnapshot(kmlSnapshotFile, kmlSource, TableSnapshot.KML_SETTINGS);
+		}
+		mblThread.setShards(shardPlan, fileExtension);
+		mblThread.setLength(mblFile.length());
+		kmlThread.setLength(kmlFile.length());
+		geoThread.start();
+		mblThread.start();
+		kmlThread.start();
+
+		Throwable error = null;
+		Batch batch;
+		int parsing = 2;
+		long joinedParcels = 0;
+		try
+		{	while(parsing > 0)
+			{	batch = input.take();
+				for(Parcel<String> parcel:batch.parcels)
+				{	if(batch.isKML)
+						join.addKML(parcel);
+					else join.addMBL(parcel);
+				}
+				if(progress != null)
+				{	checkCancelled(progress);
+					joinedParcels += batch.parcels.size();
+					progress.progress(ProgressSink.STAGE_JOIN, joinedParcels, -1);
+				}
+				if(batch.error != null)
+				{	error = batch.error;
+					break;
+				}
+				if(batch.last)
+					parsing--;
+			}
+			if(error == null)
+				join.finish();
+		}catch(Throwable t)
+		{	error = t;
+		}
+		finally
+		{	stopped = true;		// a parser that is still running stops passing batches
+			input.clear();
+			try
+			{	joined.close();
+			}catch(InterruptedException ie)
+			{	joined.abandon();
+				Thread.currentThread().interrupt();
+			}
+		}
+		try
+		{	error = firstError(error, geoThread.finish());
+			mblThread.join();
+			kmlThread.join();
+			error = firstError(error, mblThread.getError());
+			error = firstError(error, kmlThread.getError());
+		}
+		finally
+		{	spool.delete();
+			if(joinedTee != null)
+				joinedTee.finish(error == null ? report : null, joinKey);
+		}
+		rethrow(error);
+		return report;
+	}
+
+	/**
+	 * Writes the geo files and the flat file again from a cached join and the cached parse of the MBL file.
+	 * @param joinedSnapshot The joined parcels.
+	 * @param mblSnapshot The parsed MBL file.
+	 * @param report The report of the join.
+	 * @return The report. The listener is not told of the cached parcels.
+	 */
+	private JoinReport rewrite(TableSnapshot joinedSnapshot, TableSnapshot mblSnapshot, JoinReport report, File outputFile, String fileExtension) throws Exception
+	{	File flatFile = Witness.appendSuffix(outputFile, false, false, fileExtension);
+		stopped = false;
+		OutputThread geoThread = newGeoThread(joinedSnapshot.parcels(), null, outputFile, fileExtension);
+		FlatSpool spool = new FlatSpool(flatFile.getAbsoluteFile().getParentFile());
+		ParserThread mblThread = new ParserThread("MBL snapshot reader", mblSnapshot, false, null, spool, flatFile);
+		mblThread.setShards(shardPlan, fileExtension);
+		geoThread.start();
+		mblThread.start();
+		Throwable error;
+		try
+		{	error = geoThread.finish();
+			mblThread.join();
+			error = firstError(error, mblThread.getError());
+		}
+		finally
+		{	spool.delete();
+		}
+		rethrow(error);
+		return report;
+	}
+
+	private OutputThread newGeoThread(Iterable<Parcel<String>> parcels, ParcelPipe<String> pipe, File outputFile, String fileExtension)
+	{	return newGeoThread(withProgress(parcels, progress), pipe, outputFile, fileExtension, geoFormats, shardPlan, terms, written);
+	}
+
+	/**
+	 * @param parcels The joined parcels to be written.
+	 * @param pipe The pipe of the joined parcels, abandoned if the writer stops, or null.
+	 * @param formats The Witness.GEO_FORMAT_ flags of the geo files.
+	 * @param shards How the geo text file is split, or null.
+	 * @param terms The terms searched for in the course comments.
+	 * @param outputFiles Records each geo file as it is created, or null.
+	 * @return The thread that writes the geo files.
+	 */
+	static OutputThread newGeoThread(final Iterable<Parcel<String>> parcels, final ParcelPipe<String> pipe, final File outputFile, final String fileExtension,
+			final int formats, final ShardPlan shards, final TermMatcher terms, final OutputFiles outputFiles)
+	{	File geoFile = Witness.appendSuffix(outputFile, true, false, fileExtension);
+		OutputThread thread = new OutputThread("Geo file writer", Witness.isGeoTextInParcelOrder(formats) ? geoFile : null, shards, fileExtension)
+		{	protected void write(TsvWriter out) throws IOException
+			{	GeoRowWriter[] writers = null;
+				try
+				{	writers = Witness.openGeoRowWriters(outputFile, formats, fileExtension, shards, outputFiles);
+					Witness.writeGeoFile(out, writers, parcels, terms);
+				}
+				finally
+				{	if(pipe != null)
+						pipe.abandon();	// the join must not wait on a writer that stopped
+					Witness.closeGeoRowWriters(writers);
+				}
+			}
+		};
+		thread.setOutputFiles(outputFiles);
+		return thread;
+	}
+
+	/**
+	 * @param parcels The joined parcels, on their way to the geo file writer.
+	 * @param progress Is told the parcels written as ProgressSink.STAGE_WRITE_GEO every few parcels, may be null.
+	 * @return The parcels, which stop with a CancellationException once the progress is cancelled.
+	 */
+	static Iterable<Parcel<String>> withProgress(final Iterable<Parcel<String>> parcels, final ProgressSink progress)
+	{	if(progress == null)
+			return parcels;
+		return new Iterable<Parcel<String>>()
+		{	public Iterator<Parcel<String>> iterator()
+			{	final Iterator<Parcel<String>> iterator = parcels.iterator();
+				return new Iterator<Parcel<String>>()
+				{	private long count = 0;
+
+					public boolean hasNext()
+					{	return iterator.hasNext();
+					}
+
+					public Parcel<String> next()
+					{	if(++count % PROGRESS_INTERVAL == 0)
+						{	checkCancelled(progress);
+							progress.progress(ProgressSink.STAGE_WRITE_GEO, count, -1);
+						}
+						return iterator.next();
+					}
+
+					public void remove()
+					{	throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @param progress The progress of a conversion, may be null.
+	 * @throws CancellationException If the progress is cancelled.
+	 */
+	static void checkCancelled(ProgressSink progress)
+	{	if(progress != null && progress.isCancelled())
+			throw new CancellationException("The conversion was cancelled.");
+	}
+
+	static void rethrow(Throwable error) throws Exception
+	{	if(error instanceof Exception)
+			throw (Exception) error;
+		if(error instanceof Error)
+			throw (Error) error;
+	}
+
+	/**
+	 * Passes the joined parcels on to the geo file writer, and writes each to the snapshot of the join on the way.
+	 */
+	private class SnapshotTee implements Iterable<Parcel<String>>
+	{	private Iterable<Parcel<String>> parcels;
+		private SnapshotWriter writer;
+
+		SnapshotTee(Iterable<Parcel<String>> parcels, SnapshotWriter writer)
+		{	this.parcels = parcels;
+			this.writer = writer;
+		}
+
+		public Iterator<Parcel<String>> iterator()
+		{	final Iterator<Parcel<String>> iterator = parcels.iterator();
+			return new Iterator<Parcel<String>>()
+			{	public boolean hasNext()
+				{	return iterator.hasNext();
+				}
+
+				public Parcel<String> next()
+				{	Parcel<String> parcel = iterator.next();
+					if(writer != null)
+						writer = TableSnapshot.add(writer, parcel);
+					return parcel;
+				}
+
+				public void remove()
+				{	throw new UnsupportedOperationException();
+				}
+			};
+		}
+
+		/**
+		 * Puts the snapshot and the report of a successful join in the cache, or abandons the snapshot.
+		 * @param report The report, or null if the conversion failed.
+		 * @param joinKey The key of the join.
+		 */
+		void finish(JoinReport report, String joinKey)
+		{	if(writer == null)
+				return;
+			if(report == null)
+			{	writer.abandon();
+				return;
+			}
+			try
+			{	if(writer.finish(null, null) != null)
+					resultCache.putReport(joinKey, report);		// the report marks the entry complete
+			}catch(IOException ioe)
+			{	// the join is run again next time
+			}
+		}
+	}
+
+	static Throwable firstError(Throwable error, Throwable next)
+	{	if(error == null)
+			return next;
+		return error;
+	}
+
+	/**
+	 * Reads one file, or its snapshot, into batches of parcels for the join. The MBL parser spools the flat file rows as
+	 *   it goes, then writes the flat file.
+	 */
+	private class ParserThread extends Thread
+	{	private ParcelSource parser;
+		private LineReader lines;
+		private TableSnapshot snapshot = null;
+		private SnapshotWriter snapshotWriter = null;
+		private boolean isKML;
+		private ArrayBlockingQueue<Batch> input;
+		private FlatSpool spool;
+		private File flatFile;
+		private ShardPlan shards = null;
+		private String fileExtension = null;
+		private long length = 0;
+		private long reported = 0;		// the characters of the file added to parsedCharacters
+		private int parcelCount = 0;
+		private volatile Throwable error = null;
+
+		ParserThread(String name, ParcelSource parser, LineReader lines, boolean isKML, ArrayBlockingQueue<Batch> input, FlatSpool spool, File flatFile)
+		{	super(name);
+			this.parser = parser;
+			this.lines = lines;
+			this.isKML = isKML;
+			this.input = input;
+			this.spool = spool;
+			this.flatFile = flatFile;
+		}
+
+		ParserThread(String name, TableSnapshot snapshot, boolean isKML, ArrayBlockingQueue<Batch> input, FlatSpool spool, File flatFile)
+		{	this(name, snapshot.source(), null, isKML, input, spool, flatFile);
+			this.snapshot = snapshot;
+		}
+
+		/**
+		 * Writes the snapshot of the file as it is parsed. The conversion goes on without it if it can not be written.
+		 * @param snapshotFile The snapshot file.
+		 * @param sourceFile The file that is parsed, or null if the snapshot is not checked against it.
+		 * @param settings The parse settings of the snapshot.
+		 */
+		void writeSnapshot(File snapshotFile, File sourceFile, String settings)
+		{	try
+			{	snapshotWriter = new SnapshotWriter(snapshotFile, sourceFile, isKML, settings);
+			}catch(IOException ioe)
+			{	snapshotWriter = null;
+			}
+		}
+
+		/**
+		 * @param shards How the flat file is split, or null to write the one file.
+		 * @param fileExtension The file extension at the end of the flat file name.
+		 */
+		void setShards(ShardPlan shards, String fileExtension)
+		{	this.shards = shards;
+			this.fileExtension = fileExtension;
+		}
+
+		/**
+		 * @param length The length of the file, the total of its parse progress.
+		 */
+		void setLength(long length)
+		{	this.length = length;
+		}
+
+		/**
+		 * Tells the progress of both parsers, after a batch of this one, and stops the parse if it is cancelled. A
+		 *   snapshot reader counts its share of the characters of its file by the parcels it has read.
+		 */
+		private void reportProgress()
+		{	checkCancelled(progress);
+			long characters;
+			if(lines != null)
+				characters = Math.min(lines.getCharCount(), length);
+			else characters = snapshot.size() == 0 ? length : length * parcelCount / snapshot.size();
+			progress.progress(ProgressSink.STAGE_PARSE, parsedCharacters.addAndGet(characters - reported), totalCharacters);
+			reported = characters;
+		}
+
+		public void run()
+		{	Batch batch = new Batch(isKML);
+			Parcel<String> parcel;
+			boolean complete = false;
+			try
+			{	while(!stopped)
+				{	if((parcel = parser.next()) == null)
+					{	complete = true;
+						break;
+					}
+					if(spool != null)
+						spool.add(parcel);	// before the join removes the parcel's records
+					if(snapshotWriter != null)
+						snapshotWriter = TableSnapshot.add(snapshotWriter, parcel);
+					batch.parcels.add(parcel);
+					parcelCount++;
+					if(batch.parcels.size() >= batchSize)
+					{	if(progress != null && input != null)
+							reportProgress();
+						send(batch);
+						batch = new Batch(isKML);
+					}
+				}
+			}catch(Throwable t)
+			{	batch.error = t;
+			}
+			finally
+			{	try
+				{	if(lines != null)
+						lines.close();
+				}catch(IOException ioe)
+				{	// the lines have been read
+				}
+				batch.last = true;
+				send(batch);
+			}
+			if(snapshotWriter != null)
+			{	if(complete && batch.error == null)
+				{	if(isKML)
+						TableSnapshot.finish(snapshotWriter, new CountingTree(), new CountingTree());
+					else TableSnapshot.finish(snapshotWriter, ((MblParser) parser).getFieldList(), ((MblParser) parser).getGeometryCommentMap());
+				}
+				else snapshotWriter.abandon();
+			}
+			if(complete && batch.error == null && spool != null)	// the join may already have stopped the parsers
+				writeFlatFile();
+		}
+
+		private void writeFlatFile()
+		{	final CountingTree fieldList = snapshot != null ? snapshot.getFieldList() : ((MblParser) parser).getFieldList();
+			OutputThread flatWriter = new OutputThread(getName() + " flat file", flatFile, shards, fileExtension)
+			{	protected void write(TsvWriter out) throws IOException
+				{	spool.write(out, fieldList, progress);
+				}
+			};
+			flatWriter.setOutputFiles(written);
+			flatWriter.start();
+			try
+			{	error = flatWriter.finish();
+			}catch(InterruptedException ie)
+			{	error = ie;
+			}
+		}
+
+		private void send(Batch batch)
+		{	if(input == null)		// the parcels are only read for the flat file
+				return;
+			try
+			{	while(!stopped && !input.offer(batch, OFFER_WAIT_MILLISECONDS, TimeUnit.MILLISECONDS));
+			}catch(InterruptedException ie)
+			{	error = ie;
+			}
+		}
+
+		Throwable getError()
+		{	return error;
+		}
+	}
+
+	public JoinListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @param listener Is told the outcome of each parcel as it is joined, may be null.
+	 */
+	public void setListener(JoinListener listener) {
+		this.listener = listener;
+	}
+
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @param batchSize The number of parcels that a parser passes to the join at a time.
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(batchSize, 1);
+	}
+
+	public int getQueueBatches() {
+		return queueBatches;
+	}
+
+	/**
+	 * @param queueBatches The number of batches that can wait for the join before the parsers wait.
+	 */
+	public void setQueueBatches(int queueBatches) {
+		this.queueBatches = queueBatches;
+	}
+
+	public int getGeoFormats() {
+		return geoFormats;
+	}
+
+	/**
+	 * @param geoFormats The Witness.GEO_FORMAT_ flags of the geo files to be written, the text file by default.
+	 */
+	public void setGeoFormats(int geoFormats) {
+		this.geoFormats = geoFormats;
+	}
+
+	public ShardPlan getShardPlan() {
+		return shardPlan;
+	}
+
+	/**
+	 * @param shardPlan How the geo and flat text files are split, see ShardedTsvWriter, null by default to write one
+	 *   file each.
+	 */
+	public void setShardPlan(ShardPlan shardPlan) {
+		this.shardPlan = shardPlan;
+	}
+
+	public boolean isSnapshots() {
+		return snapshots;
+	}
+
+	/**
+	 * @param snapshots True to read each file from its TableSnapshot when it is up to date, and otherwise to write the
+	 *   snapshot as the file is parsed, false by default.
+	 */
+	public void setSnapshots(boolean snapshots) {
+		this.snapshots = snapshots;
+	}
+
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * @param resultCache The cache of the parsed files and the join, which replaces the snapshots next to the files,
+	 *   or null by default to run every stage.
+	 */
+	public void setResultCache(ResultCache resultCache) {
+		this.resultCache = resultCache;
+	}
+
+	public ProgressSink getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @param progress Is told the progress of each stage and can cancel the conversion, may be null, the default.
+	 */
+	public void setProgress(ProgressSink progress) {
+		this.progress = progress;
+	}
+
+	public OutputFiles getOutputFiles() {
+		return outputFiles;
+	}
+
+	/**
+	 * @param outputFiles Records the files that the conversions write, e.g. to journal them, or null by default for
+	 *   each conversion to keep its own record. The record is what a cancelled conversion deletes.
+	 */
+	public void setOutputFiles(OutputFiles outputFiles) {
+		this.outputFiles = outputFiles;
+	}
+
+	public int getPipeCapacity() {
+		return pipeCapacity;
+	}
+
+	/**
+	 * @param pipeCapacity The number of joined parcels that can wait for the geo file writer before the join waits.
+	 */
+	public void setPipeCapacity(int pipeCapacity) {
+		this.pipeCapacity = pipeCapacity;
+	}
+}
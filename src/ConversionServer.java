@@ -0,0 +1,623 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Converts MBL and KML file pairs for other programs, e.g. on the same computer or network, over HTTP. The server
+ *   keeps running, so each conversion starts with the JVM, the JobRunner and the ResultCache already warm. A pair is
+ *   converted as a job, in a folder of its own in the work folder:
+ * <br>- POST /jobs creates a job and returns its id.
+ * <br>- PUT /jobs/{id}/mbl and PUT /jobs/{id}/kml upload the files, the body being streamed to the disk. PUT
+ *   /jobs/{id}/single, /multiple and /terms upload the custom fields and search terms, one per line, otherwise the
+ *   defaults of the GUI are used.
+ * <br>- POST /jobs/{id}/start converts the pair on the JobRunner, or answers 503 if MAX_QUEUED_JOBS are waiting.
+ *   With ?wait=true it answers once the job is done, with its status. A waiting request holds one of the
+ *   HTTP_THREADS, so only MAX_WAITING_REQUESTS can wait at a time, a start that would wait beyond them answers 503
+ *   without starting the job, and the client can start it without waiting and poll its status instead.
+ * <br>- GET /jobs/{id} returns the status of the job: its state, times, output files and the summary of the join.
+ * <br>- GET /jobs/{id}/geo, /flat and /report stream the output files, and GET /jobs/{id}/files/{name} any other
+ *   output file, e.g. the Shapefile.
+ * <br>- DELETE /jobs/{id} deletes the job and its files. A job that has been done or failed for longer than the job
+ *   expiry, an hour by default, is also deleted when the next job is created, so a server that runs for months does
+ *   not keep every job.
+ * <br>Every answer carries the time that the request took, in the TIMING_HEADER header, and is logged with it.
+ * @author thayer young
+ */
+public class ConversionServer
+{
+	/** The most jobs that can wait for a conversion, POST /jobs/{id}/start answers 503 beyond it. */
+	public static final int MAX_QUEUED_JOBS = 256;
+	/** The number of threads that answer the requests. */
+	public static final int HTTP_THREADS = 16;
+	/** The most requests that can wait for their job with ?wait=true, the other threads keep answering. */
+	public static final int MAX_WAITING_REQUESTS = HTTP_THREADS / 2;
+	/** The default time, in milliseconds, that a finished job is kept before it is deleted. */
+	public static final long DEFAULT_JOB_EXPIRY = 60 * 60 * 1000L;
+	/** The header of the time that a request took, in milliseconds. */
+	public static final String TIMING_HEADER = "X-Witness-Milliseconds";
+	/** The state of a job that is waiting for its files. */
+	public static final String STATE_CREATED = "created";
+	/** The state of a job that is waiting for a conversion. */
+	public static final String STATE_QUEUED = "queued";
+	/** The state of a job that is being converted. */
+	public static final String STATE_RUNNING = "running";
+	/** The state of a job that was converted. */
+	public static final String STATE_DONE = "done";
+	/** The state of a job that failed. */
+	public static final String STATE_FAILED = "failed";
+	private static final String JOBS_PATH = "/jobs";
+	private static final String TEXT_EXTENSION = ".txt";
+	private static final String[] PARTS = {"mbl","kml","single","multiple","terms"};
+	private static final String[] PART_SUFFIXES = {".mbl",".kml","_single.txt","_multiple.txt","_terms.txt"};
+	private static final int MBL_PART = 0, KML_PART = 1, SINGLE_PART = 2, MULTIPLE_PART = 3, TERMS_PART = 4;
+	private static final int MAX_PREPARED = 16;		// the prepared custom fields and search terms that are kept
+	private static final int COPY_BUFFER_SIZE = 1 << 16;
+
+	private JobRunner runner;
+	private File workFolder;
+	private String[] singleLineFields;
+	private String[] multipleLineFields;
+	private String[] geoCommentSearchTerms;
+	private String fileExtension = TEXT_EXTENSION;
+	private PrintStream log = System.out;
+	private HttpServer server = null;
+	private ExecutorService httpExecutor = null;
+	private CountDownLatch stopped = new CountDownLatch(1);
+	private HashMap<String,Job> jobs = new HashMap<String,Job>();
+	private int queued = 0;
+	private int waiting = 0;		// requests waiting for their job
+	private long jobExpiry = DEFAULT_JOB_EXPIRY;
+	// the custom fields and search terms of the last jobs that brought their own, by their lines
+	private LinkedHashMap<String,Object> prepared = new LinkedHashMap<String,Object>(MAX_PREPARED, 0.75f, true)
+	{	private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String,Object> eldest)
+		{	return size() > MAX_PREPARED;
+		}
+	};
+
+	/**
+	 * A pair of files to be converted, with its state.
+	 */
+	private class Job implements Runnable
+	{	String id;
+		File folder;
+		/** Written after the times, the report and the error, so that a thread that reads the state first sees them. */
+		volatile String state = STATE_CREATED;
+		long queuedAt, started, finished;
+		JoinReport report = null;
+		Throwable error = null;
+
+		Job(String id, File folder)
+		{	this.id = id;
+			this.folder = folder;
+		}
+
+		File partFile(int part)
+		{	return new File(folder, id + PART_SUFFIXES[part]);
+		}
+
+		File outputFile()
+		{	return new File(folder, id + TEXT_EXTENSION);
+		}
+
+		public void run()
+		{	started = System.currentTimeMillis();
+			state = STATE_RUNNING;
+			synchronized(ConversionServer.this)
+			{	queued--;
+			}
+			String outcome;
+			try
+			{	FieldClassifier fields = (FieldClassifier) prepare(SINGLE_PART, MULTIPLE_PART);
+				TermMatcher terms = (TermMatcher) prepare(TERMS_PART, -1);
+				report = runner.convert(partFile(MBL_PART), partFile(KML_PART), outputFile(), fileExtension, fields, terms);
+				report.write(Witness.appendSuffix(outputFile(), WitnessCLI.REPORT_SUFFIX, TEXT_EXTENSION));
+				outcome = STATE_DONE;
+			}catch(Throwable t)
+			{	error = t;
+				outcome = STATE_FAILED;
+			}
+			finished = System.currentTimeMillis();
+			state = outcome;		// last, deleteExpiredJobs() reads the finish time of a job that is done or failed
+			log.println("Job " + id + " " + outcome + " in " + (finished - started) + " ms" + (error == null ? "." : ": " + error));
+			synchronized(this)
+			{	notifyAll();
+			}
+		}
+
+		/**
+		 * @param part SINGLE_PART or TERMS_PART.
+		 * @param otherPart MULTIPLE_PART with SINGLE_PART, otherwise -1.
+		 * @return The FieldClassifier or TermMatcher of the job, prepared once for all of the jobs with the same lines.
+		 */
+		Object prepare(int part, int otherPart) throws IOException
+		{	String[] lines = partFile(part).isFile() ? WitnessCLI.readLines(partFile(part))
+					: part == SINGLE_PART ? singleLineFields : geoCommentSearchTerms;
+			String[] otherLines = otherPart < 0 ? null
+					: partFile(otherPart).isFile() ? WitnessCLI.readLines(partFile(otherPart)) : multipleLineFields;
+			String key = PARTS[part] + "\n" + Arrays.toString(lines) + "\n" + Arrays.toString(otherLines);
+			synchronized(prepared)
+			{	Object object = prepared.get(key);
+				if(object == null)
+				{	object = otherPart < 0 ? new TermMatcher(lines) : new FieldClassifier(lines, otherLines);
+					prepared.put(key, object);
+				}
+				return object;
+			}
+		}
+
+		synchronized void await() throws InterruptedException
+		{	while(STATE_QUEUED.equals(state) || STATE_RUNNING.equals(state))
+				wait();
+		}
+
+		/**
+		 * @return The status of the job, one "name: value" line each, followed by the summary of the join.
+		 */
+		String status()
+		{	StringBuilder status = new StringBuilder();
+			String state = this.state;		// read once and first, the fields below were written before it
+			long now = System.currentTimeMillis();
+			status.append("Job: ").append(id).append("\n");
+			status.append("State: ").append(state).append("\n");
+			if(queuedAt > 0)
+				status.append("Queued ms: ").append((started > 0 ? started : now) - queuedAt).append("\n");
+			if(started > 0)
+				status.append("Run ms: ").append((finished > 0 ? finished : now) - started).append("\n");
+			if(error != null)
+				status.append("Error: ").append(error).append("\n");
+			if(STATE_DONE.equals(state))
+			{	status.append("Files:");
+				for(String name:outputNames())
+					status.append(" ").append(name);
+				status.append("\n\n").append(report.toString()).append("\n");
+			}
+			return status.toString();
+		}
+
+		/**
+		 * @return The names of the files of the job other than its inputs, sorted.
+		 */
+		String[] outputNames()
+		{	String[] names = folder.list();
+			if(names == null)
+				return new String[0];
+			int count = 0;
+			for(String name:names)
+			{	if(!isPart(name))
+					names[count++] = name;
+			}
+			names = Arrays.copyOf(names, count);
+			Arrays.sort(names);
+			return names;
+		}
+
+		private boolean isPart(String name)
+		{	for(int part = 0; part < PARTS.length; part++)
+			{	if(name.equals(id + PART_SUFFIXES[part]))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param runner The JobRunner of the conversions, with their settings, e.g. the geo formats.
+	 * @param workFolder The folder of the jobs, a folder per job.
+	 * @param singleLineFields The custom single line fields of a job that does not upload its own.
+	 * @param multipleLineFields The custom multiple line fields of a job that does not upload its own.
+	 * @param geoCommentSearchTerms The search terms of a job that does not upload its own.
+	 */
+	public ConversionServer(JobRunner runner, File workFolder, String[] singleLineFields, String[] multipleLineFields, String[] geoCommentSearchTerms)
+	{	this.runner = runner;
+		this.workFolder = workFolder;
+		this.singleLineFields = singleLineFields;
+		this.multipleLineFields = multipleLineFields;
+		this.geoCommentSearchTerms = geoCommentSearchTerms;
+	}
+
+	/**
+	 * Starts answering requests.
+	 * @param address The address and port to listen on, e.g. 127.0.0.1:8080 for this computer only.
+	 * @throws IOException If the port can not be opened.
+	 */
+	public void start(InetSocketAddress address) throws IOException
+	{	workFolder.mkdirs();
+		server = HttpServer.create(address, 0);
+		server.createContext(JOBS_PATH, new HttpHandler()
+		{	public void handle(HttpExchange exchange) throws IOException
+			{	long start = System.currentTimeMillis();
+				int code;
+				try
+				{	code = route(exchange, start);
+				}catch(Exception e)
+				{	code = send(exchange, 500, "The request failed: " + e + "\n", start);
+				}
+				finally
+				{	exchange.close();
+				}
+				log.println(exchange.getRequestMethod() + " " + exchange.getRequestURI() + " " + code + " "
+						+ (System.currentTimeMillis() - start) + " ms");
+			}
+		});
+		httpExecutor = Executors.newFixedThreadPool(HTTP_THREADS);
+		server.setExecutor(httpExecutor);
+		server.start();
+		log.println("Serving conversions at http://" + address.getHostString() + ":" + server.getAddress().getPort() + JOBS_PATH);
+	}
+
+	/**
+	 * Stops answering requests, after those being answered, and releases join().
+	 */
+	public void stop()
+	{	if(server != null)
+		{	server.stop(1);
+			httpExecutor.shutdown();
+		}
+		stopped.countDown();
+	}
+
+	/**
+	 * Waits until the server is stopped.
+	 * @throws InterruptedException If the wait is interrupted.
+	 */
+	public void join() throws InterruptedException
+	{	stopped.await();
+	}
+
+	/**
+	 * Answers a request under /jobs.
+	 * @return The HTTP status code of the answer.
+	 */
+	private int route(HttpExchange exchange, long start) throws Exception
+	{	String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().substring(JOBS_PATH.length()).split("/");
+		// path[0] is empty, path[1] the job id, path[2] the part or action
+		if(path.length <= 1)
+		{	if(!method.equals("POST"))
+				return send(exchange, 405, "Use POST /jobs to create a job.\n", start);
+			return send(exchange, 201, createJob().id + "\n", start);
+		}
+		Job job;
+		synchronized(this)
+		{	job = jobs.get(path[1]);
+		}
+		if(job == null)
+			return send(exchange, 404, "There is no job " + path[1] + ".\n", start);
+		String action = path.length > 2 ? path[2] : "";
+		if(action.length() == 0)
+		{	if(method.equals("GET"))
+				return send(exchange, 200, job.status(), start);
+			if(method.equals("DELETE"))
+				return deleteJob(exchange, job, start);
+		}
+		else if(method.equals("PUT") && partOf(action) >= 0)
+			return upload(exchange, job, partOf(action), start);
+		else if(method.equals("POST") && action.equals("start"))
+			return startJob(exchange, job, start);
+		else if(method.equals("GET"))
+		{	String name = action.equals("files") && path.length > 3 ? path[3]
+					: action.equals("geo") ? Witness.appendSuffix(job.outputFile(), true, false, fileExtension).getName()
+					: action.equals("flat") ? Witness.appendSuffix(job.outputFile(), false, false, fileExtension).getName()
+					: action.equals("report") ? Witness.appendSuffix(job.outputFile(), WitnessCLI.REPORT_SUFFIX, TEXT_EXTENSION).getName()
+					: null;
+			if(name != null)
+				return download(exchange, job, name, start);
+		}
+		return send(exchange, 404, "Unknown request " + method + " " + exchange.getRequestURI().getPath() + ".\n", start);
+	}
+
+	private Job createJob() throws IOException
+	{	deleteExpiredJobs();
+		String id = UUID.randomUUID().toString();
+		File folder = new File(workFolder, id);
+		if(!folder.mkdirs())
+			throw new IOException("The job folder " + folder + " could not be created.");
+		Job job = new Job(id, folder);
+		synchronized(this)
+		{	jobs.put(id, job);
+		}
+		return job;
+	}
+
+	/**
+	 * Deletes the jobs that finished longer ago than the job expiry, with their files.
+	 */
+	private void deleteExpiredJobs()
+	{	ArrayList<Job> expired = new ArrayList<Job>();
+		long now = System.currentTimeMillis();
+		synchronized(this)
+		{	Iterator<Job> iterator = jobs.values().iterator();
+			Job job;
+			while(iterator.hasNext())
+			{	job = iterator.next();
+				if((STATE_DONE.equals(job.state) || STATE_FAILED.equals(job.state)) && now - job.finished > jobExpiry)
+				{	iterator.remove();
+					expired.add(job);
+				}
+			}
+		}
+		for(Job job:expired)
+		{	deleteFiles(job);
+			log.println("Job " + job.id + " expired.");
+		}
+	}
+
+	private static int partOf(String name)
+	{	for(int part = 0; part < PARTS.length; part++)
+		{	if(PARTS[part].equals(name))
+				return part;
+		}
+		return -1;
+	}
+
+	/**
+	 * Streams the body of the request to the file of the part.
+	 */
+	private int upload(HttpExchange exchange, Job job, int part, long start) throws IOException
+	{	if(!STATE_CREATED.equals(job.state))
+			return send(exchange, 409, "The job " + job.id + " is already " + job.state + ".\n", start);
+		File file = job.partFile(part);
+		InputStream in = exchange.getRequestBody();
+		OutputStream out = new FileOutputStream(file);
+		long size;
+		try
+		{	size = copy(in, out);
+		}
+		finally
+		{	out.close();
+		}
+		return send(exchange, 200, PARTS[part] + ": " + size + " bytes\n", start);
+	}
+
+	private int startJob(HttpExchange exchange, Job job, long start) throws Exception
+	{	if(!job.partFile(MBL_PART).isFile() || !job.partFile(KML_PART).isFile())
+			return send(exchange, 409, "Upload the mbl and kml files of the job first.\n", start);
+		boolean wait = "wait=true".equals(exchange.getRequestURI().getQuery());
+		synchronized(this)
+		{	if(!STATE_CREATED.equals(job.state))
+				return send(exchange, 409, "The job " + job.id + " is already " + job.state + ".\n", start);
+			if(queued >= MAX_QUEUED_JOBS)
+				return send(exchange, 503, "There are too many jobs waiting, try again later.\n", start);
+			if(wait && waiting >= MAX_WAITING_REQUESTS)
+				return send(exchange, 503, "There are too many requests waiting, start the job without ?wait=true and poll GET "
+						+ JOBS_PATH + "/" + job.id + ".\n", start);
+			queued++;
+			if(wait)
+				waiting++;
+			job.queuedAt = System.currentTimeMillis();
+			job.state = STATE_QUEUED;
+		}
+		runner.execute(job);
+		if(wait)
+		{	try
+			{	job.await();
+			}
+			finally
+			{	synchronized(this)
+				{	waiting--;
+				}
+			}
+			return send(exchange, STATE_DONE.equals(job.state) ? 200 : 500, job.status(), start);
+		}
+		return send(exchange, 202, job.status(), start);
+	}
+
+	private int deleteJob(HttpExchange exchange, Job job, long start) throws IOException
+	{	if(STATE_QUEUED.equals(job.state) || STATE_RUNNING.equals(job.state))
+			return send(exchange, 409, "The job " + job.id + " is " + job.state + ".\n", start);
+		synchronized(this)
+		{	jobs.remove(job.id);
+		}
+		deleteFiles(job);
+		return send(exchange, 200, "Deleted " + job.id + ".\n", start);
+	}
+
+	private static void deleteFiles(Job job)
+	{	File[] files = job.folder.listFiles();
+		if(files != null)
+		{	for(File file:files)
+				file.delete();
+		}
+		job.folder.delete();
+	}
+
+	/**
+	 * Streams an output file of a job that is done.
+	 */
+	private int download(HttpExchange exchange, Job job, String name, long start) throws IOException
+	{	if(!STATE_DONE.equals(job.state))
+			return send(exchange, 409, "The job " + job.id + " is " + job.state + ".\n", start);
+		File file = new File(job.folder, name);
+		if(name.contains("/") || name.contains("\\") || name.startsWith(".") || job.isPart(name) || !file.isFile())
+			return send(exchange, 404, "The job " + job.id + " has no file " + name + ".\n", start);
+		exchange.getResponseHeaders().set("Content-Type", name.endsWith(TEXT_EXTENSION) ? "text/plain; charset=UTF-8" : "application/octet-stream");
+		exchange.getResponseHeaders().set(TIMING_HEADER, String.valueOf(System.currentTimeMillis() - start));
+		exchange.sendResponseHeaders(200, file.length());
+		InputStream in = new FileInputStream(file);
+		OutputStream out = exchange.getResponseBody();
+		try
+		{	copy(in, out);
+		}
+		finally
+		{	in.close();
+			out.close();
+		}
+		return 200;
+	}
+
+	/**
+	 * Sends a text answer, with the time that the request has taken so far.
+	 * @return The code.
+	 */
+	private static int send(HttpExchange exchange, int code, String text, long start) throws IOException
+	{	byte[] body = text.getBytes("UTF-8");
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+		exchange.getResponseHeaders().set(TIMING_HEADER, String.valueOf(System.currentTimeMillis() - start));
+		exchange.sendResponseHeaders(code, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try
+		{	out.write(body);
+		}
+		finally
+		{	out.close();
+		}
+		return code;
+	}
+
+	private static long copy(InputStream in, OutputStream out) throws IOException
+	{	byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		long size = 0;
+		int count;
+		while((count = in.read(buffer)) >= 0)
+		{	out.write(buffer, 0, count);
+			size += count;
+		}
+		return size;
+	}
+
+	public String getFileExtension() {
+		return fileExtension;
+	}
+
+	/**
+	 * @param fileExtension The extension of the geo and flat text files, ".txt" by default, or ".txt.gz" to compress them.
+	 */
+	public void setFileExtension(String fileExtension) {
+		this.fileExtension = fileExtension;
+	}
+
+	public long getJobExpiry() {
+		return jobExpiry;
+	}
+
+	/**
+	 * @param jobExpiry How long, in milliseconds, a job that is done or failed is kept before it and its files are
+	 *   deleted, DEFAULT_JOB_EXPIRY by default.
+	 */
+	public void setJobExpiry(long jobExpiry) {
+		this.jobExpiry = jobExpiry;
+	}
+
+	public PrintStream getLog() {
+		return log;
+	}
+
+	/**
+	 * @param log Where the requests and jobs are logged, System.out by default.
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 * Runs a server on a free local port and takes a job through its life over HTTP: it is created, started before
+	 *   its files are uploaded, uploaded, converted while the request waits, its geo file downloaded, uploaded and
+	 *   started again once done, expired by the next job, and that job deleted. Each answer is printed with its code,
+	 *   marked if the code or the state is not the one it should be.
+	 * @param args
+	 * @throws Exception If the server can not be started or a request fails.
+	 */
+	public static void main(String[] args) throws Exception
+	{	String[] square = {"N10E;100", "S80E;100", "S10W;100", "N80W;100"}, triangle = {"N0E;100", "S60E;100", "S60W;100"};
+		String mbl = StreamingJoin.mblParcel("1000", square) + StreamingJoin.mblParcel("1001", triangle);
+		String kml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n"
+				+ StreamingJoin.placemark("1000", square, false, 0) + StreamingJoin.placemark("1001", triangle, false, 0.01)
+				+ "</Document>\n</kml>\n";
+		File workFolder = File.createTempFile("witness", "");
+		workFolder.delete();
+		String[] none = new String[0];
+		JobRunner runner = new JobRunner(none, none, none, 1);
+		File cacheFolder = new File(workFolder, ResultCache.DEFAULT_DIRECTORY);
+		runner.setCacheDirectory(cacheFolder);		// shared by the jobs, as by WitnessCLI
+		ConversionServer server = new ConversionServer(runner, workFolder, none, none, none);
+		server.setLog(new PrintStream(new ByteArrayOutputStream()));
+		server.start(new InetSocketAddress("127.0.0.1", 0));
+		String jobs = "http://127.0.0.1:" + server.server.getAddress().getPort() + JOBS_PATH;
+		try
+		{	String id = check("POST /jobs", request("POST", jobs, ""), 201, null).trim();
+			String job = jobs + "/" + id;
+			check("GET /jobs/{id}", request("GET", job, null), 200, STATE_CREATED);
+			check("POST /jobs/{id}/start, no files", request("POST", job + "/start", ""), 409, null);
+			check("PUT /jobs/{id}/mbl", request("PUT", job + "/mbl", mbl), 200, null);
+			check("PUT /jobs/{id}/kml", request("PUT", job + "/kml", kml), 200, null);
+			check("POST /jobs/{id}/start?wait=true", request("POST", job + "/start?wait=true", ""), 200, STATE_DONE);
+			String geo = check("GET /jobs/{id}/geo", request("GET", job + "/geo", null), 200, null);
+			System.out.println("\t" + geo.split("\n").length + " geo lines");
+			check("PUT /jobs/{id}/mbl, done", request("PUT", job + "/mbl", mbl), 409, STATE_DONE);
+			check("POST /jobs/{id}/start, done", request("POST", job + "/start", ""), 409, STATE_DONE);
+			server.setJobExpiry(0);
+			String nextId = check("POST /jobs, expires the job", request("POST", jobs, ""), 201, null).trim();
+			check("GET /jobs/{id}, expired", request("GET", job, null), 404, null);
+			check("DELETE /jobs/{next id}", request("DELETE", jobs + "/" + nextId, null), 200, null);
+			check("GET /jobs/{next id}, deleted", request("GET", jobs + "/" + nextId, null), 404, null);
+		}
+		finally
+		{	server.stop();
+			runner.finish();
+			File[] files = cacheFolder.listFiles();
+			for(int file = 0; files != null && file < files.length; file++)
+				files[file].delete();
+			cacheFolder.delete();
+			workFolder.delete();
+		}
+	}
+
+	/**
+	 * Prints the code of an answer, marked if it is not 'code' or its text does not hold the state.
+	 * @return The text of the answer.
+	 */
+	private static String check(String name, String answer, int code, String state)
+	{	int answerCode = Integer.parseInt(answer.substring(0, 3));
+		String text = answer.substring(4);
+		boolean expected = answerCode == code && (state == null || text.contains(state));
+		System.out.println(name + ": " + answerCode + (expected ? "" : "\t<-- should be " + code
+				+ (state == null ? "" : ", " + state) + ":\n" + text));
+		return text;
+	}
+
+	/**
+	 * @return The code of the answer, a space and its text.
+	 */
+	private static String request(String method, String url, String body) throws IOException
+	{	HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+		connection.setRequestMethod(method);
+		if(body != null)
+		{	connection.setDoOutput(true);
+			OutputStream out = connection.getOutputStream();
+			out.write(body.getBytes("UTF-8"));
+			out.close();
+		}
+		int code = connection.getResponseCode();
+		InputStream in = code < 400 ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream text = new ByteArrayOutputStream();
+		if(in != null)
+		{	copy(in, text);
+			in.close();
+		}
+		return code + " " + text.toString("UTF-8");
+	}
+}
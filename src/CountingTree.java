@@ -53,6 +53,19 @@ public class CountingTree implements Set<Object>, Iterable<Object>, Collection<O
 		return result;
 	}
 	
+	/**
+	 * Adds a key to the tree with a count, as if it had been added that many times. Exception safe.
+	 * @param key The key to be added.
+	 * @param count The number of times the key is added, at least 1.
+	 * @return True if the key was comparable and therefore added, false if the tree is unchanged.
+	 */
+	public boolean add(Object key, int count)
+	{	if(count < 1 || !this.add(key))
+			return false;
+		tree.put(key, Integer.valueOf(tree.get(key).intValue() + count - 1));
+		return true;
+	}
+	
 	/**
 	 * Reduces the count for the key by one, removes the key from the tree if the count falls below 1. Exception safe.
 	 * @param key The key to be decremented.
@@ -0,0 +1,529 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * Salvages the courses of parcels that failed to combine because the MBL and KML course counts differ. The MBL courses
+ *   are turned into expected vertex positions from their direction and distance, the KML LineString vertices are
+ *   projected to meters, and the two sequences are aligned with a banded dynamic-programming alignment. Each course
+ *   that aligns well with a KML edge is joined to the vertex at the end of that edge, and the parcel is given a
+ *   confidence score between 0 and 1.
+ * <br>The band keeps the alignment linear in the number of courses, so it is cheap enough to run on every failed parcel.
+ * @author thayer young
+ */
+public class CourseAligner
+{
+	/** The cost of leaving a course or a KML edge unaligned. */
+	private static final double GAP_COST = 0.6;
+	/** The extra cost of aligning one course with two edges, or two courses with one edge. */
+	private static final double SPLIT_COST = 0.1;
+	/** The cost of aligning a course whose direction or distance could not be read. */
+	private static final double UNKNOWN_COST = 0.5;
+	/** Aligned courses with a higher cost than this are not joined. */
+	private static final double MAX_PAIR_COST = 0.35;
+	/** Parcels with a lower confidence than this are left as failed. */
+	public static final double MIN_CONFIDENCE = 0.5;
+	/** The number of cells either side of the diagonal searched, in addition to the difference in course counts. */
+	private static final int BAND_SLACK = 3;
+	/** The mean radius of the earth in meters, used to project the KML coordinates. */
+	private static final double EARTH_RADIUS = 6371008.8;
+
+	// alignment moves, stored in the trace back array
+	private static final byte MOVE_NONE = 0;
+	private static final byte MOVE_MATCH = 1;
+	private static final byte MOVE_SKIP_COURSE = 2;
+	private static final byte MOVE_SKIP_EDGE = 3;
+	private static final byte MOVE_ONE_TO_TWO = 4;	// one course, two KML edges
+	private static final byte MOVE_TWO_TO_ONE = 5;	// two courses, one KML edge
+
+	private double[] courseX, courseY;	// course displacements in MBL distance units, NaN when unreadable
+	private double[] edgeX, edgeY;		// KML edge displacements in meters
+	private int n, m;					// number of courses, number of KML edges
+	private double scale;				// meters per MBL distance unit
+	private int band, width;
+	private double[][] cost;
+	private byte[][] moves;
+	private int[] matchedVertex;		// for each course, the index of the KML vertex it ends on, or -1
+	private double[] matchedCost;
+	private double confidence;
+
+	/**
+	 * Aligns the courses of an MBL parcel with the vertices of a KML parcel.
+	 * @param mblGeometry The MBL geometry records in order, the first is the beginning point 'pt'.
+	 * @param kmlVertices The KML LineString records in order.
+	 */
+	public CourseAligner(ArrayList<DataRecordW<String>> mblGeometry, ArrayList<DataRecordW<String>> kmlVertices)
+	{	n = Math.max(mblGeometry.size() - 1, 0);
+		m = Math.max(kmlVertices.size() - 1, 0);
+		matchedVertex = new int[n];
+		matchedCost = new double[n];
+		Arrays.fill(matchedVertex, -1);
+		if(n == 0 || m == 0)
+			return;
+		setCourses(mblGeometry);
+		if(!setEdges(kmlVertices))
+			return;
+		align();
+	}
+
+	/**
+	 * Computes the expected vertex positions of the courses, stored as displacements from the previous vertex so that
+	 *   a single missing course does not shift every vertex after it.
+	 */
+	private void setCourses(ArrayList<DataRecordW<String>> mblGeometry)
+	{	courseX = new double[n];
+		courseY = new double[n];
+		DataRecordW<String> course;
+		double azimuth, distance;
+		int index;
+		for(index = 0; index < n; index++)
+		{	course = mblGeometry.get(index + 1);
+			azimuth = Double.NaN;
+			distance = Double.NaN;
+			if(course.size() > Witness.MBL_G_DISTANCE)
+			{	azimuth = parseBearing(course.get(Witness.MBL_G_DIRECTION));
+				distance = parseDistance(course.get(Witness.MBL_G_DISTANCE));
+			}
+			courseX[index] = distance * Math.sin(Math.toRadians(azimuth));
+			courseY[index] = distance * Math.cos(Math.toRadians(azimuth));
+		}
+	}
+
+	/**
+	 * Projects the KML vertices to meters around the first vertex and sets the scale between the MBL distance units
+	 *   and meters from the ratio of the two perimeters.
+	 * @return False if the coordinates could not be read or there is no perimeter to scale by.
+	 */
+	private boolean setEdges(ArrayList<DataRecordW<String>> kmlVertices)
+	{	double[] x = new double[m + 1];
+		double[] y = new double[m + 1];
+		double lon0, lat0, cosLat;
+		int index;
+		try
+		{	lon0 = Double.parseDouble(kmlVertices.get(0).get(Witness.KML_X));
+			lat0 = Double.parseDouble(kmlVertices.get(0).get(Witness.KML_Y));
+			cosLat = Math.cos(Math.toRadians(lat0));
+			for(index = 0; index <= m; index++)
+			{	x[index] = Math.toRadians(Double.parseDouble(kmlVertices.get(index).get(Witness.KML_X)) - lon0) * EARTH_RADIUS * cosLat;
+				y[index] = Math.toRadians(Double.parseDouble(kmlVertices.get(index).get(Witness.KML_Y)) - lat0) * EARTH_RADIUS;
+			}
+		}catch(Exception e)
+		{	return false;
+		}
+		edgeX = new double[m];
+		edgeY = new double[m];
+		double kmlLength = 0, mblLength = 0;
+		for(index = 0; index < m; index++)
+		{	edgeX[index] = x[index + 1] - x[index];
+			edgeY[index] = y[index + 1] - y[index];
+			kmlLength += Math.hypot(edgeX[index], edgeY[index]);
+		}
+		for(index = 0; index < n; index++)
+			if(!Double.isNaN(courseX[index]))
+				mblLength += Math.hypot(courseX[index], courseY[index]);
+		if(kmlLength <= 0 || mblLength <= 0)
+			return false;
+		scale = kmlLength / mblLength;
+		return true;
+	}
+
+	/**
+	 * The banded alignment. Row i is the number of courses used, column j the number of KML edges used. Only the
+	 *   cells within 'band' of the diagonal are computed, each row is stored in an array of 2 * band + 1 cells.
+	 */
+	private void align()
+	{	band = Math.abs(n - m) + BAND_SLACK;
+		width = 2 * band + 1;
+		cost = new double[n + 1][width];
+		moves = new byte[n + 1][width];
+		int i, j;
+		for(i = 0; i <= n; i++)
+			Arrays.fill(cost[i], Double.POSITIVE_INFINITY);
+		set(0, 0, 0, MOVE_NONE);
+		for(i = 0; i <= n; i++)
+		{	for(j = Math.max(0, center(i) - band); j <= Math.min(m, center(i) + band); j++)
+			{	if(i == 0 && j == 0)
+					continue;
+				double best = Double.POSITIVE_INFINITY, candidate;
+				byte move = MOVE_NONE;
+				if(i > 0 && j > 0)
+				{	candidate = get(i - 1, j - 1) + pairCost(i - 1, 1, j - 1, 1);
+					if(candidate < best)
+					{	best = candidate;
+						move = MOVE_MATCH;
+					}
+				}
+				if(i > 0)
+				{	candidate = get(i - 1, j) + GAP_COST;
+					if(candidate < best)
+					{	best = candidate;
+						move = MOVE_SKIP_COURSE;
+					}
+				}
+				if(j > 0)
+				{	candidate = get(i, j - 1) + GAP_COST;
+					if(candidate < best)
+					{	best = candidate;
+						move = MOVE_SKIP_EDGE;
+					}
+				}
+				if(i > 0 && j > 1)
+				{	candidate = get(i - 1, j - 2) + pairCost(i - 1, 1, j - 2, 2) + SPLIT_COST + GAP_COST / 2;
+					if(candidate < best)
+					{	best = candidate;
+						move = MOVE_ONE_TO_TWO;
+					}
+				}
+				if(i > 1 && j > 0)
+				{	candidate = get(i - 2, j - 1) + pairCost(i - 2, 2, j - 1, 1) + SPLIT_COST + GAP_COST / 2;
+					if(candidate < best)
+					{	best = candidate;
+						move = MOVE_TWO_TO_ONE;
+					}
+				}
+				set(i, j, best, move);
+			}
+		}
+		traceBack();
+	}
+
+	/**
+	 * Follows the moves back from the last cell and records the KML vertex that each aligned course ends on.
+	 */
+	private void traceBack()
+	{	int i = n, j = m;
+		double total = 1;	// the beginning point always aligns with the first vertex
+		double pair;
+		while(i > 0 || j > 0)
+		{	byte move = getMove(i, j);
+			if(move == MOVE_MATCH)
+			{	pair = pairCost(i - 1, 1, j - 1, 1);
+				accept(i - 1, j, pair);
+				i--;
+				j--;
+			}
+			else if(move == MOVE_ONE_TO_TWO)
+			{	pair = pairCost(i - 1, 1, j - 2, 2);
+				accept(i - 1, j, pair);
+				i--;
+				j -= 2;
+			}
+			else if(move == MOVE_TWO_TO_ONE)
+			{	pair = pairCost(i - 2, 2, j - 1, 1);
+				accept(i - 1, j, pair);	// only the second course ends on the KML vertex
+				i -= 2;
+				j--;
+			}
+			else if(move == MOVE_SKIP_COURSE)
+				i--;
+			else if(move == MOVE_SKIP_EDGE)
+				j--;
+			else break;		// outside of the band, can not happen when the last cell is in the band
+		}
+		for(i = 0; i < n; i++)
+			if(matchedVertex[i] > -1)
+				total += 1 - matchedCost[i];
+		confidence = total / (Math.max(n, m) + 1);
+	}
+
+	private void accept(int course, int vertex, double pair)
+	{	if(pair <= MAX_PAIR_COST)
+		{	matchedVertex[course] = vertex;
+			matchedCost[course] = pair;
+		}
+	}
+
+	/**
+	 * The cost of aligning 'courseCount' courses starting at 'course' with 'edgeCount' edges starting at 'edge'. The
+	 *   summed displacements are compared as the length of their difference relative to the sum of their lengths.
+	 * @return A cost between 0 for identical displacements and 1 for opposite displacements.
+	 */
+	private double pairCost(int course, int courseCount, int edge, int edgeCount)
+	{	double ax = 0, ay = 0, bx = 0, by = 0;
+		int index;
+		for(index = course; index < course + courseCount; index++)
+		{	if(Double.isNaN(courseX[index]))
+				return UNKNOWN_COST;
+			ax += courseX[index] * scale;
+			ay += courseY[index] * scale;
+		}
+		for(index = edge; index < edge + edgeCount; index++)
+		{	bx += edgeX[index];
+			by += edgeY[index];
+		}
+		double lengths = Math.hypot(ax, ay) + Math.hypot(bx, by);
+		if(lengths == 0)
+			return 0;
+		return Math.min(1, Math.hypot(ax - bx, ay - by) / lengths);
+	}
+
+	private int center(int i)
+	{	return (int) Math.round((double) i * m / n);
+	}
+
+	private double get(int i, int j)
+	{	int offset = j - center(i) + band;
+		if(i < 0 || j < 0 || offset < 0 || offset >= width)
+			return Double.POSITIVE_INFINITY;
+		return cost[i][offset];
+	}
+
+	private byte getMove(int i, int j)
+	{	int offset = j - center(i) + band;
+		if(offset < 0 || offset >= width)
+			return MOVE_NONE;
+		return moves[i][offset];
+	}
+
+	private void set(int i, int j, double value, byte move)
+	{	int offset = j - center(i) + band;
+		cost[i][offset] = value;
+		moves[i][offset] = move;
+	}
+
+	/**
+	 * @return The confidence of the alignment, from 0 when nothing aligned to 1 when every course aligned exactly.
+	 */
+	public double getConfidence()
+	{	return confidence;
+	}
+
+	/**
+	 * @param course The index of the MBL geometry record, 0 is the beginning point.
+	 * @return The index of the KML vertex that the geometry record was aligned with, or -1 if it was not aligned.
+	 */
+	public int getMatchedVertex(int course)
+	{	if(course == 0)
+			return 0;
+		return matchedVertex[course - 1];
+	}
+
+	/**
+	 * Converts a quadrant bearing, e.g. N45E, N 45-30 E or S10.5W, or a cardinal direction to an azimuth in degrees.
+	 * @param direction The direction of an MBL course.
+	 * @return The azimuth clockwise from north, or NaN if the direction can not be read.
+	 */
+	public static double parseBearing(String direction)
+	{	if(direction == null)
+			return Double.NaN;
+		String bearing = direction.trim().toUpperCase();
+		if(bearing.equals("N"))
+			return 0;
+		if(bearing.equals("E"))
+			return 90;
+		if(bearing.equals("S"))
+			return 180;
+		if(bearing.equals("W"))
+			return 270;
+		if(bearing.length() < 3)
+			return Double.NaN;
+		char from = bearing.charAt(0), to = bearing.charAt(bearing.length() - 1);
+		if((from != 'N' && from != 'S') || (to != 'E' && to != 'W'))
+			return Double.NaN;
+		String[] parts = bearing.substring(1, bearing.length() - 1).trim().split("[^0-9.]+");
+		double angle = 0, divisor = 1;
+		try
+		{	for(String part:parts)
+			{	if(part.length() == 0)
+					continue;
+				angle += Double.parseDouble(part) / divisor;
+				divisor *= 60;
+			}
+		}catch(NumberFormatException e)
+		{	return Double.NaN;
+		}
+		if(divisor == 1 || angle > 90)
+			return Double.NaN;
+		if(from == 'N' && to == 'E')
+			return angle;
+		if(from == 'S' && to == 'E')
+			return 180 - angle;
+		if(from == 'S' && to == 'W')
+			return 180 + angle;
+		return 360 - angle;
+	}
+
+	/**
+	 * Reads the leading number of an MBL course distance.
+	 * @param distance The distance of an MBL course.
+	 * @return The distance, or NaN if it does not begin with a number.
+	 */
+	public static double parseDistance(String distance)
+	{	if(distance == null)
+			return Double.NaN;
+		String trimmed = distance.trim();
+		int end = 0;
+		while(end < trimmed.length() && (Character.isDigit(trimmed.charAt(end)) || trimmed.charAt(end) == '.'))
+			end++;
+		try
+		{	return Double.parseDouble(trimmed.substring(0, end));
+		}catch(NumberFormatException e)
+		{	return Double.NaN;
+		}
+	}
+
+	/**
+	 * Runs the alignment on every failed KML parcel of a combined table that has a matching MBL parcel. The KML
+	 *   records of aligned courses are moved into the MBL parcel with their id changed to the MBL course id, so that
+	 *   joinTables() joins them like any other combined parcel. Vertices that did not align stay in the failed parcel.
+	 * @param table The MBL table after combineTables() has added the KML table to it.
+	 * @return Position 0: number of parcels salvaged. Position 1: number of courses salvaged.
+	 */
+	public static int[] salvageFailed(DataTableW<String> table)
+	{	HashMap<String,Parcel<String>> unmatchedMBL = new HashMap<String,Parcel<String>>();
+		LinkedList<Parcel<String>> failed = new LinkedList<Parcel<String>>();
+		for(Parcel<String> parcel:table.getTable())
+		{	if(parcel.isNoMatchMBL() && parcel.getComparator() != null && !unmatchedMBL.containsKey(parcel.getComparator()))
+				unmatchedMBL.put(parcel.getComparator(), parcel);
+			else if(parcel.isFailed())
+				failed.add(parcel);
+		}
+		int parcelCount = 0, courseCount = 0;
+		for(Parcel<String> kmlParcel:failed)
+		{	Parcel<String> mblParcel = unmatchedMBL.remove(kmlParcel.getComparator());
+			if(mblParcel != null)
+			{	int joined = salvage(mblParcel, kmlParcel);
+				if(joined > 0)
+				{	parcelCount++;
+					courseCount += joined;
+				}
+			}
+		}
+		return new int[]{parcelCount, courseCount};
+	}
+
+	/**
+	 * Aligns one MBL parcel with its failed KML parcel and moves the aligned KML records into the MBL parcel.
+	 * @return The number of courses joined, 0 if the confidence was too low to join any.
+	 */
+	public static int salvage(Parcel<String> mblParcel, Parcel<String> kmlParcel)
+	{	ArrayList<DataRecordW<String>> mblGeometry = new ArrayList<DataRecordW<String>>();
+		ArrayList<DataRecordW<String>> kmlVertices = new ArrayList<DataRecordW<String>>();
+		for(DataRecordW<String> record:mblParcel)
+			if(record.size() > Witness.MBL_G_ID && Witness.isMBLgeoField(record.get(Witness.MBL_FIELDNAME)))
+				mblGeometry.add(record);
+		for(DataRecordW<String> record:kmlParcel)
+			if(record.size() > Witness.KML_Y && "LineString".equals(record.get(Witness.KML_GTYPE)))
+				kmlVertices.add(record);
+		CourseAligner aligner = new CourseAligner(mblGeometry, kmlVertices);
+		if(aligner.getConfidence() < MIN_CONFIDENCE)
+			return 0;
+		int joined = 0, index, vertex;
+		String[] fields;
+		DataRecordW<String> kmlRecord;
+		IdentityHashMap<DataRecordW<String>,Boolean> moved = new IdentityHashMap<DataRecordW<String>,Boolean>();
+		for(index = 0; index < mblGeometry.size(); index++)
+		{	vertex = aligner.getMatchedVertex(index);
+			if(vertex > -1)
+			{	kmlRecord = kmlVertices.get(vertex);
+				fields = kmlRecord.getRecord().toArray(new String[kmlRecord.size()]);
+				fields[Witness.KML_ID] = mblGeometry.get(index).get(Witness.MBL_G_ID);	// re-key to the MBL course
+				mblParcel.add(new DataRecordW<String>(fields));
+				moved.put(kmlRecord, Boolean.TRUE);
+				joined++;
+			}
+		}
+		Iterator<DataRecordW<String>> iter = kmlParcel.iterator();
+		while(iter.hasNext())	// remove by identity, DataRecordW.equals() depends on the static key indices
+		{	if(moved.containsKey(iter.next()))
+			{	iter.remove();
+				kmlParcel.setGeometryCount(kmlParcel.getGeometryCount() - 1);
+			}
+		}
+		mblParcel.setKmlName(kmlParcel.getKmlName());
+		mblParcel.setNoMatchMBL(false);
+		mblParcel.setCombined(true);
+		mblParcel.setSalvaged(true);
+		mblParcel.setAlignmentScore(aligner.getConfidence());
+		return joined;
+	}
+
+	/**
+	 * Demonstrates the alignment of a square of four 100 meter courses with a KML LineString of the same four edges, of
+	 *   three edges where one corner is missing, and of five edges where the first edge has an extra vertex halfway.
+	 *   Each case prints its confidence and the vertex each course ended on, with those it should have. Then the extra
+	 *   vertex case is salvaged from a failed pair in a table.
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{	String[] directions = {"N0E", "N90E", "S0E", "S90W"};
+		double[][] square = {{0, 0}, {0, 100}, {100, 100}, {100, 0}, {0, 0}};
+		double[][] missingCorner = {{0, 0}, {0, 100}, {100, 0}, {0, 0}};
+		double[][] extraVertex = {{0, 0}, {0, 50}, {0, 100}, {100, 100}, {100, 0}, {0, 0}};
+		check("Equal counts", directions, square, 1, new int[]{0, 1, 2, 3, 4});
+		check("One course missing", directions, missingCorner, 0.753, new int[]{0, 1, -1, 2, 3});
+		check("One extra vertex", directions, extraVertex, 0.833, new int[]{0, 2, 3, 4, 5});
+
+		DataTableW<String> table = new DataTableW<String>();
+		Parcel<String> mblParcel = new Parcel<String>("1234");
+		for(DataRecordW<String> record:courses(directions))
+			mblParcel.add(record, true);
+		mblParcel.setNoMatchMBL(true);
+		Parcel<String> kmlParcel = new Parcel<String>("1234");
+		for(DataRecordW<String> record:vertices(extraVertex))
+			kmlParcel.add(record, true);
+		kmlParcel.setFailed(true);
+		table.add(mblParcel);
+		table.add(kmlParcel);
+		int[] counts = salvageFailed(table);
+		System.out.println("\nsalvageFailed: " + counts[0] + " parcel, " + counts[1] + " records joined, the MBL parcel "
+				+ (mblParcel.isSalvaged() ? "salvaged" : "not salvaged") + " with a score of "
+				+ Witness.formatScore(mblParcel.getAlignmentScore()) + mark(counts[0] == 1 && counts[1] == 5 && mblParcel.isSalvaged()
+				&& Witness.formatScore(mblParcel.getAlignmentScore()).equals("0.833"), "1 parcel, 5 records and 0.833"));
+		for(DataRecordW<String> record:mblParcel)
+			if(record.size() == Witness.KML_Y + 1)
+				System.out.println("\tKML vertex " + record.get(Witness.KML_X) + ", " + record.get(Witness.KML_Y) + " joined to "
+						+ record.get(Witness.KML_ID));
+		System.out.println("\t" + (kmlParcel.size()) + " vertex left in the failed parcel" + mark(kmlParcel.size() == 1, "1"));
+	}
+
+	private static void check(String name, String[] directions, double[][] corners, double confidence, int[] vertices)
+	{	CourseAligner aligner = new CourseAligner(courses(directions), vertices(corners));
+		int[] matched = new int[vertices.length];
+		for(int course = 0; course < matched.length; course++)
+			matched[course] = aligner.getMatchedVertex(course);
+		System.out.println(name + ": confidence " + Witness.formatScore(aligner.getConfidence()) + ", vertices " + Arrays.toString(matched)
+				+ mark(Witness.formatScore(aligner.getConfidence()).equals(Witness.formatScore(confidence))
+				&& Arrays.equals(matched, vertices), Witness.formatScore(confidence) + " and " + Arrays.toString(vertices)));
+	}
+
+	private static String mark(boolean expected, String expectedValue)
+	{	return expected ? "" : "\t<-- should be " + expectedValue;
+	}
+
+	/**
+	 * @return The MBL geometry records of a parcel: the beginning point, then a 100 unit course in each direction.
+	 */
+	private static ArrayList<DataRecordW<String>> courses(String[] directions)
+	{	ArrayList<DataRecordW<String>> records = new ArrayList<DataRecordW<String>>();
+		String[] fields = new String[Witness.MBL_G_ID + 1];
+		fields[Witness.MBL_FIELDNAME] = "pt";
+		fields[Witness.MBL_G_ID] = "1234_0";
+		records.add(new DataRecordW<String>(fields, 1, Witness.MBL_FIELDNAME));
+		for(int course = 0; course < directions.length; course++)
+		{	fields = new String[Witness.MBL_G_ID + 1];
+			fields[Witness.MBL_FIELDNAME] = "ln";
+			fields[Witness.MBL_G_DIRECTION] = directions[course];
+			fields[Witness.MBL_G_DISTANCE] = "100";
+			fields[Witness.MBL_G_ID] = "1234_" + (course + 1);
+			records.add(new DataRecordW<String>(fields, 1, Witness.MBL_FIELDNAME));
+		}
+		return records;
+	}
+
+	/**
+	 * @return The KML LineString records of the corners, given in meters east and north of a point on the equator.
+	 */
+	private static ArrayList<DataRecordW<String>> vertices(double[][] corners)
+	{	ArrayList<DataRecordW<String>> records = new ArrayList<DataRecordW<String>>();
+		double metersPerDegree = Math.toRadians(EARTH_RADIUS);
+		for(int vertex = 0; vertex < corners.length; vertex++)
+			records.add(new DataRecordW<String>(new String[]{"1234", Integer.toString(vertex), "LineString", "1234_k" + vertex,
+					Double.toString(corners[vertex][0] / metersPerDegree), Double.toString(corners[vertex][1] / metersPerDegree)}, 1,
+					Witness.KML_PID));
+		return records;
+	}
+}
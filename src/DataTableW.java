@@ -1,6 +1,7 @@
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 
 
@@ -192,6 +193,26 @@ public class DataTableW<T extends Comparable<T>>
 		return DTWcopy;
 	}
 	
+	/**
+	 * Returns a copy of the table whose parcels share their records with this table. Parcels and records can be added
+	 *   to or removed from the copy without changing this table, e.g. by combineTables(). The field lists are shared.
+	 * @return A shallow copy of the DataTableW
+	 */
+	public DataTableW<T> shallowCopy()
+	{	LinkedList<Parcel<T>> tabCopy = new LinkedList<Parcel<T>>();
+		for(Parcel<T> parcel:table)
+			tabCopy.add(parcel.shallowCopy());
+		return new DataTableW<T>(tabCopy, fieldList, fieldContentTree);
+	}
+	
+	/**
+	 * Returns a read only view of the parcels, for writers that must leave the table intact.
+	 * @return An unmodifiable list of the parcels in the table.
+	 */
+	public List<Parcel<T>> view()
+	{	return Collections.unmodifiableList(table);
+	}
+	
 	public String toString()
 	{	String result = "";
 		int index, size = table.size();
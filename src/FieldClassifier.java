@@ -0,0 +1,80 @@
+import java.util.BitSet;
+
+/**
+ * The custom fields of an MBL file, prepared once so that the lines of any number of files can be classified without
+ *   scanning the fields for each line: a line whose first character does not begin any of the fields, e.g. every
+ *   line but the "!" comments with the default fields, is known not to be a custom field from that character alone.
+ *   It classifies a line as Witness.checkCustomFieldType() does, and can be shared by the parsers of many files, e.g.
+ *   by a JobRunner, as it is not changed once made.
+ * @author thayer young
+ */
+public class FieldClassifier
+{
+	private String[] singleLineFields;
+	private String[] multipleLineFields;
+	private String[] multipleLineLabels;	// the label of each multiple line field, as from Witness.getFieldMatch()
+	private BitSet firstCharacters = new BitSet();
+	private boolean matchesAll = false;		// an empty field begins every line
+
+	/**
+	 * @param singleLineFields The comments that begin with one of these are converted to fields.
+	 * @param multipleLineFields The comments that begin with one of these are converted to fields, along with the
+	 *   comment lines that follow them.
+	 */
+	public FieldClassifier(String[] singleLineFields, String[] multipleLineFields)
+	{	this.singleLineFields = singleLineFields;
+		this.multipleLineFields = multipleLineFields;
+		multipleLineLabels = new String[multipleLineFields.length];
+		for(int i = 0; i < multipleLineFields.length; i++)
+			multipleLineLabels[i] = multipleLineFields[i].length() == 0 ? "" : multipleLineFields[i].substring(1).trim();
+		addFirstCharacters(singleLineFields);
+		addFirstCharacters(multipleLineFields);
+	}
+
+	private void addFirstCharacters(String[] fields)
+	{	for(String field:fields)
+		{	if(field.length() == 0)
+				matchesAll = true;
+			else firstCharacters.set(field.charAt(0));
+		}
+	}
+
+	/**
+	 * @param line A line of the MBL file.
+	 * @return Witness.SINGLE_LINE_FIELD, Witness.MULTIPLE_LINE_FIELD or Witness.UNKNOWN, as from
+	 *   Witness.checkCustomFieldType().
+	 */
+	public int classify(String line)
+	{	if(!matchesAll && (line.length() == 0 || !firstCharacters.get(line.charAt(0))))
+			return Witness.UNKNOWN;
+		for(String field:singleLineFields)
+		{	if(line.startsWith(field))
+				return Witness.SINGLE_LINE_FIELD;
+		}
+		for(String field:multipleLineFields)
+		{	if(line.startsWith(field))
+				return Witness.MULTIPLE_LINE_FIELD;
+		}
+		return Witness.UNKNOWN;
+	}
+
+	/**
+	 * @param line A line that begins with a multiple line field.
+	 * @return The label of the field, as from Witness.getFieldMatch().
+	 */
+	public String getFieldMatch(String line)
+	{	for(int i = 0; i < multipleLineFields.length; i++)
+		{	if(line.startsWith(multipleLineFields[i]))
+				return multipleLineLabels[i];
+		}
+		return "NoMatch";
+	}
+
+	public String[] getSingleLineFields() {
+		return singleLineFields;
+	}
+
+	public String[] getMultipleLineFields() {
+		return multipleLineFields;
+	}
+}
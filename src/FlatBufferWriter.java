@@ -0,0 +1,248 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Lays out a FlatBuffers buffer front to back, for writing FlatGeobuf without a FlatBuffers library. A table is laid
+ *   out with its vtable just before it and its strings, vectors and child tables after it, so every offset points
+ *   forward as the format requires. The caller reserves a table's offset fields, writes the children, then points the
+ *   fields at them with setOffset(). Each value is aligned to its size, relative to the start of the buffer.
+ * @author thayer young
+ */
+public class FlatBufferWriter
+{
+	/**
+	 * A table that has been laid out. Its fields are written at the positions given by field().
+	 */
+	public static class Table
+	{	private int position;
+		private int[] fields;
+
+		private Table(int position, int[] fields)
+		{	this.position = position;
+			this.fields = fields;
+		}
+
+		/**
+		 * @return The position of the table in the buffer, the target of an offset to it.
+		 */
+		public int getPosition()
+		{	return position;
+		}
+
+		/**
+		 * @param slot The field id of the schema.
+		 * @return The position of the field in the buffer.
+		 */
+		public int field(int slot)
+		{	return fields[slot];
+		}
+	}
+
+	private ByteBuffer buffer;
+
+	/**
+	 * @param capacity The initial size of the buffer in bytes, it grows as needed.
+	 */
+	public FlatBufferWriter(int capacity)
+	{	buffer = ByteBuffer.allocate(Math.max(capacity, 64)).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Empties the buffer to lay out the next one, and reserves the offset to its root table.
+	 * @return The position of the root offset, to be set by setOffset() once the root table is laid out.
+	 */
+	public int start()
+	{	buffer.clear();
+		return reserveOffset();
+	}
+
+	/**
+	 * @return The size of the buffer so far, in bytes.
+	 */
+	public int size()
+	{	return buffer.position();
+	}
+
+	private void ensure(int bytes)
+	{	if(buffer.remaining() >= bytes)
+			return;
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		larger.put(buffer);
+		buffer = larger;
+	}
+
+	private void align(int alignment)
+	{	ensure(alignment);
+		while(buffer.position() % alignment != 0)
+			buffer.put((byte) 0);
+	}
+
+	private int reserveOffset()
+	{	align(4);
+		int position = buffer.position();
+		buffer.putInt(0);
+		return position;
+	}
+
+	/**
+	 * Lays out a table, its vtable first, with the fields set to 0.
+	 * @param sizes The size in bytes of each field, indexed by field id: 1, 2, 4 or 8, or 0 if the field is absent.
+	 *   An offset to a string, vector or table is 4 bytes.
+	 * @return The table, whose field() positions are then written by putByte(), putInt() etc. or setOffset().
+	 */
+	public Table table(int[] sizes)
+	{	int[] offsets = new int[sizes.length];
+		int tableSize = 4, slot, size;		// the table starts with the offset to its vtable
+		for(size = 8; size > 0; size /= 2)	// the largest first, so each field is aligned with little padding
+		{	for(slot = 0; slot < sizes.length; slot++)
+			{	if(sizes[slot] == size)
+				{	tableSize = (tableSize + size - 1) / size * size;
+					offsets[slot] = tableSize;
+					tableSize += size;
+				}
+			}
+		}
+		align(2);
+		int vtable = buffer.position();
+		ensure(4 + 2 * sizes.length);
+		buffer.putShort((short) (4 + 2 * sizes.length));
+		buffer.putShort((short) tableSize);
+		for(slot = 0; slot < sizes.length; slot++)
+			buffer.putShort((short) offsets[slot]);
+		align(8);
+		int position = buffer.position();
+		ensure(tableSize);
+		buffer.putInt(position - vtable);
+		for(int index = 4; index < tableSize; index++)
+			buffer.put((byte) 0);
+		int[] fields = new int[sizes.length];
+		for(slot = 0; slot < sizes.length; slot++)
+			fields[slot] = sizes[slot] == 0 ? -1 : position + offsets[slot];
+		return new Table(position, fields);
+	}
+
+	/**
+	 * Points an offset field, reserved by start(), table() or offsetVector(), at a later table, string or vector.
+	 */
+	public void setOffset(int field, int target)
+	{	buffer.putInt(field, target - field);
+	}
+
+	public void putByte(int position, int value)
+	{	buffer.put(position, (byte) value);
+	}
+
+	public void putShort(int position, int value)
+	{	buffer.putShort(position, (short) value);
+	}
+
+	public void putInt(int position, int value)
+	{	buffer.putInt(position, value);
+	}
+
+	public void putLong(int position, long value)
+	{	buffer.putLong(position, value);
+	}
+
+	/**
+	 * Writes a string, UTF-8 with the length first and a terminating 0.
+	 * @return The position of the string, the target of an offset to it.
+	 */
+	public int string(String value) throws IOException
+	{	byte[] bytes = value.getBytes("UTF-8");
+		align(4);
+		int position = buffer.position();
+		ensure(4 + bytes.length + 1);
+		buffer.putInt(bytes.length);
+		buffer.put(bytes);
+		buffer.put((byte) 0);
+		return position;
+	}
+
+	/**
+	 * Writes a vector of doubles.
+	 * @param values The array holding the vector.
+	 * @param offset The index of the first value in the array.
+	 * @param count The number of values.
+	 * @return The position of the vector, the target of an offset to it.
+	 */
+	public int doubleVector(double[] values, int offset, int count)
+	{	int position = startVector(8, count);
+		for(int index = offset; index < offset + count; index++)
+			buffer.putDouble(values[index]);
+		return position;
+	}
+
+	/**
+	 * Writes a vector of unsigned ints.
+	 * @return The position of the vector, the target of an offset to it.
+	 */
+	public int intVector(int[] values, int count)
+	{	int position = startVector(4, count);
+		for(int index = 0; index < count; index++)
+			buffer.putInt(values[index]);
+		return position;
+	}
+
+	/**
+	 * Writes a vector of bytes.
+	 * @return The position of the vector, the target of an offset to it.
+	 */
+	public int byteVector(ByteBuffer values)
+	{	int position = startVector(1, values.remaining());
+		buffer.put(values);
+		return position;
+	}
+
+	/**
+	 * Reserves a vector of offsets, e.g. to tables. Each is set by setOffset() once its target is laid out.
+	 * @return The position of the vector, the target of an offset to it. Its first offset is 4 bytes later, and so on.
+	 */
+	public int offsetVector(int count)
+	{	int position = startVector(4, count);
+		for(int index = 0; index < count; index++)
+			buffer.putInt(0);
+		return position;
+	}
+
+	private int startVector(int elementSize, int count)
+	{	int alignment = Math.max(elementSize, 4);
+		ensure(alignment + 4 + elementSize * count);
+		while((buffer.position() + 4) % alignment != 0)		// the elements, not the length, are aligned
+			buffer.put((byte) 0);
+		int position = buffer.position();
+		buffer.putInt(count);
+		return position;
+	}
+
+	/**
+	 * Writes the buffer with its size first, as FlatGeobuf stores its header and features.
+	 * @param channel The channel written to.
+	 * @throws IOException If the channel can not be written.
+	 */
+	public void writeSizePrefixed(WritableByteChannel channel) throws IOException
+	{	ByteBuffer prefix = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		prefix.putInt(buffer.position());
+		prefix.flip();
+		while(prefix.hasRemaining())
+			channel.write(prefix);
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.limit(buffer.capacity());	// leave the position at the end, as it was
+	}
+
+	/**
+	 * Copies the buffer with its size first into 'out', which must have room for size() + 4 bytes.
+	 */
+	public void copySizePrefixed(ByteBuffer out)
+	{	out.order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(buffer.position());
+		ByteBuffer view = buffer.duplicate();
+		view.flip();
+		out.put(view);
+	}
+}
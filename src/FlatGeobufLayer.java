@@ -0,0 +1,646 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes one FlatGeobuf file, with a packed Hilbert R-tree index so that a reader can fetch the features within a
+ *   bounding box without reading the whole file. The index must come before the features, and the features must be
+ *   in the order of the index, so the features are spooled to a temporary file as they are added and close() writes
+ *   the header, the index and then the features in Hilbert order.
+ * <br>The coordinates are WGS 84 longitude and latitude, EPSG:4326, as in the KML.
+ * @author thayer young
+ */
+public class FlatGeobufLayer
+{
+	// FlatGeobuf geometry types
+	public static final int GEOMETRY_POINT = 1;
+	public static final int GEOMETRY_POLYGON = 3;
+	public static final int GEOMETRY_MULTIPOLYGON = 6;
+	// FlatGeobuf column types
+	public static final int COLUMN_INT = 5;
+	public static final int COLUMN_DOUBLE = 10;
+	public static final int COLUMN_STRING = 11;
+	/** The number of children of each node of the R-tree. */
+	public static final int INDEX_NODE_SIZE = 16;
+
+	private static final byte[] MAGIC = {0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00};	// "fgb", version 3
+	private static final int NODE_BYTES = 40;		// min x, min y, max x, max y, offset
+	private static final int HILBERT_MAX = (1 << 16) - 1;
+	private static final int BUFFER_SIZE = 1 << 20;
+	// field ids of the FlatGeobuf schemas
+	private static final int HEADER_NAME = 0, HEADER_ENVELOPE = 1, HEADER_GEOMETRY_TYPE = 2, HEADER_COLUMNS = 7,
+			HEADER_FEATURES_COUNT = 8, HEADER_INDEX_NODE_SIZE = 9, HEADER_CRS = 10, HEADER_FIELDS = 14;
+	private static final int COLUMN_NAME = 0, COLUMN_TYPE = 1, COLUMN_FIELDS = 11;
+	private static final int CRS_ORG = 0, CRS_CODE = 1, CRS_FIELDS = 6;
+	private static final int FEATURE_GEOMETRY = 0, FEATURE_PROPERTIES = 1, FEATURE_FIELDS = 3;
+	private static final int GEOMETRY_XY = 1, GEOMETRY_TYPE = 6, GEOMETRY_PARTS = 7, GEOMETRY_FIELDS = 8;
+
+	private File file, spoolFile;
+	private String name;
+	private int geometryType;
+	private String[] columnNames;
+	private int[] columnTypes;
+	private FileChannel spool;
+	private long spoolBytes = 0;
+	private ByteBuffer spoolBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private FlatBufferWriter feature = new FlatBufferWriter(1024);
+	private ByteBuffer properties = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+	private double[] bounds = new double[4 * 1024];		// min x, min y, max x, max y of each feature
+	private long[] offsets = new long[1024];			// of each feature in the spool
+	private int[] sizes = new int[1024];
+	private int count = 0;
+	private boolean open = true;
+	private OutputFiles outputFiles = null;
+
+	/**
+	 * Creates the feature spool.
+	 * @param file The .fgb file.
+	 * @param name The name of the layer.
+	 * @param geometryType One of the GEOMETRY_ constants, the type of every feature.
+	 * @param columnNames The names of the attribute columns.
+	 * @param columnTypes The COLUMN_ type of each column.
+	 * @throws IOException If the spool can not be created.
+	 */
+	public FlatGeobufLayer(File file, String name, int geometryType, String[] columnNames, int[] columnTypes) throws IOException
+	{	this.file = file;
+		this.name = name;
+		this.geometryType = geometryType;
+		this.columnNames = columnNames;
+		this.columnTypes = columnTypes;
+		spoolFile = File.createTempFile("witness", ".fgb.spool", file.getAbsoluteFile().getParentFile());
+		spoolFile.deleteOnExit();
+		spool = new RandomAccessFile(spoolFile, "rw").getChannel();
+	}
+
+	/**
+	 * Adds a point feature.
+	 * @param x The longitude.
+	 * @param y The latitude.
+	 * @param values The value of each column, a blank value is null. A value that does not parse as the number its
+	 *   column holds is left out.
+	 * @throws IOException If the spool can not be written.
+	 */
+	public void addPoint(double x, double y, String[] values) throws IOException
+	{	encodeProperties(values);
+		int root = feature.start();
+		FlatBufferWriter.Table table = feature.table(featureFields());
+		feature.setOffset(root, table.getPosition());
+		FlatBufferWriter.Table geometry = feature.table(geometryFields(false, false));
+		feature.setOffset(table.field(FEATURE_GEOMETRY), geometry.getPosition());
+		feature.setOffset(geometry.field(GEOMETRY_XY), feature.doubleVector(new double[]{x, y}, 0, 2));
+		writeProperties(table);
+		spoolFeature(x, y, x, y);
+	}
+
+	/**
+	 * Adds a polygon feature, a multipolygon in which each ring is a polygon of its own.
+	 * @param rings The closed rings, each an array of x, y pairs.
+	 * @param ringCount The number of rings.
+	 * @param values The value of each column, as for addPoint().
+	 * @throws IOException If the spool can not be written.
+	 */
+	public void addPolygons(double[][] rings, int ringCount, String[] values) throws IOException
+	{	double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+		encodeProperties(values);
+		int root = feature.start(), ring, index;
+		FlatBufferWriter.Table table = feature.table(featureFields());
+		feature.setOffset(root, table.getPosition());
+		FlatBufferWriter.Table geometry = feature.table(geometryFields(false, true));
+		feature.setOffset(table.field(FEATURE_GEOMETRY), geometry.getPosition());
+		int parts = feature.offsetVector(ringCount);
+		feature.setOffset(geometry.field(GEOMETRY_PARTS), parts);
+		for(ring = 0; ring < ringCount; ring++)
+		{	FlatBufferWriter.Table part = feature.table(geometryFields(true, false));
+			feature.setOffset(parts + 4 + 4 * ring, part.getPosition());
+			feature.putByte(part.field(GEOMETRY_TYPE), GEOMETRY_POLYGON);
+			feature.setOffset(part.field(GEOMETRY_XY), feature.doubleVector(rings[ring], 0, rings[ring].length));
+			for(index = 0; index + 1 < rings[ring].length; index += 2)
+			{	minX = Math.min(minX, rings[ring][index]);
+				maxX = Math.max(maxX, rings[ring][index]);
+				minY = Math.min(minY, rings[ring][index + 1]);
+				maxY = Math.max(maxY, rings[ring][index + 1]);
+			}
+		}
+		writeProperties(table);
+		spoolFeature(minX, minY, maxX, maxY);
+	}
+
+	private int[] featureFields()
+	{	int[] fields = new int[FEATURE_FIELDS];
+		fields[FEATURE_GEOMETRY] = 4;
+		if(properties.hasRemaining())
+			fields[FEATURE_PROPERTIES] = 4;
+		return fields;
+	}
+
+	private static int[] geometryFields(boolean hasType, boolean hasParts)
+	{	int[] fields = new int[GEOMETRY_FIELDS];
+		if(hasParts)
+			fields[GEOMETRY_PARTS] = 4;
+		else fields[GEOMETRY_XY] = 4;
+		if(hasType)
+			fields[GEOMETRY_TYPE] = 1;
+		return fields;
+	}
+
+	/**
+	 * Encodes the values as FlatGeobuf properties, the column index then the value, little endian.
+	 */
+	private void encodeProperties(String[] values)
+	{	properties.clear();
+		byte[] bytes;
+		for(int column = 0; column < columnNames.length && column < values.length; column++)
+		{	if(values[column] == null || values[column].length() == 0)
+				continue;
+			try
+			{	if(columnTypes[column] == COLUMN_INT)
+				{	int value = Integer.parseInt(values[column].trim());
+					ensureProperties(6);
+					properties.putShort((short) column).putInt(value);
+				}
+				else if(columnTypes[column] == COLUMN_DOUBLE)
+				{	double value = Double.parseDouble(values[column].trim());
+					ensureProperties(10);
+					properties.putShort((short) column).putDouble(value);
+				}
+				else
+				{	bytes = values[column].getBytes("UTF-8");
+					ensureProperties(6 + bytes.length);
+					properties.putShort((short) column).putInt(bytes.length).put(bytes);
+				}
+			}catch(NumberFormatException nfe)
+			{	// left out, as a blank value
+			}catch(java.io.UnsupportedEncodingException uee)
+			{	throw new IllegalStateException(uee);	// UTF-8 is always supported
+			}
+		}
+		properties.flip();
+	}
+
+	private void ensureProperties(int bytes)
+	{	if(properties.remaining() >= bytes)
+			return;
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(properties.capacity() * 2, properties.position() + bytes)).order(ByteOrder.LITTLE_ENDIAN);
+		properties.flip();
+		larger.put(properties);
+		properties = larger;
+	}
+
+	private void writeProperties(FlatBufferWriter.Table table)
+	{	if(properties.hasRemaining())
+			feature.setOffset(table.field(FEATURE_PROPERTIES), feature.byteVector(properties));
+	}
+
+	private void spoolFeature(double minX, double minY, double maxX, double maxY) throws IOException
+	{	if(count == offsets.length)
+		{	offsets = Arrays.copyOf(offsets, count * 2);
+			sizes = Arrays.copyOf(sizes, count * 2);
+			bounds = Arrays.copyOf(bounds, count * 8);
+		}
+		int size = feature.size() + 4;
+		if(spoolBuffer.remaining() < size)
+			flushSpool();
+		if(spoolBuffer.remaining() < size)		// a feature larger than the buffer
+			feature.writeSizePrefixed(spool);
+		else feature.copySizePrefixed(spoolBuffer);
+		offsets[count] = spoolBytes;
+		sizes[count] = size;
+		bounds[4 * count] = minX;
+		bounds[4 * count + 1] = minY;
+		bounds[4 * count + 2] = maxX;
+		bounds[4 * count + 3] = maxY;
+		spoolBytes += size;
+		count++;
+	}
+
+	private void flushSpool() throws IOException
+	{	spoolBuffer.flip();
+		while(spoolBuffer.hasRemaining())
+			spool.write(spoolBuffer);
+		spoolBuffer.clear();
+	}
+
+	/**
+	 * Writes the file: the header, the index and the features in the order of the index. Deletes the spool.
+	 * @throws IOException If the file can not be written.
+	 */
+	public void close() throws IOException
+	{	if(!open)
+			return;
+		open = false;
+		FileChannel out = null;
+		try
+		{	flushSpool();
+			out = new FileOutputStream(file).getChannel();
+			if(outputFiles != null)
+				outputFiles.add(file);
+			out.write(ByteBuffer.wrap(MAGIC));
+			double[] extent = extent();
+			writeHeader(out, extent);
+			if(count > 0)
+			{	int[] order = hilbertOrder(extent);
+				writeIndex(out, order);
+				writeFeatures(out, order);
+			}
+		}
+		finally
+		{	if(out != null)
+				out.close();
+			spool.close();
+			spoolFile.delete();
+		}
+	}
+
+	private double[] extent()
+	{	double[] extent = {Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY};
+		for(int index = 0; index < count; index++)
+		{	extent[0] = Math.min(extent[0], bounds[4 * index]);
+			extent[1] = Math.min(extent[1], bounds[4 * index + 1]);
+			extent[2] = Math.max(extent[2], bounds[4 * index + 2]);
+			extent[3] = Math.max(extent[3], bounds[4 * index + 3]);
+		}
+		return extent;
+	}
+
+	private void writeHeader(FileChannel out, double[] extent) throws IOException
+	{	FlatBufferWriter header = new FlatBufferWriter(4096);
+		int root = header.start(), column;
+		int[] fields = new int[HEADER_FIELDS];
+		fields[HEADER_NAME] = 4;
+		fields[HEADER_GEOMETRY_TYPE] = 1;
+		fields[HEADER_COLUMNS] = 4;
+		fields[HEADER_FEATURES_COUNT] = 8;
+		fields[HEADER_INDEX_NODE_SIZE] = 2;
+		fields[HEADER_CRS] = 4;
+		if(count > 0)
+			fields[HEADER_ENVELOPE] = 4;
+		FlatBufferWriter.Table table = header.table(fields);
+		header.setOffset(root, table.getPosition());
+		header.putByte(table.field(HEADER_GEOMETRY_TYPE), geometryType);
+		header.putLong(table.field(HEADER_FEATURES_COUNT), count);
+		header.putShort(table.field(HEADER_INDEX_NODE_SIZE), count > 0 ? INDEX_NODE_SIZE : 0);
+		header.setOffset(table.field(HEADER_NAME), header.string(name));
+		if(count > 0)
+			header.setOffset(table.field(HEADER_ENVELOPE), header.doubleVector(extent, 0, 4));
+		int columns = header.offsetVector(columnNames.length);
+		header.setOffset(table.field(HEADER_COLUMNS), columns);
+		for(column = 0; column < columnNames.length; column++)
+		{	fields = new int[COLUMN_FIELDS];
+			fields[COLUMN_NAME] = 4;
+			fields[COLUMN_TYPE] = 1;
+			FlatBufferWriter.Table columnTable = header.table(fields);
+			header.setOffset(columns + 4 + 4 * column, columnTable.getPosition());
+			header.putByte(columnTable.field(COLUMN_TYPE), columnTypes[column]);
+			header.setOffset(columnTable.field(COLUMN_NAME), header.string(columnNames[column]));
+		}
+		fields = new int[CRS_FIELDS];
+		fields[CRS_ORG] = 4;
+		fields[CRS_CODE] = 4;
+		FlatBufferWriter.Table crs = header.table(fields);
+		header.setOffset(table.field(HEADER_CRS), crs.getPosition());
+		header.putInt(crs.field(CRS_CODE), 4326);
+		header.setOffset(crs.field(CRS_ORG), header.string("EPSG"));
+		header.writeSizePrefixed(out);
+	}
+
+	/**
+	 * @return The feature indices sorted by the Hilbert value of the centers of their bounding boxes.
+	 */
+	private int[] hilbertOrder(double[] extent)
+	{	double width = extent[2] - extent[0], height = extent[3] - extent[1];
+		long[] keys = new long[count];
+		int x, y, index;
+		for(index = 0; index < count; index++)
+		{	x = width > 0 ? (int) Math.floor(HILBERT_MAX * ((bounds[4 * index] + bounds[4 * index + 2]) / 2 - extent[0]) / width) : 0;
+			y = height > 0 ? (int) Math.floor(HILBERT_MAX * ((bounds[4 * index + 1] + bounds[4 * index + 3]) / 2 - extent[1]) / height) : 0;
+			keys[index] = ((hilbert(x, y) & 0xFFFFFFFFL) << 31) | index;		// sorts by the value, then by the index
+		}
+		Arrays.sort(keys);
+		int[] order = new int[count];
+		for(index = 0; index < count; index++)
+			order[index] = (int) (keys[index] & Integer.MAX_VALUE);
+		return order;
+	}
+
+	/**
+	 * The position of x, y along a Hilbert curve through a 2^16 by 2^16 grid, the same curve as the FlatGeobuf
+	 *   reference implementation, from "Fast Hilbert curve generation" by rawrunprotected.
+	 */
+	static int hilbert(int x, int y)
+	{	int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+		int A = a | (b >>> 1);
+		int B = (a >>> 1) ^ a;
+		int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+		int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+		B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+		C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+		D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+		a = A; b = B; c = C; d = D;
+		A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+		B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+		C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+		D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+		a = A; b = B; c = C; d = D;
+		C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+		D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+		a = C ^ (C >>> 1);
+		b = D ^ (D >>> 1);
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+		i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+		i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+		i0 = (i0 | (i0 << 2)) & 0x33333333;
+		i0 = (i0 | (i0 << 1)) & 0x55555555;
+		i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+		i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+		i1 = (i1 | (i1 << 2)) & 0x33333333;
+		i1 = (i1 | (i1 << 1)) & 0x55555555;
+		return (i1 << 1) | i0;
+	}
+
+	/**
+	 * Writes the packed R-tree: the root first and the leaves, one per feature in Hilbert order, last. A leaf holds
+	 *   the byte offset of its feature from the start of the features, a parent the index of its first child.
+	 */
+	private void writeIndex(FileChannel out, int[] order) throws IOException
+	{	int levels = 1, level, n = count;
+		do
+		{	n = (n + INDEX_NODE_SIZE - 1) / INDEX_NODE_SIZE;
+			levels++;
+		}while(n != 1);
+		int[] levelStarts = new int[levels];
+		int[] levelEnds = new int[levels];
+		int nodeCount = 0;
+		n = count;
+		for(level = 0; level < levels; level++)		// count the nodes, bottom up
+		{	nodeCount += n;
+			n = (n + INDEX_NODE_SIZE - 1) / INDEX_NODE_SIZE;
+		}
+		int end = nodeCount;
+		n = count;
+		for(level = 0; level < levels; level++)		// the leaves are last
+		{	levelStarts[level] = end - n;
+			levelEnds[level] = end;
+			end -= n;
+			n = (n + INDEX_NODE_SIZE - 1) / INDEX_NODE_SIZE;
+		}
+		double[] nodeBounds = new double[4 * nodeCount];
+		long[] nodeOffsets = new long[nodeCount];
+		int node = levelStarts[0], feature, child, j;
+		long offset = 0;
+		for(int index = 0; index < count; index++, node++)
+		{	feature = order[index];
+			System.arraycopy(bounds, 4 * feature, nodeBounds, 4 * node, 4);
+			nodeOffsets[node] = offset;
+			offset += sizes[feature];
+		}
+		for(level = 0; level < levels - 1; level++)
+		{	child = levelStarts[level];
+			node = levelStarts[level + 1];
+			while(child < levelEnds[level])
+			{	nodeOffsets[node] = child;
+				nodeBounds[4 * node] = nodeBounds[4 * node + 1] = Double.POSITIVE_INFINITY;
+				nodeBounds[4 * node + 2] = nodeBounds[4 * node + 3] = Double.NEGATIVE_INFINITY;
+				for(j = 0; j < INDEX_NODE_SIZE && child < levelEnds[level]; j++, child++)
+				{	nodeBounds[4 * node] = Math.min(nodeBounds[4 * node], nodeBounds[4 * child]);
+					nodeBounds[4 * node + 1] = Math.min(nodeBounds[4 * node + 1], nodeBounds[4 * child + 1]);
+					nodeBounds[4 * node + 2] = Math.max(nodeBounds[4 * node + 2], nodeBounds[4 * child + 2]);
+					nodeBounds[4 * node + 3] = Math.max(nodeBounds[4 * node + 3], nodeBounds[4 * child + 3]);
+				}
+				node++;
+			}
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		for(node = 0; node < nodeCount; node++)
+		{	if(buffer.remaining() < NODE_BYTES)
+				flush(out, buffer);
+			buffer.putDouble(nodeBounds[4 * node]).putDouble(nodeBounds[4 * node + 1])
+				.putDouble(nodeBounds[4 * node + 2]).putDouble(nodeBounds[4 * node + 3]).putLong(nodeOffsets[node]);
+		}
+		flush(out, buffer);
+	}
+
+	private void writeFeatures(FileChannel out, int[] order) throws IOException
+	{	ByteBuffer buffer = spoolBuffer;
+		buffer.clear();
+		int feature, start;
+		for(int index = 0; index < count; index++)
+		{	feature = order[index];
+			if(sizes[feature] > buffer.capacity())
+			{	flush(out, buffer);
+				spool.transferTo(offsets[feature], sizes[feature], out);
+				continue;
+			}
+			if(buffer.remaining() < sizes[feature])
+				flush(out, buffer);
+			start = buffer.position();
+			buffer.limit(start + sizes[feature]);
+			while(buffer.hasRemaining())
+			{	if(spool.read(buffer, offsets[feature] + buffer.position() - start) < 0)
+					throw new IOException("The FlatGeobuf spool " + spoolFile + " ended early.");
+			}
+			buffer.limit(buffer.capacity());
+		}
+		flush(out, buffer);
+	}
+
+	private static void flush(FileChannel out, ByteBuffer buffer) throws IOException
+	{	buffer.flip();
+		while(buffer.hasRemaining())
+			out.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * @return The number of features added.
+	 */
+	public int getFeatureCount()
+	{	return count;
+	}
+
+	/**
+	 * @return The .fgb file.
+	 */
+	public File getFile()
+	{	return file;
+	}
+
+	/**
+	 * @param outputFiles Records the .fgb file once close() creates it, or null.
+	 */
+	public void setOutputFiles(OutputFiles outputFiles)
+	{	this.outputFiles = outputFiles;
+	}
+
+	/**
+	 * Checks the layout of the layer and of the FlatBufferWriter by reading a file back without a FlatGeobuf library.
+	 *   A 10 by 10 grid of points is written, then the header is decoded and the index is searched for the points
+	 *   within a box, as a web map would, and the properties of each point found are decoded.
+	 * @param args
+	 * @throws IOException If the temporary file can not be written or read.
+	 * @throws IllegalStateException If the file read back is not the one written.
+	 */
+	public static void main(String[] args) throws IOException
+	{	File file = File.createTempFile("witness", ".fgb");
+		file.deleteOnExit();
+		FlatGeobufLayer layer = new FlatGeobufLayer(file, "grid", GEOMETRY_POINT, new String[]{"name","row","half"},
+				new int[]{COLUMN_STRING, COLUMN_INT, COLUMN_DOUBLE});
+		int x, y;
+		for(y = 0; y < 10; y++)
+			for(x = 0; x < 10; x++)
+				layer.addPoint(x, y, new String[]{"p" + x + y, Integer.toString(y), Double.toString(x / 2.0)});
+		layer.close();
+
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		ByteBuffer buffer = ByteBuffer.allocate((int) in.length()).order(ByteOrder.LITTLE_ENDIAN);
+		in.getChannel().read(buffer);
+		in.close();
+		byte[] magic = new byte[MAGIC.length];
+		buffer.position(0);
+		buffer.get(magic);
+		if(!Arrays.equals(magic, MAGIC))
+			throw new IllegalStateException("The file does not start with the FlatGeobuf magic bytes.");
+
+		int headerSize = buffer.getInt(MAGIC.length);
+		ByteBuffer header = slice(buffer, MAGIC.length + 4, headerSize);
+		int table = target(header, 0);
+		String name = readString(header, table, HEADER_NAME);
+		long featureCount = header.getLong(field(header, table, HEADER_FEATURES_COUNT));
+		int nodeSize = header.getShort(field(header, table, HEADER_INDEX_NODE_SIZE)) & 0xFFFF;
+		int columns = target(header, field(header, table, HEADER_COLUMNS));
+		String columnNames = "";
+		for(int column = 0; column < header.getInt(columns); column++)
+			columnNames += readString(header, target(header, columns + 4 + 4 * column), COLUMN_NAME) + " ";
+		int crs = target(header, field(header, table, HEADER_CRS));
+		String crsName = readString(header, crs, CRS_ORG) + ":" + header.getInt(field(header, crs, CRS_CODE));
+		int envelope = target(header, field(header, table, HEADER_ENVELOPE)) + 4;
+		String extent = header.getDouble(envelope) + " " + header.getDouble(envelope + 8) + " " + header.getDouble(envelope + 16)
+				+ " " + header.getDouble(envelope + 24);
+		System.out.println("Layer " + name + ": " + featureCount + " points, index node size " + nodeSize + ", columns " + columnNames
+				+ crsName + ", extent " + extent);
+		if(!name.equals("grid") || header.get(field(header, table, HEADER_GEOMETRY_TYPE)) != GEOMETRY_POINT || featureCount != 100
+				|| nodeSize != INDEX_NODE_SIZE || !columnNames.equals("name row half ") || !crsName.equals("EPSG:4326")
+				|| !extent.equals("0.0 0.0 9.0 9.0"))
+			throw new IllegalStateException("The header read back is not the one written.");
+
+		// the packed R-tree, the levels laid out as by writeIndex()
+		int levels = 1, level, n = (int) featureCount, nodeCount = 0;
+		do
+		{	n = (n + nodeSize - 1) / nodeSize;
+			levels++;
+		}while(n != 1);
+		int[] levelStarts = new int[levels], levelEnds = new int[levels];
+		for(n = (int) featureCount, level = 0; level < levels; level++, n = (n + nodeSize - 1) / nodeSize)
+			nodeCount += n;
+		int end = nodeCount;
+		for(n = (int) featureCount, level = 0; level < levels; level++, n = (n + nodeSize - 1) / nodeSize)
+		{	levelStarts[level] = end - n;
+			levelEnds[level] = end;
+			end -= n;
+		}
+		ByteBuffer index = slice(buffer, MAGIC.length + 4 + headerSize, nodeCount * NODE_BYTES);
+		int featuresStart = MAGIC.length + 4 + headerSize + nodeCount * NODE_BYTES;
+		double[] box = {2.5, 2.5, 4.5, 4.5};
+		String found = "";
+		int[] stack = new int[nodeCount], stackLevels = new int[nodeCount];
+		int top = 0, node, child;
+		stack[top] = 0;
+		stackLevels[top++] = levels - 1;
+		while(top > 0)
+		{	node = stack[--top];
+			level = stackLevels[top];
+			if(index.getDouble(node * NODE_BYTES) > box[2] || index.getDouble(node * NODE_BYTES + 8) > box[3]
+					|| index.getDouble(node * NODE_BYTES + 16) < box[0] || index.getDouble(node * NODE_BYTES + 24) < box[1])
+				continue;
+			if(level == 0)
+			{	ByteBuffer feature = slice(buffer, featuresStart + (int) index.getLong(node * NODE_BYTES + 32) + 4, 0);
+				found += readProperties(feature, target(feature, 0)) + " ";
+				continue;
+			}
+			for(child = (int) index.getLong(node * NODE_BYTES + 32); child < levelEnds[level - 1] && child < index.getLong(node * NODE_BYTES + 32) + nodeSize; child++)
+			{	stack[top] = child;
+				stackLevels[top++] = level - 1;
+			}
+		}
+		String[] names = found.trim().split(" ");
+		Arrays.sort(names);
+		String inBox = Arrays.toString(names);
+		System.out.println("Found within " + Arrays.toString(box) + ", name/row/half: " + inBox);
+		if(!inBox.equals("[p33/3/1.5, p34/4/1.5, p43/3/2.0, p44/4/2.0]"))		// x and y of 3 and 4
+			throw new IllegalStateException("The index search found other points than the 4 within the box.");
+	}
+
+	/**
+	 * @return A little endian view of 'length' bytes of the buffer from 'start', or to the end if 'length' is 0.
+	 */
+	private static ByteBuffer slice(ByteBuffer buffer, int start, int length)
+	{	ByteBuffer view = buffer.duplicate();
+		view.position(start);
+		if(length > 0)
+			view.limit(start + length);
+		return view.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return The position of a field of a FlatBuffers table, from its vtable, or -1 if the field is absent.
+	 */
+	private static int field(ByteBuffer buffer, int table, int slot)
+	{	int vtable = table - buffer.getInt(table);
+		if(4 + 2 * slot >= buffer.getShort(vtable))
+			return -1;
+		int offset = buffer.getShort(vtable + 4 + 2 * slot);
+		return offset == 0 ? -1 : table + offset;
+	}
+
+	/**
+	 * @return The position that the offset at 'position' points to.
+	 */
+	private static int target(ByteBuffer buffer, int position)
+	{	return position + buffer.getInt(position);
+	}
+
+	private static String readString(ByteBuffer buffer, int table, int slot) throws IOException
+	{	int string = target(buffer, field(buffer, table, slot));
+		byte[] bytes = new byte[buffer.getInt(string)];
+		for(int index = 0; index < bytes.length; index++)
+			bytes[index] = buffer.get(string + 4 + index);
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * @return The properties of a feature of the grid written by main(), name/row/half.
+	 */
+	private static String readProperties(ByteBuffer feature, int table) throws IOException
+	{	int vector = target(feature, field(feature, table, FEATURE_PROPERTIES));
+		ByteBuffer properties = slice(feature, vector + 4, feature.getInt(vector));
+		String values = "";
+		byte[] bytes;
+		while(properties.hasRemaining())
+		{	int column = properties.getShort();
+			if(column == 0)
+			{	bytes = new byte[properties.getInt()];
+				properties.get(bytes);
+				values += new String(bytes, "UTF-8");
+			}
+			else if(column == 1)
+				values += "/" + properties.getInt();
+			else values += "/" + properties.getDouble();
+		}
+		return values;
+	}
+}
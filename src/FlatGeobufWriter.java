@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes the geo file rows as two FlatGeobuf files, each with a spatial index:
+ * <br>- the course points, one feature per row that has KML coordinates, with the columns of the geo file. The UID is
+ *   an integer and KML_x and KML_y are doubles, the other columns are text.
+ * <br>- the parcel polygons, one multipolygon per KML placemark with a ring for each of its tracts, built from its
+ *   LineString points by a ParcelOutline.
+ * @author thayer young
+ */
+public class FlatGeobufWriter implements GeoRowWriter
+{
+	/** The columns of the parcel polygon file. */
+	public static final String[] PARCEL_COLUMNS = {"PID","KML_pid","KML_name","KML_id","Points"};
+	private static final int[] PARCEL_TYPES = {FlatGeobufLayer.COLUMN_STRING, FlatGeobufLayer.COLUMN_STRING,
+		FlatGeobufLayer.COLUMN_STRING, FlatGeobufLayer.COLUMN_STRING, FlatGeobufLayer.COLUMN_INT};
+
+	private FlatGeobufLayer points, parcels;
+	private String[] values = new String[Witness.GEO_COLUMNS.length];
+	private String[] parcelValues = new String[PARCEL_COLUMNS.length];
+	private OutlineCollector outlines = new OutlineCollector();
+
+	/**
+	 * @param pointFile The FlatGeobuf file of the course points.
+	 * @param parcelFile The FlatGeobuf file of the parcel polygons.
+	 * @throws IOException If the spools can not be created.
+	 */
+	public FlatGeobufWriter(File pointFile, File parcelFile) throws IOException
+	{	this(pointFile, parcelFile, null);
+	}
+
+	/**
+	 * @param pointFile The FlatGeobuf file of the course points.
+	 * @param parcelFile The FlatGeobuf file of the parcel polygons.
+	 * @param outputFiles Records each file as it is created, or null.
+	 * @throws IOException If the spools can not be created.
+	 */
+	public FlatGeobufWriter(File pointFile, File parcelFile, OutputFiles outputFiles) throws IOException
+	{	int[] types = new int[Witness.GEO_COLUMNS.length];
+		Arrays.fill(types, FlatGeobufLayer.COLUMN_STRING);
+		types[0] = FlatGeobufLayer.COLUMN_INT;
+		types[Witness.GEO_KML_X] = FlatGeobufLayer.COLUMN_DOUBLE;
+		types[Witness.GEO_KML_Y] = FlatGeobufLayer.COLUMN_DOUBLE;
+		points = new FlatGeobufLayer(pointFile, "courses", FlatGeobufLayer.GEOMETRY_POINT, Witness.GEO_COLUMNS, types);
+		parcels = new FlatGeobufLayer(parcelFile, "parcels", FlatGeobufLayer.GEOMETRY_MULTIPOLYGON, PARCEL_COLUMNS, PARCEL_TYPES);
+		points.setOutputFiles(outputFiles);
+		parcels.setOutputFiles(outputFiles);
+	}
+
+	/**
+	 * Adds the row as a point if it has coordinates, and keeps a LineString point for its placemark's polygon.
+	 */
+	public void writeRow(int uid, String[] row) throws IOException
+	{	double x, y;
+		try
+		{	if(row[Witness.GEO_KML_X] == null || row[Witness.GEO_KML_Y] == null)
+				return;		// a course that did not join has no point
+			x = Double.parseDouble(row[Witness.GEO_KML_X].trim());
+			y = Double.parseDouble(row[Witness.GEO_KML_Y].trim());
+		}catch(NumberFormatException nfe)
+		{	return;
+		}
+		System.arraycopy(row, 1, values, 1, row.length - 1);
+		values[0] = Integer.toString(uid);
+		points.addPoint(x, y, values);
+		outlines.add(row, x, y);
+	}
+
+	/**
+	 * Adds the polygons of the placemarks that are complete.
+	 */
+	public void endParcel() throws IOException
+	{	addPolygons(outlines.endParcel());
+	}
+
+	private void addPolygons(List<ParcelOutline> complete) throws IOException
+	{	for(ParcelOutline outline:complete)
+		{	if(outline.buildRings() == 0)
+				continue;
+			parcelValues[0] = outline.getPid();
+			parcelValues[1] = outline.getKmlPid();
+			parcelValues[2] = outline.getName();
+			parcelValues[3] = outline.getId();
+			parcelValues[4] = Integer.toString(outline.getPointCount());
+			parcels.addPolygons(outline.getRings(), outline.getRingCount(), parcelValues);
+		}
+	}
+
+	/**
+	 * Adds the last polygons, then writes both files.
+	 */
+	public void close() throws IOException
+	{	try
+		{	addPolygons(outlines.finish());
+		}
+		finally
+		{	try
+			{	points.close();
+			}
+			finally
+			{	parcels.close();
+			}
+		}
+	}
+
+	/**
+	 * @return The number of course points written.
+	 */
+	public int getPointCount()
+	{	return points.getFeatureCount();
+	}
+
+	/**
+	 * @return The number of parcel polygons written.
+	 */
+	public int getParcelCount()
+	{	return parcels.getFeatureCount();
+	}
+}
@@ -0,0 +1,164 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+/**
+ * Holds the flat file rows of the MBL parcels in a temporary file while the parcels are parsed, because the columns of
+ *   the flat file are not known until every field name has been read. Each parcel is spooled as its PID, its point
+ *   count and the value of the first record of each field name, the same values that Witness.writeFlatFile() writes.
+ *   Once the parse is done, write() writes the flat file from the spool, so the parcels themselves need not be kept.
+ * @author thayer young
+ */
+public class FlatSpool
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int PROGRESS_INTERVAL = 1024;	// parcels
+
+	private File file;
+	private DataOutputStream out;
+	private int parcelCount = 0;
+	private HashSet<String> seen = new HashSet<String>();
+	private LinkedList<String> values = new LinkedList<String>();
+
+	/**
+	 * Creates the temporary spool file.
+	 * @param directory The directory for the spool file, e.g. that of the output files, or null for the default.
+	 * @throws IOException If the spool file can not be created.
+	 */
+	public FlatSpool(File directory) throws IOException
+	{	file = File.createTempFile("witness", ".spool", directory);
+		file.deleteOnExit();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+	}
+
+	/**
+	 * Spools the flat file row of an MBL parcel. Must be called before the parcel is joined, the join removes its records.
+	 * @param parcel A parcel from the MblParser.
+	 * @throws IOException If the spool can not be written.
+	 */
+	public void add(Parcel<String> parcel) throws IOException
+	{	DataRecordW<String> first = parcel.peek();
+		String fieldName;
+		seen.clear();
+		values.clear();
+		for (DataRecordW<String> record:parcel)		// the first record of each field name fills its column
+		{	fieldName = record.get(Witness.MBL_FIELDNAME);
+			if (fieldName != null && !Witness.isMBLgeoField(fieldName) && seen.add(fieldName) && record.size() > Witness.MBL_VALUE)
+			{	values.add(fieldName);
+				values.add(record.get(Witness.MBL_VALUE));
+			}
+		}
+		writeString(out, first == null ? null : first.get(Witness.MBL_RECORDCOUNT));
+		out.writeInt(parcel.getGeometryCount());
+		out.writeInt(values.size() / 2);
+		for (String value:values)
+			writeString(out, value);
+		parcelCount++;
+	}
+
+	/**
+	 * Writes the flat file from the spool, the same rows that Witness.writeFlatFile() writes for the parsed table.
+	 * @param tsv The writer for the flat file, it is not closed.
+	 * @param fieldList The field names of all of the parcels, from MblParser.getFieldList().
+	 * @throws IOException If the spool can not be read or the flat file written.
+	 */
+	public void write(TsvWriter tsv, CountingTree fieldList) throws IOException
+	{	write(tsv, fieldList, null);
+	}
+
+	/**
+	 * Writes the flat file from the spool, and tells the progress every few parcels.
+	 * @param tsv The writer for the flat file, it is not closed.
+	 * @param fieldList The field names of all of the parcels, from MblParser.getFieldList().
+	 * @param progress Is told the parcels written as ProgressSink.STAGE_WRITE_FLAT, may be null.
+	 * @throws IOException If the spool can not be read or the flat file written.
+	 * @throws java.util.concurrent.CancellationException If the progress is cancelled.
+	 */
+	public void write(TsvWriter tsv, CountingTree fieldList, ProgressSink progress) throws IOException
+	{	out.close();
+		HashMap<String,Integer> columns = Witness.writeFlatHeader(tsv, fieldList);
+		String[] slots = new String[columns.size()];
+		Integer keyColumn = tsv.getGroupField() == null ? null : columns.get(tsv.getGroupField());
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+		try
+		{	String pid, fieldName, value;
+			int pointCount, valueCount, index;
+			Integer column;
+			for (int parcel = 0; parcel < parcelCount; parcel++)
+			{	if (progress != null && parcel % PROGRESS_INTERVAL == 0)
+				{	ConversionPipeline.checkCancelled(progress);
+					progress.progress(ProgressSink.STAGE_WRITE_FLAT, parcel, parcelCount);
+				}
+				pid = readString(in);
+				pointCount = in.readInt();
+				valueCount = in.readInt();
+				for (index = 0; index < slots.length; index++)
+					slots[index] = null;
+				for (index = 0; index < valueCount; index++)
+				{	fieldName = readString(in);
+					value = readString(in);
+					column = columns.get(fieldName);
+					if (column != null)
+						slots[column] = value;
+				}
+				tsv.startGroup(keyColumn == null ? null : slots[keyColumn]);
+				tsv.field(pid);
+				for (String slot:slots)
+					tsv.field(slot);
+				tsv.field(pointCount);
+				tsv.endRow();
+			}
+		}
+		finally
+		{	in.close();
+		}
+		if (progress != null)
+			progress.progress(ProgressSink.STAGE_WRITE_FLAT, parcelCount, parcelCount);
+	}
+
+	/**
+	 * Closes and deletes the spool file.
+	 */
+	public void delete()
+	{	try
+		{	out.close();
+		}catch(IOException ioe)
+		{	// the spool is deleted regardless
+		}
+		file.delete();
+	}
+
+	/**
+	 * @return The number of parcels spooled.
+	 */
+	public int getParcelCount()
+	{	return parcelCount;
+	}
+
+	static void writeString(DataOutputStream out, String value) throws IOException
+	{	if (value == null)
+		{	out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException
+	{	int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,268 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * Writes the geo file rows as a GeoJSON text sequence (RFC 8142): one GeoJSON Feature per record, each record
+ *   starting with the record separator character and ending with a line feed, so that the file can be streamed and
+ *   split by line. Each feature is written as soon as it is complete, nothing is held but the outlines that are not
+ *   yet complete, see OutlineCollector, so the writer keeps pace with the ConversionPipeline.
+ * <br>- a "course" feature for each geo file row, with a Point at KML_x, KML_y, or a null geometry for a course that
+ *   did not join. UID, KML_x, KML_y and JoinScore are numbers, FoundTerms is an array of the terms found, and the
+ *   other columns are strings.
+ * <br>- a "parcel" feature for each KML placemark, a Polygon, or a MultiPolygon if it has several tracts, built from
+ *   its LineString points by a ParcelOutline.
+ * <br>The property "layer" tells the two kinds apart. The coordinates are WGS 84 longitude and latitude.
+ * @author thayer young
+ */
+public class GeoJsonSeqWriter implements GeoRowWriter
+{
+	/** The record separator that starts each record of a GeoJSON text sequence. */
+	public static final char RECORD_SEPARATOR = '\u001E';
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int UID = 0, FOUND_TERMS = 8, JOIN_SCORE = 16;		// the geo file columns that are not strings
+	private static final String FOUND_TERMS_SEPARATOR = ", ";
+
+	private Writer out;
+	private boolean recordSeparators;
+	private OutlineCollector outlines = new OutlineCollector();
+	private int courseCount = 0, parcelCount = 0;
+
+	/**
+	 * @param file The .geojsons file.
+	 * @throws IOException If the file can not be created.
+	 */
+	public GeoJsonSeqWriter(File file) throws IOException
+	{	this(file, true, null);
+	}
+
+	/**
+	 * @param file The file to be written.
+	 * @param recordSeparators True to start each record with the record separator, as RFC 8142 requires, false to
+	 *   write newline delimited GeoJSON, one feature per line.
+	 * @throws IOException If the file can not be created.
+	 */
+	public GeoJsonSeqWriter(File file, boolean recordSeparators) throws IOException
+	{	this(file, recordSeparators, null);
+	}
+
+	/**
+	 * @param file The file to be written.
+	 * @param recordSeparators True to start each record with the record separator, false for newline delimited GeoJSON.
+	 * @param outputFiles Records the file once it is created, or null.
+	 * @throws IOException If the file can not be created.
+	 */
+	public GeoJsonSeqWriter(File file, boolean recordSeparators, OutputFiles outputFiles) throws IOException
+	{	out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), BUFFER_SIZE);
+		if(outputFiles != null)
+			outputFiles.add(file);
+		this.recordSeparators = recordSeparators;
+	}
+
+	/**
+	 * Writes the course feature of the row.
+	 */
+	public void writeRow(int uid, String[] row) throws IOException
+	{	double x = parseNumber(row[Witness.GEO_KML_X]);
+		double y = parseNumber(row[Witness.GEO_KML_Y]);
+		startRecord();
+		out.write("{\"type\":\"Feature\",\"id\":");
+		out.write(Integer.toString(uid));
+		out.write(",\"geometry\":");
+		if(Double.isNaN(x) || Double.isNaN(y))
+			out.write("null");
+		else
+		{	out.write("{\"type\":\"Point\",\"coordinates\":");
+			writePosition(x, y);
+			out.write('}');
+		}
+		out.write(",\"properties\":{\"layer\":\"course\"");
+		String[] columns = Witness.GEO_COLUMNS;
+		for(int column = 0; column < columns.length; column++)
+		{	out.write(',');
+			writeString(columns[column]);
+			out.write(':');
+			if(column == UID)
+				out.write(Integer.toString(uid));
+			else if(column == FOUND_TERMS)
+				writeTerms(row[column]);
+			else if(column == Witness.GEO_KML_X || column == Witness.GEO_KML_Y || column == JOIN_SCORE)
+				writeNumber(parseNumber(row[column]));
+			else writeString(row[column]);
+		}
+		out.write("}}");
+		endRecord();
+		courseCount++;
+		if(!Double.isNaN(x) && !Double.isNaN(y))
+			outlines.add(row, x, y);
+	}
+
+	/**
+	 * Writes the parcel features of the placemarks that are complete.
+	 */
+	public void endParcel() throws IOException
+	{	writeParcels(outlines.endParcel());
+	}
+
+	private void writeParcels(List<ParcelOutline> complete) throws IOException
+	{	double[][] rings;
+		int ringCount, ring, index;
+		for(ParcelOutline outline:complete)
+		{	ringCount = outline.buildRings();
+			if(ringCount == 0)
+				continue;
+			rings = outline.getRings();
+			startRecord();
+			out.write("{\"type\":\"Feature\",\"geometry\":{\"type\":");
+			out.write(ringCount == 1 ? "\"Polygon\"" : "\"MultiPolygon\"");
+			out.write(",\"coordinates\":");
+			if(ringCount > 1)
+				out.write('[');
+			for(ring = 0; ring < ringCount; ring++)
+			{	if(ring > 0)
+					out.write(',');
+				out.write("[[");		// each tract is a polygon of one ring
+				for(index = 0; index + 1 < rings[ring].length; index += 2)
+				{	if(index > 0)
+						out.write(',');
+					writePosition(rings[ring][index], rings[ring][index + 1]);
+				}
+				out.write("]]");
+			}
+			if(ringCount > 1)
+				out.write(']');
+			out.write("},\"properties\":{\"layer\":\"parcel\",\"PID\":");
+			writeString(outline.getPid());
+			out.write(",\"KML_pid\":");
+			writeString(outline.getKmlPid());
+			out.write(",\"KML_name\":");
+			writeString(outline.getName());
+			out.write(",\"KML_id\":");
+			writeString(outline.getId());
+			out.write(",\"Points\":");
+			out.write(Integer.toString(outline.getPointCount()));
+			out.write("}}");
+			endRecord();
+			parcelCount++;
+		}
+	}
+
+	private void startRecord() throws IOException
+	{	if(recordSeparators)
+			out.write(RECORD_SEPARATOR);
+	}
+
+	private void endRecord() throws IOException
+	{	out.write('\n');
+	}
+
+	private void writePosition(double x, double y) throws IOException
+	{	out.write('[');
+		out.write(Double.toString(x));
+		out.write(',');
+		out.write(Double.toString(y));
+		out.write(']');
+	}
+
+	private void writeNumber(double value) throws IOException
+	{	if(Double.isNaN(value) || Double.isInfinite(value))
+			out.write("null");
+		else out.write(Double.toString(value));
+	}
+
+	/**
+	 * Writes the FoundTerms column, the terms separated by ", ", as an array.
+	 */
+	private void writeTerms(String terms) throws IOException
+	{	out.write('[');
+		if(terms != null && terms.length() > 0)
+		{	int start = 0, end;
+			while(true)
+			{	end = terms.indexOf(FOUND_TERMS_SEPARATOR, start);
+				writeString(end < 0 ? terms.substring(start) : terms.substring(start, end));
+				if(end < 0)
+					break;
+				out.write(',');
+				start = end + FOUND_TERMS_SEPARATOR.length();
+			}
+		}
+		out.write(']');
+	}
+
+	/**
+	 * Writes a JSON string, or null. The quote, the backslash and the control characters are escaped.
+	 */
+	private void writeString(String value) throws IOException
+	{	if(value == null)
+		{	out.write("null");
+			return;
+		}
+		out.write('"');
+		char c;
+		for(int index = 0; index < value.length(); index++)
+		{	c = value.charAt(index);
+			if(c == '"' || c == '\\')
+			{	out.write('\\');
+				out.write(c);
+			}
+			else if(c == '\n')
+				out.write("\\n");
+			else if(c == '\r')
+				out.write("\\r");
+			else if(c == '\t')
+				out.write("\\t");
+			else if(c < 0x20 || c == 0x2028 || c == 0x2029)
+			{	out.write("\\u");
+				String hex = Integer.toHexString(c);
+				for(int pad = hex.length(); pad < 4; pad++)
+					out.write('0');
+				out.write(hex);
+			}
+			else out.write(c);
+		}
+		out.write('"');
+	}
+
+	/**
+	 * @return The number, or NaN if the value is blank or not a number.
+	 */
+	private static double parseNumber(String value)
+	{	if(value == null)
+			return Double.NaN;
+		try
+		{	return Double.parseDouble(value.trim());
+		}catch(NumberFormatException nfe)
+		{	return Double.NaN;
+		}
+	}
+
+	/**
+	 * Writes the parcel features still held, then closes the file.
+	 */
+	public void close() throws IOException
+	{	try
+		{	writeParcels(outlines.finish());
+		}
+		finally
+		{	out.close();
+		}
+	}
+
+	/**
+	 * @return The number of course features written.
+	 */
+	public int getCourseCount()
+	{	return courseCount;
+	}
+
+	/**
+	 * @return The number of parcel features written.
+	 */
+	public int getParcelCount()
+	{	return parcelCount;
+	}
+}
@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ * Writes the rows of the geo file to a format other than the tab delimited text, e.g. a Shapefile. The rows are
+ *   passed by Witness.writeGeoFile() in the same pass that writes the text file.
+ * @author thayer young
+ */
+public interface GeoRowWriter
+{
+	/**
+	 * Writes one geo file row.
+	 * @param uid The UID of the row, numbered from 1 in the order the rows are written.
+	 * @param row The fields of the row in the order of Witness.GEO_COLUMNS, a blank field is null. The UID field is not
+	 *   set, and the array is reused for the next row, so it must not be kept.
+	 * @throws IOException If the row can not be written.
+	 */
+	public void writeRow(int uid, String[] row) throws IOException;
+
+	/**
+	 * Called after the rows of each joined parcel, including a parcel without rows.
+	 * @throws IOException If the files can not be written.
+	 */
+	public void endParcel() throws IOException;
+
+	/**
+	 * Completes the files once every row has been written.
+	 * @throws IOException If the files can not be written.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,201 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Writes the tab delimited geo file with its rows in the order of a Hilbert curve through their KML_x, KML_y points,
+ *   so that neighbouring points are near each other in the file. A GIS builds its spatial index and tiles faster from
+ *   such a file, and a range of rows, or a shard, covers one region. The rows keep the UIDs
+ *   numbered in parcel order, the same as the other formats. The rows without coordinates come last, in UID order.
+ * <br>The order is only known once every row has arrived, so the rows are formatted into a temporary spool file as
+ *   they arrive, and only their spool offsets and points are kept in memory. close() sorts the Hilbert keys with
+ *   Arrays.parallelSort() and copies the rows from the spool in that order.
+ * <br>The file may be split by a ShardPlan by rows or bytes, the shards are then regions along the curve. A plan by
+ *   field does not apply, the rows of a key are spread along the curve, so the file is not split.
+ * @author thayer young
+ */
+public class HilbertGeoFileWriter implements GeoRowWriter
+{
+	private static final int HILBERT_MAX = (1 << 16) - 1;
+	private static final int READ_BLOCK_SIZE = 1 << 16;
+
+	private File file, spoolFile;
+	private String fileExtension;
+	private ShardPlan shards;
+	private OutputFiles outputFiles;
+	private TsvWriter spool;
+	private long[] offsets = new long[1024];		// the spool offset of each row, then the end of the spool
+	private float[] xy = new float[2048];			// a float places a point to a meter, finer than the curve's grid
+	private int count = 0;
+	private float xMin = Float.NaN, yMin = Float.NaN, xMax = Float.NaN, yMax = Float.NaN;
+	private FileChannel reader;
+	private ByteBuffer block = ByteBuffer.allocate(READ_BLOCK_SIZE);
+	private long blockStart = 0, blockEnd = 0;
+
+	/**
+	 * Creates the spool of the rows.
+	 * @param file The geo file.
+	 * @param fileExtension The file extension at the end of the geo file name.
+	 * @param shards How the geo file is split, or null to write the one file.
+	 * @throws IOException If the spool can not be created.
+	 */
+	public HilbertGeoFileWriter(File file, String fileExtension, ShardPlan shards) throws IOException
+	{	this(file, fileExtension, shards, null);
+	}
+
+	/**
+	 * Creates the spool of the rows.
+	 * @param file The geo file.
+	 * @param fileExtension The file extension at the end of the geo file name.
+	 * @param shards How the geo file is split, or null to write the one file.
+	 * @param outputFiles Records the geo file, or its shards and manifest, as they are created, or null.
+	 * @throws IOException If the spool can not be created.
+	 */
+	public HilbertGeoFileWriter(File file, String fileExtension, ShardPlan shards, OutputFiles outputFiles) throws IOException
+	{	this.file = file;
+		this.outputFiles = outputFiles;
+		this.fileExtension = fileExtension;
+		this.shards = shards == null || shards.getMode() == ShardPlan.BY_FIELD ? null : shards;
+		spoolFile = File.createTempFile("witness", ".geo.spool", file.getAbsoluteFile().getParentFile());
+		spoolFile.deleteOnExit();
+		spool = new TsvWriter(BlockWriter.open(spoolFile, "Hilbert geo file spool"));
+	}
+
+	/**
+	 * Spools the row, formatted as Witness.writeGeoFile() formats it.
+	 */
+	public void writeRow(int uid, String[] row) throws IOException
+	{	if(count + 1 == offsets.length)
+		{	offsets = Arrays.copyOf(offsets, offsets.length * 2);
+			xy = Arrays.copyOf(xy, xy.length * 2);
+		}
+		offsets[count] = spool.getBytesWritten();
+		spool.field(uid);
+		for(int column = 1; column < row.length; column++)
+			spool.field(row[column] == null ? Witness.GEO_BLANK_FIELD : row[column]);
+		spool.endRow();
+		float x = parseCoordinate(row[Witness.GEO_KML_X]), y = parseCoordinate(row[Witness.GEO_KML_Y]);
+		if(Float.isNaN(x) || Float.isNaN(y))
+			x = y = Float.NaN;
+		else if(Float.isNaN(xMin))
+		{	xMin = xMax = x;
+			yMin = yMax = y;
+		}
+		else
+		{	xMin = Math.min(xMin, x);
+			xMax = Math.max(xMax, x);
+			yMin = Math.min(yMin, y);
+			yMax = Math.max(yMax, y);
+		}
+		xy[2 * count] = x;
+		xy[2 * count + 1] = y;
+		count++;
+	}
+
+	private static float parseCoordinate(String value)
+	{	if(value == null)
+			return Float.NaN;
+		try
+		{	return (float) Double.parseDouble(value.trim());
+		}catch(NumberFormatException nfe)
+		{	return Float.NaN;
+		}
+	}
+
+	public void endParcel()
+	{	// the rows are ordered by their points, not by parcel
+	}
+
+	/**
+	 * @return The row indices, those with a point sorted by their Hilbert keys, then those without in UID order.
+	 */
+	private int[] hilbertOrder()
+	{	double width = xMax - xMin, height = yMax - yMin;
+		int points = 0, index, x, y;
+		for(index = 0; index < count; index++)
+		{	if(!Float.isNaN(xy[2 * index]))
+				points++;
+		}
+		long[] keys = new long[points];
+		int[] order = new int[count];
+		int point = 0, last = points;
+		for(index = 0; index < count; index++)
+		{	if(Float.isNaN(xy[2 * index]))
+			{	order[last++] = index;
+				continue;
+			}
+			x = width > 0 ? (int) Math.floor(HILBERT_MAX * (xy[2 * index] - xMin) / width) : 0;
+			y = height > 0 ? (int) Math.floor(HILBERT_MAX * (xy[2 * index + 1] - yMin) / height) : 0;
+			keys[point++] = ((FlatGeobufLayer.hilbert(x, y) & 0xFFFFFFFFL) << 31) | index;	// by the key, then the UID
+		}
+		Arrays.parallelSort(keys);
+		for(index = 0; index < points; index++)
+			order[index] = (int) (keys[index] & Integer.MAX_VALUE);
+		return order;
+	}
+
+	/**
+	 * Sorts the rows and writes the geo file, then deletes the spool.
+	 */
+	public void close() throws IOException
+	{	TsvWriter out = null;
+		try
+		{	spool.close();
+			offsets[count] = spool.getBytesWritten();
+			int[] order = hilbertOrder();
+			reader = new FileInputStream(spoolFile).getChannel();
+			if(shards != null)
+				out = new ShardedTsvWriter(file, fileExtension, shards, "Hilbert geo file writer", outputFiles);
+			else
+			{	out = new TsvWriter(BlockWriter.open(file, "Hilbert geo file writer"));
+				if(outputFiles != null)
+					outputFiles.add(file);
+			}
+			out.row(Witness.GEO_COLUMNS);
+			for(int row:order)
+			{	out.startGroup(null);
+				out.formattedRow(read(offsets[row], (int) (offsets[row + 1] - offsets[row])));
+			}
+		}
+		finally
+		{	try
+			{	if(out != null)
+					out.close();
+			}
+			finally
+			{	if(reader != null)
+					reader.close();
+				spoolFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Reads a row from the spool through a block that is kept, as the rows of a parcel are mostly near each other
+	 *   on the curve as well as in the spool.
+	 */
+	private ByteBuffer read(long offset, int length) throws IOException
+	{	if(offset < blockStart || offset + length > blockEnd)
+		{	if(length > block.capacity())
+				block = ByteBuffer.allocate(length);
+			block.clear();
+			while(block.position() < length && reader.read(block, offset + block.position()) >= 0);
+			blockStart = offset;
+			blockEnd = offset + block.position();
+		}
+		ByteBuffer row = block.duplicate();
+		row.limit((int) (offset - blockStart) + length);
+		row.position((int) (offset - blockStart));
+		return row;
+	}
+
+	/**
+	 * @return The number of rows written.
+	 */
+	public int getRowCount()
+	{	return count;
+	}
+}
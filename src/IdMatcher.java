@@ -0,0 +1,380 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * A second chance matcher for the parcels left unmatched by combineTables(). The ids of the unmatched MBL parcels are
+ *   normalized (case, white space and punctuation removed) and indexed in a BK-tree, so that each unmatched KML parcel
+ *   can be matched to the closest MBL id within a small edit distance without comparing every pair of parcels.
+ * <br>A normalized id that matches exactly is treated like a matching id: the parcels combine, or fail and are then
+ *   salvaged by the CourseAligner. The exact matches are made first, across all the unmatched parcels. An id that
+ *   only matches within the edit distance must then be the single closest id, both ways, have the same digits, and
+ *   the parcels must have the same number of courses. 1234 is not matched to 1235, the digits are the lot number,
+ *   while 1234a may be matched to 1234b. Such a match is scored below 1 by the similarity of the ids.
+ * <br>An MBL parcel whose id is that of a failed KML parcel is not matched again, it belongs to that failed pair.
+ * @author thayer young
+ */
+public class IdMatcher
+{
+	/** The largest edit distance allowed between two normalized ids. */
+	public static final int MAX_EDIT_DISTANCE = 2;
+	/** Ids must have at least this many characters per edit, so that short ids are not matched to each other. */
+	private static final int CHARACTERS_PER_EDIT = 4;
+
+	private BKNode root = null;
+	private HashMap<String,LinkedList<Parcel<String>>> byNormalizedId = new HashMap<String,LinkedList<Parcel<String>>>();
+
+	/**
+	 * A node of the BK-tree. The children are keyed by their edit distance to this node's id.
+	 */
+	private static class BKNode
+	{	String id;
+		HashMap<Integer,BKNode> children = new HashMap<Integer,BKNode>();
+		BKNode(String id)
+		{	this.id = id;
+		}
+	}
+
+	/**
+	 * Adds a parcel to the index under its normalized id.
+	 * @param parcel The parcel, its comparator is the id.
+	 */
+	public void add(Parcel<String> parcel)
+	{	String id = normalize(parcel.getComparator());
+		if(id.length() == 0)
+			return;
+		LinkedList<Parcel<String>> parcels = byNormalizedId.get(id);
+		if(parcels == null)
+		{	parcels = new LinkedList<Parcel<String>>();
+			byNormalizedId.put(id, parcels);
+			insert(id);
+		}
+		parcels.add(parcel);
+	}
+
+	private void insert(String id)
+	{	if(root == null)
+		{	root = new BKNode(id);
+			return;
+		}
+		BKNode node = root;
+		while(true)
+		{	int distance = editDistance(id, node.id, Integer.MAX_VALUE);
+			BKNode child = node.children.get(distance);
+			if(child == null)
+			{	node.children.put(distance, new BKNode(id));
+				return;
+			}
+			node = child;
+		}
+	}
+
+	/**
+	 * Finds the indexed parcel whose normalized id is closest to the normalized 'id'.
+	 * @param id The id to be matched.
+	 * @param exactOnly True to only return a parcel whose normalized id is equal.
+	 * @return The closest parcel, or null if there is none within the edit distance, the closest is not unique, or its
+	 *   digits are not those of 'id'.
+	 */
+	public Parcel<String> find(String id, boolean exactOnly)
+	{	String key = normalize(id);
+		LinkedList<Parcel<String>> exact = byNormalizedId.get(key);
+		if(exact != null && !exact.isEmpty())
+			return exact.peek();
+		int limit = Math.min(MAX_EDIT_DISTANCE, key.length() / CHARACTERS_PER_EDIT);
+		if(exactOnly || root == null || limit < 1)
+			return null;
+		ArrayList<String> best = new ArrayList<String>();
+		int[] bestDistance = new int[]{limit + 1};
+		search(root, key, limit, best, bestDistance);
+		if(best.size() != 1)
+			return null;
+		LinkedList<Parcel<String>> parcels = byNormalizedId.get(best.get(0));
+		if(parcels.size() != 1 || !digitsOf(key).equals(digitsOf(best.get(0))))
+			return null;
+		return parcels.peek();
+	}
+
+	/**
+	 * Searches the BK-tree for the ids closest to 'key', only visiting the children whose distance to the node could
+	 *   be within 'limit' of the key (triangle inequality). The ids whose parcels have all been matched are skipped,
+	 *   so that they neither hide nor tie with a closest id that can still be matched.
+	 */
+	private void search(BKNode node, String key, int limit, ArrayList<String> best, int[] bestDistance)
+	{	int distance = editDistance(key, node.id, Integer.MAX_VALUE);	// exact, the children are pruned by it
+		if(distance <= limit && !byNormalizedId.get(node.id).isEmpty())
+		{	if(distance < bestDistance[0])
+			{	best.clear();
+				bestDistance[0] = distance;
+			}
+			if(distance == bestDistance[0])
+				best.add(node.id);
+		}
+		for(int childDistance = Math.max(1, distance - limit); childDistance <= distance + limit; childDistance++)
+		{	BKNode child = node.children.get(childDistance);
+			if(child != null)
+				search(child, key, limit, best, bestDistance);
+		}
+	}
+
+	/**
+	 * Removes a parcel from the index, once it has been matched. Its id stays in the BK-tree, where find() skips it
+	 *   once none of its parcels are left.
+	 */
+	public void remove(Parcel<String> parcel)
+	{	LinkedList<Parcel<String>> parcels = byNormalizedId.get(normalize(parcel.getComparator()));
+		if(parcels != null)
+		{	Iterator<Parcel<String>> iter = parcels.iterator();
+			while(iter.hasNext())
+				if(iter.next() == parcel)
+					iter.remove();
+		}
+	}
+
+	/**
+	 * Normalizes an id for matching: lower case, with only its letters and digits.
+	 * @param id The parcel id.
+	 * @return The normalized id, an empty string if 'id' is null.
+	 */
+	public static String normalize(String id)
+	{	if(id == null)
+			return "";
+		StringBuilder normal = new StringBuilder(id.length());
+		char c;
+		for(int index = 0; index < id.length(); index++)
+		{	c = id.charAt(index);
+			if(Character.isLetterOrDigit(c))
+				normal.append(Character.toLowerCase(c));
+		}
+		return normal.toString();
+	}
+
+	/**
+	 * @return The digits of an id, in order.
+	 */
+	private static String digitsOf(String id)
+	{	StringBuilder digits = new StringBuilder(id.length());
+		for(int index = 0; index < id.length(); index++)
+			if(Character.isDigit(id.charAt(index)))
+				digits.append(id.charAt(index));
+		return digits.toString();
+	}
+
+	/**
+	 * The similarity of two ids matched within the edit distance, from 0 to 1.
+	 * @return 1 less the edit distance of the normalized ids over the length of the longer.
+	 */
+	public static double similarity(String a, String b)
+	{	String normalA = normalize(a), normalB = normalize(b);
+		int length = Math.max(normalA.length(), normalB.length());
+		if(length == 0)
+			return 1;
+		return 1 - (double) editDistance(normalA, normalB, Integer.MAX_VALUE) / length;
+	}
+
+	/**
+	 * The Levenshtein distance between two strings, computed with two rows.
+	 * @param limit The computation stops once every cell of a row is at least this value.
+	 * @return The distance, or a value of at least 'limit' if the distance is not less than 'limit'.
+	 */
+	public static int editDistance(String a, String b, int limit)
+	{	if(Math.abs(a.length() - b.length()) >= limit)
+			return limit;
+		int[] previous = new int[b.length() + 1];
+		int[] current = new int[b.length() + 1];
+		int[] swap;
+		int i, j, rowMin;
+		for(j = 0; j <= b.length(); j++)
+			previous[j] = j;
+		for(i = 1; i <= a.length(); i++)
+		{	current[0] = i;
+			rowMin = i;
+			for(j = 1; j <= b.length(); j++)
+			{	current[j] = Math.min(Math.min(current[j - 1], previous[j]) + 1,
+						previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1));
+				if(current[j] < rowMin)
+					rowMin = current[j];
+			}
+			if(rowMin >= limit)
+				return limit;
+			swap = previous;
+			previous = current;
+			current = swap;
+		}
+		return previous[b.length()];
+	}
+
+	/**
+	 * Matches the unmatched KML parcels of a combined table to the unmatched MBL parcels. A matched KML parcel is
+	 *   re-keyed to the MBL id, then either combined into the MBL parcel or marked as failed for the CourseAligner.
+	 *   The normalized ids are matched first, then the close ids that are each other's closest.
+	 * @param table The MBL table after combineTables() has added the KML table to it, and CourseAligner.salvageFailed()
+	 *   has salvaged the failed pairs.
+	 * @return Position 0: number of parcels matched by normalized id. Position 1: number matched within the edit distance.
+	 */
+	public static int[] rematchUnmatched(DataTableW<String> table)
+	{	HashSet<String> failedIds = new HashSet<String>();
+		for(Parcel<String> parcel:table.getTable())
+			if(parcel.isFailed() && parcel.getComparator() != null)
+				failedIds.add(parcel.getComparator());
+		IdMatcher index = new IdMatcher();
+		LinkedList<Parcel<String>> unmatchedKML = new LinkedList<Parcel<String>>();
+		for(Parcel<String> parcel:table.getTable())
+		{	if(parcel.isNoMatchMBL() && parcel.getComparator() != null && !failedIds.contains(parcel.getComparator()))
+				index.add(parcel);
+			else if(parcel.isNoMatchKML() && parcel.getComparator() != null)
+				unmatchedKML.add(parcel);
+		}
+		int normalizedCount = 0, fuzzyCount = 0;
+		IdentityHashMap<Parcel<String>,Boolean> combined = new IdentityHashMap<Parcel<String>,Boolean>();
+		Iterator<Parcel<String>> kmlIter = unmatchedKML.iterator();
+		Parcel<String> kmlParcel, mblParcel;
+		while(kmlIter.hasNext())		// the normalized ids, before any close id can take their MBL parcel
+		{	kmlParcel = kmlIter.next();
+			mblParcel = index.find(kmlParcel.getComparator(), true);
+			if(mblParcel != null)
+			{	match(index, mblParcel, kmlParcel, combined);
+				kmlIter.remove();
+				normalizedCount++;
+			}
+		}
+		IdMatcher kmlIndex = new IdMatcher();
+		for(Parcel<String> parcel:unmatchedKML)
+			kmlIndex.add(parcel);
+		for(Parcel<String> parcel:unmatchedKML)		// the close ids, each the closest of the other
+		{	mblParcel = index.find(parcel.getComparator(), false);
+			if(mblParcel == null || parcel.getGeometryCount() - 1 != mblParcel.getGeometryCount()
+					|| kmlIndex.find(mblParcel.getComparator(), false) != parcel)
+				continue;
+			kmlIndex.remove(parcel);
+			mblParcel.setIdMatchScore(similarity(mblParcel.getComparator(), parcel.getComparator()));
+			match(index, mblParcel, parcel, combined);
+			fuzzyCount++;
+		}
+		Iterator<Parcel<String>> iter = table.getTable().iterator();
+		while(iter.hasNext())	// remove by identity, Parcel.equals() only compares the ids
+			if(combined.containsKey(iter.next()))
+				iter.remove();
+		return new int[]{normalizedCount, fuzzyCount};
+	}
+
+	/**
+	 * Re-keys a matched KML parcel to the MBL id, then combines it into the MBL parcel as in combineTables(), or marks
+	 *   it as failed if the counts differ.
+	 * @param combined The KML parcels combined, to be removed from the table.
+	 */
+	private static void match(IdMatcher index, Parcel<String> mblParcel, Parcel<String> kmlParcel,
+			IdentityHashMap<Parcel<String>,Boolean> combined)
+	{	index.remove(mblParcel);
+		rekey(kmlParcel, mblParcel.getComparator());
+		kmlParcel.setNoMatchKML(false);
+		if(kmlParcel.getGeometryCount() - 1 == mblParcel.getGeometryCount())
+		{	for(DataRecordW<String> record:kmlParcel)
+				mblParcel.add(record);
+			mblParcel.setNoMatchMBL(false);
+			mblParcel.setCombined(true);
+			mblParcel.setKmlName(kmlParcel.getKmlName());
+			combined.put(kmlParcel, Boolean.TRUE);
+		}
+		else kmlParcel.setFailed(true);
+	}
+
+	/**
+	 * Replaces the KML records of a parcel with copies whose ids use the new parcel id, and sets the parcel comparator.
+	 */
+	private static void rekey(Parcel<String> kmlParcel, String newId)
+	{	String oldId = kmlParcel.getComparator();
+		String[] fields;
+		String kmlId;
+		ListIterator<DataRecordW<String>> iter = kmlParcel.listIterator();
+		while(iter.hasNext())
+		{	DataRecordW<String> record = iter.next();
+			if(record.size() > Witness.KML_ID && !"id".equals(record.get(Witness.KML_GTYPE)) && !"name".equals(record.get(Witness.KML_GTYPE)))
+			{	kmlId = record.get(Witness.KML_ID);
+				if(kmlId != null && kmlId.startsWith(oldId))
+				{	fields = record.getRecord().toArray(new String[record.size()]);
+					fields[Witness.KML_ID] = newId + kmlId.substring(oldId.length());
+					iter.set(new DataRecordW<String>(fields));
+				}
+			}
+		}
+		kmlParcel.setComparator(newId);
+	}
+
+	/**
+	 * Demonstrates the rematch of small tables of unmatched parcels: a normalized id, a close id, a far id, a close
+	 *   numeric id, a close id of a failed pair, two ids equally close, and the edit distances allowed
+	 *   by the length of an id. Each case prints its counts and parcels, and the counts it should have.
+	 * @param args
+	 */
+	public static void main(String[] args)
+	{	check("Normalized id, the counts differ", new String[]{"12-34 A"}, new String[]{"1234a"}, 3, 5, 1, 0);
+		check("Close id", new String[]{"ab1234"}, new String[]{"ab1234x"}, 3, 3, 0, 1);
+		check("Far id", new String[]{"1000"}, new String[]{"9999"}, 3, 3, 0, 0);
+		check("Close numeric id", new String[]{"1234"}, new String[]{"1235"}, 3, 3, 0, 0);
+		check("Two KML ids as close to the MBL id", new String[]{"ab1234"}, new String[]{"ab1234x", "ab1234y"}, 3, 3, 0, 0);
+		check("Two edits in eight characters", new String[]{"abcdefgh"}, new String[]{"abcdefxy"}, 3, 3, 0, 1);
+		check("Two edits in seven characters", new String[]{"abcdefg"}, new String[]{"abcdexy"}, 3, 3, 0, 0);
+		check("One edit in three characters", new String[]{"abc"}, new String[]{"abd"}, 3, 3, 0, 0);
+		checkFailedPair("Close numeric id of a failed pair", "1234", "1235");
+		checkFailedPair("Close id of a failed pair", "ab1234", "ab1234x");
+	}
+
+	/**
+	 * Rematches an MBL parcel whose KML parcel failed to combine and was not salvaged, with a KML parcel of a close id
+	 *   that has the MBL parcel's count of courses. The close id must not be matched.
+	 */
+	private static void checkFailedPair(String name, String id, String closeId)
+	{	DataTableW<String> table = new DataTableW<String>();
+		table.add(parcel(id, 3, false));
+		Parcel<String> failed = parcel(id, 5, true);
+		failed.setNoMatchKML(false);
+		failed.setFailed(true);
+		table.add(failed);
+		table.add(parcel(closeId, 3, true));
+		print(name, table, 0, 0);
+	}
+
+	/**
+	 * Rematches a table of unmatched MBL parcels with 'mblCourses' courses and unmatched KML parcels with 'kmlCourses'.
+	 */
+	private static void check(String name, String[] mblIds, String[] kmlIds, int mblCourses, int kmlCourses, int normalized,
+			int close)
+	{	DataTableW<String> table = new DataTableW<String>();
+		for(String id:mblIds)
+			table.add(parcel(id, mblCourses, false));
+		for(String id:kmlIds)
+			table.add(parcel(id, kmlCourses, true));
+		print(name, table, normalized, close);
+	}
+
+	private static void print(String name, DataTableW<String> table, int normalized, int close)
+	{	int[] counts = rematchUnmatched(table);
+		System.out.print(name + ": " + counts[0] + " by normalized id, " + counts[1] + " by close id");
+		if(counts[0] != normalized || counts[1] != close)
+			System.out.print("\t<-- should be " + normalized + " and " + close);
+		for(Parcel<String> parcel:table.getTable())
+		{	System.out.print("\n\t" + parcel.getComparator() + " " + (parcel.isCombined() ? "combined" : parcel.isFailed() ? "failed"
+					: parcel.isNoMatchKML() ? "unmatched KML" : "unmatched MBL"));
+			if(parcel.getIdMatchScore() < 1)
+				System.out.print(", id score " + Witness.formatScore(parcel.getIdMatchScore()));
+		}
+		System.out.println();
+	}
+
+	/**
+	 * @return An unmatched parcel, a KML parcel has a centroid point more than its courses.
+	 */
+	private static Parcel<String> parcel(String id, int courses, boolean kml)
+	{	Parcel<String> parcel = new Parcel<String>(id);
+		parcel.setGeometryCount(kml ? courses + 1 : courses);
+		if(kml)
+			parcel.setNoMatchKML(true);
+		else parcel.setNoMatchMBL(true);
+		return parcel;
+	}
+}
@@ -0,0 +1,719 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Converts an MBL and KML file pair again after a few parcels of the MBL file were edited, e.g. in DeedMapper, by only
+ *   parsing and joining the parcels that changed. The MBL file is read as blocks of lines, one per parcel, see
+ *   MblParser.nextLines(), and each block is known by its fingerprint, the hash of its lines and the custom fields.
+ *   The state of the last conversion of the file is kept in a ResultCache:
+ * <br>- the parsed parcel of each block. A block whose fingerprint is in the state is not parsed again.
+ * <br>- the joined parcels and the report of each pair of a block and the KML parcel with its id. A pair whose block
+ *   and KML parcel are both unchanged is not joined again.
+ * <br>The parcels left without a match by id are always joined again, by the IdMatcher and the CourseAligner as in
+ *   StreamingJoin.finish(). The geo and flat files are then written in full from the parcels, which is a fraction of
+ *   the time of a full conversion. The parcels are numbered by their place in the file, so a parcel that is inserted
+ *   renumbers those after it without parsing them again. The geo file lists the pairs in the order of the MBL file,
+ *   then the parcels that did not match.
+ * <br>Each conversion adds a segment to the state, a TableSnapshot of only the parcels that it parsed and joined, so
+ *   that an edit of a few parcels writes a few parcels. A segment is deleted once none of its parcels are used, and
+ *   after MAX_SEGMENTS conversions the parcels that are still used are written to one new segment.
+ * <br>A ProgressSink, if set, is told the progress every few parcels and can cancel the conversion, as with the
+ *   ConversionPipeline. The state is not saved when the conversion is cancelled.
+ * @author thayer young
+ */
+public class IncrementalConverter
+{
+	private static final String INCREMENTAL_STAGE = "incremental";
+	private static final String STATE_SUFFIX = ".state";
+	private static final int STATE_VERSION = 1;
+	private static final int MAX_SEGMENTS = 8;		// then the parcels that are still used are written to one segment
+	private static final int PAIR_PIPE_CAPACITY = 3;	// both parcels of a failed pair and the end of the pipe
+	private static final String NULL_PART = "\u0000";	// not in a line of text
+	private static final int PROGRESS_INTERVAL = 64;	// parcels
+
+	private FieldClassifier fields;
+	private TermMatcher terms;
+	private ResultCache resultCache;
+	private int geoFormats = Witness.GEO_FORMAT_TEXT;
+	private ShardPlan shardPlan = null;
+	private int pipeCapacity = ParcelPipe.DEFAULT_CAPACITY;
+	private ProgressSink progress = null;
+	private OutputFiles outputFiles = null;
+	private OutputFiles written;		// the files of the running conversion
+	private int parsedCount = 0;
+	private int joinedCount = 0;
+	// the state of the conversion that is running
+	private String stateKey;
+	private State state, nextState;
+	private boolean compacting;
+	private int newSegment;
+	private SnapshotWriter stateWriter;
+	private boolean stateFailed;
+	private JoinReport report;
+	private ParcelPipe<String> joined;
+
+	/**
+	 * The parcels of a conversion: the snapshots of the parsed and joined parcels, a segment of the state for each
+	 *   conversion that added parcels, and where each block and pair is in them.
+	 */
+	private static class State
+	{	long generation = 0;		// of the newest segment
+		ArrayList<Long> segmentGenerations = new ArrayList<Long>();
+		ArrayList<TableSnapshot> segments = new ArrayList<TableSnapshot>();
+		HashMap<String,Stored> blocks = new HashMap<String,Stored>();	// by the fingerprint of the block
+		HashMap<String,Stored> pairs = new HashMap<String,Stored>();	// by the fingerprints of the pair
+	}
+
+	/**
+	 * The count parcels from first in a segment of the state, and for a pair the report of its join.
+	 */
+	private static class Stored
+	{	int segment, first, count;
+		JoinReport report;
+
+		Stored(int segment, int first, int count, JoinReport report)
+		{	this.segment = segment;
+			this.first = first;
+			this.count = count;
+			this.report = report;
+		}
+	}
+
+	/**
+	 * @param singleLineFields The custom single line fields, as for Witness.textToTable().
+	 * @param multipleLineFields The custom multiple line fields, as for Witness.textToTable().
+	 * @param geoCommentSearchTerms The terms searched for in the course comments, as for Witness.writeOutputFiles().
+	 * @param resultCache The cache of the state of each MBL file and of the parsed KML files.
+	 */
+	public IncrementalConverter(String[] singleLineFields, String[] multipleLineFields, String[] geoCommentSearchTerms, ResultCache resultCache)
+	{	this(new FieldClassifier(singleLineFields, multipleLineFields), new TermMatcher(geoCommentSearchTerms), resultCache);
+	}
+
+	/**
+	 * @param fields The custom fields, e.g. shared by the conversions of many files.
+	 * @param terms The terms searched for in the course comments, e.g. shared by the conversions of many files.
+	 * @param resultCache The cache of the state of each MBL file and of the parsed KML files.
+	 */
+	public IncrementalConverter(FieldClassifier fields, TermMatcher terms, ResultCache resultCache)
+	{	this.fields = fields;
+		this.terms = terms;
+		this.resultCache = resultCache;
+	}
+
+	/**
+	 * Converts the files, showing an error dialog if the conversion fails.
+	 * @return The report of the join if the files are written successfully, otherwise null, e.g. if the conversion was
+	 *   cancelled. Its joined table is null.
+	 * @see #run(File, File, File, String)
+	 */
+	public JoinReport convert(File mblFile, File kmlFile, File outputFile, String fileExtension)
+	{	try
+		{	return run(mblFile, kmlFile, outputFile, fileExtension);
+		}catch(CancellationException ce)
+		{	return null;		// the user knows
+		}catch(Exception e)
+		{	Witness.popupErrorDialog("There was a problem converting the files.","Conversion Error",e);
+			return null;
+		}
+	}
+
+	/**
+	 * Converts the files, parsing and joining only the parcels of the MBL file that changed since its last conversion,
+	 *   and saves the state of this conversion for the next one. The first conversion of a file parses and joins it all.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files. The files are gzip compressed
+	 *   if it ends with Witness.GZIP_EXTENSION.
+	 * @return The report of the join. Its joined table is null.
+	 * @throws Exception The first error of the conversion or of the writers.
+	 * @throws CancellationException If the ProgressSink was cancelled, the partly written files are then deleted.
+	 */
+	public JoinReport run(File mblFile, File kmlFile, File outputFile, String fileExtension) throws Exception
+	{	written = outputFiles != null ? outputFiles : new OutputFiles();
+		Throwable error = null;
+		JoinReport result = null;
+		try
+		{	result = runStages(mblFile, kmlFile, outputFile, fileExtension);
+		}catch(Throwable t)
+		{	error = t;
+		}
+		if(progress != null && progress.isCancelled())
+		{	written.delete();
+			throw new CancellationException("The conversion was cancelled.");
+		}
+		ConversionPipeline.rethrow(error);
+		return result;
+	}
+
+	private JoinReport runStages(File mblFile, File kmlFile, File outputFile, String fileExtension) throws Exception
+	{	String mblSettings = TableSnapshot.mblSettings(fields.getSingleLineFields(), fields.getMultipleLineFields());
+		stateKey = ResultCache.key(INCREMENTAL_STAGE, mblFile.getCanonicalPath(), mblSettings);
+		TableSnapshot kmlSnapshot = openKML(kmlFile);
+		state = readState();
+		nextState = new State();
+		nextState.generation = Math.max(state.generation + 1, System.currentTimeMillis());
+		compacting = state.segments.size() >= MAX_SEGMENTS;
+		if(!compacting)
+		{	nextState.segments.addAll(state.segments);
+			nextState.segmentGenerations.addAll(state.segmentGenerations);
+		}
+		newSegment = nextState.segments.size();
+		stateWriter = null;
+		stateFailed = false;
+		report = new JoinReport();
+		joined = new ParcelPipe<String>(pipeCapacity);
+		parsedCount = joinedCount = 0;
+
+		final File flatFile = Witness.appendSuffix(outputFile, false, false, fileExtension);
+		final CountingTree fieldList = new CountingTree();
+		OutputThread geoThread = ConversionPipeline.newGeoThread(ConversionPipeline.withProgress(joined, progress), joined, outputFile, fileExtension, geoFormats, shardPlan, terms, written);
+		FlatSpool spool = null;
+		LineReader lines = null;
+		Throwable error = null;
+		geoThread.start();
+		try
+		{	spool = new FlatSpool(flatFile.getAbsoluteFile().getParentFile());
+			lines = new LineReader(mblFile);
+			joinParcels(new MblParser(lines, fields), lines, mblFile.length(), mblSettings, kmlSnapshot, spool, fieldList);
+		}catch(Throwable t)
+		{	error = t;
+		}
+		finally
+		{	if(lines != null)
+				lines.close();
+			try
+			{	joined.close();
+			}catch(InterruptedException ie)
+			{	joined.abandon();
+				Thread.currentThread().interrupt();
+			}
+		}
+		try
+		{	error = ConversionPipeline.firstError(error, geoThread.finish());
+			if(error == null)
+			{	final FlatSpool flatSpool = spool;
+				OutputThread flatWriter = new OutputThread("Flat file writer", flatFile, shardPlan, fileExtension)
+				{	protected void write(TsvWriter out) throws IOException
+					{	flatSpool.write(out, fieldList, progress);
+					}
+				};
+				flatWriter.setOutputFiles(written);
+				flatWriter.start();
+				error = flatWriter.finish();
+			}
+		}
+		finally
+		{	if(spool != null)
+				spool.delete();
+			if(error == null && !stateFailed && (progress == null || !progress.isCancelled()))
+				saveState();
+			else if(stateWriter != null)
+				stateWriter.abandon();
+			state = nextState = null;
+			stateWriter = null;
+			joined = null;
+		}
+		ConversionPipeline.rethrow(error);
+		return report;
+	}
+
+	/**
+	 * Reads the MBL file block by block, joins each parcel with the first KML parcel with its id that is not yet joined,
+	 *   as the StreamingJoin does, then joins the parcels that are left. The progress of the parse is the characters of
+	 *   the lines read.
+	 */
+	private void joinParcels(MblParser blocks, LineReader lines, long length, String mblSettings, TableSnapshot kmlSnapshot, FlatSpool spool, CountingTree fieldList) throws Exception
+	{	HashMap<String,LinkedList<Integer>> kmlById = new HashMap<String,LinkedList<Integer>>();
+		boolean[] paired = new boolean[kmlSnapshot.size()];
+		LinkedList<Integer> indices;
+		String id;
+		for(int index = 0; index < paired.length; index++)
+		{	if((id = kmlSnapshot.getComparator(index)) == null)	// never matches
+				continue;
+			indices = kmlById.get(id);
+			if(indices == null)
+			{	indices = new LinkedList<Integer>();
+				kmlById.put(id, indices);
+			}
+			indices.add(Integer.valueOf(index));
+		}
+
+		ArrayList<Parcel<String>> leftoverMBL = new ArrayList<Parcel<String>>();
+		CountingTree geometryComments = new CountingTree();
+		LinkedList<String> parcelLines;
+		Parcel<String> parcel;
+		String fingerprint, pid;
+		Integer kmlIndex;
+		int position = 0;
+		while((parcelLines = blocks.nextLines()) != null)
+		{	if(progress != null && position % PROGRESS_INTERVAL == 0)
+			{	ConversionPipeline.checkCancelled(progress);
+				progress.progress(ProgressSink.STAGE_PARSE, Math.min(lines.getCharCount(), length), length);
+				progress.progress(ProgressSink.STAGE_JOIN, position, -1);
+			}
+			fingerprint = fingerprint(mblSettings, parcelLines);
+			parcel = parse(parcelLines, fingerprint);
+			pid = Integer.toString(++position);
+			renumber(parcel, pid);
+			MblParser.countFields(parcel, fieldList, geometryComments);
+			spool.add(parcel);		// before the join removes the parcel's records
+			if(!nextState.blocks.containsKey(fingerprint))
+				keep(nextState.blocks, fingerprint, state.blocks.get(fingerprint), Collections.singletonList(parcel), null);
+			kmlIndex = null;
+			if(parcel.getComparator() != null && (indices = kmlById.get(parcel.getComparator())) != null)
+			{	kmlIndex = indices.poll();
+				if(indices.isEmpty())
+					kmlById.remove(parcel.getComparator());
+			}
+			if(kmlIndex == null)
+				leftoverMBL.add(parcel);
+			else
+			{	paired[kmlIndex.intValue()] = true;
+				pair(parcel, fingerprint, kmlSnapshot.getParcel(kmlIndex.intValue()), pid);
+			}
+		}
+
+		JoinReport leftoverReport = new JoinReport();
+		StreamingJoin join = new StreamingJoin(leftoverReport, null, joined);
+		for(int index = 0; index < paired.length; index++)
+		{	if(!paired[index])
+				join.addKML(kmlSnapshot.getParcel(index));
+		}
+		for(Parcel<String> mblParcel:leftoverMBL)
+			join.addMBL(mblParcel);		// none of them match a KML parcel by id
+		join.finish();
+		report.add(leftoverReport);
+	}
+
+	/**
+	 * @return The parcel of the block, from the state if the block has not changed, otherwise parsed from its lines.
+	 */
+	private Parcel<String> parse(LinkedList<String> parcelLines, String fingerprint) throws IOException
+	{	Stored stored = state.blocks.get(fingerprint);
+		if(stored != null)
+			return state.segments.get(stored.segment).getParcel(stored.first);
+		parsedCount++;
+		return new MblParser(Witness.lineSource(parcelLines), fields).next();
+	}
+
+	/**
+	 * Joins an MBL parcel with its KML parcel, or reads their joined parcels from the state if neither has changed, and
+	 *   passes the joined parcels on to the geo file writer.
+	 */
+	private void pair(Parcel<String> mblParcel, String fingerprint, Parcel<String> kmlParcel, String pid) throws InterruptedException
+	{	String pairKey = ResultCache.key(fingerprint, fingerprint(kmlParcel));
+		ArrayList<Parcel<String>> parcels = new ArrayList<Parcel<String>>();
+		JoinReport pairReport;
+		Stored stored = state.pairs.get(pairKey);
+		if(stored != null)
+		{	Parcel<String> parcel;
+			for(int index = stored.first; index < stored.first + stored.count; index++)
+			{	parcel = state.segments.get(stored.segment).getParcel(index);
+				renumber(parcel, pid);
+				parcels.add(parcel);
+			}
+			pairReport = stored.report;
+		}
+		else
+		{	ParcelPipe<String> pipe = new ParcelPipe<String>(PAIR_PIPE_CAPACITY);
+			pairReport = new JoinReport();
+			StreamingJoin join = new StreamingJoin(pairReport, null, pipe);
+			join.addKML(kmlParcel);
+			join.addMBL(mblParcel);
+			join.finish();
+			pipe.close();
+			for(Parcel<String> parcel:pipe)
+				parcels.add(parcel);
+			joinedCount++;
+		}
+		if(!nextState.pairs.containsKey(pairKey))		// before the geo file writer takes the parcels
+			keep(nextState.pairs, pairKey, stored, parcels, pairReport);
+		report.add(pairReport);
+		for(Parcel<String> parcel:parcels)
+			joined.put(parcel);
+	}
+
+	/**
+	 * Keeps a block or pair in the next state: where it is in the segments of the last state, or else in the new
+	 *   segment, which its parcels are written to. The new segment is created by the first parcel that is written.
+	 * @param entries The blocks or pairs of the next state.
+	 * @param stored Where the block or pair is in the last state, or null if it is not there.
+	 */
+	private void keep(HashMap<String,Stored> entries, String key, Stored stored, List<Parcel<String>> parcels, JoinReport pairReport)
+	{	if(stored != null && !compacting)
+		{	entries.put(key, stored);
+			return;
+		}
+		if(stateFailed)
+			return;
+		if(stateWriter == null)
+		{	String snapshotName = stateKey + "_" + nextState.generation;
+			try
+			{	stateWriter = new SnapshotWriter(resultCache.getFile(snapshotName, TableSnapshot.SNAPSHOT_SUFFIX), null, false, snapshotName);
+			}catch(IOException ioe)
+			{	stateFailed = true;		// the conversion goes on without saving its state
+				return;
+			}
+		}
+		int first = stateWriter.getParcelCount();
+		for(Parcel<String> parcel:parcels)
+		{	if((stateWriter = TableSnapshot.add(stateWriter, parcel)) == null)
+			{	stateFailed = true;
+				return;
+			}
+		}
+		entries.put(key, new Stored(newSegment, first, parcels.size(), pairReport));
+	}
+
+	/**
+	 * Sets the record count, the PID of the geo and flat files, of the MBL records of a parcel to its place in the file.
+	 *   The KML records of a joined parcel have none.
+	 */
+	private static void renumber(Parcel<String> parcel, String pid)
+	{	renumber((Iterable<DataRecordW<String>>) parcel, pid);
+		renumber(parcel.getFieldRecords(), pid);
+	}
+
+	private static void renumber(Iterable<DataRecordW<String>> records, String pid)
+	{	if(records == null)
+			return;
+		for(DataRecordW<String> record:records)
+		{	if(record.size() > Witness.MBL_RECORDCOUNT && record.get(Witness.MBL_RECORDCOUNT) != null)
+				record.getRecord().set(Witness.MBL_RECORDCOUNT, pid);
+		}
+	}
+
+	/**
+	 * @return The fingerprint of the lines of an MBL parcel, parsed with the settings.
+	 */
+	private static String fingerprint(String mblSettings, LinkedList<String> parcelLines)
+	{	String[] parts = new String[parcelLines.size() + 1];
+		parts[0] = mblSettings;
+		int index = 1;
+		for(String line:parcelLines)
+			parts[index++] = line;
+		return ResultCache.key(parts);
+	}
+
+	/**
+	 * @return The fingerprint of a KML parcel, of all of its records.
+	 */
+	private static String fingerprint(Parcel<String> kmlParcel)
+	{	ArrayList<String> parts = new ArrayList<String>();
+		parts.add(part(kmlParcel.getComparator()));
+		parts.add(part(kmlParcel.getKmlName()));
+		parts.add(Integer.toString(kmlParcel.getGeometryCount()));
+		for(DataRecordW<String> record:kmlParcel)
+		{	parts.add(Integer.toString(record.size()));
+			for(String value:record)
+				parts.add(part(value));
+		}
+		return ResultCache.key(parts.toArray(new String[parts.size()]));
+	}
+
+	private static String part(String value)
+	{	return value == null ? NULL_PART : value;
+	}
+
+	/**
+	 * @return The parsed KML file from the ResultCache, which is parsed into it first if it is not there.
+	 * @throws IOException If the file can not be read, or its snapshot can not be written.
+	 */
+	private TableSnapshot openKML(File kmlFile) throws IOException
+	{	File snapshotFile = resultCache.getFile(ResultCache.key(ResultCache.PARSE_STAGE, resultCache.hash(kmlFile), TableSnapshot.KML_SETTINGS), TableSnapshot.SNAPSHOT_SUFFIX);
+		TableSnapshot snapshot = TableSnapshot.open(snapshotFile, null, true, TableSnapshot.KML_SETTINGS);
+		if(snapshot != null)
+			return snapshot;
+		SnapshotWriter writer = new SnapshotWriter(snapshotFile, null, true, TableSnapshot.KML_SETTINGS);
+		LineReader lines = new LineReader(kmlFile);
+		try
+		{	KmlParser parser = new KmlParser(lines);
+			Parcel<String> parcel;
+			while((parcel = parser.next()) != null)
+				writer.add(parcel);
+			writer.finish(new CountingTree(), new CountingTree());
+		}catch(IOException ioe)
+		{	writer.abandon();
+			throw ioe;
+		}
+		finally
+		{	lines.close();
+		}
+		snapshot = TableSnapshot.open(snapshotFile, null, true, TableSnapshot.KML_SETTINGS);
+		if(snapshot == null)
+			throw new IOException("The KML file " + kmlFile.getName() + " could not be saved in " + resultCache.getDirectory() + ".");
+		return snapshot;
+	}
+
+	/**
+	 * @return The state of the last conversion of the MBL file, or an empty state if there is none or it can not be read.
+	 */
+	private State readState()
+	{	State read = new State();
+		File file = resultCache.getFile(stateKey, STATE_SUFFIX);
+		if(!file.isFile())
+			return read;
+		try
+		{	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{	if(in.readInt() != STATE_VERSION)
+					return read;
+				read.generation = in.readLong();
+				int count = in.readInt();
+				String snapshotName;
+				TableSnapshot segment;
+				for(int index = 0; index < count; index++)
+				{	read.segmentGenerations.add(Long.valueOf(in.readLong()));
+					snapshotName = stateKey + "_" + read.segmentGenerations.get(index);
+					segment = TableSnapshot.open(resultCache.getFile(snapshotName, TableSnapshot.SNAPSHOT_SUFFIX), null, false, snapshotName);
+					if(segment == null)
+						throw new IOException("The segment " + snapshotName + " is missing.");
+					read.segments.add(segment);
+				}
+				count = in.readInt();
+				for(int index = 0; index < count; index++)
+					read.blocks.put(in.readUTF(), new Stored(in.readInt(), in.readInt(), 1, null));
+				count = in.readInt();
+				String pairKey;
+				int segmentIndex, first;
+				for(int index = 0; index < count; index++)
+				{	pairKey = in.readUTF();
+					segmentIndex = in.readInt();
+					first = in.readInt();
+					read.pairs.put(pairKey, new Stored(segmentIndex, first, in.readInt(), JoinReport.readCounts(in)));
+				}
+			}
+			finally
+			{	in.close();
+			}
+		}catch(IOException ioe)
+		{	long generation = read.generation;		// the parcels are parsed and joined again
+			read = new State();
+			read.generation = generation;
+		}
+		return read;
+	}
+
+	/**
+	 * Finishes the new segment, then writes the state that points to the segments that are used, and deletes the others.
+	 *   The state is not written again if nothing changed.
+	 */
+	private void saveState()
+	{	ArrayList<Stored> entries = new ArrayList<Stored>(nextState.blocks.values());
+		entries.addAll(nextState.pairs.values());
+		int[] segmentIndex = new int[newSegment + 1];
+		for(Stored stored:entries)
+			segmentIndex[stored.segment] = 1;
+		int used = 0;
+		for(int index = 0; index < segmentIndex.length; index++)
+			segmentIndex[index] = segmentIndex[index] == 0 ? -1 : used++;
+		try
+		{	if(stateWriter != null)
+			{	if(stateWriter.finish(null, null) == null)
+					return;
+				nextState.segmentGenerations.add(Long.valueOf(nextState.generation));
+			}
+			else if(!compacting && used == newSegment)
+				return;		// the last state holds every block and pair
+			File temp = resultCache.newTempFile(STATE_SUFFIX);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try
+			{	out.writeInt(STATE_VERSION);
+				out.writeLong(nextState.generation);
+				out.writeInt(used);
+				for(int index = 0; index < nextState.segmentGenerations.size(); index++)
+				{	if(segmentIndex[index] >= 0)
+						out.writeLong(nextState.segmentGenerations.get(index).longValue());
+				}
+				out.writeInt(nextState.blocks.size());
+				for(Entry<String,Stored> block:nextState.blocks.entrySet())
+				{	out.writeUTF(block.getKey());
+					out.writeInt(segmentIndex[block.getValue().segment]);
+					out.writeInt(block.getValue().first);
+				}
+				out.writeInt(nextState.pairs.size());
+				for(Entry<String,Stored> pair:nextState.pairs.entrySet())
+				{	out.writeUTF(pair.getKey());
+					out.writeInt(segmentIndex[pair.getValue().segment]);
+					out.writeInt(pair.getValue().first);
+					out.writeInt(pair.getValue().count);
+					pair.getValue().report.writeCounts(out);
+				}
+			}
+			finally
+			{	out.close();
+			}
+			ResultCache.commit(temp, resultCache.getFile(stateKey, STATE_SUFFIX));
+		}catch(IOException ioe)
+		{	return;		// the changed parcels are parsed and joined again next time
+		}
+		HashSet<String> usedNames = new HashSet<String>();
+		for(int index = 0; index < nextState.segmentGenerations.size(); index++)
+		{	if(segmentIndex[index] >= 0)
+				usedNames.add(stateKey + "_" + nextState.segmentGenerations.get(index) + TableSnapshot.SNAPSHOT_SUFFIX);
+		}
+		File[] files = resultCache.getDirectory().listFiles();
+		if(files == null)
+			return;
+		for(File file:files)	// a segment that is still open is deleted next time
+		{	if(file.getName().startsWith(stateKey + "_") && file.getName().endsWith(TableSnapshot.SNAPSHOT_SUFFIX) && !usedNames.contains(file.getName()))
+				file.delete();
+		}
+	}
+
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	public int getGeoFormats() {
+		return geoFormats;
+	}
+
+	/**
+	 * @param geoFormats The Witness.GEO_FORMAT_ flags of the geo files to be written, the text file by default.
+	 */
+	public void setGeoFormats(int geoFormats) {
+		this.geoFormats = geoFormats;
+	}
+
+	public ShardPlan getShardPlan() {
+		return shardPlan;
+	}
+
+	/**
+	 * @param shardPlan How the geo and flat text files are split, see ShardedTsvWriter, null by default to write one
+	 *   file each.
+	 */
+	public void setShardPlan(ShardPlan shardPlan) {
+		this.shardPlan = shardPlan;
+	}
+
+	public ProgressSink getProgress() {
+		return progress;
+	}
+
+	/**
+	 * @param progress Is told the progress of the conversion and can cancel it, may be null, the default.
+	 */
+	public void setProgress(ProgressSink progress) {
+		this.progress = progress;
+	}
+
+	public OutputFiles getOutputFiles() {
+		return outputFiles;
+	}
+
+	/**
+	 * @param outputFiles Records the files that the conversions write, or null by default for each conversion to keep
+	 *   its own record, as with the ConversionPipeline.
+	 */
+	public void setOutputFiles(OutputFiles outputFiles) {
+		this.outputFiles = outputFiles;
+	}
+
+	public int getPipeCapacity() {
+		return pipeCapacity;
+	}
+
+	/**
+	 * @param pipeCapacity The number of joined parcels that can wait for the geo file writer before the join waits.
+	 */
+	public void setPipeCapacity(int pipeCapacity) {
+		this.pipeCapacity = pipeCapacity;
+	}
+
+	/**
+	 * @return The number of MBL parcels that the last conversion parsed, the others were read from its state.
+	 */
+	public int getParsedCount() {
+		return parsedCount;
+	}
+
+	/**
+	 * @return The number of pairs that the last conversion joined, the others were read from its state.
+	 */
+	public int getJoinedCount() {
+		return joinedCount;
+	}
+
+	/**
+	 * Converts a small pair of files with an IncrementalConverter, then edits the beginning point of one MBL parcel and
+	 *   converts them again. Each time the geo and flat files are compared row by row with those of a full conversion
+	 *   by the ConversionPipeline. The first conversion parses every parcel and joins every pair, the second only the
+	 *   edited one.
+	 * @param args
+	 * @throws Exception If a file can not be written or a conversion fails.
+	 */
+	public static void main(String[] args) throws Exception
+	{	String[] square = {"N10E;100", "S80E;100", "S10W;100", "N80W;100"}, triangle = {"N0E;100", "S60E;100", "S60W;100"};
+		File folder = File.createTempFile("witness", "");
+		folder.delete();
+		folder.mkdir();
+		File mblFile = new File(folder, "parcels.mbl"), kmlFile = new File(folder, "parcels.kml");
+		File incrementalStub = new File(folder, "incremental.txt"), fullStub = new File(folder, "full.txt");
+		FileWriter out = new FileWriter(kmlFile);
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n"
+				+ StreamingJoin.placemark("1000", square, false, 0) + StreamingJoin.placemark("1001", triangle, false, 0.01)
+				+ StreamingJoin.placemark("1002", square, false, 0.02) + "</Document>\n</kml>\n");
+		out.close();
+		String[] none = new String[0];
+		IncrementalConverter converter = new IncrementalConverter(none, none, none, new ResultCache(new File(folder, "cache")));
+		ConversionPipeline pipeline = new ConversionPipeline(none, none, none);
+		String[] beginnings = {"a stone", "a red oak"};
+		int[] parsed = {3, 1}, joined = {2, 1};		// 1003 and 1002 have no match, they are not pairs
+		for(int run = 0; run < beginnings.length; run++)
+		{	out = new FileWriter(mblFile);
+			out.write(StreamingJoin.mblParcel("1000", square) + StreamingJoin.mblParcel("1001", triangle).replace("a stone", beginnings[run])
+					+ StreamingJoin.mblParcel("1003", triangle));
+			out.close();
+			converter.run(mblFile, kmlFile, incrementalStub, ".txt");
+			pipeline.run(mblFile, kmlFile, fullStub, ".txt");
+			System.out.println((run == 0 ? "Full" : "Edited") + " conversion: " + converter.getParsedCount() + " parcels parsed, "
+					+ converter.getJoinedCount() + " pairs joined" + (converter.getParsedCount() == parsed[run]
+					&& converter.getJoinedCount() == joined[run] ? "" : "\t<-- should be " + parsed[run] + " and " + joined[run]));
+			compare("geo", StreamingJoin.geoRows(incrementalStub), StreamingJoin.geoRows(fullStub));
+			compare("flat", sortedRows(Witness.appendSuffix(incrementalStub, false, false, ".txt")),
+					sortedRows(Witness.appendSuffix(fullStub, false, false, ".txt")));
+		}
+		delete(folder);
+	}
+
+	private static void compare(String name, LinkedList<String> incrementalRows, LinkedList<String> fullRows)
+	{	System.out.println("\t" + incrementalRows.size() + " " + name + " rows, " + fullRows.size() + " in the full conversion.");
+		for(String row:incrementalRows)
+			if(!fullRows.remove(row))
+				System.out.println("\tOnly written incrementally:\t" + row);
+		for(String row:fullRows)
+			System.out.println("\tOnly written by the full conversion:\t" + row);
+	}
+
+	private static LinkedList<String> sortedRows(File file) throws IOException
+	{	LinkedList<String> rows = Witness.readInLines(file);
+		Collections.sort(rows);
+		return rows;
+	}
+
+	private static void delete(File file)
+	{	File[] files = file.listFiles();
+		if(files != null)
+			for(File child:files)
+				delete(child);
+		file.delete();
+	}
+}
@@ -0,0 +1,267 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many conversion jobs, e.g. thousands of small per-survey MBL and KML file pairs, where the time of each job is
+ *   mostly its setup rather than its parcels. Each job gets its own thread, a virtual thread on Java 21 or later, so
+ *   that a job waiting on the disk costs next to nothing, while a Semaphore lets only as many conversions run at a
+ *   time as there are permits, by default one per processor. The conversions share one FieldClassifier and one
+ *   TermMatcher, unless a job brings its own, and one ResultCache per output folder, instead of each preparing its
+ *   own.
+ * <br>A job hashes its files for the ResultCache before it waits for a permit. The ResultCache only locks its index
+ *   to look up and record a hash, not while it reads a file, so on Java 21 the waiting jobs read the next files
+ *   while the conversions that hold the permits run. Before Java 21 the jobs run on a pool of as many platform threads
+ *   as there are permits, so a job only hashes its files once a thread is free, just before it converts them.
+ * @author thayer young
+ */
+public class JobRunner
+{
+	private FieldClassifier fields;
+	private TermMatcher terms;
+	private Semaphore permits;
+	private int permitCount;
+	private ExecutorService executor;
+	private boolean virtual;
+	private int geoFormats = Witness.GEO_FORMAT_TEXT;
+	private ShardPlan shardPlan = null;
+	private boolean cached = true;
+	private boolean incremental = false;
+	private File cacheDirectory = null;
+	private HashMap<File,ResultCache> caches = new HashMap<File,ResultCache>();	// by the cache folder
+
+	/**
+	 * @param singleLineFields The custom single line fields, as for Witness.textToTable().
+	 * @param multipleLineFields The custom multiple line fields, as for Witness.textToTable().
+	 * @param geoCommentSearchTerms The terms searched for in the course comments, as for Witness.writeOutputFiles().
+	 * @param permits The number of conversions that run at a time, e.g. the number of processors.
+	 */
+	public JobRunner(String[] singleLineFields, String[] multipleLineFields, String[] geoCommentSearchTerms, int permits)
+	{	fields = new FieldClassifier(singleLineFields, multipleLineFields);
+		terms = new TermMatcher(geoCommentSearchTerms);
+		permitCount = Math.max(1, permits);
+		this.permits = new Semaphore(permitCount, true);		// first come, first converted
+		executor = newVirtualThreadExecutor();
+		virtual = executor != null;
+		if(!virtual)
+			executor = Executors.newFixedThreadPool(permitCount);
+	}
+
+	/**
+	 * @return An executor that starts a virtual thread per job, or null before Java 21. It is found by reflection so
+	 *   that the program still runs on older JVMs.
+	 */
+	private static ExecutorService newVirtualThreadExecutor()
+	{	try
+		{	return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}catch(Exception e)
+		{	return null;
+		}
+	}
+
+	/**
+	 * Runs a job on its own thread, e.g. one that calls convert() and records the outcome.
+	 * @param job The job.
+	 */
+	public void execute(Runnable job)
+	{	executor.execute(job);
+	}
+
+	/**
+	 * Converts a file pair once a permit is free, with a ConversionPipeline, or an IncrementalConverter if
+	 *   incremental is set.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files.
+	 * @return The report of the join. Its joined table is null.
+	 * @throws Exception The error that stopped the conversion.
+	 */
+	public JoinReport convert(File mblFile, File kmlFile, File outputFile, String fileExtension) throws Exception
+	{	return convert(mblFile, kmlFile, outputFile, fileExtension, fields, terms, null);
+	}
+
+	/**
+	 * Converts a file pair once a permit is free, and records the files it writes.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files.
+	 * @param outputFiles Records each file that the conversion creates, or null.
+	 * @return The report of the join. Its joined table is null.
+	 * @throws Exception The error that stopped the conversion.
+	 */
+	public JoinReport convert(File mblFile, File kmlFile, File outputFile, String fileExtension, OutputFiles outputFiles) throws Exception
+	{	return convert(mblFile, kmlFile, outputFile, fileExtension, fields, terms, outputFiles);
+	}
+
+	/**
+	 * Converts a file pair once a permit is free, with its own custom fields and search terms.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files.
+	 * @param fields The custom fields of the pair.
+	 * @param terms The search terms of the pair.
+	 * @return The report of the join. Its joined table is null.
+	 * @throws Exception The error that stopped the conversion.
+	 */
+	public JoinReport convert(File mblFile, File kmlFile, File outputFile, String fileExtension, FieldClassifier fields, TermMatcher terms) throws Exception
+	{	return convert(mblFile, kmlFile, outputFile, fileExtension, fields, terms, null);
+	}
+
+	/**
+	 * Converts a file pair once a permit is free, with its own custom fields and search terms, and records the files it
+	 *   writes.
+	 * @param mblFile The DeedMapper data file.
+	 * @param kmlFile The DeedMapper kml file.
+	 * @param outputFile The output file stub, the geo and flat suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files.
+	 * @param fields The custom fields of the pair.
+	 * @param terms The search terms of the pair.
+	 * @param outputFiles Records each file that the conversion creates, or null.
+	 * @return The report of the join. Its joined table is null.
+	 * @throws Exception The error that stopped the conversion.
+	 */
+	public JoinReport convert(File mblFile, File kmlFile, File outputFile, String fileExtension, FieldClassifier fields, TermMatcher terms,
+			OutputFiles outputFiles) throws Exception
+	{	ResultCache resultCache = getResultCache(outputFile);
+		if(resultCache != null)
+		{	resultCache.hash(mblFile);		// read now, the conversion finds the hashes in the index
+			resultCache.hash(kmlFile);
+		}
+		permits.acquire();
+		try
+		{	if(incremental)
+			{	IncrementalConverter converter = new IncrementalConverter(fields, terms, resultCache);
+				converter.setGeoFormats(geoFormats);
+				converter.setShardPlan(shardPlan);
+				converter.setOutputFiles(outputFiles);
+				return converter.run(mblFile, kmlFile, outputFile, fileExtension);
+			}
+			ConversionPipeline pipeline = new ConversionPipeline(fields, terms);
+			pipeline.setGeoFormats(geoFormats);
+			pipeline.setShardPlan(shardPlan);
+			pipeline.setResultCache(resultCache);
+			pipeline.setOutputFiles(outputFiles);
+			return pipeline.run(mblFile, kmlFile, outputFile, fileExtension);
+		}
+		finally
+		{	permits.release();
+		}
+	}
+
+	/**
+	 * @param outputFile The output file stub of a job.
+	 * @return The ResultCache that the conversion of the job uses, e.g. for the hashes of its files, or null if the
+	 *   results are not cached.
+	 */
+	public ResultCache getResultCache(File outputFile)
+	{	if(!cached && !incremental)
+			return null;
+		return getCache(cacheDirectory != null ? cacheDirectory : new File(outputFile.getAbsoluteFile().getParentFile(), ResultCache.DEFAULT_DIRECTORY));
+	}
+
+	/**
+	 * @param directory A cache folder.
+	 * @return The ResultCache of the folder, shared by the jobs that use it so that each file is hashed once.
+	 */
+	private synchronized ResultCache getCache(File directory)
+	{	ResultCache cache = caches.get(directory);
+		if(cache == null)
+		{	cache = new ResultCache(directory);
+			caches.put(directory, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * Waits for every job that was executed to finish. No more jobs can be executed afterwards.
+	 * @throws InterruptedException If the wait is interrupted, the jobs are then interrupted as well.
+	 */
+	public void finish() throws InterruptedException
+	{	executor.shutdown();
+		try
+		{	while(!executor.awaitTermination(1, TimeUnit.MINUTES))
+				;
+		}catch(InterruptedException ie)
+		{	executor.shutdownNow();
+			throw ie;
+		}
+	}
+
+	/**
+	 * @return True if each job runs on a virtual thread, false if on a pool of platform threads.
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return The number of conversions that can run at a time.
+	 */
+	public int getPermits() {
+		return permitCount;
+	}
+
+	public int getGeoFormats() {
+		return geoFormats;
+	}
+
+	/**
+	 * @param geoFormats The Witness.GEO_FORMAT_ flags of the geo files, GEO_FORMAT_TEXT by default.
+	 */
+	public void setGeoFormats(int geoFormats) {
+		this.geoFormats = geoFormats;
+	}
+
+	public ShardPlan getShardPlan() {
+		return shardPlan;
+	}
+
+	/**
+	 * @param shardPlan How the geo and flat files are split, or null for one file each, the default.
+	 */
+	public void setShardPlan(ShardPlan shardPlan) {
+		this.shardPlan = shardPlan;
+	}
+
+	public boolean isCached() {
+		return cached;
+	}
+
+	/**
+	 * @param cached Whether the results of earlier conversions are reused from a ResultCache in each output folder,
+	 *   true by default.
+	 */
+	public void setCached(boolean cached) {
+		this.cached = cached;
+	}
+
+	public File getCacheDirectory() {
+		return cacheDirectory;
+	}
+
+	/**
+	 * @param cacheDirectory The ResultCache folder of every job, or null for a "witness_cache" folder in the output
+	 *   folder of each job, the default.
+	 */
+	public void setCacheDirectory(File cacheDirectory) {
+		this.cacheDirectory = cacheDirectory;
+	}
+
+	public boolean isIncremental() {
+		return incremental;
+	}
+
+	/**
+	 * @param incremental Whether only the edited parcels of each MBL file are converted again, with an
+	 *   IncrementalConverter. It always uses a ResultCache.
+	 */
+	public void setIncremental(boolean incremental) {
+		this.incremental = incremental;
+	}
+}
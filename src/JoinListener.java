@@ -0,0 +1,16 @@
+
+/**
+ * Receives the outcome of each parcel while Witness.joinTables() builds the joined table, so that a caller can follow
+ *   the join as it runs instead of waiting for the final JoinReport.
+ * @author thayer young
+ */
+public interface JoinListener
+{
+	/**
+	 * Called once for each parcel of the combined table, in the order that the parcels are joined.
+	 * @param id The parcel id, the 'comparator' of the parcel. May be null if the parcel had no id.
+	 * @param status The parcel status, one of the JoinReport.PARCEL_ constants.
+	 * @param courseCounts The number of the parcel's courses in each of the JoinReport.COURSE_ categories.
+	 */
+	public void parcelJoined(String id, int status, int[] courseCounts);
+}
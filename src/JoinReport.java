@@ -0,0 +1,269 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The results of Witness.joinTables(): the joined table, the parcel and course counts, and the ids of the parcels that
+ *   failed, were salvaged or did not match. The report is filled in as a JoinListener while the join runs, it can be
+ *   shown to the user with toString() or written to a file with write(). The counts and ids can be saved with
+ *   writeCounts(), e.g. by a ResultCache.
+ * @author thayer young
+ */
+public class JoinReport implements JoinListener
+{
+	/** Parcel status: the MBL and KML parcels combined and their courses were joined. */
+	public static final int PARCEL_COMBINED = 0;
+	/** Parcel status: the course counts differed, but the courses were aligned by the CourseAligner. */
+	public static final int PARCEL_SALVAGED = 1;
+	/** Parcel status: a KML parcel whose id matches, but whose courses could not be joined. */
+	public static final int PARCEL_FAILED = 2;
+	/** Parcel status: a KML parcel with no matching MBL id. */
+	public static final int PARCEL_NO_MATCH_KML = 3;
+	/** Parcel status: an MBL parcel with no matching KML id. */
+	public static final int PARCEL_NO_MATCH_MBL = 4;
+	private static final int PARCEL_STATUS_COUNT = 5;
+
+	/** Course category: an MBL course joined to a KML point. */
+	public static final int COURSE_JOINED = 0;
+	/** Course category: a KML point of a failed parcel, written with blank MBL fields. */
+	public static final int COURSE_KML_FAILED = 1;
+	/** Course category: a KML point of a parcel with no matching MBL id, written with blank MBL fields. */
+	public static final int COURSE_KML_NO_MATCH = 2;
+	/** Course category: an MBL record with no KML point, written with blank KML fields. */
+	public static final int COURSE_MBL_NO_MATCH = 3;
+	private static final int COURSE_CATEGORY_COUNT = 4;
+
+	private DataTableW<String> joinedTable = null;
+	private int[] combineCounts = new int[4];
+	private int[] rematchCounts = new int[2];
+	private int[] salvageCounts = new int[2];
+	private int[] parcelCounts = new int[PARCEL_STATUS_COUNT];
+	private int[] courseCounts = new int[COURSE_CATEGORY_COUNT];
+	private LinkedList<String> salvagedIds = new LinkedList<String>();
+	private LinkedList<String> failedIds = new LinkedList<String>();
+	private LinkedList<String> noMatchKMLIds = new LinkedList<String>();
+	private LinkedList<String> noMatchMBLIds = new LinkedList<String>();
+
+	/**
+	 * Counts the parcel and its courses, and lists its id if it was not combined.
+	 */
+	public void parcelJoined(String id, int status, int[] courseCounts)
+	{	parcelCounts[status]++;
+		for(int index = 0; index < COURSE_CATEGORY_COUNT; index++)
+			this.courseCounts[index] += courseCounts[index];
+		if(status == PARCEL_SALVAGED)
+			salvagedIds.add(id);
+		else if(status == PARCEL_FAILED)
+			failedIds.add(id);
+		else if(status == PARCEL_NO_MATCH_KML)
+			noMatchKMLIds.add(id);
+		else if(status == PARCEL_NO_MATCH_MBL)
+			noMatchMBLIds.add(id);
+	}
+
+	/**
+	 * Adds the counts and ids of another report to this one, e.g. of a part of the join that was run on its own.
+	 * @param other The other report.
+	 */
+	public void add(JoinReport other)
+	{	int[][] counts = {combineCounts, rematchCounts, salvageCounts, parcelCounts, courseCounts};
+		int[][] otherCounts = {other.combineCounts, other.rematchCounts, other.salvageCounts, other.parcelCounts, other.courseCounts};
+		for(int which = 0; which < counts.length; which++)
+		{	for(int index = 0; index < counts[which].length; index++)
+				counts[which][index] += otherCounts[which][index];
+		}
+		List<LinkedList<String>> ids = getIdLists(), otherIds = other.getIdLists();
+		for(int which = 0; which < ids.size(); which++)
+			ids.get(which).addAll(otherIds.get(which));
+	}
+
+	/**
+	 * @return The joined data table of only geometry records, a.k.a. the courses from the tract descriptions.
+	 */
+	public DataTableW<String> getJoinedTable() {
+		return joinedTable;
+	}
+
+	public void setJoinedTable(DataTableW<String> joinedTable) {
+		this.joinedTable = joinedTable;
+	}
+
+	/**
+	 * @return The counts returned by DataTableW.combineTables(), indexed by DataTableW.COMBINED_INDEX etc.
+	 */
+	public int[] getCombineCounts() {
+		return combineCounts;
+	}
+
+	public void setCombineCounts(int[] combineCounts) {
+		this.combineCounts = combineCounts;
+	}
+
+	/**
+	 * @return The counts returned by IdMatcher.rematchUnmatched(): matched by normalized id, matched by close id.
+	 */
+	public int[] getRematchCounts() {
+		return rematchCounts;
+	}
+
+	public void setRematchCounts(int[] rematchCounts) {
+		this.rematchCounts = rematchCounts;
+	}
+
+	/**
+	 * @return The counts returned by CourseAligner.salvageFailed(): parcels salvaged, courses aligned.
+	 */
+	public int[] getSalvageCounts() {
+		return salvageCounts;
+	}
+
+	public void setSalvageCounts(int[] salvageCounts) {
+		this.salvageCounts = salvageCounts;
+	}
+
+	/**
+	 * @param status One of the PARCEL_ constants.
+	 * @return The number of parcels joined with that status.
+	 */
+	public int getParcelCount(int status)
+	{	return parcelCounts[status];
+	}
+
+	/**
+	 * @param category One of the COURSE_ constants.
+	 * @return The number of courses written in that category.
+	 */
+	public int getCourseCount(int category)
+	{	return courseCounts[category];
+	}
+
+	/**
+	 * @return The total number of courses written to the joined table.
+	 */
+	public int getTotalCourses()
+	{	int total = 0;
+		for(int count:courseCounts)
+			total += count;
+		return total;
+	}
+
+	public LinkedList<String> getSalvagedIds() {
+		return salvagedIds;
+	}
+
+	public LinkedList<String> getFailedIds() {
+		return failedIds;
+	}
+
+	public LinkedList<String> getNoMatchKMLIds() {
+		return noMatchKMLIds;
+	}
+
+	public LinkedList<String> getNoMatchMBLIds() {
+		return noMatchMBLIds;
+	}
+
+	/**
+	 * @return The summary of the join, as shown to the user at the end of a conversion.
+	 */
+	public String toString()
+	{	return "KML & MBL Parcels combined: " + combineCounts[DataTableW.COMBINED_INDEX]
+			+ "\nKML parcels failed:         " + combineCounts[DataTableW.FAILED_INDEX]
+			+ "\nKML parcels not matching:   " + combineCounts[DataTableW.NO_MATCH_KML_INDEX]
+			+ "\nMBL parcels not matching:   " + combineCounts[DataTableW.NO_MATCH_MBL_INDEX]
+			+ "\nTotal parcels: " + (combineCounts[DataTableW.COMBINED_INDEX]+combineCounts[DataTableW.FAILED_INDEX]
+					+combineCounts[DataTableW.NO_MATCH_KML_INDEX]+combineCounts[DataTableW.NO_MATCH_MBL_INDEX])
+			+ "\nUnmatched parcels matched:  " + (rematchCounts[0] + rematchCounts[1]) + " (" + rematchCounts[0] + " by normalized id, "
+					+ rematchCounts[1] + " by close id)"
+			+ "\nFailed parcels salvaged:    " + salvageCounts[0] + " (" + salvageCounts[1] + " courses aligned)"
+			+ "\n\n To combine the 'id' must match and the number of tract courses must be equal."
+			+   "\n Failed means that the parcel id's match but their number of courses differ."
+			+   "\n Salvaged means a failed parcel's courses were aligned by direction and distance, see JoinScore."
+			+   "\n Not matching means that no matching id can be found, matched parcels are still counted as not matching."
+			+	"\n Note that the failed and not matching likely double count parcels."
+			+ "\n\nTract courses joined:     " + courseCounts[COURSE_JOINED]
+			+    "\nKML courses failed:       " + courseCounts[COURSE_KML_FAILED]
+			+	 "\nKML courses not matching: " + courseCounts[COURSE_KML_NO_MATCH]
+			+    "\nMBL courses not matching: " + courseCounts[COURSE_MBL_NO_MATCH]
+			+    "\nTotal courses: " + getTotalCourses();
+	}
+
+	/**
+	 * Writes the summary followed by the ids of the salvaged, failed and not matching parcels, one per line.
+	 * @param reportFile The text file to be written.
+	 * @throws IOException If the file can not be written.
+	 */
+	public void write(File reportFile) throws IOException
+	{	Writer out = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+		try
+		{	out.write(toString() + "\n");
+			writeIds(out, "Salvaged parcel ids", salvagedIds);
+			writeIds(out, "Failed KML parcel ids", failedIds);
+			writeIds(out, "KML parcel ids not matching", noMatchKMLIds);
+			writeIds(out, "MBL parcel ids not matching", noMatchMBLIds);
+		}
+		finally
+		{	out.close();
+		}
+	}
+
+	/**
+	 * Writes the counts and ids, but not the joined table, so that readCounts() can read them back.
+	 * @param out The output, e.g. a DataOutputStream.
+	 * @throws IOException If the counts can not be written.
+	 */
+	public void writeCounts(DataOutput out) throws IOException
+	{	for(int[] counts:new int[][]{combineCounts, rematchCounts, salvageCounts, parcelCounts, courseCounts})
+		{	out.writeInt(counts.length);
+			for(int count:counts)
+				out.writeInt(count);
+		}
+		for(LinkedList<String> ids:getIdLists())
+		{	out.writeInt(ids.size());
+			for(String id:ids)
+			{	out.writeBoolean(id != null);
+				if(id != null)
+					out.writeUTF(id);
+			}
+		}
+	}
+
+	/**
+	 * @param in The input, e.g. a DataInputStream, from writeCounts().
+	 * @return The report, without a joined table.
+	 * @throws IOException If the counts can not be read.
+	 */
+	public static JoinReport readCounts(DataInput in) throws IOException
+	{	JoinReport report = new JoinReport();
+		for(int[] counts:new int[][]{report.combineCounts, report.rematchCounts, report.salvageCounts, report.parcelCounts, report.courseCounts})
+		{	if(in.readInt() != counts.length)
+				throw new IOException("The join report does not match this version.");
+			for(int index = 0; index < counts.length; index++)
+				counts[index] = in.readInt();
+		}
+		int size;
+		for(LinkedList<String> ids:report.getIdLists())
+		{	size = in.readInt();
+			for(int index = 0; index < size; index++)
+				ids.add(in.readBoolean() ? in.readUTF() : null);
+		}
+		return report;
+	}
+
+	private List<LinkedList<String>> getIdLists()
+	{	return Arrays.asList(salvagedIds, failedIds, noMatchKMLIds, noMatchMBLIds);
+	}
+
+	private static void writeIds(Writer out, String heading, LinkedList<String> ids) throws IOException
+	{	out.write("\n" + heading + " (" + ids.size() + "):\n");
+		for(String id:ids)
+			out.write(id + "\n");
+	}
+}
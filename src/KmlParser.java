@@ -0,0 +1,94 @@
+import java.io.IOException;
+
+/**
+ * Parses a DeedMapper ".kml" file into parcels, one placemark at a time. This is the parsing logic of
+ *   Witness.kmlToTable(), which collects the parcels into a table, while the ConversionPipeline passes each parcel on
+ *   as soon as it is parsed.
+ * @author thayer young
+ */
+public class KmlParser implements ParcelSource
+{
+	private LineSource lines;
+	private String current = "";
+	private int recordCount = 0, gid = Witness.NOT_GEOMETRY;
+
+	/**
+	 * @param lines The lines of the kml file, e.g. a LineReader or the output of Witness.readInLines().
+	 */
+	public KmlParser(LineSource lines)
+	{	this.lines = lines;
+	}
+
+	/**
+	 * Parses the lines up to and including the next "&lt;/Placemark&gt;" line into a parcel. The lines before the first
+	 *   placemark are parsed into the first parcel, and the lines after the last into a parcel without geometry.
+	 * @return The parcel, or null if there are no more lines or "&lt;/kml&gt;" has been read.
+	 * @throws IOException If the lines can not be read.
+	 */
+	public Parcel<String> next() throws IOException
+	{	if(lines.isEmpty() || current.toLowerCase().equals("</kml>"))
+			return null;
+		Parcel<String> record = null;
+		String rcrdCntStr, field = "", coords = "", gidStr = "", id = "";
+		String[] lsCoords = null;
+		String[] xyz = null;
+		recordCount++;
+		rcrdCntStr = Integer.toString(recordCount);
+		current = lines.poll().trim();
+		id = "";
+		// A key to the positions in the DataRecord is as follows (note that position 3 is id except when gType is name):
+	    //    0:pid, 1:gidStr, 2:gType, 3:name or id, 4:x, 5:y   
+		record = new Parcel<String>();	
+		while (!current.startsWith("</Placemark>") && !current.startsWith("</kml>"))
+		{	if (current.startsWith("<name>") && current.endsWith("</name>"))
+			{	String kmlName = Witness.getValueFromBetweenHTMLTags(current,"<name>");
+				record.add(new DataRecordW<String>(new String[]{rcrdCntStr,Witness.NOT_GEOMETRYs,"name",kmlName},1,Witness.KML_PID),false);
+				record.setKmlName(kmlName);
+			}	
+			else if (current.startsWith("<SimpleData") && current.endsWith("</SimpleData>"))
+			{	if (current.toLowerCase().contains("\"id\""))
+				{	id = Witness.getValueFromBetweenHTMLTags(current,"<SimpleData");
+					record.add(new DataRecordW<String>(new String[]{rcrdCntStr,Witness.NOT_GEOMETRYs,"id",id},1,Witness.KML_PID),false);
+					record.setComparator(id);//the parcels will be sorted by 'id' before joining tables
+				}
+			}
+			else if (current.startsWith("<Point>") || current.startsWith("<LineString>"))	// actual geometry
+			{	gid++;	// gid should begin at 0 because "point" does not join with the MBL
+				gidStr = Integer.toString(gid);
+				field = current.substring(current.indexOf("<")+1, current.indexOf(">"));
+				while (!current.startsWith("<coordinates>"))	
+				{	current = lines.poll().trim();
+					if (current.startsWith("<coordinates>"))
+					{	coords = Witness.getValueFromBetweenHTMLTags(current,"<coordinates>");
+						if (field.equals("Point"))		// point is a centroid, not a tract description point. So gid = 0		 
+						{	xyz = coords.split(",");
+							record.add(new DataRecordW<String>(new String[]{rcrdCntStr,gidStr,field,(id+"    ["+gid+"]"),xyz[0],xyz[1]},1,Witness.KML_PID),true);
+						}
+						else if (field.equals("LineString"))	// the actual points that join with the MBL, start with 1.
+						{	lsCoords = coords.split(" ");
+							for (String ls:lsCoords)
+							{	xyz = ls.split(",");
+								record.add(new DataRecordW<String>(new String[]{rcrdCntStr,gidStr,field,(id+"    ["+gid+"]"),xyz[0],xyz[1]},1,Witness.KML_PID),true);
+								gid++;
+								gidStr = Integer.toString(gid);
+							}
+						}
+					}
+				}
+			}
+			else;
+			if (!lines.isEmpty())
+				current = lines.poll().trim(); 
+			else current = "</kml>";	// a file cut short ends the parcel instead of looping
+		}
+		gid = Witness.NOT_GEOMETRY;
+		return record;
+	}
+
+	/**
+	 * @return The number of parcels parsed so far.
+	 */
+	public int getRecordCount()
+	{	return recordCount;
+	}
+}
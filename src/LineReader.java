@@ -0,0 +1,79 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads the lines of a DeedMapper file as they are parsed, instead of holding the whole file like readInLines(). One
+ *   line is read ahead so that isEmpty() can be answered. The escaped '&gt;' and '&lt;' are restored, as in readInLines().
+ * @author thayer young
+ */
+public class LineReader implements LineSource
+{
+	private BufferedReader reader;
+	private String next;
+	private long charCount = 0;
+
+	/**
+	 * Opens the file with the platform encoding, as readInLines() does.
+	 * @param inFile The file to be read.
+	 * @throws IOException If the file can not be opened or its first line read.
+	 */
+	public LineReader(File inFile) throws IOException
+	{	this(new FileReader(inFile));
+	}
+
+	/**
+	 * @param reader The source of the lines, it is closed by close().
+	 * @throws IOException If the first line can not be read.
+	 */
+	public LineReader(Reader reader) throws IOException
+	{	this.reader = new BufferedReader(reader);
+		next = readLine();
+	}
+
+	private String readLine() throws IOException
+	{	String line = reader.readLine();
+		if (line != null)
+		{	charCount += line.length() + 1;
+			line = unescape(line);
+		}
+		return line;
+	}
+
+	/**
+	 * Restores the '&gt;' and '&lt;' characters that DeedMapper escapes.
+	 * @param line A line of a DeedMapper file.
+	 * @return The line with the characters restored.
+	 */
+	public static String unescape(String line)
+	{	if (line.contains("&#62;"))
+			line = line.replace("&#62;", ">");
+		if (line.contains("&#60;"))
+			line = line.replace("&#60;", "<");
+		return line;
+	}
+
+	public String poll() throws IOException
+	{	String line = next;
+		if (line != null)
+			next = readLine();
+		return line;
+	}
+
+	public boolean isEmpty()
+	{	return next == null;
+	}
+
+	/**
+	 * @return The number of characters read so far, counting one for each line break.
+	 */
+	public long getCharCount()
+	{	return charCount;
+	}
+
+	public void close() throws IOException
+	{	reader.close();
+	}
+}
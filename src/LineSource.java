@@ -0,0 +1,22 @@
+import java.io.IOException;
+
+/**
+ * The lines of a DeedMapper file, read one at a time by the MblParser and the KmlParser. A LineSource may hold the
+ *   whole file, e.g. the list from Witness.readInLines(), or read it as it is parsed, e.g. a LineReader.
+ * @author thayer young
+ */
+public interface LineSource
+{
+	/**
+	 * Removes and returns the next line.
+	 * @return The next line, or null if there are no more lines.
+	 * @throws IOException If the line can not be read.
+	 */
+	public String poll() throws IOException;
+
+	/**
+	 * @return True if there are no more lines.
+	 * @throws IOException If the next line can not be read.
+	 */
+	public boolean isEmpty() throws IOException;
+}
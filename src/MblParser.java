@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Parses a DeedMapper ".mbl" data file into parcels, one parcel at a time. This is the parsing logic of
+ *   Witness.textToTable(), which collects the parcels into a table, while the ConversionPipeline passes each parcel on
+ *   as soon as it is parsed. The field names and geometry comments are counted as the parcels are parsed.
+ * @author thayer young
+ */
+public class MblParser implements ParcelSource
+{
+	private LineSource lines;
+	private FieldClassifier fields;
+	// unique field names are listed in the 'fieldList', except for geometry field names: pt, lc, lm, ln.  
+	private CountingTree fieldList = new CountingTree();
+	// This is a unique list of the comments in the geometry sub-records, key is comment, value is count for that comment
+	private CountingTree geometryCommentMap = new CountingTree();
+	private int recordCount = 0;
+
+	/**
+	 * @param lines The lines of the data file, e.g. a LineReader or the output of Witness.readInLines().
+	 * @param singleLineFields The comments that begin with one of these are converted to fields.
+	 * @param multipleLineFields The comments that begin with one of these are converted to fields, along with the 
+	 *   comment lines that follow them.
+	 */
+	public MblParser(LineSource lines, String[] singleLineFields, String[] multipleLineFields)
+	{	this(lines, new FieldClassifier(singleLineFields, multipleLineFields));
+	}
+
+	/**
+	 * @param lines The lines of the data file, e.g. a LineReader or the output of Witness.readInLines().
+	 * @param fields The custom fields, e.g. shared by the parsers of many files.
+	 */
+	public MblParser(LineSource lines, FieldClassifier fields)
+	{	this.lines = lines;
+		this.fields = fields;
+	}
+
+	/**
+	 * Parses the lines up to and including the next "end" line into a parcel.
+	 * @return The parcel, or null if there are no more lines.
+	 * @throws IOException If the lines can not be read.
+	 */
+	public Parcel<String> next() throws IOException
+	{	if(lines.isEmpty())
+			return null;
+		// one 'record' per parcel, each 'record' contains a list of 'DataRecordW' objects containing the fields and geometry of each parcel
+		Parcel<String> record = null; 
+		String allFieldsCnt = "", cmntCntStr = "", fieldCntStr = "", edgePtCntStr = "", rcrdCntStr;
+		int commentCnt, fieldCnt, edgePtCnt;
+		int firstSemi, secondSemi;
+		String current;
+		String comment, commentLabel = "", before = "", after, id="";
+		String direction, distance, ddComment;
+		String[] locParam;
+		String[] temp;
+		int pos;
+		boolean multiCustom = false;
+		int customFieldType = 0;
+		recordCount++;	// parcel count
+		rcrdCntStr = Integer.toString(recordCount);
+		commentCnt = 0;
+		fieldCnt = 0;
+		edgePtCnt = 0;
+		locParam = null;
+		temp = null;
+		id = "";
+		current = lines.poll();
+		record = new Parcel<String>();	// TODO change all uses of 'record' if order changes
+		//field order for 'record' {fieldName,rcrdCntStr,allFieldsCnt,cmntCntStr,fieldCntStr,edgePtCntStr,comment or additional fields: for geometry:direction,distance,ddComment,id; for 'loc': it is split on the " " character}
+		//   fieldName may be 'commentLabel', 'before' or 'loc_tay'
+		while (!current.startsWith("end") && !lines.isEmpty())	// begin parcel loop --> prepares a 'record' to add to the 'table'
+		{	firstSemi = 0;
+			secondSemi = 0;
+			direction = "";
+			distance = "";
+			ddComment = "";
+			multiCustom = false;
+			customFieldType = fields.classify(current);
+			if(customFieldType == Witness.SINGLE_LINE_FIELD)	// convert single line custom fields to fields. <-- exit comment logic	
+				current = current.substring(1).trim(); 	// remove the '!' and concatenate (desirable??)
+			if(customFieldType == Witness.MULTIPLE_LINE_FIELD)	// flag multiline custom fields. <-- remain in comment logic
+			{	multiCustom = true;
+				commentLabel = fields.getFieldMatch(current);
+			}
+			if (current.startsWith("!"))				// comment logic, concatenates comment into single list entry
+			{	if(!multiCustom)
+				{	commentCnt++;
+					commentLabel = "z_cmnt" + commentCnt;
+				}
+				cmntCntStr = Integer.toString(commentCnt);
+				allFieldsCnt = Integer.toString(commentCnt + fieldCnt + edgePtCnt);
+				comment = "";					
+				while (current.startsWith("!"))	
+				{	current = current.replace("\t", " ");	// TODO may want to do this to all lines, not just comments.
+					comment += current.substring(1);	// remove the '!' and concatenate (desirable??)	
+					if (!lines.isEmpty())
+					{	current = lines.poll();	// get next line, preview its contents, converting single line to fields
+						customFieldType = fields.classify(current);
+						if(customFieldType == Witness.SINGLE_LINE_FIELD)		// convert single line custom fields to fields	
+						{	current = current.substring(1).trim();	// remove the '!' and concatenate (desirable??)
+						}
+						else if(customFieldType == Witness.MULTIPLE_LINE_FIELD)	// convert multiple line custom fields to fields
+						{	// add the current record
+							if(!comment.trim().equals("")) 
+							{	record.add(new DataRecordW<String>(new String[]{commentLabel,rcrdCntStr,allFieldsCnt,cmntCntStr,"0","0",comment},1,Witness.MBL_FIELDNAME),false);
+							}
+							else commentCnt--;	// discard comments that contain nothing but white space
+							// start a new record
+							commentLabel = fields.getFieldMatch(current);
+						}
+					}
+				}// end multiline comment/field loop
+				if(!comment.trim().equals("")) 
+				{	record.add(new DataRecordW<String>(new String[]{commentLabel,rcrdCntStr,allFieldsCnt,cmntCntStr,"0","0",comment},1,Witness.MBL_FIELDNAME),false);
+				}
+				else commentCnt--;	// discard comments that contain nothing but white space
+			}// end comment logic
+			if (current.startsWith("end"))		// start next parcel
+			{	if(!lines.isEmpty())
+					current = lines.poll();
+			}
+			else	// field logic
+			{	if(current.contains(" ") && current.length() > current.indexOf(" ") + 1) // if 'after' exists
+				{	before = current.substring(0, current.indexOf(" ")); // the field name (before the first space)
+					after = current.substring(current.indexOf(" ") + 1); // the field content, which may be further subdivided
+					if (before.equals("id"))
+					{	id = after;			// capture the id so it can be added to the geometry sub-records
+						record.setComparator(id);	// the parcels will be compared using 'id' for .equals(), .contains(), etc.
+					}
+					if (Witness.isMBLgeoField(before))
+					{// add geometry sub-record
+						edgePtCnt++;
+						if (after.contains(";"))	// format of geometry is: 'before';'direction';'distance';'ddComment'
+						{	firstSemi = after.indexOf(";");
+							direction = after.substring(0, firstSemi);  // 'direction' assigned
+							if (after.substring(firstSemi+1).contains(";"))
+							{	secondSemi = (after.substring(firstSemi+1)).indexOf(";") + firstSemi + 1;
+								distance = after.substring(firstSemi + 1, secondSemi); // 'distance' assigned
+								if (after.length() > secondSemi + 1)
+									ddComment = after.substring(secondSemi + 1); // 'ddComment' assigned									
+							}
+							else ddComment = after.substring(firstSemi+1); // in case there is no distance, 'ddComment' assigned
+						}
+						else ddComment = after; // mostly used for 'pt' start points of tract description, 'ddComment' assigned
+						edgePtCntStr = Integer.toString(edgePtCnt);
+						allFieldsCnt = Integer.toString(commentCnt + fieldCnt + edgePtCnt);
+						record.add(new DataRecordW<String>(new String[]{before,rcrdCntStr,allFieldsCnt,"0","0",edgePtCntStr,direction,distance,ddComment,(id+"    ["+edgePtCnt+"]")},1,Witness.MBL_FIELDNAME),true);
+					}// end add geometry sub-record
+					else if (before.equals("loc"))	// add 'loc' field. TODO change this if 'loc' handling changes
+					{	fieldCnt++;
+						fieldCntStr = Integer.toString(fieldCnt);
+						allFieldsCnt = Integer.toString(commentCnt + fieldCnt + edgePtCnt);
+						// standard method for handling a field
+						record.add(new DataRecordW<String>(new String[]{before,rcrdCntStr,allFieldsCnt,"0",fieldCntStr,"0",after},1,Witness.MBL_FIELDNAME),false);
+						if (after.length() > 0) // non-standard method: splits the 'after' for 'loc' on ' ' and attaches the split on the end of the 'record'  
+						{	fieldCntStr = Integer.toString(++fieldCnt);
+							allFieldsCnt = Integer.toString(commentCnt + fieldCnt + edgePtCnt);
+							locParam = after.split(" ");  // splits 'after' portion of 'loc' using ' ' as the delimeter
+							temp = new String[locParam.length + 6]; // creates a new array and puts the 6 basic fields up front in that array
+							temp[Witness.MBL_FIELDNAME] = "loc_tay";
+							temp[Witness.MBL_RECORDCOUNT] = rcrdCntStr;
+							temp[Witness.MBL_ALLFIELDSCOUNT] = allFieldsCnt;
+							temp[Witness.MBL_COMMENTCOUNT] = "0";
+							temp[Witness.MBL_FIELDCOUNT] = fieldCntStr;
+							temp[Witness.MBL_EDGEPOINTCOUNT] = "0";
+							pos = 5;
+							for (String cur:locParam) // then copy in the split out portions from 'loc' 
+								temp[++pos] = cur;
+							record.add(new DataRecordW<String>(temp,1,Witness.MBL_FIELDNAME),false); // add the non-standard 'loc'
+						} // end non-standard method for handling 'loc'
+					}// end add 'loc' field
+					else // add record for non geometry and non loc fields
+					{	fieldCnt++;
+						fieldCntStr = Integer.toString(fieldCnt);
+						allFieldsCnt = Integer.toString(commentCnt + fieldCnt + edgePtCnt);
+						record.add(new DataRecordW<String>(new String[]{before,rcrdCntStr,allFieldsCnt,"0",fieldCntStr,"0",after},1,Witness.MBL_FIELDNAME),false);
+					}// end add record for non geometry and non loc fields
+				}// end "if 'after' exists"
+				if(!lines.isEmpty())
+					current = lines.poll();
+				else current = "end";
+			}// end field logic
+		}// end parcel loop
+		countFields(record, fieldList, geometryCommentMap);
+		return record;
+	}
+
+	/**
+	 * Reads the lines of the next parcel without parsing them: the lines up to and including the next "end" line that
+	 *   next() would end the parcel at. An "end" line right after a comment does not end the parcel, next() reads on
+	 *   past it. Parsing the lines on their own, e.g. with a new MblParser over Witness.lineSource(), gives the parcel
+	 *   that next() would, except for its record count.
+	 * @return The lines, or null if there are no more lines.
+	 * @throws IOException If the lines can not be read.
+	 */
+	public LinkedList<String> nextLines() throws IOException
+	{	if(lines.isEmpty())
+			return null;
+		LinkedList<String> parcelLines = new LinkedList<String>();
+		String current, previous = null;
+		while(!lines.isEmpty())
+		{	current = lines.poll();
+			parcelLines.add(current);
+			if(current.startsWith("end") && (previous == null || !previous.startsWith("!")
+					|| fields.classify(previous) == Witness.SINGLE_LINE_FIELD))
+				break;
+			previous = current;
+		}
+		return parcelLines;
+	}
+
+	/**
+	 * Counts the field names and the geometry comments of a parsed parcel, as next() does: every field and comment name
+	 *   except the "loc_tay" that next() splits from a "loc" field, and the comment of every geometry field.
+	 * @param parcel A parcel from next(), before it is joined.
+	 * @param fieldList The counts of the field names.
+	 * @param geometryCommentMap The counts of the geometry comments.
+	 */
+	public static void countFields(Parcel<String> parcel, CountingTree fieldList, CountingTree geometryCommentMap)
+	{	String fieldName, previous = null;
+		for(DataRecordW<String> record:parcel)
+		{	fieldName = record.get(Witness.MBL_FIELDNAME);
+			if(!"0".equals(record.get(Witness.MBL_EDGEPOINTCOUNT)))
+				geometryCommentMap.add(record.get(Witness.MBL_G_DDCOMMENT));
+			else if(!fieldName.equals("loc_tay") || !"loc".equals(previous))
+				fieldList.add(fieldName);
+			previous = fieldName;
+		}
+	}
+
+	/**
+	 * @return The unique field names of the parcels parsed so far, with their counts.
+	 */
+	public CountingTree getFieldList()
+	{	return fieldList;
+	}
+
+	/**
+	 * @return The unique comments of the geometry fields parsed so far, with their counts.
+	 */
+	public CountingTree getGeometryCommentMap()
+	{	return geometryCommentMap;
+	}
+
+	/**
+	 * @return The number of parcels parsed so far.
+	 */
+	public int getRecordCount()
+	{	return recordCount;
+	}
+}
@@ -0,0 +1,78 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+
+/**
+ * Collects the ParcelOutline of each KML placemark as the geo file rows stream past, and hands each outline on as
+ *   soon as it is complete. The points of a placemark can be split between joined parcels that are far apart, e.g.
+ *   when a failed parcel is salvaged the KML points that were not aligned stay in the KML parcel. So an outline is
+ *   handed on once it looks complete, see ParcelOutline.isComplete(), and the others are held until more of their
+ *   points arrive or the rows end. Only the outlines of the current parcel and the incomplete ones are held.
+ * @author thayer young
+ */
+public class OutlineCollector
+{
+	private LinkedHashMap<String,ParcelOutline> pending = new LinkedHashMap<String,ParcelOutline>();
+	private LinkedHashMap<String,ParcelOutline> touched = new LinkedHashMap<String,ParcelOutline>();	// by this parcel
+
+	/**
+	 * Adds the point of a row to its placemark's outline, if the row is a KML LineString point.
+	 * @param row A geo file row.
+	 * @param x The longitude of the row.
+	 * @param y The latitude of the row.
+	 */
+	public void add(String[] row, double x, double y)
+	{	if(!ParcelOutline.isVertex(row))
+			return;
+		String placemark = ParcelOutline.placemarkOf(row);
+		ParcelOutline outline = pending.get(placemark);
+		if(outline == null)
+		{	outline = new ParcelOutline(row);
+			pending.put(placemark, outline);
+		}
+		outline.add(row, x, y);
+		touched.put(placemark, outline);
+	}
+
+	/**
+	 * Called after the rows of each joined parcel.
+	 * @return The outlines that the parcel completed, with their rings built.
+	 */
+	public LinkedList<ParcelOutline> endParcel()
+	{	LinkedList<ParcelOutline> complete = new LinkedList<ParcelOutline>();
+		Iterator<String> iter = touched.keySet().iterator();
+		String placemark;
+		ParcelOutline outline;
+		while(iter.hasNext())
+		{	placemark = iter.next();
+			outline = pending.get(placemark);
+			outline.buildRings();
+			if(outline.isComplete())
+			{	complete.add(outline);
+				pending.remove(placemark);
+			}
+		}
+		touched.clear();
+		return complete;
+	}
+
+	/**
+	 * Called after the last row.
+	 * @return The outlines still held, with their rings built.
+	 */
+	public LinkedList<ParcelOutline> finish()
+	{	LinkedList<ParcelOutline> complete = new LinkedList<ParcelOutline>(pending.values());
+		for(ParcelOutline outline:complete)
+			outline.buildRings();
+		pending.clear();
+		touched.clear();
+		return complete;
+	}
+
+	/**
+	 * @return The number of outlines held, waiting for more of their points.
+	 */
+	public int getPendingCount()
+	{	return pending.size();
+	}
+}
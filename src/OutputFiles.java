@@ -0,0 +1,40 @@
+import java.io.File;
+import java.util.LinkedHashSet;
+
+/**
+ * The output files that a conversion has created, recorded by each writer as it creates a file: the geo and flat
+ *   files, their shards and manifests, and the files of the other geo formats. The files of a conversion that was
+ *   cancelled are deleted from it, and a batch run journals them, so neither guesses the files from their names,
+ *   which would also match the user's own files or those of another pair. Temporary spool files are not recorded,
+ *   their writers delete them.
+ * <br>The writers of a conversion run on threads of their own, so the record is thread safe.
+ * @author thayer young
+ */
+public class OutputFiles
+{
+	private LinkedHashSet<File> files = new LinkedHashSet<File>();
+
+	/**
+	 * Records a file once it has been created, i.e. opened for writing.
+	 * @param file The file.
+	 */
+	public synchronized void add(File file)
+	{	files.add(file.getAbsoluteFile());
+	}
+
+	/**
+	 * @return The files recorded so far, in the order they were created.
+	 */
+	public synchronized File[] getFiles()
+	{	return files.toArray(new File[files.size()]);
+	}
+
+	/**
+	 * Deletes each file recorded, e.g. the partly written files of a conversion that was cancelled, and forgets them.
+	 */
+	public synchronized void delete()
+	{	for(File file:files)
+			file.delete();
+		files.clear();
+	}
+}
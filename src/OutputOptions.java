@@ -0,0 +1,46 @@
+/**
+ * The options of Witness.writeOutputFiles() beyond the tables and the files: who is told the outcome of each parcel,
+ *   which geo formats are written and how the text files are split. The defaults write the tab delimited geo and flat
+ *   files, one of each, as writeOutputFiles() without options does.
+ * @author thayer young
+ */
+public class OutputOptions
+{
+	private JoinListener listener = null;
+	private int geoFormats = Witness.GEO_FORMAT_TEXT;
+	private ShardPlan shardPlan = null;
+
+	public JoinListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * @param listener Is told the outcome of each parcel as it is joined, may be null.
+	 */
+	public void setListener(JoinListener listener) {
+		this.listener = listener;
+	}
+
+	public int getGeoFormats() {
+		return geoFormats;
+	}
+
+	/**
+	 * @param geoFormats The Witness.GEO_FORMAT_ flags of the geo files to be written, the text file by default.
+	 */
+	public void setGeoFormats(int geoFormats) {
+		this.geoFormats = geoFormats;
+	}
+
+	public ShardPlan getShardPlan() {
+		return shardPlan;
+	}
+
+	/**
+	 * @param shardPlan How the geo and flat text files are split, see ShardedTsvWriter, null by default to write one
+	 *   file each.
+	 */
+	public void setShardPlan(ShardPlan shardPlan) {
+		this.shardPlan = shardPlan;
+	}
+}
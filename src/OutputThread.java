@@ -0,0 +1,97 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A thread that writes one tab delimited output file. The rows are formatted on this thread and the full blocks are
+ *   written to the disk by a BlockWriter, which also compresses them if the file name ends with ".gz". The error that
+ *   stops the writing, if any, is kept for finish().
+ * @author thayer young
+ */
+public abstract class OutputThread extends Thread
+{
+	private File file;
+	private ShardPlan shards = null;
+	private String fileExtension = null;
+	private OutputFiles outputFiles = null;
+	private volatile Throwable error = null;
+
+	/**
+	 * @param name The name of the thread.
+	 * @param file The file to be written, or null if write() only writes other files.
+	 */
+	public OutputThread(String name, File file)
+	{	super(name);
+		this.file = file;
+	}
+
+	/**
+	 * @param name The name of the thread.
+	 * @param file The file to be written, or null if write() only writes other files.
+	 * @param shards How the file is split into shards by a ShardedTsvWriter, or null to write the one file.
+	 * @param fileExtension The file extension at the end of the file name, which also ends the shard file names.
+	 */
+	public OutputThread(String name, File file, ShardPlan shards, String fileExtension)
+	{	this(name, file);
+		this.shards = shards;
+		this.fileExtension = fileExtension;
+	}
+
+	/**
+	 * Writes the rows of the file.
+	 * @param out The writer for the file, it is closed after this method returns. Null if there is no file.
+	 */
+	protected abstract void write(TsvWriter out) throws IOException;
+
+	public void run()
+	{	TsvWriter out = null;
+		try
+		{	if(file != null && shards != null)
+				out = new ShardedTsvWriter(file, fileExtension, shards, getName() + " output", outputFiles);
+			else if(file != null)
+			{	out = new TsvWriter(BlockWriter.open(file, getName() + " output"));
+				if(outputFiles != null)
+					outputFiles.add(file);
+			}
+			write(out);
+		}catch(Throwable t)
+		{	error = t;
+		}
+		finally
+		{	try
+			{	if(out != null)
+					out.close();
+			}catch(IOException ioe)
+			{	if(error == null)
+					error = ioe;
+			}
+		}
+	}
+
+	/**
+	 * Waits for the file to be written.
+	 * @return The error that stopped the writing, or null if the file was written.
+	 * @throws InterruptedException If the wait is interrupted.
+	 */
+	public Throwable finish() throws InterruptedException
+	{	join();
+		return error;
+	}
+
+	/**
+	 * @return The file written by this thread. When it is split into shards, the file named in the shard manifest.
+	 */
+	public File getFile()
+	{	return file;
+	}
+
+	public OutputFiles getOutputFiles() {
+		return outputFiles;
+	}
+
+	/**
+	 * @param outputFiles Records the files this thread creates, its shards and manifest too, or null.
+	 */
+	public void setOutputFiles(OutputFiles outputFiles) {
+		this.outputFiles = outputFiles;
+	}
+}
@@ -18,7 +18,15 @@ public class Parcel<T extends Comparable<T>> extends LinkedList<DataRecordW<T>>
 	private boolean noMatchMBL = false;
 	/** True if the parcel has been completely joined. KML fields joined into matching MBL records */
 	private boolean joined = false;
+	/** True if the parcel was combined by aligning its courses after the geometry counts differed */
+	private boolean salvaged = false;
+	/** The confidence of the course alignment for a salvaged parcel, from 0 to 1 */
+	private double alignmentScore = 0;
+	/** The similarity of the ids of a parcel whose KML parcel was matched by a close id, 1 if the ids match */
+	private double idMatchScore = 1;
 	private String kmlName = null;
+	/** The MBL field records, e.g. "typ", of a joined parcel, whose records are only its courses */
+	private LinkedList<DataRecordW<T>> fieldRecords = null;
 	private T comparator;
 	private int geometryCount = 0;
 	
@@ -216,6 +224,36 @@ public class Parcel<T extends Comparable<T>> extends LinkedList<DataRecordW<T>>
 		this.noMatchMBL = noMatchMBL;
 	}
 
+	/** True if the parcel was combined by aligning its courses after the geometry counts differed */
+	public boolean isSalvaged() {
+		return salvaged;
+	}
+
+	/** True if the parcel was combined by aligning its courses after the geometry counts differed */
+	public void setSalvaged(boolean salvaged) {
+		this.salvaged = salvaged;
+	}
+
+	/** The confidence of the course alignment for a salvaged parcel, from 0 to 1 */
+	public double getAlignmentScore() {
+		return alignmentScore;
+	}
+
+	/** The confidence of the course alignment for a salvaged parcel, from 0 to 1 */
+	public void setAlignmentScore(double alignmentScore) {
+		this.alignmentScore = alignmentScore;
+	}
+
+	/** The similarity of the ids of a parcel whose KML parcel was matched by a close id, 1 if the ids match */
+	public double getIdMatchScore() {
+		return idMatchScore;
+	}
+
+	/** The similarity of the ids of a parcel whose KML parcel was matched by a close id, 1 if the ids match */
+	public void setIdMatchScore(double idMatchScore) {
+		this.idMatchScore = idMatchScore;
+	}
+
 	public static boolean isMessagesSilent() {
 		return messagesSilent;
 	}
@@ -228,6 +266,23 @@ public class Parcel<T extends Comparable<T>> extends LinkedList<DataRecordW<T>>
 		this.kmlName = kmlName;
 	}
 
+	/**
+	 * Keeps an MBL field record, not a course, with a joined parcel.
+	 * @param record The field record, it is shared, not copied.
+	 */
+	public void addFieldRecord(DataRecordW<T> record)
+	{	if(fieldRecords == null)
+			fieldRecords = new LinkedList<DataRecordW<T>>();
+		fieldRecords.add(record);
+	}
+
+	/**
+	 * @return The MBL field records kept by addFieldRecord(), or null if there are none.
+	 */
+	public LinkedList<DataRecordW<T>> getFieldRecords() {
+		return fieldRecords;
+	}
+
 	public Parcel<T> clone()
 	{	LinkedList<DataRecordW<T>> copy = new LinkedList<DataRecordW<T>>();
 		int index;
@@ -236,6 +291,15 @@ public class Parcel<T extends Comparable<T>> extends LinkedList<DataRecordW<T>>
 		return new Parcel<T>(copy,getComparator(),getGeometryCount(),getKmlName());
 	}
 	
+	/**
+	 * Returns a copy of the parcel that shares its records. Records can be added to or removed from the copy without
+	 *   changing the original parcel, but the records themselves must not be changed.
+	 * @return A shallow copy of the parcel.
+	 */
+	public Parcel<T> shallowCopy()
+	{	return new Parcel<T>(this,getComparator(),getGeometryCount(),getKmlName());
+	}
+	
 	/**
 	 * This equals method only checks if the 'comparator' parameters are the same between Parcel instances.  
 	 * @param otherParcel The Parcel to be checked against.
@@ -0,0 +1,482 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map.Entry;
+
+/**
+ * Compares two versions of an MBL or KML file parcel by parcel, e.g. the yearly versions of a county's deed file, and
+ *   writes each added, removed and modified parcel to a tab delimited diff file, down to the fields, courses and found
+ *   search terms that changed. The parcels are matched by their id, Parcel.getComparator(). A parcel whose id is
+ *   repeated is matched with the parcel in the same place among the parcels with that id in the other file.
+ * <br>The files are compared with a Grace hash join, so that the memory used does not grow with the files: each file
+ *   is parsed once and each parcel is spooled to one of a number of partition files by the hash of its id, then the
+ *   partitions are compared one at a time, the older partition held in a hash table by id while the newer one is read.
+ *   The time is linear in the size of the files. The diff lists the parcels partition by partition, not in the order
+ *   of the files; the PIDs of each row, the places of the parcel in the two files, give that order.
+ * @author thayer young
+ */
+public class ParcelDiff
+{
+	/** Change: a parcel that is only in the newer file. */
+	public static final String ADDED = "added";
+	/** Change: a parcel that is only in the older file. */
+	public static final String REMOVED = "removed";
+	/** Change: a parcel that is in both files, with one row per field, course, term or point that changed. */
+	public static final String MODIFIED = "modified";
+	/** Part: the whole parcel that was added or removed, its values are its course or point counts. */
+	public static final String PART_PARCEL = "parcel";
+	/** Part: an MBL field, named by its field name, with " [2]" etc. if the name is repeated in the parcel. */
+	public static final String PART_FIELD = "field";
+	/** Part: an MBL course, named by its number in the parcel, its values are the course as written in the file. */
+	public static final String PART_COURSE = "course";
+	/** Part: the search terms found in the comment of an MBL course, named by the number of the course. */
+	public static final String PART_TERMS = "terms";
+	/** Part: a KML record, named by its number in the parcel, its values are its GID, type, id and coordinates. */
+	public static final String PART_POINT = "point";
+	/** The suffix of the diff file, see Witness.appendSuffix(). */
+	public static final String DIFF_SUFFIX = "_diff";
+	/** The columns of the diff file. */
+	public static final String[] DIFF_COLUMNS = {"Change","id","OldPID","NewPID","Part","Name","OldValue","NewValue"};
+
+	/** Count: parcels that are only in the newer file. */
+	public static final int COUNT_ADDED = 0;
+	/** Count: parcels that are only in the older file. */
+	public static final int COUNT_REMOVED = 1;
+	/** Count: parcels in both files that changed. */
+	public static final int COUNT_MODIFIED = 2;
+	/** Count: parcels in both files that did not change. */
+	public static final int COUNT_UNCHANGED = 3;
+	/** Count: changed fields of the modified parcels. */
+	public static final int COUNT_FIELDS = 4;
+	/** Count: changed courses of the modified parcels. */
+	public static final int COUNT_COURSES = 5;
+	/** Count: courses of the modified parcels whose found search terms changed. */
+	public static final int COUNT_TERMS = 6;
+	/** Count: changed KML records of the modified parcels. */
+	public static final int COUNT_POINTS = 7;
+	private static final String[] COUNT_NAMES = {"Parcels added","Parcels removed","Parcels modified","Parcels unchanged",
+			"Fields changed","Courses changed","Courses with changed search terms","KML points changed"};
+
+	/** The default number of bytes of the larger file per partition. */
+	public static final long DEFAULT_PARTITION_BYTES = 8L << 20;
+	private static final int MAX_PARTITIONS = 1024;
+	private static final int SPOOL_BUFFER_SIZE = 1 << 15;
+	private static final String NO_ID = "";		// the key of the parcels without an id
+
+	private FieldClassifier fields;
+	private TermMatcher terms;
+	private long partitionBytes = DEFAULT_PARTITION_BYTES;
+	private int[] counts = new int[COUNT_NAMES.length];
+
+	/**
+	 * A parcel and its PID, its place in its file.
+	 */
+	private static class NumberedParcel
+	{	int pid;
+		Parcel<String> parcel;
+
+		NumberedParcel(int pid, Parcel<String> parcel)
+		{	this.pid = pid;
+			this.parcel = parcel;
+		}
+	}
+
+	/**
+	 * @param singleLineFields The custom single line fields, as for Witness.textToTable().
+	 * @param multipleLineFields The custom multiple line fields, as for Witness.textToTable().
+	 * @param geoCommentSearchTerms The terms searched for in the course comments, as for Witness.writeOutputFiles().
+	 */
+	public ParcelDiff(String[] singleLineFields, String[] multipleLineFields, String[] geoCommentSearchTerms)
+	{	fields = new FieldClassifier(singleLineFields, multipleLineFields);
+		terms = new TermMatcher(geoCommentSearchTerms);
+	}
+
+	/**
+	 * Compares two versions of a file and writes the diff file.
+	 * @param oldFile The older version of the MBL or KML file.
+	 * @param newFile The newer version of the file.
+	 * @param isKML True if the files are KML files.
+	 * @param diffFile The diff file to be written, see DIFF_COLUMNS.
+	 * @return The counts of the changes, indexed by COUNT_ADDED etc.
+	 * @throws IOException If a file can not be read or written.
+	 */
+	public int[] diff(File oldFile, File newFile, boolean isKML, File diffFile) throws IOException
+	{	int partitions = (int) Math.min(MAX_PARTITIONS, 1 + Math.max(oldFile.length(), newFile.length()) / Math.max(partitionBytes, 1));
+		File directory = diffFile.getAbsoluteFile().getParentFile();
+		File[] oldPartitions = null, newPartitions = null;
+		counts = new int[COUNT_NAMES.length];
+		try
+		{	oldPartitions = partition(oldFile, isKML, partitions, directory);
+			newPartitions = partition(newFile, isKML, partitions, directory);
+			TsvWriter out = TsvWriter.open(diffFile);
+			try
+			{	out.row(DIFF_COLUMNS);
+				for(int partition = 0; partition < partitions; partition++)
+					diffPartition(oldPartitions[partition], newPartitions[partition], isKML, out);
+			}
+			finally
+			{	out.close();
+			}
+		}
+		finally
+		{	delete(oldPartitions);
+			delete(newPartitions);
+		}
+		return counts;
+	}
+
+	/**
+	 * Parses a file and spools each parcel to its partition, by the hash of its id.
+	 * @return The partition files.
+	 */
+	private File[] partition(File file, boolean isKML, int partitions, File directory) throws IOException
+	{	File[] files = new File[partitions];
+		DataOutputStream[] outs = new DataOutputStream[partitions];
+		LineReader lines = new LineReader(file);
+		boolean complete = false;
+		try
+		{	for(int partition = 0; partition < partitions; partition++)
+			{	files[partition] = File.createTempFile("witness", ".diff", directory);
+				files[partition].deleteOnExit();
+				outs[partition] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[partition]), SPOOL_BUFFER_SIZE));
+			}
+			ParcelSource parser = isKML ? new KmlParser(lines) : new MblParser(lines, fields);
+			Parcel<String> parcel;
+			int pid = 0;
+			while((parcel = parser.next()) != null)
+				writeParcel(outs[partitionOf(key(parcel), partitions)], ++pid, parcel);
+			complete = true;
+		}
+		finally
+		{	lines.close();
+			for(DataOutputStream out:outs)
+			{	if(out != null)
+					out.close();
+			}
+			if(!complete)
+				delete(files);
+		}
+		return files;
+	}
+
+	private static String key(Parcel<String> parcel)
+	{	return parcel.getComparator() == null ? NO_ID : parcel.getComparator();
+	}
+
+	private static int partitionOf(String key, int partitions)
+	{	return (key.hashCode() & Integer.MAX_VALUE) % partitions;
+	}
+
+	private static void writeParcel(DataOutputStream out, int pid, Parcel<String> parcel) throws IOException
+	{	out.writeInt(pid);
+		FlatSpool.writeString(out, parcel.getComparator());
+		out.writeInt(parcel.getGeometryCount());
+		out.writeInt(parcel.size());
+		for(DataRecordW<String> record:parcel)
+		{	out.writeInt(record.size());
+			for(String value:record)
+				FlatSpool.writeString(out, value);
+		}
+	}
+
+	/**
+	 * @return The next parcel of a partition, or null at its end.
+	 */
+	private static NumberedParcel readParcel(DataInputStream in, boolean isKML) throws IOException
+	{	int pid;
+		try
+		{	pid = in.readInt();
+		}catch(EOFException eofe)
+		{	return null;
+		}
+		String comparator = FlatSpool.readString(in);
+		int geometryCount = in.readInt(), size = in.readInt();
+		LinkedList<DataRecordW<String>> records = new LinkedList<DataRecordW<String>>();
+		String[] fields;
+		for(int record = 0; record < size; record++)
+		{	fields = new String[in.readInt()];
+			for(int field = 0; field < fields.length; field++)
+				fields[field] = FlatSpool.readString(in);
+			records.add(new DataRecordW<String>(fields, 1, isKML ? Witness.KML_PID : Witness.MBL_FIELDNAME));
+		}
+		return new NumberedParcel(pid, new Parcel<String>(records, comparator, geometryCount, null));
+	}
+
+	/**
+	 * Holds the older partition by id, then matches each parcel of the newer partition with the first older parcel with
+	 *   its id. The older parcels left over were removed.
+	 */
+	private void diffPartition(File oldPartition, File newPartition, boolean isKML, TsvWriter out) throws IOException
+	{	LinkedHashMap<String,LinkedList<NumberedParcel>> oldById = new LinkedHashMap<String,LinkedList<NumberedParcel>>();
+		LinkedList<NumberedParcel> withId;
+		NumberedParcel numbered, oldParcel;
+		String key;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(oldPartition), SPOOL_BUFFER_SIZE));
+		try
+		{	while((numbered = readParcel(in, isKML)) != null)
+			{	key = key(numbered.parcel);
+				withId = oldById.get(key);
+				if(withId == null)
+				{	withId = new LinkedList<NumberedParcel>();
+					oldById.put(key, withId);
+				}
+				withId.add(numbered);
+			}
+		}
+		finally
+		{	in.close();
+		}
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(newPartition), SPOOL_BUFFER_SIZE));
+		try
+		{	while((numbered = readParcel(in, isKML)) != null)
+			{	key = key(numbered.parcel);
+				withId = oldById.get(key);
+				oldParcel = withId == null ? null : withId.poll();
+				if(withId != null && withId.isEmpty())
+					oldById.remove(key);
+				if(oldParcel == null)
+				{	counts[COUNT_ADDED]++;
+					writeParcelRow(out, ADDED, null, numbered, isKML);
+				}
+				else if(isKML ? comparePoints(out, oldParcel, numbered) : compareParcels(out, oldParcel, numbered))
+					counts[COUNT_MODIFIED]++;
+				else counts[COUNT_UNCHANGED]++;
+			}
+		}
+		finally
+		{	in.close();
+		}
+		for(LinkedList<NumberedParcel> removed:oldById.values())
+		{	for(NumberedParcel parcel:removed)
+			{	counts[COUNT_REMOVED]++;
+				writeParcelRow(out, REMOVED, parcel, null, isKML);
+			}
+		}
+	}
+
+	private static void writeParcelRow(TsvWriter out, String change, NumberedParcel oldParcel, NumberedParcel newParcel, boolean isKML) throws IOException
+	{	String unit = isKML ? " points" : " courses";
+		NumberedParcel parcel = oldParcel == null ? newParcel : oldParcel;
+		out.row(change, parcel.parcel.getComparator(), oldParcel == null ? null : Integer.toString(oldParcel.pid),
+				newParcel == null ? null : Integer.toString(newParcel.pid), PART_PARCEL, null,
+				oldParcel == null ? null : oldParcel.parcel.getGeometryCount() + unit, newParcel == null ? null : newParcel.parcel.getGeometryCount() + unit);
+	}
+
+	private static void writeChangeRow(TsvWriter out, NumberedParcel oldParcel, NumberedParcel newParcel, String part, String name, String oldValue, String newValue) throws IOException
+	{	out.row(MODIFIED, newParcel.parcel.getComparator(), Integer.toString(oldParcel.pid), Integer.toString(newParcel.pid), part, name, oldValue, newValue);
+	}
+
+	/**
+	 * Writes the fields, courses and found terms of an MBL parcel that changed.
+	 * @return True if any of them changed.
+	 */
+	private boolean compareParcels(TsvWriter out, NumberedParcel oldParcel, NumberedParcel newParcel) throws IOException
+	{	boolean changed = false;
+		LinkedHashMap<String,String> oldFields = fields(oldParcel.parcel), newFields = fields(newParcel.parcel);
+		String oldValue;
+		for(Entry<String,String> field:newFields.entrySet())
+		{	oldValue = oldFields.remove(field.getKey());
+			if(oldValue == null || !oldValue.equals(field.getValue()))
+			{	writeChangeRow(out, oldParcel, newParcel, PART_FIELD, field.getKey(), oldValue, field.getValue());
+				counts[COUNT_FIELDS]++;
+				changed = true;
+			}
+		}
+		for(Entry<String,String> field:oldFields.entrySet())		// fields that were removed
+		{	writeChangeRow(out, oldParcel, newParcel, PART_FIELD, field.getKey(), field.getValue(), null);
+			counts[COUNT_FIELDS]++;
+			changed = true;
+		}
+		ArrayList<DataRecordW<String>> oldCourses = courses(oldParcel.parcel), newCourses = courses(newParcel.parcel);
+		DataRecordW<String> oldCourse, newCourse;
+		String name, oldTerms, newTerms, newValue;
+		for(int index = 0; index < Math.max(oldCourses.size(), newCourses.size()); index++)
+		{	oldCourse = index < oldCourses.size() ? oldCourses.get(index) : null;
+			newCourse = index < newCourses.size() ? newCourses.get(index) : null;
+			name = Integer.toString(index + 1);
+			oldValue = courseText(oldCourse);
+			newValue = courseText(newCourse);
+			if(oldValue == null || !oldValue.equals(newValue))
+			{	writeChangeRow(out, oldParcel, newParcel, PART_COURSE, name, oldValue, newValue);
+				counts[COUNT_COURSES]++;
+				changed = true;
+			}
+			oldTerms = foundTerms(oldCourse);
+			newTerms = foundTerms(newCourse);
+			if(!oldTerms.equals(newTerms))
+			{	writeChangeRow(out, oldParcel, newParcel, PART_TERMS, name, oldTerms, newTerms);
+				counts[COUNT_TERMS]++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return The values of the fields and comments of an MBL parcel by name, with " [2]" etc. after a repeated name.
+	 *   The "loc_tay" that the MblParser splits from a "loc" field is left out.
+	 */
+	private static LinkedHashMap<String,String> fields(Parcel<String> parcel)
+	{	LinkedHashMap<String,String> fields = new LinkedHashMap<String,String>();
+		String fieldName, previous = null, name;
+		int repeat;
+		for(DataRecordW<String> record:parcel)
+		{	fieldName = record.get(Witness.MBL_FIELDNAME);
+			if("0".equals(record.get(Witness.MBL_EDGEPOINTCOUNT)) && (!fieldName.equals("loc_tay") || !"loc".equals(previous)))
+			{	name = fieldName;
+				for(repeat = 2; fields.containsKey(name); repeat++)
+					name = fieldName + " [" + repeat + "]";
+				fields.put(name, valueOf(record, Witness.MBL_VALUE));
+			}
+			previous = fieldName;
+		}
+		return fields;
+	}
+
+	private static ArrayList<DataRecordW<String>> courses(Parcel<String> parcel)
+	{	ArrayList<DataRecordW<String>> courses = new ArrayList<DataRecordW<String>>();
+		for(DataRecordW<String> record:parcel)
+		{	if(!"0".equals(record.get(Witness.MBL_EDGEPOINTCOUNT)))
+				courses.add(record);
+		}
+		return courses;
+	}
+
+	/**
+	 * @return The course as it is written in the MBL file, e.g. "ln S2.3E;48.4;to a stake", or null if there is none.
+	 */
+	private static String courseText(DataRecordW<String> course)
+	{	if(course == null)
+			return null;
+		return course.get(Witness.MBL_FIELDNAME) + " " + course.get(Witness.MBL_G_DIRECTION) + ";"
+				+ course.get(Witness.MBL_G_DISTANCE) + ";" + course.get(Witness.MBL_G_DDCOMMENT);
+	}
+
+	private String foundTerms(DataRecordW<String> course)
+	{	if(course == null)
+			return "";
+		String found = terms.find(course.get(Witness.MBL_G_DDCOMMENT));
+		return found.endsWith(", ") ? found.substring(0, found.length() - 2) : found;
+	}
+
+	/**
+	 * Writes the records of a KML parcel that changed, compared in order.
+	 * @return True if any of them changed.
+	 */
+	private boolean comparePoints(TsvWriter out, NumberedParcel oldParcel, NumberedParcel newParcel) throws IOException
+	{	boolean changed = false;
+		ArrayList<DataRecordW<String>> oldPoints = new ArrayList<DataRecordW<String>>(oldParcel.parcel);
+		ArrayList<DataRecordW<String>> newPoints = new ArrayList<DataRecordW<String>>(newParcel.parcel);
+		String oldValue, newValue;
+		for(int index = 0; index < Math.max(oldPoints.size(), newPoints.size()); index++)
+		{	oldValue = index < oldPoints.size() ? valueOf(oldPoints.get(index), Witness.KML_GID) : null;
+			newValue = index < newPoints.size() ? valueOf(newPoints.get(index), Witness.KML_GID) : null;
+			if(oldValue == null || !oldValue.equals(newValue))
+			{	writeChangeRow(out, oldParcel, newParcel, PART_POINT, Integer.toString(index + 1), oldValue, newValue);
+				counts[COUNT_POINTS]++;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * @return The values of a record from the index on, separated by spaces. The PID, at 1 in an MBL record and at 0
+	 *   in a KML record, is left out, it changes whenever a parcel is added before it.
+	 */
+	private static String valueOf(DataRecordW<String> record, int from)
+	{	StringBuilder value = new StringBuilder();
+		for(int index = from; index < record.size(); index++)
+		{	if(index > from)
+				value.append(' ');
+			value.append(record.get(index) == null ? "" : record.get(index));
+		}
+		return value.toString();
+	}
+
+	private static void delete(File[] files)
+	{	if(files == null)
+			return;
+		for(File file:files)
+		{	if(file != null)
+				file.delete();
+		}
+	}
+
+	/**
+	 * @param kind The kind of count, COUNT_ADDED etc.
+	 * @return The count of the last diff.
+	 */
+	public int getCount(int kind)
+	{	return counts[kind];
+	}
+
+	/**
+	 * @return The counts of the last diff, one per line, to be shown to the user.
+	 */
+	public String toString()
+	{	StringBuilder summary = new StringBuilder();
+		for(int kind = 0; kind < COUNT_NAMES.length; kind++)
+			summary.append(COUNT_NAMES[kind]).append(": ").append(counts[kind]).append('\n');
+		return summary.toString();
+	}
+
+	public long getPartitionBytes() {
+		return partitionBytes;
+	}
+
+	/**
+	 * @param partitionBytes The number of bytes of the larger file per partition, which sets the number of partitions
+	 *   and so the memory used: a partition of the older file is held at a time.
+	 */
+	public void setPartitionBytes(long partitionBytes) {
+		this.partitionBytes = partitionBytes;
+	}
+
+	/**
+	 * Compares two versions of a small MBL file: 1000 is unchanged, 1001 has a course of another distance, 1002 is
+	 *   removed, 1003 added, and 1005 has another type and another comment on its last course, which no longer holds
+	 *   the search term "oak". The diff is run with one partition and with a partition per few parcels, and prints its
+	 *   counts, with those it should have, and its rows.
+	 * @param args
+	 * @throws IOException If a file can not be written or read.
+	 */
+	public static void main(String[] args) throws IOException
+	{	String[] square = {"N10E;100", "S80E;100", "S10W;100", "N80W;100"}, triangle = {"N0E;100", "S60E;100", "S60W;100"};
+		File oldFile = File.createTempFile("witness", ".mbl"), newFile = File.createTempFile("witness", ".mbl");
+		File diffFile = File.createTempFile("witness", ".txt");
+		FileWriter out = new FileWriter(oldFile);
+		out.write(StreamingJoin.mblParcel("1000", square) + StreamingJoin.mblParcel("1001", triangle)
+				+ StreamingJoin.mblParcel("1002", square) + StreamingJoin.mblParcel("1005", triangle));
+		out.close();
+		out = new FileWriter(newFile);
+		out.write(StreamingJoin.mblParcel("1000", square) + StreamingJoin.mblParcel("1001", triangle).replace("S60E;100", "S60E;120")
+				+ StreamingJoin.mblParcel("1003", triangle) + StreamingJoin.mblParcel("1005", triangle).replace("typ pat", "typ cert")
+				.replace("S60W;100;to an oak", "S60W;100;to a poplar"));
+		out.close();
+		int[] expected = {1, 1, 2, 1, 1, 2, 1, 0};
+		ParcelDiff diff = new ParcelDiff(new String[0], new String[0], new String[]{"oak"});
+		for(long partitionBytes:new long[]{DEFAULT_PARTITION_BYTES, 64})
+		{	diff.setPartitionBytes(partitionBytes);
+			int[] counts = diff.diff(oldFile, newFile, false, diffFile);
+			System.out.println("Partitions of " + partitionBytes + " bytes:");
+			for(int kind = 0; kind < COUNT_NAMES.length; kind++)
+				System.out.println("\t" + COUNT_NAMES[kind] + ": " + counts[kind] + (counts[kind] == expected[kind] ? "" : "\t<-- should be "
+						+ expected[kind]));
+		}
+		for(String row:Witness.readInLines(diffFile))
+			System.out.println(row);
+		oldFile.delete();
+		newFile.delete();
+		diffFile.delete();
+	}
+}
@@ -0,0 +1,173 @@
+import java.util.Arrays;
+
+/**
+ * Collects the KML LineString points of one KML placemark from the geo file rows, and builds the rings of its
+ *   outline. The points are put back in their KML order by their KML_gid, and a ring is closed each time the line
+ *   returns to its first point, so a placemark with several tracts has several rings. A line that does not return to
+ *   its first point is closed.
+ * <br>The outline looks complete when its KML_gids run without a gap from the first LineString point and its last
+ *   ring returns to its first point.
+ * @author thayer young
+ */
+public class ParcelOutline
+{
+	// the geo file columns read, see Witness.GEO_COLUMNS
+	private static final int PID = 1, KML_PID = 9, KML_GID = 10, KML_GTYPE = 11, KML_NAME = 12, KML_ID = 13;
+	private static final String ID_GID_SEPARATOR = "    [";		// the KML_id of a point is the id then "    [gid]"
+	private static final int FIRST_LINE_GID = 1;		// 0 is the placemark's Point, if it has one
+
+	private String pid, kmlPid, name, id;
+	private long[] points = new long[16];	// the gid and the index of the coordinates
+	private double[] xy = new double[32];
+	private int count = 0;
+	private double[][] rings = new double[4][];
+	private int ringCount = 0, pointCount = 0;
+	private boolean complete = false;
+
+	/**
+	 * @param row A geo file row for which isVertex() is true, its placemark's attributes are kept.
+	 */
+	public ParcelOutline(String[] row)
+	{	kmlPid = row[KML_PID];
+		name = row[KML_NAME];
+		id = row[KML_ID];
+		if(id != null && id.contains(ID_GID_SEPARATOR))
+			id = id.substring(0, id.indexOf(ID_GID_SEPARATOR));
+	}
+
+	/**
+	 * @param row A geo file row.
+	 * @return True if the row is a KML LineString point, a point of a placemark's outline.
+	 */
+	public static boolean isVertex(String[] row)
+	{	return "LineString".equals(row[KML_GTYPE]) && row[KML_PID] != null && row[KML_GID] != null;
+	}
+
+	/**
+	 * @param row A geo file row for which isVertex() is true.
+	 * @return The KML_pid of the row, which identifies its placemark.
+	 */
+	public static String placemarkOf(String[] row)
+	{	return row[KML_PID];
+	}
+
+	/**
+	 * Adds the point of a row of this placemark.
+	 * @param row A geo file row for which isVertex() is true.
+	 * @param x The longitude of the point.
+	 * @param y The latitude of the point.
+	 */
+	public void add(String[] row, double x, double y)
+	{	int gid;
+		try
+		{	gid = Integer.parseInt(row[KML_GID].trim());
+		}catch(NumberFormatException nfe)
+		{	return;
+		}
+		if(pid == null)
+			pid = row[PID];
+		if(count == points.length)
+		{	points = Arrays.copyOf(points, count * 2);
+			xy = Arrays.copyOf(xy, count * 4);
+		}
+		points[count] = ((long) gid << 32) | count;	// sorts by gid
+		xy[2 * count] = x;
+		xy[2 * count + 1] = y;
+		count++;
+	}
+
+	/**
+	 * Builds the rings from the points added so far.
+	 * @return The number of rings, 0 if there are too few points for a ring.
+	 */
+	public int buildRings()
+	{	Arrays.sort(points, 0, count);
+		double[] ring = new double[2 * count + 2];
+		int ringPoints = 0, index, point, lastGid = Integer.MIN_VALUE, gid;
+		ringCount = 0;
+		pointCount = 0;
+		complete = count > 0 && (int) (points[0] >> 32) <= FIRST_LINE_GID;
+		for(index = 0; index < count; index++)
+		{	gid = (int) (points[index] >> 32);
+			if(gid == lastGid)		// the same KML point in two rows
+				continue;
+			if(lastGid != Integer.MIN_VALUE && gid != lastGid + 1)
+				complete = false;		// a point is missing
+			lastGid = gid;
+			pointCount++;
+			point = (int) points[index];
+			ring[2 * ringPoints] = xy[2 * point];
+			ring[2 * ringPoints + 1] = xy[2 * point + 1];
+			ringPoints++;
+			if(ringPoints >= 4 && ring[2 * ringPoints - 2] == ring[0] && ring[2 * ringPoints - 1] == ring[1])
+			{	addRing(ring, ringPoints);
+				ringPoints = 0;
+			}
+		}
+		if(ringPoints > 0)
+			complete = false;
+		if(ringPoints >= 3)		// a line that does not return to its first point is closed
+		{	ring[2 * ringPoints] = ring[0];
+			ring[2 * ringPoints + 1] = ring[1];
+			addRing(ring, ringPoints + 1);
+		}
+		return ringCount;
+	}
+
+	private void addRing(double[] ring, int ringPoints)
+	{	if(ringCount == rings.length)
+			rings = Arrays.copyOf(rings, ringCount * 2);
+		rings[ringCount++] = Arrays.copyOf(ring, 2 * ringPoints);
+	}
+
+	/**
+	 * @return The rings from buildRings(), each an array of x, y pairs whose last point is its first.
+	 */
+	public double[][] getRings()
+	{	return rings;
+	}
+
+	/**
+	 * @return The number of rings from buildRings().
+	 */
+	public int getRingCount()
+	{	return ringCount;
+	}
+
+	/**
+	 * @return The number of distinct points in the rings from buildRings(), not counting the closing points added.
+	 */
+	public int getPointCount()
+	{	return pointCount;
+	}
+
+	/**
+	 * @return The MBL PID of the first joined row of the placemark, or null.
+	 */
+	public String getPid()
+	{	return pid;
+	}
+
+	public String getKmlPid()
+	{	return kmlPid;
+	}
+
+	public String getName()
+	{	return name;
+	}
+
+	/**
+	 * @return The KML id of the placemark.
+	 */
+	public String getId()
+	{	return id;
+	}
+
+	/**
+	 * @return True if the rings from buildRings() look complete: no point is missing and the last ring returned to its
+	 *   first point. More points may still arrive for an outline that does not.
+	 */
+	public boolean isComplete()
+	{	return complete;
+	}
+}
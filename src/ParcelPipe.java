@@ -0,0 +1,110 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded hand-off of parcels from one thread to another, e.g. from the join to the geo file writer. The producer
+ *   blocks in put() while the pipe is full, so the consumer sets the pace and at most 'capacity' parcels are held.
+ *   The producer must call close() when it is done, the consumer then sees the end of the iteration.
+ * <br>If the consumer stops early it calls abandon(), after which put() discards the parcels instead of blocking.
+ * @author thayer young
+ */
+public class ParcelPipe<T extends Comparable<T>> implements Iterable<Parcel<T>>
+{
+	/** The default number of parcels the pipe holds before the producer waits. */
+	public static final int DEFAULT_CAPACITY = 256;
+	private static final long OFFER_WAIT_MILLISECONDS = 100;
+
+	private final Parcel<T> end = new Parcel<T>();	// the end marker, compared by identity
+	private ArrayBlockingQueue<Parcel<T>> queue;
+	private volatile boolean abandoned = false;
+	private boolean ended = false;
+
+	public ParcelPipe()
+	{	this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity The number of parcels the pipe holds before put() waits.
+	 */
+	public ParcelPipe(int capacity)
+	{	queue = new ArrayBlockingQueue<Parcel<T>>(Math.max(capacity, 1));
+	}
+
+	/**
+	 * Passes a parcel to the consumer, waiting while the pipe is full.
+	 * @param parcel The parcel.
+	 * @throws InterruptedException If the producer is interrupted while waiting.
+	 */
+	public void put(Parcel<T> parcel) throws InterruptedException
+	{	while(!abandoned && !queue.offer(parcel, OFFER_WAIT_MILLISECONDS, TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * Marks the end of the parcels, must be called once by the producer, also when it fails.
+	 * @throws InterruptedException If the producer is interrupted while waiting.
+	 */
+	public void close() throws InterruptedException
+	{	put(end);
+	}
+
+	/**
+	 * Called by the consumer when it stops taking parcels, so that the producer is not left waiting, or by a producer
+	 *   that can not close the pipe, so that the consumer sees the end.
+	 */
+	public void abandon()
+	{	abandoned = true;
+		queue.clear();
+		queue.offer(end);
+	}
+
+	/**
+	 * Takes the next parcel, waiting until the producer has passed one.
+	 * @return The parcel, or null once the producer has closed the pipe.
+	 * @throws InterruptedException If the consumer is interrupted while waiting.
+	 */
+	public Parcel<T> take() throws InterruptedException
+	{	if(ended)
+			return null;
+		Parcel<T> parcel = queue.take();
+		if(parcel == end)
+		{	ended = true;
+			return null;
+		}
+		return parcel;
+	}
+
+	/**
+	 * @return An iterator for the consumer, which takes the parcels until the pipe is closed. It can be used once.
+	 */
+	public Iterator<Parcel<T>> iterator()
+	{	return new Iterator<Parcel<T>>()
+		{	private Parcel<T> next = null;
+
+			public boolean hasNext()
+			{	if(next == null)
+				{	try
+					{	next = take();
+					}catch(InterruptedException ie)
+					{	Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while waiting for a parcel.", ie);
+					}
+				}
+				return next != null;
+			}
+
+			public Parcel<T> next()
+			{	if(!hasNext())
+					throw new NoSuchElementException();
+				Parcel<T> parcel = next;
+				next = null;
+				return parcel;
+			}
+
+			public void remove()
+			{	throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
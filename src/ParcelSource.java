@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+/**
+ * Produces the parcels of a DeedMapper file one at a time, so that a file can be converted without holding all of
+ *   its parcels, e.g. the MblParser and the KmlParser.
+ * @author thayer young
+ */
+public interface ParcelSource
+{
+	/**
+	 * Parses the next parcel.
+	 * @return The next parcel, or null if there are no more parcels.
+	 * @throws IOException If the lines can not be read.
+	 */
+	public Parcel<String> next() throws IOException;
+}
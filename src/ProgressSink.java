@@ -0,0 +1,31 @@
+/**
+ * Receives the progress of a conversion from each of its stages, e.g. to move the progress bar of the GUI, and tells
+ *   the stages when the conversion has been cancelled. The stages call it from their own threads, every few parcels,
+ *   so it must be thread safe and quick. A stage that finds the conversion cancelled stops with a
+ *   CancellationException, and the partly written output files are deleted.
+ * @author thayer young
+ */
+public interface ProgressSink
+{
+	/** The stage that reads and parses the files, counted in characters of both files. */
+	public static final int STAGE_PARSE = 0;
+	/** The stage that joins the parcels, counted in parcels. Its total is not known in advance. */
+	public static final int STAGE_JOIN = 1;
+	/** The stage that writes the geo file, counted in parcels. Its total is not known in advance. */
+	public static final int STAGE_WRITE_GEO = 2;
+	/** The stage that writes the flat file once the MBL file has been parsed, counted in parcels. */
+	public static final int STAGE_WRITE_FLAT = 3;
+
+	/**
+	 * Called as a stage makes progress.
+	 * @param stage One of the STAGE_ constants.
+	 * @param done The amount of the stage that is done.
+	 * @param total The amount of the whole stage, or -1 if it is not known.
+	 */
+	public void progress(int stage, long done, long total);
+
+	/**
+	 * @return True if the conversion should stop as soon as it can.
+	 */
+	public boolean isCancelled();
+}
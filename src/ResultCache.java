@@ -0,0 +1,275 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * A folder of the results of each stage of a conversion, named by the SHA-256 hash of everything that the stage
+ *   depends on, so that a stage whose inputs have not changed is not run again: a parsed file depends on the content
+ *   of the file and the custom fields, and the join on both files and the custom fields. Only the stages after the
+ *   join, e.g. the matching of the search terms and the writing of the geo files, are always run.
+ * <br>The files are hashed by their content, not their name, so a renamed or copied file still matches. A hash is
+ *   remembered with the length and modification time of its file, in the hash index, so an unchanged file is not
+ *   read again either. An entry is written to a temporary file and renamed once it is complete, so an entry that is
+ *   found is always whole. The folder can be deleted at any time, the results are then worked out again.
+ * @author thayer young
+ */
+public class ResultCache
+{
+	/** The name of the cache folder, e.g. in the output folder. */
+	public static final String DEFAULT_DIRECTORY = "witness_cache";
+	/** The suffix of a JoinReport entry. */
+	public static final String REPORT_SUFFIX = ".report";
+	/** The stage name of the key of a parsed file. */
+	public static final String PARSE_STAGE = "parse";
+	/** The stage name of the key of a join. */
+	public static final String JOIN_STAGE = "join";
+	private static final String HASH_INDEX = "hashes.txt";
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int READ_BLOCK_SIZE = 1 << 20;
+	private static final int REPORT_VERSION = 1;
+
+	private File directory;
+	private HashMap<String,String> hashes = null;	// by the path, length and modification time of the file
+
+	/**
+	 * @param directory The cache folder, it is created when the first entry is written.
+	 */
+	public ResultCache(File directory)
+	{	this.directory = directory;
+	}
+
+	/**
+	 * @param parts The stage name and everything that the stage depends on, e.g. the hashes of its files and its
+	 *   settings.
+	 * @return The key of the entry, the hex SHA-256 hash of the parts.
+	 */
+	public static String key(String...parts)
+	{	MessageDigest digest = newDigest();
+		try
+		{	for(String part:parts)
+			{	digest.update(String.valueOf(part).getBytes("UTF-8"));
+				digest.update((byte) 0);		// so that {"ab","c"} and {"a","bc"} differ
+			}
+		}catch(IOException ioe)
+		{	throw new IllegalStateException(ioe);	// every JVM supports UTF-8
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * @param file A file, e.g. the MBL file.
+	 * @return The hex SHA-256 hash of the content of the file, read only if the file has changed since it was last
+	 *   hashed. The file is read without holding the lock of the index, so the threads of a JobRunner hash their
+	 *   files side by side, and only the look up and the update of the index wait for each other.
+	 * @throws IOException If the file can not be read.
+	 */
+	public String hash(File file) throws IOException
+	{	String path = file.getCanonicalPath() + "\t", stamp = path + file.length() + "\t" + file.lastModified();
+		String hash;
+		synchronized(this)
+		{	if(hashes == null)
+				hashes = readHashIndex();
+			hash = hashes.get(stamp);
+		}
+		if(hash != null)
+			return hash;
+		hash = hashContent(file);
+		synchronized(this)
+		{	Iterator<String> stamps = hashes.keySet().iterator();
+			while(stamps.hasNext())
+			{	if(stamps.next().startsWith(path))		// an earlier version of the file
+					stamps.remove();
+			}
+			hashes.put(stamp, hash);
+			try
+			{	writeHashIndex();
+			}catch(IOException ioe)
+			{	// the file is hashed again next time
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * @param file A file.
+	 * @return The hash of the content of the file, read again whether or not it is in the index.
+	 * @throws IOException If the file can not be read.
+	 */
+	static String hashContent(File file) throws IOException
+	{	MessageDigest digest = newDigest();
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try
+		{	ByteBuffer block = ByteBuffer.allocateDirect(READ_BLOCK_SIZE);
+			while(channel.read(block) >= 0)
+			{	block.flip();
+				digest.update(block);
+				block.clear();
+			}
+		}
+		finally
+		{	channel.close();
+		}
+		return toHex(digest.digest());
+	}
+
+	private static MessageDigest newDigest()
+	{	try
+		{	return MessageDigest.getInstance(HASH_ALGORITHM);
+		}catch(NoSuchAlgorithmException nsae)
+		{	throw new IllegalStateException(nsae);	// every JVM supports SHA-256
+		}
+	}
+
+	private static String toHex(byte[] bytes)
+	{	StringBuilder hex = new StringBuilder(2 * bytes.length);
+		for(byte b:bytes)
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return hex.toString();
+	}
+
+	/**
+	 * Reads the hash index, one line per file: its hash, then its path, length and modification time.
+	 */
+	private HashMap<String,String> readHashIndex()
+	{	HashMap<String,String> index = new HashMap<String,String>();
+		File file = new File(directory, HASH_INDEX);
+		if(!file.isFile())
+			return index;
+		try
+		{	BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{	String line;
+				int tab;
+				while((line = in.readLine()) != null)
+				{	tab = line.indexOf('\t');
+					if(tab > 0)
+						index.put(line.substring(tab + 1), line.substring(0, tab));
+				}
+			}
+			finally
+			{	in.close();
+			}
+		}catch(IOException ioe)
+		{	index.clear();		// the files are hashed again
+		}
+		return index;
+	}
+
+	private void writeHashIndex() throws IOException
+	{	File temp = newTempFile(".txt");
+		Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(temp)), "UTF-8");
+		try
+		{	for(Entry<String,String> entry:hashes.entrySet())
+				out.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+		}
+		finally
+		{	out.close();
+		}
+		commit(temp, new File(directory, HASH_INDEX));
+	}
+
+	/**
+	 * @param key The key of the entry, from key().
+	 * @param suffix The suffix of the kind of entry, e.g. TableSnapshot.SNAPSHOT_SUFFIX.
+	 * @return The file of the entry, whether or not it exists. The cache folder is created if need be.
+	 */
+	public File getFile(String key, String suffix)
+	{	directory.mkdirs();
+		return new File(directory, key + suffix);
+	}
+
+	/**
+	 * @param suffix The suffix of the temporary file.
+	 * @return A new temporary file in the cache folder, for an entry that is renamed once it is complete.
+	 * @throws IOException If the file can not be created.
+	 */
+	public File newTempFile(String suffix) throws IOException
+	{	directory.mkdirs();
+		File temp = File.createTempFile("witness", suffix, directory);
+		temp.deleteOnExit();
+		return temp;
+	}
+
+	/**
+	 * Puts a complete entry in place in one step, a reader sees the old entry or the new one.
+	 * @param temp The entry, written to a file from newTempFile().
+	 * @param file The file of the entry, from getFile().
+	 * @throws IOException If the entry can not be renamed, it is then deleted.
+	 */
+	public static void commit(File temp, File file) throws IOException
+	{	try
+		{	Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{	temp.delete();
+			throw new IOException("The cache entry " + file.getName() + " could not be written.", e);
+		}
+	}
+
+	/**
+	 * Saves the report of a join.
+	 * @param key The key of the join.
+	 * @param report The report, its joined table is not saved.
+	 * @throws IOException If the entry can not be written.
+	 */
+	public void putReport(String key, JoinReport report) throws IOException
+	{	File temp = newTempFile(REPORT_SUFFIX);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try
+		{	out.writeInt(REPORT_VERSION);
+			report.writeCounts(out);
+		}
+		finally
+		{	out.close();
+		}
+		commit(temp, getFile(key, REPORT_SUFFIX));
+	}
+
+	/**
+	 * @param key The key of the join.
+	 * @return The report of the join, without its joined table, or null if it is not in the cache.
+	 */
+	public JoinReport getReport(String key)
+	{	File file = new File(directory, key + REPORT_SUFFIX);
+		if(!file.isFile())
+			return null;
+		try
+		{	DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try
+			{	if(in.readInt() != REPORT_VERSION)
+					return null;
+				return JoinReport.readCounts(in);
+			}
+			finally
+			{	in.close();
+			}
+		}catch(IOException ioe)
+		{	return null;
+		}
+	}
+
+	/**
+	 * @return The cache folder.
+	 */
+	public File getDirectory()
+	{	return directory;
+	}
+}
@@ -0,0 +1,434 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Calendar;
+
+/**
+ * Writes the geo file rows as an ESRI point Shapefile, so that a GIS loads the points directly instead of building
+ *   them from the KML_x and KML_y columns of the text file. The set of files is:
+ * <br>- .shp and .shx, the points and their index, written through NIO buffers as the rows arrive. A row without
+ *   coordinates, e.g. a course whose parcel did not join, is written as a null shape so that it keeps its attributes.
+ * <br>- .dbf, the attributes, the same columns as the geo file. The width of a dBase column must be known before the
+ *   first record, so the attributes are spooled to a temporary file and the .dbf is written by close().
+ * <br>- .prj with the WGS 84 geographic coordinate system (EPSG:4326) of the KML, and .cpg naming the UTF-8 encoding
+ *   of the attributes.
+ * <br>A text value longer than the 254 bytes that dBase allows is cut short. A Shapefile can not be larger than 2 GB.
+ * @author thayer young
+ */
+public class ShapefileWriter implements GeoRowWriter
+{
+	/** The well known text of WGS 84, EPSG:4326, in the form written by ESRI software. */
+	public static final String WGS84_PRJ = "GEOGCS[\"GCS_WGS_1984\",DATUM[\"D_WGS_1984\",SPHEROID[\"WGS_1984\",6378137.0,298.257223563]],"
+			+ "PRIMEM[\"Greenwich\",0.0],UNIT[\"Degree\",0.0174532925199433]]";
+	private static final int FILE_CODE = 9994;
+	private static final int VERSION = 1000;
+	private static final int NULL_SHAPE = 0;
+	private static final int POINT_SHAPE = 1;
+	private static final int HEADER_BYTES = 100;
+	private static final int POINT_CONTENT_BYTES = 20;		// shape type and x, y
+	private static final int NULL_CONTENT_BYTES = 4;		// shape type only
+	private static final int RECORD_HEADER_BYTES = 8;
+	private static final long MAX_FILE_BYTES = 2L * Integer.MAX_VALUE;	// the file length is an int count of 16 bit words
+	private static final int MAX_TEXT_BYTES = 254;
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private File shpFile, shxFile, dbfFile, prjFile, cpgFile, spoolFile;
+	private FileChannel shp, shx;
+	private ByteBuffer shpBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private ByteBuffer shxBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private DataOutputStream spool;
+	private int[] widths = new int[Witness.GEO_COLUMNS.length];
+	private long shpBytes = HEADER_BYTES;
+	private int recordCount = 0;
+	private int pointCount = 0;
+	private double xMin = Double.NaN, yMin = Double.NaN, xMax = Double.NaN, yMax = Double.NaN;
+	private boolean open = true;
+	private OutputFiles outputFiles;
+
+	/**
+	 * Creates the .shp and .shx files and the attribute spool.
+	 * @param file The .shp file, the other files are named after it.
+	 * @throws IOException If a file can not be created.
+	 */
+	public ShapefileWriter(File file) throws IOException
+	{	this(file, null);
+	}
+
+	/**
+	 * Creates the .shp and .shx files and the attribute spool.
+	 * @param file The .shp file, the other files are named after it.
+	 * @param outputFiles Records each file of the set as it is created, or null.
+	 * @throws IOException If a file can not be created.
+	 */
+	public ShapefileWriter(File file, OutputFiles outputFiles) throws IOException
+	{	this.outputFiles = outputFiles;
+		String path = file.getPath();
+		if(path.toLowerCase().endsWith(".shp"))
+			path = path.substring(0, path.length() - 4);
+		shpFile = new File(path + ".shp");
+		shxFile = new File(path + ".shx");
+		dbfFile = new File(path + ".dbf");
+		prjFile = new File(path + ".prj");
+		cpgFile = new File(path + ".cpg");
+		shp = openChannel(shpFile);
+		try
+		{	shx = openChannel(shxFile);
+			spoolFile = File.createTempFile("witness", ".dbf.spool", shpFile.getAbsoluteFile().getParentFile());
+			spoolFile.deleteOnExit();
+			spool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE));
+		}catch(IOException ioe)
+		{	shp.close();
+			if(shx != null)
+				shx.close();
+			throw ioe;
+		}
+		shpBuffer.position(HEADER_BYTES);	// the headers are written by close(), once the extent is known
+		shxBuffer.position(HEADER_BYTES);
+		widths[0] = 1;
+	}
+
+	private FileChannel openChannel(File file) throws IOException
+	{	RandomAccessFile random = new RandomAccessFile(file, "rw");
+		created(file);
+		random.setLength(0);
+		return random.getChannel();
+	}
+
+	private void created(File file)
+	{	if(outputFiles != null)
+			outputFiles.add(file);
+	}
+
+	/**
+	 * Writes the point of the row and spools its attributes.
+	 * @throws IOException If the files can not be written, or the .shp file would be larger than 2 GB.
+	 */
+	public void writeRow(int uid, String[] row) throws IOException
+	{	double x = parseCoordinate(row[Witness.GEO_KML_X]);
+		double y = parseCoordinate(row[Witness.GEO_KML_Y]);
+		boolean isPoint = !Double.isNaN(x) && !Double.isNaN(y);
+		int contentBytes = isPoint ? POINT_CONTENT_BYTES : NULL_CONTENT_BYTES;
+		if(shpBytes + RECORD_HEADER_BYTES + contentBytes > MAX_FILE_BYTES)
+			throw new IOException("The Shapefile " + shpFile + " would be larger than 2 GB.");
+		recordCount++;
+		if(shpBuffer.remaining() < RECORD_HEADER_BYTES + POINT_CONTENT_BYTES)
+			flush(shp, shpBuffer);
+		if(shxBuffer.remaining() < RECORD_HEADER_BYTES)
+			flush(shx, shxBuffer);
+		shxBuffer.order(ByteOrder.BIG_ENDIAN);
+		shxBuffer.putInt((int) (shpBytes / 2)).putInt(contentBytes / 2);		// offset and length in 16 bit words
+		shpBuffer.order(ByteOrder.BIG_ENDIAN);
+		shpBuffer.putInt(recordCount).putInt(contentBytes / 2);
+		shpBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		if(isPoint)
+		{	shpBuffer.putInt(POINT_SHAPE).putDouble(x).putDouble(y);
+			if(pointCount++ == 0)
+			{	xMin = xMax = x;
+				yMin = yMax = y;
+			}
+			else
+			{	xMin = Math.min(xMin, x);
+				xMax = Math.max(xMax, x);
+				yMin = Math.min(yMin, y);
+				yMax = Math.max(yMax, y);
+			}
+		}
+		else shpBuffer.putInt(NULL_SHAPE);
+		shpBytes += RECORD_HEADER_BYTES + contentBytes;
+
+		widths[0] = Math.max(widths[0], Integer.toString(uid).length());
+		spool.writeInt(uid);
+		for(int column = 1; column < row.length; column++)
+			spoolText(column, row[column]);
+	}
+
+	public void endParcel()
+	{	// the points are written one row at a time
+	}
+
+	private void spoolText(int column, String value) throws IOException
+	{	if(value == null || value.length() == 0)
+		{	spool.writeShort(0);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		int length = bytes.length;
+		if(length > MAX_TEXT_BYTES)
+		{	length = MAX_TEXT_BYTES;
+			while(length > 0 && (bytes[length] & 0xC0) == 0x80)	// do not cut a character in two
+				length--;
+		}
+		widths[column] = Math.max(widths[column], length);
+		spool.writeShort(length);
+		spool.write(bytes, 0, length);
+	}
+
+	/**
+	 * @return The coordinate, or NaN if the value is blank or not a number.
+	 */
+	private static double parseCoordinate(String value)
+	{	if(value == null)
+			return Double.NaN;
+		try
+		{	return Double.parseDouble(value.trim());
+		}catch(NumberFormatException nfe)
+		{	return Double.NaN;
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+	{	buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the headers of the .shp and .shx files, then the .dbf, .prj and .cpg files, and deletes the spool.
+	 * @throws IOException If a file can not be written.
+	 */
+	public void close() throws IOException
+	{	if(!open)
+			return;
+		open = false;
+		try
+		{	flush(shp, shpBuffer);
+			flush(shx, shxBuffer);
+			writeHeader(shp, shpBytes);
+			writeHeader(shx, HEADER_BYTES + (long) RECORD_HEADER_BYTES * recordCount);
+			spool.close();
+			writeDbf();
+			writeText(prjFile, WGS84_PRJ);
+			writeText(cpgFile, "UTF-8");
+		}
+		finally
+		{	shp.close();
+			shx.close();
+			spool.close();
+			spoolFile.delete();
+		}
+	}
+
+	private void writeHeader(FileChannel channel, long fileBytes) throws IOException
+	{	ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		header.order(ByteOrder.BIG_ENDIAN);
+		header.putInt(FILE_CODE);
+		header.position(24);
+		header.putInt((int) (fileBytes / 2));
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(VERSION);
+		header.putInt(POINT_SHAPE);
+		if(pointCount > 0)
+			header.putDouble(xMin).putDouble(yMin).putDouble(xMax).putDouble(yMax);
+		header.position(HEADER_BYTES);	// the z and m ranges are 0
+		header.flip();
+		long position = 0;
+		while(header.hasRemaining())
+			position += channel.write(header, position);
+	}
+
+	/**
+	 * Writes the dBase III attribute file from the spool, a numeric UID column then a text column for each of the
+	 *   other geo file columns.
+	 */
+	private void writeDbf() throws IOException
+	{	String[] columns = Witness.GEO_COLUMNS;
+		int recordBytes = 1, column;		// the deletion flag
+		for(column = 0; column < columns.length; column++)
+		{	widths[column] = Math.max(widths[column], 1);
+			recordBytes += widths[column];
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(dbfFile), BUFFER_SIZE);
+		created(dbfFile);
+		DataInputStream in = null;
+		try
+		{	Calendar today = Calendar.getInstance();
+			out.write(0x03);		// dBase III without a memo file
+			out.write(today.get(Calendar.YEAR) - 1900);
+			out.write(today.get(Calendar.MONTH) + 1);
+			out.write(today.get(Calendar.DAY_OF_MONTH));
+			writeLittleEndian(out, recordCount, 4);
+			writeLittleEndian(out, 32 + 32 * columns.length + 1, 2);
+			writeLittleEndian(out, recordBytes, 2);
+			out.write(new byte[20]);
+			byte[] name;
+			for(column = 0; column < columns.length; column++)
+			{	name = new byte[11];
+				byte[] ascii = columns[column].getBytes("US-ASCII");
+				System.arraycopy(ascii, 0, name, 0, Math.min(ascii.length, 10));
+				out.write(name);
+				out.write(column == 0 ? 'N' : 'C');
+				out.write(new byte[4]);
+				out.write(widths[column]);
+				out.write(0);		// no decimals
+				out.write(new byte[14]);
+			}
+			out.write(0x0D);		// the end of the field descriptors
+
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(spoolFile), BUFFER_SIZE));
+			byte[] value = new byte[MAX_TEXT_BYTES];
+			byte[] digits;
+			int length, pad;
+			for(int record = 0; record < recordCount; record++)
+			{	out.write(' ');		// not deleted
+				digits = Integer.toString(in.readInt()).getBytes("US-ASCII");
+				for(pad = digits.length; pad < widths[0]; pad++)	// numbers are right justified
+					out.write(' ');
+				out.write(digits);
+				for(column = 1; column < columns.length; column++)
+				{	length = in.readShort();
+					in.readFully(value, 0, length);
+					out.write(value, 0, length);
+					for(pad = length; pad < widths[column]; pad++)	// text is left justified
+						out.write(' ');
+				}
+			}
+			out.write(0x1A);		// the end of the file
+		}
+		finally
+		{	if(in != null)
+				in.close();
+			out.close();
+		}
+	}
+
+	private static void writeLittleEndian(OutputStream out, int value, int bytes) throws IOException
+	{	for(int index = 0; index < bytes; index++)
+			out.write(value >>> (8 * index));
+	}
+
+	private void writeText(File file, String text) throws IOException
+	{	OutputStream out = new FileOutputStream(file);
+		created(file);
+		try
+		{	out.write(text.getBytes("US-ASCII"));
+		}
+		finally
+		{	out.close();
+		}
+	}
+
+	/**
+	 * @return The number of rows written.
+	 */
+	public int getRecordCount()
+	{	return recordCount;
+	}
+
+	/**
+	 * @return The number of rows written with a point, the others have a null shape.
+	 */
+	public int getPointCount()
+	{	return pointCount;
+	}
+
+	/**
+	 * @return The .shp file, the other files have the same name and path.
+	 */
+	public File getFile()
+	{	return shpFile;
+	}
+
+	/**
+	 * Writes two points and a row without coordinates to a temporary Shapefile, then reads the .shp, .shx and .dbf
+	 *   back byte by byte, as a GIS would, and prints what it finds. A value that is not the one written is marked.
+	 * @param args
+	 * @throws IOException If the temporary files can not be written or read.
+	 */
+	public static void main(String[] args) throws IOException
+	{	File file = File.createTempFile("witness", ".shp");
+		String[][] rows = new String[3][Witness.GEO_COLUMNS.length];
+		int pid = 1, id = 3;		// the PID and id columns of the geo file
+		for(int row = 0; row < rows.length; row++)
+		{	rows[row][pid] = "pid" + row;
+			rows[row][id] = "parcel \u00e9" + row;		// a two byte UTF-8 character
+		}
+		rows[0][Witness.GEO_KML_X] = "-76.5";
+		rows[0][Witness.GEO_KML_Y] = "39.25";
+		rows[2][Witness.GEO_KML_X] = "-77.0";
+		rows[2][Witness.GEO_KML_Y] = "38.75";
+		ShapefileWriter writer = new ShapefileWriter(file);
+		for(int row = 0; row < rows.length; row++)
+			writer.writeRow(row + 1, rows[row]);
+		writer.close();
+
+		ByteBuffer shp = readFile(writer.shpFile);
+		System.out.println("Demonstration of the ShapefileWriter, the files of " + rows.length + " rows read back:\n");
+		System.out.println(".shp file code " + shp.getInt(0) + ", length " + shp.getInt(24) * 2 + " of " + shp.capacity() + " bytes"
+				+ mark(shp.getInt(0) == FILE_CODE && shp.getInt(24) * 2 == shp.capacity()));
+		shp.order(ByteOrder.LITTLE_ENDIAN);
+		System.out.println(".shp version " + shp.getInt(28) + ", shape type " + shp.getInt(32) + ", extent " + shp.getDouble(36) + " "
+				+ shp.getDouble(44) + " " + shp.getDouble(52) + " " + shp.getDouble(60) + mark(shp.getInt(28) == VERSION
+				&& shp.getInt(32) == POINT_SHAPE && shp.getDouble(36) == -77 && shp.getDouble(44) == 38.75
+				&& shp.getDouble(52) == -76.5 && shp.getDouble(60) == 39.25));
+
+		ByteBuffer shx = readFile(writer.shxFile);
+		int position = HEADER_BYTES, contentBytes, shapeType;
+		for(int record = 0; record < rows.length; record++)
+		{	shp.order(ByteOrder.BIG_ENDIAN);
+			System.out.print("record " + shp.getInt(position) + " at " + position + ", indexed at " + shx.getInt(HEADER_BYTES + 8 * record) * 2 + ": ");
+			contentBytes = shp.getInt(position + 4) * 2;
+			boolean indexed = shx.getInt(HEADER_BYTES + 8 * record) * 2 == position && shp.getInt(position) == record + 1;
+			shp.order(ByteOrder.LITTLE_ENDIAN);
+			shapeType = shp.getInt(position + RECORD_HEADER_BYTES);
+			if(shapeType == POINT_SHAPE)
+				System.out.println(shp.getDouble(position + 12) + ", " + shp.getDouble(position + 20) + mark(indexed
+						&& Double.toString(shp.getDouble(position + 12)).equals(rows[record][Witness.GEO_KML_X])
+						&& Double.toString(shp.getDouble(position + 20)).equals(rows[record][Witness.GEO_KML_Y])));
+			else System.out.println("null shape" + mark(indexed && shapeType == NULL_SHAPE && rows[record][Witness.GEO_KML_X] == null));
+			position += RECORD_HEADER_BYTES + contentBytes;
+		}
+
+		ByteBuffer dbf = readFile(writer.dbfFile).order(ByteOrder.LITTLE_ENDIAN);
+		int recordCount = dbf.getInt(4), headerBytes = dbf.getShort(8), recordBytes = dbf.getShort(10);
+		int start = headerBytes + recordBytes + 1, width;		// the second record, after its deletion flag
+		String values = "";
+		for(int column = 0; column < Witness.GEO_COLUMNS.length; column++)
+		{	width = dbf.get(32 + 32 * column + 16) & 0xFF;
+			if(column == 0 || column == pid || column == id)
+			{	byte[] bytes = new byte[width];
+				for(int offset = 0; offset < width; offset++)
+					bytes[offset] = dbf.get(start + offset);
+				values += new String(bytes, "UTF-8").trim() + " | ";
+			}
+			start += width;
+		}
+		System.out.println(".dbf record 2 of " + recordCount + ", UID | PID | id: " + values
+				+ mark(recordCount == rows.length && values.equals("2 | pid1 | parcel \u00e91 | ")));
+		String prj = new String(readFile(writer.prjFile).array(), "US-ASCII");
+		System.out.println(".prj " + prj.substring(0, prj.indexOf(',')) + mark(prj.equals(WGS84_PRJ)));
+		for(File written:new File[]{writer.shpFile, writer.shxFile, writer.dbfFile, writer.prjFile, writer.cpgFile})
+			written.delete();
+	}
+
+	private static String mark(boolean asWritten)
+	{	return asWritten ? "" : "\t<-- not as written";
+	}
+
+	/**
+	 * @return The content of a file, big endian.
+	 */
+	private static ByteBuffer readFile(File file) throws IOException
+	{	RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{	ByteBuffer buffer = ByteBuffer.allocate((int) in.length());
+			while(buffer.hasRemaining() && in.getChannel().read(buffer) >= 0)
+				;
+			buffer.clear();
+			return buffer;
+		}
+		finally
+		{	in.close();
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * How the text output files are split into shards by a ShardedTsvWriter: after a number of rows, after a number of
+ *   bytes, or one shard for each value of an MBL field, e.g. "typ". A shard always holds whole parcels, so the row and
+ *   byte limits are reached at the end of the parcel that crosses them.
+ * @author thayer young
+ */
+public class ShardPlan
+{
+	/** Shard mode: a new shard once the rows of a shard, not counting its header, reach the limit. */
+	public static final int BY_ROWS = 1;
+	/** Shard mode: a new shard once the bytes of a shard, before any compression, reach the limit. */
+	public static final int BY_BYTES = 2;
+	/** Shard mode: a shard for each value of an MBL field. */
+	public static final int BY_FIELD = 3;
+
+	private int mode;
+	private long limit = 0;
+	private String fieldName = null;
+
+	private ShardPlan(int mode)
+	{	this.mode = mode;
+	}
+
+	/**
+	 * @param rows The number of rows after which a new shard is started.
+	 * @return The plan.
+	 */
+	public static ShardPlan byRows(long rows)
+	{	ShardPlan plan = new ShardPlan(BY_ROWS);
+		plan.limit = Math.max(rows, 1);
+		return plan;
+	}
+
+	/**
+	 * @param bytes The number of bytes after which a new shard is started.
+	 * @return The plan.
+	 */
+	public static ShardPlan byBytes(long bytes)
+	{	ShardPlan plan = new ShardPlan(BY_BYTES);
+		plan.limit = Math.max(bytes, 1);
+		return plan;
+	}
+
+	/**
+	 * @param fieldName The MBL field name, e.g. "typ". A parcel without the field is written to the "none" shard.
+	 * @return The plan.
+	 */
+	public static ShardPlan byField(String fieldName)
+	{	ShardPlan plan = new ShardPlan(BY_FIELD);
+		plan.fieldName = fieldName;
+		return plan;
+	}
+
+	/**
+	 * @return One of the BY_ constants.
+	 */
+	public int getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return The row or byte limit of a shard, 0 when the shards are by field.
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return The MBL field name whose values key the shards, null unless the shards are by field.
+	 */
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	public String toString()
+	{	if(mode == BY_FIELD)
+			return "by " + fieldName;
+		return "every " + limit + (mode == BY_ROWS ? " rows" : " bytes");
+	}
+}
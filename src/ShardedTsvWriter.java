@@ -0,0 +1,277 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * A TsvWriter that splits one output file into numbered or keyed shards, as set by a ShardPlan, and lists them in a
+ *   manifest file once it is closed. The rows written before the first startGroup() are the header, which starts every
+ *   shard. A group of rows, e.g. a parcel, is never split between shards, so the UIDs of the geo file are numbered
+ *   once across all of its shards and stay unique.
+ * <br>Each shard is written to the disk by a BlockWriter of its own, and compressed if the file extension ends with
+ *   ".gz", so a shard that has just been finished is still being written while the next one fills, and the keyed
+ *   shards are written side by side. The manifest lists the file name, key, row count and byte count, before any
+ *   compression, of each shard, so that a loader can read the shards concurrently.
+ * @author thayer young
+ */
+public class ShardedTsvWriter extends TsvWriter
+{
+	/** The suffix of the manifest file, appended to the output file name. */
+	public static final String MANIFEST_SUFFIX = "_manifest";
+	/** The column names of the manifest file. */
+	public static final String[] MANIFEST_COLUMNS = {"File","Key","Rows","Bytes"};
+	/** The key of the shard of the groups without a key. */
+	public static final String NO_KEY = "none";
+	private static final int SHARD_NUMBER_DIGITS = 4;
+
+	/**
+	 * The channel the TsvWriter writes to, which passes the bytes on to the current shard, or keeps them as the header
+	 *   until the first shard is opened.
+	 */
+	private static class Router implements WritableByteChannel
+	{	WritableByteChannel target = null;
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+		public int write(ByteBuffer src) throws IOException
+		{	if(target != null)
+				return target.write(src);
+			int count = src.remaining();
+			while(src.hasRemaining())
+				header.write(src.get());
+			return count;
+		}
+
+		public boolean isOpen()
+		{	return true;
+		}
+
+		public void close()
+		{	// the shards are closed by the ShardedTsvWriter
+		}
+	}
+
+	/**
+	 * One shard file.
+	 */
+	private static class Shard
+	{	File file;
+		String key;
+		BlockWriter channel;
+		long rows = 0, bytes = 0;
+	}
+
+	private Router router;
+	private ShardPlan plan;
+	private String stub, fileExtension, name;
+	private OutputFiles outputFiles;
+	private File directory;
+	private byte[] header = null;
+	private ArrayList<Shard> shards = new ArrayList<Shard>();
+	private HashMap<String,Shard> keyed = new HashMap<String,Shard>();
+	private HashSet<String> fileNames = new HashSet<String>();
+	private Shard current = null, finishing = null;
+	private long rowMark = 0, byteMark = 0;		// the row count and bytes written when the current shard was entered
+
+	/**
+	 * @param file The output file that is split, e.g. the geo file. Its name is the stub of the shard file names.
+	 * @param fileExtension The file extension at the end of the output file name, it ends the shard file names too.
+	 * @param plan How the file is split.
+	 * @param name The name for the writer threads of the shards.
+	 */
+	public ShardedTsvWriter(File file, String fileExtension, ShardPlan plan, String name)
+	{	this(new Router(), file, fileExtension, plan, name, null);
+	}
+
+	/**
+	 * @param file The output file that is split, e.g. the geo file. Its name is the stub of the shard file names.
+	 * @param fileExtension The file extension at the end of the output file name, it ends the shard file names too.
+	 * @param plan How the file is split.
+	 * @param name The name for the writer threads of the shards.
+	 * @param outputFiles Records each shard and the manifest as they are created, or null.
+	 */
+	public ShardedTsvWriter(File file, String fileExtension, ShardPlan plan, String name, OutputFiles outputFiles)
+	{	this(new Router(), file, fileExtension, plan, name, outputFiles);
+	}
+
+	private ShardedTsvWriter(Router router, File file, String fileExtension, ShardPlan plan, String name, OutputFiles outputFiles)
+	{	super(router);
+		this.router = router;
+		this.plan = plan;
+		this.name = name;
+		this.outputFiles = outputFiles;
+		this.fileExtension = fileExtension;
+		directory = file.getAbsoluteFile().getParentFile();
+		stub = file.getName();
+		if(stub.endsWith(fileExtension))
+			stub = stub.substring(0, stub.length() - fileExtension.length());
+	}
+
+	/**
+	 * Starts a new shard when the current one has reached the ShardPlan's limit, or for a ShardPlan by field, moves to
+	 *   the shard of the key.
+	 */
+	public void startGroup(String key) throws IOException
+	{	if(plan.getMode() == ShardPlan.BY_FIELD)
+		{	if(key == null || key.trim().length() == 0)
+				key = NO_KEY;
+			if(current == null || !current.key.equals(key))
+				enter(key);
+		}
+		else if(current == null || getShardSize() >= plan.getLimit())
+			enter(null);
+	}
+
+	/**
+	 * @return The rows or bytes of the current shard, as counted by the ShardPlan.
+	 */
+	private long getShardSize()
+	{	if(plan.getMode() == ShardPlan.BY_ROWS)
+			return current.rows + getRowCount() - rowMark;
+		return current.bytes + getBytesWritten() - byteMark;
+	}
+
+	/**
+	 * Writes the rows of the current shard, then makes the shard of the key current, opening it if need be.
+	 * @param key The key of the shard, or null for the next numbered shard.
+	 */
+	private void enter(String key) throws IOException
+	{	flush();
+		if(header == null)
+			header = router.header.toByteArray();
+		leave();
+		Shard shard = key == null ? null : keyed.get(key);
+		if(shard == null)
+		{	shard = open(key);
+			if(key == null)
+			{	if(finishing != null)		// a numbered shard is closed once the one after it is full
+					finishing.channel.close();
+				finishing = current;
+			}
+		}
+		current = shard;
+		router.target = shard.channel;
+		rowMark = getRowCount();
+		byteMark = getBytesWritten();
+	}
+
+	/**
+	 * Counts the rows and bytes written to the current shard since it was entered.
+	 */
+	private void leave()
+	{	if(current == null)
+			return;
+		current.rows += getRowCount() - rowMark;
+		current.bytes += getBytesWritten() - byteMark;
+	}
+
+	private Shard open(String key) throws IOException
+	{	Shard shard = new Shard();
+		shard.key = key;
+		String fileName = stub + "_" + (key == null ? shardNumber(shards.size() + 1) : fileNamePart(key)) + fileExtension;
+		if(!fileNames.add(fileName))		// two keys that differ only in the characters replaced
+		{	fileName = stub + "_" + fileNamePart(key) + "_" + shardNumber(shards.size() + 1) + fileExtension;
+			fileNames.add(fileName);
+		}
+		shard.file = new File(directory, fileName);
+		shard.channel = BlockWriter.open(shard.file, name + " " + fileName);
+		if(outputFiles != null)
+			outputFiles.add(shard.file);
+		shards.add(shard);
+		if(key != null)
+			keyed.put(key, shard);
+		ByteBuffer block = ByteBuffer.wrap(header);
+		while(block.hasRemaining())
+			shard.channel.write(block);
+		shard.bytes = header.length;
+		return shard;
+	}
+
+	private static String shardNumber(int number)
+	{	String digits = Integer.toString(number);
+		while(digits.length() < SHARD_NUMBER_DIGITS)
+			digits = "0" + digits;
+		return digits;
+	}
+
+	/**
+	 * @return The key with every character but letters, digits, '-' and '.' replaced by '_', so it can name a file.
+	 */
+	private static String fileNamePart(String key)
+	{	StringBuilder part = new StringBuilder(key.length());
+		char c;
+		for(int index = 0; index < key.length(); index++)
+		{	c = key.charAt(index);
+			part.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c : '_');
+		}
+		return part.toString();
+	}
+
+	public String getGroupField()
+	{	return plan.getMode() == ShardPlan.BY_FIELD ? plan.getFieldName() : null;
+	}
+
+	/**
+	 * Writes the last rows, closes every shard and writes the manifest. A file without groups still gets one shard
+	 *   with its header.
+	 */
+	public void close() throws IOException
+	{	IOException error = null;
+		try
+		{	if(current == null)
+				enter(plan.getMode() == ShardPlan.BY_FIELD ? NO_KEY : null);
+			super.close();
+			leave();
+		}catch(IOException ioe)
+		{	error = ioe;
+		}
+		for(Shard shard:shards)
+		{	try
+			{	shard.channel.close();
+			}catch(IOException ioe)
+			{	if(error == null)
+					error = ioe;
+			}
+		}
+		if(error != null)
+			throw error;
+		writeManifest();
+	}
+
+	private void writeManifest() throws IOException
+	{	TsvWriter manifest = TsvWriter.open(getManifestFile());
+		if(outputFiles != null)
+			outputFiles.add(getManifestFile());
+		try
+		{	manifest.row(MANIFEST_COLUMNS);
+			for(Shard shard:shards)
+			{	manifest.field(shard.file.getName()).field(shard.key);
+				manifest.field(Long.toString(shard.rows)).field(Long.toString(shard.bytes));
+				manifest.endRow();
+			}
+		}
+		finally
+		{	manifest.close();
+		}
+	}
+
+	/**
+	 * @return The manifest file, the output file stub with MANIFEST_SUFFIX, as uncompressed text.
+	 */
+	public File getManifestFile()
+	{	String extension = fileExtension;
+		if(extension.endsWith(Witness.GZIP_EXTENSION))
+			extension = extension.substring(0, extension.length() - Witness.GZIP_EXTENSION.length());
+		return new File(directory, stub + MANIFEST_SUFFIX + extension);
+	}
+
+	/**
+	 * @return The number of shards opened so far.
+	 */
+	public int getShardCount()
+	{	return shards.size();
+	}
+}
@@ -0,0 +1,275 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map.Entry;
+
+/**
+ * Writes a TableSnapshot of a parsed MBL or KML file, one parcel at a time as it is parsed, so that a snapshot can be
+ *   written while the ConversionPipeline streams the file. Each field is written as a variable length code, in one to
+ *   five bytes for most fields: the index of the string in the string dictionary, or the integer or decimal number that
+ *   the field holds, e.g. a record count or a KML coordinate, if the number is written back as the same text. The
+ *   dictionary, the parcel index and the field counts are written by finish(), after the parcels.
+ * <br>The snapshot is written to a temporary file that only replaces the snapshot once it is complete.
+ * @author thayer young
+ */
+public class SnapshotWriter
+{
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int MAX_NUMBER_DIGITS = 18;	// the unscaled value of a decimal fits in a long
+
+	private File snapshotFile, tempFile, sourceFile;
+	private boolean isKML;
+	private String settings;
+	private DataOutputStream out;
+	private HashMap<String,Integer> dictionary = new HashMap<String,Integer>();
+	private ArrayList<String> strings = new ArrayList<String>();
+	private int[] offsets = new int[1024];
+	private int parcelCount = 0;
+	private boolean open = true;
+
+	/**
+	 * Writes the snapshot next to the source file, see TableSnapshot.snapshotFileOf().
+	 * @param sourceFile The MBL or KML file that is parsed.
+	 * @param isKML True if the source is a KML file.
+	 * @param settings The parse settings, see TableSnapshot.mblSettings().
+	 * @throws IOException If the temporary file can not be created.
+	 */
+	public SnapshotWriter(File sourceFile, boolean isKML, String settings) throws IOException
+	{	this(TableSnapshot.snapshotFileOf(sourceFile), sourceFile, isKML, settings);
+	}
+
+	/**
+	 * @param snapshotFile The snapshot file, e.g. one in a ResultCache.
+	 * @param sourceFile The MBL or KML file that is parsed, or null if the snapshot is not checked against its source,
+	 *   e.g. one named by the hash of its source.
+	 * @param isKML True if the source is a KML file.
+	 * @param settings The settings that the snapshot must match to be used.
+	 * @throws IOException If the temporary file can not be created.
+	 */
+	public SnapshotWriter(File snapshotFile, File sourceFile, boolean isKML, String settings) throws IOException
+	{	this.snapshotFile = snapshotFile;
+		this.sourceFile = sourceFile;
+		this.isKML = isKML;
+		this.settings = settings;
+		tempFile = File.createTempFile("witness", ".snapshot", snapshotFile.getAbsoluteFile().getParentFile());
+		tempFile.deleteOnExit();
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), BUFFER_SIZE));
+		out.write(new byte[TableSnapshot.HEADER_BYTES]);	// written by finish()
+	}
+
+	/**
+	 * Writes a parcel as it was parsed, or joined. A parsed parcel must be written before it is joined, the join
+	 *   removes its records.
+	 * @param parcel A parcel from the MblParser or the KmlParser, or a joined parcel with its field records.
+	 * @throws IOException If the snapshot can not be written, or is too large to be memory mapped.
+	 */
+	public void add(Parcel<String> parcel) throws IOException
+	{	if(out.size() == Integer.MAX_VALUE)		// the count stops there
+			throw new IOException("The snapshot " + snapshotFile.getName() + " is too large.");
+		if(parcelCount == offsets.length)
+			offsets = Arrays.copyOf(offsets, parcelCount * 2);
+		offsets[parcelCount++] = out.size();
+		writeValue(parcel.getComparator());
+		writeValue(parcel.getKmlName());
+		writeVarLong(parcel.getGeometryCount());
+		writeVarLong(parcel.size());
+		writeVarLong(parcel.getFieldRecords() == null ? 0 : parcel.getFieldRecords().size());
+		writeRecords(parcel);
+		writeRecords(parcel.getFieldRecords());
+	}
+
+	private void writeRecords(Iterable<DataRecordW<String>> records) throws IOException
+	{	if(records == null)
+			return;
+		for(DataRecordW<String> record:records)
+		{	writeVarLong(record.size());
+			for(String value:record)
+				writeValue(value);
+		}
+	}
+
+	/**
+	 * Writes the value as a code, its type in the low 2 bits, see TableSnapshot.value().
+	 */
+	private void writeValue(String value) throws IOException
+	{	if(value == null)
+		{	writeVarLong(TableSnapshot.NULL_VALUE);
+			return;
+		}
+		int digits = countDigits(value);
+		if(digits > 0 && value.indexOf('.') < 0)
+		{	long number = Long.parseLong(value);
+			if(Long.toString(number).equals(value))		// e.g. not "007"
+			{	writeVarLong(zigZag(number) << 2 | TableSnapshot.INTEGER_VALUE);
+				return;
+			}
+		}
+		else if(digits > 0)
+		{	BigDecimal number = new BigDecimal(value);
+			if(number.scale() < 256 && number.toPlainString().equals(value))	// e.g. not ".5" or "-0.0"
+			{	writeVarLong(zigZag(number.unscaledValue().longValue()) << 2 | TableSnapshot.DECIMAL_VALUE);
+				out.writeByte(number.scale());
+				return;
+			}
+		}
+		writeVarLong((long) stringIndex(value) << 2 | TableSnapshot.STRING_VALUE);
+	}
+
+	/**
+	 * @return The number of digits in the value, if it is an integer or a decimal that fits in a long, otherwise 0.
+	 */
+	private static int countDigits(String value)
+	{	int length = value.length(), start = value.startsWith("-") ? 1 : 0, digits = 0, points = 0;
+		char c;
+		for(int index = start; index < length; index++)
+		{	c = value.charAt(index);
+			if(c >= '0' && c <= '9')
+				digits++;
+			else if(c == '.' && points++ == 0)
+				continue;
+			else return 0;
+		}
+		return digits > MAX_NUMBER_DIGITS ? 0 : digits;
+	}
+
+	private static long zigZag(long number)
+	{	return (number << 1) ^ (number >> 63);
+	}
+
+	private static int varLongLength(long value)
+	{	int length = 1;
+		while((value >>>= 7) != 0)
+			length++;
+		return length;
+	}
+
+	/**
+	 * Writes 7 bits to a byte, the high bit set if more bytes follow.
+	 */
+	private void writeVarLong(long value) throws IOException
+	{	while((value & ~0x7FL) != 0)
+		{	out.writeByte((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private int stringIndex(String value)
+	{	Integer index = dictionary.get(value);
+		if(index == null)
+		{	index = Integer.valueOf(strings.size());
+			dictionary.put(value, index);
+			strings.add(value);
+		}
+		return index.intValue();
+	}
+
+	/**
+	 * Writes the parcel index, the string dictionary, the field counts and the header, then puts the snapshot in place.
+	 * @param fieldList The field names of the parcels, e.g. MblParser.getFieldList().
+	 * @param fieldContentTree The geometry comments of the parcels, e.g. MblParser.getGeometryCommentMap().
+	 * @return The snapshot file, or null if it could not replace an older snapshot, e.g. one that is still open.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	public File finish(CountingTree fieldList, CountingTree fieldContentTree) throws IOException
+	{	try
+		{	long indexOffset = out.size();
+			for(int parcel = 0; parcel < parcelCount; parcel++)
+				out.writeInt(offsets[parcel]);
+			long treesOffset = out.size();	// the tree keys are added to the dictionary before it is written
+			writeTree(fieldList);
+			writeTree(fieldContentTree);
+			long settingsOffset = out.size();
+			byte[] settingBytes = settings.getBytes("UTF-8");
+			writeVarLong(settingBytes.length);
+			out.write(settingBytes);
+			long dictionaryOffset = out.size();
+			out.writeInt(strings.size());
+			long stringOffset = dictionaryOffset + 4 + 4L * strings.size();
+			byte[][] encoded = new byte[strings.size()][];
+			for(int index = 0; index < encoded.length; index++)
+			{	encoded[index] = strings.get(index).getBytes("UTF-8");
+				if(stringOffset > Integer.MAX_VALUE)
+					throw new IOException("The snapshot " + snapshotFile.getName() + " is too large.");
+				out.writeInt((int) stringOffset);
+				stringOffset += varLongLength(encoded[index].length) + encoded[index].length;
+			}
+			for(byte[] bytes:encoded)
+			{	writeVarLong(bytes.length);
+				out.write(bytes);
+			}
+			if(out.size() == Integer.MAX_VALUE)
+				throw new IOException("The snapshot " + snapshotFile.getName() + " is too large.");
+			long fileLength = out.size();
+			out.close();
+			open = false;
+			RandomAccessFile header = new RandomAccessFile(tempFile, "rw");
+			try
+			{	header.write(TableSnapshot.MAGIC);
+				header.writeInt(isKML ? 1 : 0);
+				header.writeInt(parcelCount);
+				header.writeLong(sourceFile == null ? 0 : sourceFile.length());
+				header.writeLong(sourceFile == null ? 0 : sourceFile.lastModified());
+				header.writeLong(indexOffset);
+				header.writeLong(treesOffset);
+				header.writeLong(settingsOffset);
+				header.writeLong(dictionaryOffset);
+				header.writeLong(fileLength);
+			}
+			finally
+			{	header.close();
+			}
+			snapshotFile.delete();
+			if(tempFile.renameTo(snapshotFile))
+				return snapshotFile;
+			tempFile.delete();
+			return null;
+		}catch(IOException ioe)
+		{	abandon();
+			throw ioe;
+		}
+	}
+
+	private void writeTree(CountingTree tree) throws IOException
+	{	out.writeInt(tree == null ? 0 : tree.size());
+		if(tree == null)
+			return;
+		Iterator<Entry<Object,Integer>> entries = tree.iteratorWCounts();
+		Entry<Object,Integer> entry;
+		while(entries.hasNext())
+		{	entry = entries.next();
+			out.writeInt(stringIndex(entry.getKey().toString()));
+			out.writeInt(entry.getValue().intValue());
+		}
+	}
+
+	/**
+	 * Stops writing and deletes the temporary file, e.g. when the parse fails.
+	 */
+	public void abandon()
+	{	if(open)
+		{	open = false;
+			try
+			{	out.close();
+			}catch(IOException ioe)
+			{	// the file is deleted regardless
+			}
+		}
+		tempFile.delete();
+	}
+
+	/**
+	 * @return The number of parcels written.
+	 */
+	public int getParcelCount()
+	{	return parcelCount;
+	}
+}
@@ -0,0 +1,253 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Joins MBL and KML parcels as they arrive from the parsers, instead of combining two whole tables. A parcel waits in
+ *   a hash table keyed on its id until the parcel with the same id arrives from the other file, then the two are
+ *   combined as in DataTableW.combineTables(), joined by Witness.joinParcel() and passed on. Only the parcels that
+ *   are still waiting for their match are held, which is few when both files list the parcels in a similar order.
+ * <br>When an id is repeated, the parcels with the id are paired one to one in file order, the first MBL parcel with
+ *   the first KML parcel and so on. This differs from combineTables(), which compares every KML parcel with the first
+ *   parcel of the table with its id, so on files with repeated ids, which the Diagnostic reports, the counts and the
+ *   joined rows of the two joins differ. On files whose ids are unique they are the same.
+ * <br>A pair whose course counts differ is salvaged at once by the CourseAligner. When both files have been read,
+ *   finish() matches the parcels left waiting with the IdMatcher, then salvages the pairs it found whose counts
+ *   differ. Witness.joinTables() salvages and matches in the same order, so both joins give the same rows. The
+ *   joined parcels are passed on in the order they are completed, not in file order.
+ * @author thayer young
+ */
+public class StreamingJoin
+{
+	private TreeMap<Long,Parcel<String>> waitingMBL = new TreeMap<Long,Parcel<String>>();	// keyed on arrival
+	private TreeMap<Long,Parcel<String>> waitingKML = new TreeMap<Long,Parcel<String>>();
+	private HashMap<String,LinkedList<Long>> mblById = new HashMap<String,LinkedList<Long>>();
+	private HashMap<String,LinkedList<Long>> kmlById = new HashMap<String,LinkedList<Long>>();
+	private long arrivals = 0;
+	private int[] combineCounts = new int[4];	// indexed by DataTableW.COMBINED_INDEX etc.
+	private int[] salvageCounts = new int[2];
+	private JoinReport report;
+	private JoinListener listener;
+	private ParcelPipe<String> joined;
+
+	/**
+	 * @param report Receives the counts and the outcome of each parcel.
+	 * @param listener Is told the outcome of each parcel as it is joined, may be null.
+	 * @param joined Receives the joined parcels. It is not closed by the join.
+	 */
+	public StreamingJoin(JoinReport report, JoinListener listener, ParcelPipe<String> joined)
+	{	this.report = report;
+		this.listener = listener;
+		this.joined = joined;
+	}
+
+	/**
+	 * Joins an MBL parcel with its waiting KML parcel, or holds it until the KML parcel arrives.
+	 * @param parcel A parcel from the MblParser.
+	 * @throws InterruptedException If the wait to pass on the joined parcel is interrupted.
+	 */
+	public void addMBL(Parcel<String> parcel) throws InterruptedException
+	{	Parcel<String> kmlParcel = take(kmlById, waitingKML, parcel.getComparator());
+		if(kmlParcel == null)
+			hold(mblById, waitingMBL, parcel);
+		else pair(parcel, kmlParcel);
+	}
+
+	/**
+	 * Joins a KML parcel with its waiting MBL parcel, or holds it until the MBL parcel arrives.
+	 * @param parcel A parcel from the KmlParser.
+	 * @throws InterruptedException If the wait to pass on the joined parcel is interrupted.
+	 */
+	public void addKML(Parcel<String> parcel) throws InterruptedException
+	{	Parcel<String> mblParcel = null;
+		if(parcel.size() > 0)
+			mblParcel = take(mblById, waitingMBL, parcel.getComparator());
+		if(mblParcel == null)
+			hold(kmlById, waitingKML, parcel);
+		else pair(mblParcel, parcel);
+	}
+
+	private void hold(HashMap<String,LinkedList<Long>> byId, TreeMap<Long,Parcel<String>> waiting, Parcel<String> parcel)
+	{	Long arrival = Long.valueOf(arrivals++);
+		waiting.put(arrival, parcel);
+		if(parcel.getComparator() == null)		// never matches, it waits for finish()
+			return;
+		LinkedList<Long> arrivalsWithId = byId.get(parcel.getComparator());
+		if(arrivalsWithId == null)
+		{	arrivalsWithId = new LinkedList<Long>();
+			byId.put(parcel.getComparator(), arrivalsWithId);
+		}
+		arrivalsWithId.add(arrival);
+	}
+
+	private Parcel<String> take(HashMap<String,LinkedList<Long>> byId, TreeMap<Long,Parcel<String>> waiting, String id)
+	{	if(id == null)
+			return null;
+		LinkedList<Long> arrivalsWithId = byId.get(id);
+		if(arrivalsWithId == null)
+			return null;
+		Parcel<String> parcel = waiting.remove(arrivalsWithId.poll());
+		if(arrivalsWithId.isEmpty())
+			byId.remove(id);
+		return parcel;
+	}
+
+	/**
+	 * Combines a matched pair as combineTables() does, salvages it if the course counts differ, and passes it on.
+	 */
+	private void pair(Parcel<String> mblParcel, Parcel<String> kmlParcel) throws InterruptedException
+	{	if(kmlParcel.getGeometryCount() - 1 == mblParcel.getGeometryCount())	// KML has a centroid point that MBL does not.
+		{	for(DataRecordW<String> record:kmlParcel)
+				mblParcel.add(record);
+			mblParcel.setCombined(true);
+			mblParcel.setKmlName(kmlParcel.getKmlName());
+			combineCounts[DataTableW.COMBINED_INDEX]++;
+			emit(mblParcel);
+		}
+		else
+		{	kmlParcel.setFailed(true);
+			mblParcel.setNoMatchMBL(true);
+			combineCounts[DataTableW.FAILED_INDEX]++;
+			combineCounts[DataTableW.NO_MATCH_MBL_INDEX]++;
+			int courses = CourseAligner.salvage(mblParcel, kmlParcel);
+			if(courses > 0)
+			{	salvageCounts[0]++;
+				salvageCounts[1] += courses;
+			}
+			emit(mblParcel);
+			emit(kmlParcel);
+		}
+	}
+
+	private void emit(Parcel<String> parcel) throws InterruptedException
+	{	Parcel<String> joinedParcel = Witness.joinParcel(parcel, report, listener);
+		if(joinedParcel.size() > 0)
+			joined.put(joinedParcel);
+	}
+
+	/**
+	 * Joins the parcels left waiting, once both files have been read, and sets the counts of the report.
+	 * @throws InterruptedException If the wait to pass on a joined parcel is interrupted.
+	 */
+	public void finish() throws InterruptedException
+	{	LinkedList<Parcel<String>> leftovers = new LinkedList<Parcel<String>>();
+		for(Parcel<String> parcel:waitingMBL.values())
+		{	parcel.setNoMatchMBL(true);
+			combineCounts[DataTableW.NO_MATCH_MBL_INDEX]++;
+			leftovers.add(parcel);
+		}
+		for(Parcel<String> parcel:waitingKML.values())
+		{	parcel.setNoMatchKML(true);
+			combineCounts[DataTableW.NO_MATCH_KML_INDEX]++;
+			leftovers.add(parcel);
+		}
+		waitingMBL.clear();
+		waitingKML.clear();
+		mblById.clear();
+		kmlById.clear();
+		DataTableW<String> table = new DataTableW<String>(leftovers, null, null);
+		int[] rematchCounts = IdMatcher.rematchUnmatched(table);		// <-- match the leftover ids by normalized or close id
+		int[] leftoverSalvageCounts = CourseAligner.salvageFailed(table);	// <-- align the courses of failed parcels
+		salvageCounts[0] += leftoverSalvageCounts[0];
+		salvageCounts[1] += leftoverSalvageCounts[1];
+		report.setCombineCounts(combineCounts);
+		report.setRematchCounts(rematchCounts);
+		report.setSalvageCounts(salvageCounts);
+		for(Parcel<String> parcel:table.getTable())
+			emit(parcel);
+	}
+
+	/**
+	 * @return The number of parcels waiting for their match.
+	 */
+	public int getWaitingCount()
+	{	return waitingMBL.size() + waitingKML.size();
+	}
+
+	/**
+	 * Converts the same small pair of files with Witness.writeOutputFiles(), which joins whole tables, and with the
+	 *   ConversionPipeline, which joins through a StreamingJoin, and compares their geo files row by row. The rows are
+	 *   sorted and their UIDs left out, as the two joins pass the parcels on in different orders.
+	 * <br>The files hold a parcel that combines, an MBL and a KML parcel without a match, and the pair 1234 whose KML
+	 *   parcel has an extra vertex, so its join fails and the CourseAligner salvages it, beside a KML parcel 1235 that
+	 *   has the course count of MBL 1234 and an id one edit away from it.
+	 * @param args
+	 * @throws Exception If a file can not be written or the conversion fails.
+	 */
+	public static void main(String[] args) throws Exception
+	{	String[] square = {"N10E;100", "S80E;100", "S10W;100", "N80W;100"}, triangle = {"N0E;100", "S60E;100", "S60W;100"};
+		File mblFile = File.createTempFile("witness", ".mbl"), kmlFile = File.createTempFile("witness", ".kml");
+		FileWriter out = new FileWriter(mblFile);
+		out.write(mblParcel("1000", square) + mblParcel("1234", triangle) + mblParcel("1001", triangle));
+		out.close();
+		out = new FileWriter(kmlFile);
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kml xmlns=\"http://www.opengis.net/kml/2.2\">\n<Document>\n"
+				+ placemark("1000", square, false, 0) + placemark("1234", triangle, true, 0.01) + placemark("1235", triangle, false, 0.02)
+				+ placemark("1002", square, false, 0.03) + "</Document>\n</kml>\n");
+		out.close();
+
+		String[] none = new String[0];
+		File tableStub = File.createTempFile("witness", ".txt"), pipelineStub = File.createTempFile("witness", ".txt");
+		Witness.writeOutputFiles(Witness.textToTable(Witness.readInLines(mblFile), none, none),
+				Witness.kmlToTable(Witness.readInLines(kmlFile)), none, tableStub, ".txt");
+		new ConversionPipeline(none, none, none).run(mblFile, kmlFile, pipelineStub, ".txt");
+		LinkedList<String> tableRows = geoRows(tableStub), pipelineRows = geoRows(pipelineStub);
+		System.out.println("writeOutputFiles wrote " + tableRows.size() + " geo rows, the ConversionPipeline " + pipelineRows.size() + ".");
+		for(String row:tableRows)
+			if(!pipelineRows.remove(row))
+				System.out.println("Only written by writeOutputFiles:\t" + row);
+		for(String row:pipelineRows)
+			System.out.println("Only written by the ConversionPipeline:\t" + row);
+		for(File file:new File[]{mblFile, kmlFile, tableStub, pipelineStub, Witness.appendSuffix(tableStub, true, false, ".txt"),
+				Witness.appendSuffix(tableStub, false, false, ".txt"), Witness.appendSuffix(pipelineStub, true, false, ".txt"),
+				Witness.appendSuffix(pipelineStub, false, false, ".txt")})
+			file.delete();
+	}
+
+	/**
+	 * @return The lines of an MBL parcel with the courses, each "direction;distance". The helpers of this demonstration
+	 *   also write the files of the other demonstrations.
+	 */
+	static String mblParcel(String id, String[] courses)
+	{	String parcel = "typ pat\nid " + id + "\npt beginning at a stone\n";
+		for(String course:courses)
+			parcel += "ln " + course + ";to an oak\n";
+		return parcel + "end\n";
+	}
+
+	/**
+	 * @return A KML placemark whose LineString follows the courses from a corner 'offset' degrees east of the others,
+	 *   at 2 meters to the MBL distance unit, with an extra vertex halfway along the first course if 'split'.
+	 */
+	static String placemark(String id, String[] courses, boolean split, double offset)
+	{	double x = -75.4 + offset, y = 38.3, azimuth, distance;
+		String coordinates = x + "," + y + ",0";
+		for(int course = 0; course < courses.length; course++)
+		{	azimuth = Math.toRadians(CourseAligner.parseBearing(courses[course].split(";")[0]));
+			distance = 2 * CourseAligner.parseDistance(courses[course].split(";")[1]) / 111195;
+			if(split && course == 0)
+				coordinates += " " + (x + distance / 2 * Math.sin(azimuth) / Math.cos(Math.toRadians(y))) + "," + (y + distance / 2 * Math.cos(azimuth)) + ",0";
+			x += distance * Math.sin(azimuth) / Math.cos(Math.toRadians(y));
+			y += distance * Math.cos(azimuth);
+			coordinates += " " + x + "," + y + ",0";
+		}
+		return "<Placemark>\n<name>" + id + "</name>\n<ExtendedData><SchemaData schemaUrl=\"#s\">\n<SimpleData name=\"id\">" + id
+				+ "</SimpleData>\n</SchemaData></ExtendedData>\n<MultiGeometry>\n<Point>\n<coordinates>" + (-75.4 + offset) + ",38.3,0"
+				+ "</coordinates>\n</Point>\n<LineString>\n<coordinates>" + coordinates + "</coordinates>\n</LineString>\n</MultiGeometry>\n</Placemark>\n";
+	}
+
+	/**
+	 * @return The rows of the geo file of a stub without their UIDs, sorted.
+	 */
+	static LinkedList<String> geoRows(File stub) throws IOException
+	{	LinkedList<String> rows = new LinkedList<String>();
+		for(String line:Witness.readInLines(Witness.appendSuffix(stub, true, false, ".txt")))
+			rows.add(line.substring(line.indexOf('\t') + 1));
+		Collections.sort(rows);
+		return rows;
+	}
+}
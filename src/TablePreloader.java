@@ -0,0 +1,245 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Parses the MBL and KML files in the background as soon as they are chosen in the GUI, so that the Diagnostic and
+ *   the conversion find them parsed instead of waiting for the parse. The files are parsed one at a time, on a daemon
+ *   thread of low priority so that the GUI stays responsive, and a file that is chosen again, or whose custom fields
+ *   change, stops the parse of its earlier choice.
+ * <br>With a cache folder, the parse is saved as a TableSnapshot in the ResultCache of the folder, under the key that
+ *   the ConversionPipeline and the IncrementalConverter look for, so a conversion skips the parse. The table is then
+ *   only built from the memory mapped snapshot when it is first asked for, so a file that is only converted is never
+ *   held in memory. Without a cache folder the table is parsed straight away. Either way, the one table of a file is
+ *   handed to each caller, not a copy, so it must not be changed, e.g. joined.
+ * @author thayer young
+ */
+public class TablePreloader
+{
+	private static final int MBL = 0, KML = 1;
+	private static final long WAIT_MILLISECONDS = 100;		// between the checks for a cancelled wait
+
+	private ExecutorService executor;
+	private Load[] loads = new Load[2];		// the latest MBL and KML files
+	private HashMap<File,ResultCache> caches = new HashMap<File,ResultCache>();	// by the cache folder
+
+	/**
+	 * The parse of one file, with what it depends on: the file as it was when it was chosen, the parse settings and the
+	 *   cache folder.
+	 */
+	private class Load implements Callable<Load>
+	{	File file, cacheDirectory;
+		boolean isKML;
+		long length, modified;
+		String[] singleLineFields, multipleLineFields;
+		String settings;
+		volatile boolean cancelled = false;
+		Future<Load> future;
+		TableSnapshot snapshot = null;
+		DataTableW<String> table = null;
+
+		Load(File file, boolean isKML, String[] singleLineFields, String[] multipleLineFields, File cacheDirectory)
+		{	this.file = file;
+			this.isKML = isKML;
+			this.singleLineFields = singleLineFields;
+			this.multipleLineFields = multipleLineFields;
+			this.cacheDirectory = cacheDirectory;
+			length = file.length();
+			modified = file.lastModified();
+			settings = isKML ? TableSnapshot.KML_SETTINGS : TableSnapshot.mblSettings(singleLineFields, multipleLineFields);
+		}
+
+		/**
+		 * @return True if the load is of the file as it is now, with the same settings and cache folder.
+		 */
+		boolean matches(File file, String settings, File cacheDirectory)
+		{	return this.file.equals(file) && length == file.length() && modified == file.lastModified()
+					&& this.settings.equals(settings)
+					&& (this.cacheDirectory == null ? cacheDirectory == null : this.cacheDirectory.equals(cacheDirectory));
+		}
+
+		public Load call() throws IOException
+		{	if(cacheDirectory == null)
+			{	table = parse(null);
+				return this;
+			}
+			ResultCache cache = getCache(cacheDirectory);
+			File snapshotFile = cache.getFile(ResultCache.key(ResultCache.PARSE_STAGE, cache.hash(file), settings), TableSnapshot.SNAPSHOT_SUFFIX);
+			snapshot = TableSnapshot.open(snapshotFile, null, isKML, settings);
+			if(snapshot == null)
+			{	table = parse(snapshotFile);
+				if(table == null)
+				{	snapshot = TableSnapshot.open(snapshotFile, null, isKML, settings);
+					if(snapshot == null)		// e.g. the disk is full
+						table = parse(null);
+				}
+			}
+			return this;
+		}
+
+		/**
+		 * Parses the file, and writes its snapshot if there is a snapshot file.
+		 * @return The table of the file, or null if its snapshot was written instead.
+		 */
+		private DataTableW<String> parse(File snapshotFile) throws IOException
+		{	SnapshotWriter writer = null;
+			if(snapshotFile != null)
+			{	try
+				{	writer = new SnapshotWriter(snapshotFile, null, isKML, settings);
+				}catch(IOException ioe)
+				{	// e.g. a read only folder, the table is still parsed
+				}
+			}
+			LineReader lines = new LineReader(file);
+			MblParser mblParser = null;
+			ParcelSource parser;
+			if(isKML)
+				parser = new KmlParser(lines);
+			else parser = mblParser = new MblParser(lines, singleLineFields, multipleLineFields);
+			LinkedList<Parcel<String>> parcels = writer == null ? new LinkedList<Parcel<String>>() : null;
+			Parcel<String> parcel;
+			boolean complete = false;
+			try
+			{	while((parcel = parser.next()) != null)
+				{	if(cancelled)
+						throw new CancellationException("The parse of " + file + " was replaced.");
+					if(parcels != null)
+						parcels.add(parcel);
+					else if((writer = TableSnapshot.add(writer, parcel)) == null)
+						return null;		// the snapshot could not be written, the table is parsed again
+				}
+				complete = true;
+			}
+			finally
+			{	lines.close();
+				if(!complete && writer != null)
+					writer.abandon();
+			}
+			CountingTree fieldList = mblParser == null ? new CountingTree() : mblParser.getFieldList();
+			CountingTree fieldContentTree = mblParser == null ? new CountingTree() : mblParser.getGeometryCommentMap();
+			if(writer != null)
+			{	TableSnapshot.finish(writer, fieldList, fieldContentTree);
+				return null;
+			}
+			return new DataTableW<String>(parcels, fieldList, fieldContentTree);
+		}
+	}
+
+	public TablePreloader()
+	{	executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{	public Thread newThread(Runnable runnable)
+			{	Thread thread = new Thread(runnable, "Table preloader");
+				thread.setDaemon(true);		// the GUI can close while a file is parsed
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Starts to parse a file in the background, unless it is already parsed, or being parsed, with the same settings.
+	 *   The parse of the earlier MBL or KML file is stopped.
+	 * @param file The MBL or KML file, nothing is parsed if it does not exist.
+	 * @param isKML True if the file is a KML file.
+	 * @param singleLineFields The custom single line fields of an MBL file.
+	 * @param multipleLineFields The custom multiple line fields of an MBL file.
+	 * @param cacheDirectory The ResultCache folder that the parse is saved in, or null to only keep the table.
+	 */
+	public synchronized void preload(File file, boolean isKML, String[] singleLineFields, String[] multipleLineFields, File cacheDirectory)
+	{	if(file == null || !file.isFile())
+			return;
+		Load load = new Load(file, isKML, singleLineFields, multipleLineFields, cacheDirectory);
+		Load current = loads[isKML ? KML : MBL];
+		if(current != null && current.matches(file, load.settings, cacheDirectory))
+			return;
+		if(current != null)
+			current.cancelled = true;
+		load.future = executor.submit(load);
+		loads[isKML ? KML : MBL] = load;
+	}
+
+	/**
+	 * Waits for the background parse of a file, if it was preloaded with the same settings and has not changed since.
+	 * @param file The MBL or KML file.
+	 * @param isKML True if the file is a KML file.
+	 * @param singleLineFields The custom single line fields of an MBL file.
+	 * @param multipleLineFields The custom multiple line fields of an MBL file.
+	 * @param cacheDirectory The ResultCache folder that the parse should be saved in, or null.
+	 * @param progress Stops the wait if it is cancelled, may be null.
+	 * @return The table of the file, or null if the file was not preloaded or its parse failed, in which case the caller
+	 *   parses the file itself.
+	 * @throws CancellationException If the progress is cancelled while it waits.
+	 */
+	public DataTableW<String> getTable(File file, boolean isKML, String[] singleLineFields, String[] multipleLineFields, File cacheDirectory,
+			ProgressSink progress)
+	{	Load load = await(file, isKML, singleLineFields, multipleLineFields, cacheDirectory, progress);
+		if(load == null)
+			return null;
+		synchronized(load)
+		{	if(load.table == null)
+				load.table = load.snapshot.toTable();	// once, the later callers get the same table
+			return load.table;
+		}
+	}
+
+	/**
+	 * Waits for the background parse of a file to be saved in the ResultCache, e.g. before a conversion that would
+	 *   otherwise parse the file a second time.
+	 * @return True if the parse of the file is in the cache.
+	 * @throws CancellationException If the progress is cancelled while it waits.
+	 * @see #getTable(File, boolean, String[], String[], File, ProgressSink)
+	 */
+	public boolean awaitSnapshot(File file, boolean isKML, String[] singleLineFields, String[] multipleLineFields, File cacheDirectory,
+			ProgressSink progress)
+	{	Load load = await(file, isKML, singleLineFields, multipleLineFields, cacheDirectory, progress);
+		return load != null && load.snapshot != null;
+	}
+
+	private Load await(File file, boolean isKML, String[] singleLineFields, String[] multipleLineFields, File cacheDirectory, ProgressSink progress)
+	{	Load load;
+		synchronized(this)
+		{	load = loads[isKML ? KML : MBL];
+		}
+		String settings = isKML ? TableSnapshot.KML_SETTINGS : TableSnapshot.mblSettings(singleLineFields, multipleLineFields);
+		if(load == null || file == null || !load.matches(file, settings, cacheDirectory))
+			return null;
+		while(true)
+		{	ConversionPipeline.checkCancelled(progress);
+			try
+			{	return load.future.get(WAIT_MILLISECONDS, TimeUnit.MILLISECONDS);
+			}catch(TimeoutException te)
+			{	// still parsing
+			}catch(InterruptedException ie)
+			{	Thread.currentThread().interrupt();
+				return null;
+			}catch(ExecutionException ee)
+			{	return null;		// the caller parses the file and reports the error
+			}catch(CancellationException ce)
+			{	return null;
+			}
+		}
+	}
+
+	/**
+	 * @param directory A cache folder.
+	 * @return The ResultCache of the folder, shared by the preloads and the conversions so that each file is hashed once.
+	 */
+	public synchronized ResultCache getCache(File directory)
+	{	ResultCache cache = caches.get(directory);
+		if(cache == null)
+		{	cache = new ResultCache(directory);
+			caches.put(directory, cache);
+		}
+		return cache;
+	}
+}
@@ -0,0 +1,447 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/**
+ * A parsed MBL or KML file, saved by a SnapshotWriter next to the file as a compact binary snapshot, so that a later
+ *   conversion or diagnostic skips reading and parsing the text, e.g. when only the search terms have changed. The
+ *   snapshot is memory mapped, so opening it only reads its header, and each parcel is built from the mapped bytes
+ *   when it is asked for. The strings are decoded once, when they are first used.
+ * <br>A snapshot is only used while the length and modification time of its source file, and the custom fields that
+ *   it was parsed with, are those it was written with, otherwise the file is parsed again.
+ * <br>The snapshot holds the header, the parcels, the index of the parcels, the field counts, the parse settings and
+ *   the string dictionary, in that order. The snapshot must be smaller than 2 GB, the limit of a mapped buffer.
+ * @author thayer young
+ */
+public class TableSnapshot
+{
+	/** The suffix of a snapshot file, appended to its source file name. */
+	public static final String SNAPSHOT_SUFFIX = ".snapshot";
+	/** The settings of a KML snapshot, the KML parser has none. */
+	public static final String KML_SETTINGS = "kml";
+	static final int VERSION = 2;
+	static final byte[] MAGIC = {'W','T','S','N','A','P',0,VERSION};
+	static final int HEADER_BYTES = 80;
+	// the types of the field codes, in their low 2 bits
+	static final int NULL_VALUE = 0;
+	static final int STRING_VALUE = 1;
+	static final int INTEGER_VALUE = 2;
+	static final int DECIMAL_VALUE = 3;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private ByteBuffer buffer;
+	private boolean isKML;
+	private int parcelCount, indexOffset, treesOffset, dictionaryOffset;
+	private String[] strings;
+
+	private TableSnapshot(ByteBuffer buffer)
+	{	this.buffer = buffer;
+	}
+
+	/**
+	 * @param sourceFile An MBL or KML file.
+	 * @return The snapshot file of the source file, whether or not it exists.
+	 */
+	public static File snapshotFileOf(File sourceFile)
+	{	return new File(sourceFile.getPath() + SNAPSHOT_SUFFIX);
+	}
+
+	/**
+	 * @param singleLineFields The custom single line fields, as for Witness.textToTable().
+	 * @param multipleLineFields The custom multiple line fields, as for Witness.textToTable().
+	 * @return The settings of an MBL snapshot, which must match for the snapshot to be used.
+	 */
+	public static String mblSettings(String[] singleLineFields, String[] multipleLineFields)
+	{	return "mbl\n" + Arrays.toString(singleLineFields) + "\n" + Arrays.toString(multipleLineFields);
+	}
+
+	/**
+	 * Maps the snapshot of a source file, if it is up to date.
+	 * @param sourceFile The MBL or KML file.
+	 * @param isKML True if the source is a KML file.
+	 * @param settings The parse settings, mblSettings() or KML_SETTINGS.
+	 * @return The snapshot, or null if there is none, or it does not match the source file or settings.
+	 */
+	public static TableSnapshot open(File sourceFile, boolean isKML, String settings)
+	{	return open(snapshotFileOf(sourceFile), sourceFile, isKML, settings);
+	}
+
+	/**
+	 * Maps a snapshot file, if it is complete and matches.
+	 * @param file The snapshot file, e.g. one in a ResultCache.
+	 * @param sourceFile The MBL or KML file, or null if the snapshot is not checked against its source, e.g. one named
+	 *   by the hash of its source.
+	 * @param isKML True if the source is a KML file.
+	 * @param settings The settings that the snapshot was written with.
+	 * @return The snapshot, or null if there is none, or it does not match the source file or settings.
+	 */
+	public static TableSnapshot open(File file, File sourceFile, boolean isKML, String settings)
+	{	if(!file.isFile() || file.length() < HEADER_BYTES || file.length() > Integer.MAX_VALUE)
+			return null;
+		TableSnapshot snapshot;
+		try
+		{	RandomAccessFile input = new RandomAccessFile(file, "r");
+			try
+			{	snapshot = new TableSnapshot(input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length()));
+			}
+			finally
+			{	input.close();		// the mapping stays valid
+			}
+		}catch(IOException ioe)
+		{	return null;
+		}
+		if(!snapshot.readHeader(sourceFile, isKML, settings))
+			return null;
+		return snapshot;
+	}
+
+	/**
+	 * Reads the header and checks it against the source file.
+	 * @return True if the snapshot is complete and up to date.
+	 */
+	private boolean readHeader(File sourceFile, boolean isKML, String settings)
+	{	for(int index = 0; index < MAGIC.length; index++)
+		{	if(buffer.get(index) != MAGIC[index])
+				return false;
+		}
+		int position = MAGIC.length;
+		this.isKML = buffer.getInt(position) == 1;
+		parcelCount = buffer.getInt(position + 4);
+		long sourceLength = buffer.getLong(position + 8), sourceModified = buffer.getLong(position + 16);
+		long[] offsets = new long[5];	// index, trees, settings, dictionary, file length
+		for(int index = 0; index < offsets.length; index++)
+			offsets[index] = buffer.getLong(position + 24 + 8 * index);
+		if(this.isKML != isKML || offsets[4] != buffer.capacity() || (sourceFile != null
+				&& (sourceLength != sourceFile.length() || sourceModified != sourceFile.lastModified())))
+			return false;
+		indexOffset = (int) offsets[0];
+		treesOffset = (int) offsets[1];
+		dictionaryOffset = (int) offsets[3];
+		if(!settings.equals(decode((int) offsets[2])))
+			return false;
+		strings = new String[buffer.getInt(dictionaryOffset)];
+		return true;
+	}
+
+	/**
+	 * @return The UTF-8 string at the position, after its length.
+	 */
+	private String decode(int position)
+	{	int[] start = {position};
+		byte[] bytes = new byte[(int) varLong(start)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(start[0]);
+		view.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * @return The string of the dictionary, decoded when it is first used.
+	 */
+	private String string(int index)
+	{	String value = strings[index];
+		if(value == null)
+		{	value = decode(buffer.getInt(dictionaryOffset + 4 + 4 * index));
+			strings[index] = value;
+		}
+		return value;
+	}
+
+	/**
+	 * Reads a variable length number at the reader's position and moves the position past it.
+	 */
+	private long varLong(int[] position)
+	{	long value = 0;
+		int shift = 0;
+		byte next;
+		do
+		{	next = buffer.get(position[0]++);
+			value |= (long) (next & 0x7F) << shift;
+			shift += 7;
+		}while(next < 0);
+		return value;
+	}
+
+	/**
+	 * Reads the field value at the reader's position and moves the position past it. The low 2 bits of its code are
+	 *   the type, the rest are the index of a dictionary string, or the zigzag encoded value of an integer or of the
+	 *   unscaled decimal, whose scale follows in a byte.
+	 */
+	private String value(int[] position)
+	{	long code = varLong(position), bits = code >>> 2, number = (bits >>> 1) ^ -(bits & 1);
+		switch((int) (code & 3))
+		{	case STRING_VALUE:
+				return string((int) bits);
+			case INTEGER_VALUE:
+				return Long.toString(number);
+			case DECIMAL_VALUE:
+				return BigDecimal.valueOf(number, buffer.get(position[0]++) & 0xFF).toPlainString();
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Builds a parcel from the snapshot. Each call builds a new parcel, which the caller may change, e.g. by joining it.
+	 * @param index The index of the parcel, in the order of the source file.
+	 * @return The parcel, as the MblParser or the KmlParser returned it, or as it was joined.
+	 */
+	public Parcel<String> getParcel(int index)
+	{	int[] position = {buffer.getInt(indexOffset + 4 * index)};
+		String comparator = value(position), kmlName = value(position);
+		int geometryCount = (int) varLong(position), recordCount = (int) varLong(position);
+		int fieldRecordCount = (int) varLong(position);
+		Parcel<String> parcel = new Parcel<String>(readRecords(position, recordCount), comparator, geometryCount, kmlName);
+		if(fieldRecordCount > 0)
+		{	for(DataRecordW<String> record:readRecords(position, fieldRecordCount))
+				parcel.addFieldRecord(record);
+		}
+		return parcel;
+	}
+
+	/**
+	 * @param index The index of the parcel, from 0.
+	 * @return The id of the parcel, read without reading its records.
+	 */
+	public String getComparator(int index)
+	{	return value(new int[]{buffer.getInt(indexOffset + 4 * index)});
+	}
+
+	private LinkedList<DataRecordW<String>> readRecords(int[] position, int count)
+	{	int keyIndex = isKML ? Witness.KML_PID : Witness.MBL_FIELDNAME;
+		LinkedList<DataRecordW<String>> records = new LinkedList<DataRecordW<String>>();
+		String[] fields;
+		for(int record = 0; record < count; record++)
+		{	fields = new String[(int) varLong(position)];
+			for(int field = 0; field < fields.length; field++)
+				fields[field] = value(position);
+			records.add(new DataRecordW<String>(fields, 1, keyIndex));
+		}
+		return records;
+	}
+
+	/**
+	 * @return The parcels one at a time, in the order of the source file, built as they are asked for.
+	 */
+	public ParcelSource source()
+	{	return new ParcelSource()
+		{	private int next = 0;
+
+			public Parcel<String> next()
+			{	if(next == parcelCount)
+					return null;
+				return getParcel(next++);
+			}
+		};
+	}
+
+	/**
+	 * @return The parcels in the order of the source file, each built as the iteration reaches it.
+	 */
+	public Iterable<Parcel<String>> parcels()
+	{	return new Iterable<Parcel<String>>()
+		{	public Iterator<Parcel<String>> iterator()
+			{	return new Iterator<Parcel<String>>()
+				{	private int next = 0;
+
+					public boolean hasNext()
+					{	return next < parcelCount;
+					}
+
+					public Parcel<String> next()
+					{	if(next == parcelCount)
+							throw new NoSuchElementException();
+						return getParcel(next++);
+					}
+
+					public void remove()
+					{	throw new UnsupportedOperationException();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * @return A table of every parcel, as Witness.textToTable() or Witness.kmlToTable() would return it.
+	 */
+	public DataTableW<String> toTable()
+	{	LinkedList<Parcel<String>> table = new LinkedList<Parcel<String>>();
+		for(int index = 0; index < parcelCount; index++)
+			table.add(getParcel(index));
+		return new DataTableW<String>(table, getFieldList(), getFieldContentTree());
+	}
+
+	/**
+	 * @return The field names of the MBL parcels and their counts, as MblParser.getFieldList().
+	 */
+	public CountingTree getFieldList()
+	{	return readTree(0);
+	}
+
+	/**
+	 * @return The geometry comments of the MBL parcels and their counts, as MblParser.getGeometryCommentMap().
+	 */
+	public CountingTree getFieldContentTree()
+	{	return readTree(1);
+	}
+
+	private CountingTree readTree(int which)
+	{	int position = treesOffset, size;
+		for(int tree = 0; tree < which; tree++)
+			position += 4 + 8 * buffer.getInt(position);
+		CountingTree counts = new CountingTree();
+		size = buffer.getInt(position);
+		for(int entry = 0; entry < size; entry++)
+		{	position += 8;
+			counts.add(string(buffer.getInt(position - 4)), buffer.getInt(position));
+		}
+		return counts;
+	}
+
+	/**
+	 * Reads a table from the snapshot of the source file, or if it has none that is up to date, parses the source file
+	 *   and writes its snapshot for the next time.
+	 * @param sourceFile The MBL or KML file.
+	 * @param isKML True if the source is a KML file.
+	 * @param singleLineFields The custom single line fields of an MBL file.
+	 * @param multipleLineFields The custom multiple line fields of an MBL file.
+	 * @return The table, as Witness.textToTable() or Witness.kmlToTable() would return it.
+	 * @throws IOException If the source file can not be read or parsed. A snapshot that can not be written is skipped.
+	 */
+	public static DataTableW<String> readTable(File sourceFile, boolean isKML, String[] singleLineFields, String[] multipleLineFields) throws IOException
+	{	String settings = isKML ? KML_SETTINGS : mblSettings(singleLineFields, multipleLineFields);
+		TableSnapshot snapshot = open(sourceFile, isKML, settings);
+		if(snapshot != null)
+			return snapshot.toTable();
+		SnapshotWriter writer = null;
+		try
+		{	writer = new SnapshotWriter(sourceFile, isKML, settings);
+		}catch(IOException ioe)
+		{	// e.g. a read only folder, the file is parsed every time
+		}
+		LineReader lines = new LineReader(sourceFile);
+		MblParser mblParser = null;
+		ParcelSource parser;
+		if(isKML)
+			parser = new KmlParser(lines);
+		else parser = mblParser = new MblParser(lines, singleLineFields, multipleLineFields);
+		LinkedList<Parcel<String>> table = new LinkedList<Parcel<String>>();
+		Parcel<String> parcel;
+		boolean complete = false;
+		try
+		{	while((parcel = parser.next()) != null)
+			{	table.add(parcel);
+				if(writer != null)
+					writer = add(writer, parcel);
+			}
+			complete = true;
+		}
+		finally
+		{	lines.close();
+			if(!complete && writer != null)
+				writer.abandon();
+		}
+		CountingTree fieldList = mblParser == null ? new CountingTree() : mblParser.getFieldList();
+		CountingTree fieldContentTree = mblParser == null ? new CountingTree() : mblParser.getGeometryCommentMap();
+		if(writer != null)
+			finish(writer, fieldList, fieldContentTree);
+		return new DataTableW<String>(table, fieldList, fieldContentTree);
+	}
+
+	/**
+	 * Adds a parcel to a snapshot, abandoning the snapshot if it can not be written.
+	 * @return The writer, or null once it has been abandoned.
+	 */
+	static SnapshotWriter add(SnapshotWriter writer, Parcel<String> parcel)
+	{	try
+		{	writer.add(parcel);
+			return writer;
+		}catch(IOException ioe)
+		{	writer.abandon();
+			return null;
+		}
+	}
+
+	/**
+	 * Finishes a snapshot, the snapshot is skipped if it can not be written.
+	 */
+	static void finish(SnapshotWriter writer, CountingTree fieldList, CountingTree fieldContentTree)
+	{	try
+		{	writer.finish(fieldList, fieldContentTree);
+		}catch(IOException ioe)
+		{	// the file is parsed again next time
+		}
+	}
+
+	/**
+	 * @return True if the snapshot is of a KML file.
+	 */
+	public boolean isKML()
+	{	return isKML;
+	}
+
+	/**
+	 * @return The number of parcels in the snapshot.
+	 */
+	public int size()
+	{	return parcelCount;
+	}
+
+	/**
+	 * Demonstrates a snapshot of a small MBL file: its parcels are read back from the snapshot and compared to those
+	 *   parsed from the text, then the snapshot is opened with other custom fields and after the file is edited,
+	 *   when it must not be used.
+	 * @param args
+	 * @throws IOException If the temporary files can not be written or read.
+	 */
+	public static void main(String[] args) throws IOException
+	{	File file = File.createTempFile("witness", ".mbl");
+		File snapshotFile = snapshotFileOf(file);
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+		out.write("typ pat\nid 1000\nto Owner 0\ndat 1700\n! NOTE= a note\n! RR: a rent roll line\n! continued\nloc 12 0 3\n"
+				+ "pt beginning at a stone\nln N18.8W;71.3;to a poplar\nln S89.1E;95.8;to a walnut\nend\n"
+				+ "typ pat\nid 1001\ndat 1701\nloc 12 1 3\npt beginning at a red oak\nln N86W;71.6;to a white oak\nend\n");
+		out.close();
+		String[] single = {"! NOTE="}, multiple = {"! RR:"};
+		DataTableW<String> parsed = Witness.textToTable(Witness.readInLines(file), single, multiple);
+		readTable(file, false, single, multiple);		// parses the file again and writes the snapshot
+		TableSnapshot snapshot = open(file, false, mblSettings(single, multiple));
+		if(snapshot == null)
+		{	System.out.println("No snapshot was written next to " + file);
+			return;
+		}
+		DataTableW<String> read = snapshot.toTable();
+		System.out.println("The snapshot of " + parsed.size() + " parsed parcels is " + snapshotFile.length() + " bytes, and holds "
+				+ snapshot.size() + " parcels. The first as read from it:\n\n" + read.getTable().getFirst());
+		Iterator<Parcel<String>> parsedParcels = parsed.getTable().iterator();
+		for(Parcel<String> parcel:read.getTable())
+		{	Parcel<String> original = parsedParcels.next();
+			boolean same = parcel.getComparator().equals(original.getComparator()) && parcel.size() == original.size();
+			for(int record = 0; same && record < parcel.size(); record++)
+				same = parcel.get(record).getRecord().equals(original.get(record).getRecord());
+			if(!same)
+				System.out.println("Parcel " + original.getComparator() + " differs from the parse:\n" + parcel);
+		}
+		System.out.println("The field counts are " + (read.getFieldList().toString().equals(parsed.getFieldList().toString())
+				? "those of the parse." : "not those of the parse:\n" + read.getFieldList()));
+
+		System.out.println("Opened with other custom fields: " + open(file, false, mblSettings(new String[0], multiple))
+				+ ", should be null.");
+		file.setLastModified(file.lastModified() - 2000);
+		System.out.println("Opened once the file is edited: " + open(file, false, mblSettings(single, multiple)) + ", should be null.");
+		file.delete();
+		snapshotFile.delete();
+	}
+}
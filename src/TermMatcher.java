@@ -0,0 +1,58 @@
+/**
+ * The geometry comment search terms, prepared once so that the FoundTerms of any number of courses can be found
+ *   without lower casing each term again for each course. It finds the same terms as Witness.parseGCmnt(), and can be
+ *   shared by the geo file writers of many files, e.g. by a JobRunner, as it is not changed once made.
+ * @author thayer young
+ */
+public class TermMatcher
+{
+	private String[] terms;
+	private String[] lowerCaseTerms;
+
+	/**
+	 * @param geoCommentSearchTerms The terms to be listed in FoundTerms when a course comment contains them, in the
+	 *   order that they are listed. A null term is skipped.
+	 */
+	public TermMatcher(String[] geoCommentSearchTerms)
+	{	int count = 0;
+		for(String term:geoCommentSearchTerms)
+		{	if(term != null)
+				count++;
+		}
+		terms = new String[count];
+		lowerCaseTerms = new String[count];
+		count = 0;
+		for(String term:geoCommentSearchTerms)
+		{	if(term != null)
+			{	terms[count] = term;
+				lowerCaseTerms[count++] = term.toLowerCase();
+			}
+		}
+	}
+
+	/**
+	 * @param gCmnt A course comment, or null.
+	 * @return The terms that the comment contains, ignoring case, each followed by ", ", as from Witness.parseGCmnt().
+	 */
+	public String find(String gCmnt)
+	{	if(gCmnt == null || terms.length == 0)
+			return "";
+		String comment = gCmnt.toLowerCase();
+		StringBuilder found = null;
+		for(int i = 0; i < terms.length; i++)
+		{	if(comment.contains(lowerCaseTerms[i]))
+			{	if(found == null)
+					found = new StringBuilder();
+				found.append(terms[i]).append(", ");
+			}
+		}
+		return found == null ? "" : found.toString();
+	}
+
+	/**
+	 * @return The terms, without the null terms.
+	 */
+	public String[] getTerms() {
+		return terms;
+	}
+}
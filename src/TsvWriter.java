@@ -0,0 +1,240 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes tab delimited rows as UTF-8 straight into a large reusable byte buffer, which is written to a channel, e.g.
+ *   a FileChannel, in big blocks. Fields are appended one at a time, integers are formatted without allocating a
+ *   String, and tabs and line breaks inside a field are replaced by a space so that they can not break the table.
+ * @author thayer young
+ */
+public class TsvWriter
+{
+	/** The default size of the buffer, in bytes. */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	/** Room reserved per char: a char takes at most 3 bytes in UTF-8, a surrogate pair 4 bytes once its chunk ends. */
+	private static final int MAX_BYTES_PER_CHAR = 4;
+
+	private WritableByteChannel channel;
+	private byte[] buffer;
+	private int position = 0;
+	private boolean rowStarted = false;
+	private long bytesWritten = 0;
+	private long rowCount = 0;
+	private byte[] digits = new byte[11];	// room for Integer.MIN_VALUE
+
+	/**
+	 * @param channel The channel that the rows are written to. It is closed by close().
+	 */
+	public TsvWriter(WritableByteChannel channel)
+	{	this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param channel The channel that the rows are written to. It is closed by close().
+	 * @param bufferSize The size of the buffer in bytes, the channel is written to whenever it fills.
+	 */
+	public TsvWriter(WritableByteChannel channel, int bufferSize)
+	{	this.channel = channel;
+		buffer = new byte[Math.max(bufferSize, 64)];
+	}
+
+	/**
+	 * Opens a TsvWriter on a new or overwritten file.
+	 * @param file The file to be written.
+	 * @return The writer, which must be closed.
+	 * @throws IOException If the file can not be opened.
+	 */
+	public static TsvWriter open(File file) throws IOException
+	{	return new TsvWriter(new FileOutputStream(file).getChannel());
+	}
+
+	/**
+	 * Appends a text field to the current row. A null value is written as an empty field.
+	 * @param value The field value.
+	 * @return This writer, so that calls can be chained.
+	 * @throws IOException If the buffer had to be written and the write failed.
+	 */
+	public TsvWriter field(String value) throws IOException
+	{	separate();
+		if(value == null)
+			return this;
+		int length = value.length(), index = 0, chunk;
+		char c;
+		while(index < length)
+		{	chunk = Math.min(length - index, (buffer.length - position) / MAX_BYTES_PER_CHAR);
+			if(chunk == 0)
+			{	flush();
+				continue;
+			}
+			chunk += index;
+			while(index < chunk)
+			{	c = value.charAt(index++);
+				if(c < 0x80)
+				{	if(c == '\t' || c == '\n' || c == '\r')
+						c = ' ';
+					buffer[position++] = (byte) c;
+				}
+				else if(c < 0x800)
+				{	buffer[position++] = (byte) (0xC0 | (c >> 6));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+				else if(Character.isHighSurrogate(c) && index < length && Character.isLowSurrogate(value.charAt(index)))
+				{	int codePoint = Character.toCodePoint(c, value.charAt(index++));
+					buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+					buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+					buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+				}
+				else if(Character.isSurrogate(c))
+					buffer[position++] = (byte) '?';	// an unpaired surrogate can not be encoded
+				else
+				{	buffer[position++] = (byte) (0xE0 | (c >> 12));
+					buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+					buffer[position++] = (byte) (0x80 | (c & 0x3F));
+				}
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Appends an integer field to the current row, formatted without creating a String.
+	 * @param value The field value.
+	 * @return This writer, so that calls can be chained.
+	 * @throws IOException If the buffer had to be written and the write failed.
+	 */
+	public TsvWriter field(int value) throws IOException
+	{	separate();
+		ensure(digits.length);
+		if(value == Integer.MIN_VALUE)
+		{	byte[] min = "-2147483648".getBytes("US-ASCII");
+			System.arraycopy(min, 0, buffer, position, min.length);
+			position += min.length;
+			return this;
+		}
+		if(value < 0)
+		{	buffer[position++] = '-';
+			value = -value;
+		}
+		int count = 0;
+		do
+		{	digits[count++] = (byte) ('0' + value % 10);
+			value /= 10;
+		}while(value > 0);
+		while(count > 0)
+			buffer[position++] = digits[--count];
+		return this;
+	}
+
+	/**
+	 * Writes a whole row of text fields, e.g. the header.
+	 * @param values The field values.
+	 * @throws IOException If the buffer had to be written and the write failed.
+	 */
+	public void row(String... values) throws IOException
+	{	for(String value:values)
+			field(value);
+		endRow();
+	}
+
+	/**
+	 * Ends the current row with a new line.
+	 * @throws IOException If the buffer had to be written and the write failed.
+	 */
+	public void endRow() throws IOException
+	{	ensure(1);
+		buffer[position++] = '\n';
+		rowStarted = false;
+		rowCount++;
+	}
+
+	/**
+	 * Appends a row that is already formatted, e.g. one read back from a spool written by a TsvWriter.
+	 * @param row The bytes of the row, ending with its new line. They are consumed.
+	 * @throws IOException If the buffer had to be written and the write failed.
+	 */
+	public void formattedRow(ByteBuffer row) throws IOException
+	{	int count;
+		while(row.hasRemaining())
+		{	if(position == buffer.length)
+				flush();
+			count = Math.min(row.remaining(), buffer.length - position);
+			row.get(buffer, position, count);
+			position += count;
+		}
+		rowStarted = false;
+		rowCount++;
+	}
+
+	/**
+	 * Marks the start of a group of rows that must stay in one file, e.g. the rows of one parcel. A TsvWriter writes a
+	 *   single file so it does nothing, a ShardedTsvWriter may start a new shard.
+	 * @param key The value of getGroupField() for the group, or null.
+	 * @throws IOException If the buffer had to be written and the write failed.
+	 */
+	public void startGroup(String key) throws IOException
+	{
+	}
+
+	/**
+	 * @return The MBL field name whose value is passed to startGroup(), or null if the key is not used.
+	 */
+	public String getGroupField()
+	{	return null;
+	}
+
+	private void separate() throws IOException
+	{	if(rowStarted)
+		{	ensure(1);
+			buffer[position++] = '\t';
+		}
+		rowStarted = true;
+	}
+
+	private void ensure(int bytes) throws IOException
+	{	if(buffer.length - position < bytes)
+			flush();
+	}
+
+	/**
+	 * Writes the buffered bytes to the channel.
+	 * @throws IOException If the write fails.
+	 */
+	public void flush() throws IOException
+	{	ByteBuffer block = ByteBuffer.wrap(buffer, 0, position);
+		while(block.hasRemaining())
+			channel.write(block);
+		bytesWritten += position;
+		position = 0;
+	}
+
+	/**
+	 * @return The number of bytes written so far, including the bytes still in the buffer.
+	 */
+	public long getBytesWritten()
+	{	return bytesWritten + position;
+	}
+
+	/**
+	 * @return The number of rows ended so far, including the header.
+	 */
+	public long getRowCount()
+	{	return rowCount;
+	}
+
+	/**
+	 * Writes the buffered bytes and closes the channel.
+	 * @throws IOException If the write or the close fails.
+	 */
+	public void close() throws IOException
+	{	try
+		{	flush();
+		}
+		finally
+		{	channel.close();
+		}
+	}
+}
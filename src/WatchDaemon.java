@@ -0,0 +1,358 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a drop folder and converts each MBL and KML file pair that is dropped into it, or changed, e.g.
+ *   "deeds.mbl" with "deeds.kml", without being asked. The geo and flat files are written beside the pair, e.g.
+ *   "deeds_geo.txt", with a status file, "deeds_status.txt", that says whether the pair is being converted, was
+ *   converted or failed, and the summary of the join. The conversions run on a JobRunner, so the prepared custom
+ *   fields, search terms and ResultCache stay loaded in the JVM from one drop to the next.
+ * <br>A file that is still being copied changes its length or modification time, so a pair is only converted once
+ *   neither of its files has changed for the quiet time, DEFAULT_QUIET_MILLISECONDS by default. A pair that changes
+ *   while it is being converted is converted again afterwards. The status file records the length and modification
+ *   time of the files that it was written for, so a pair that is unchanged since the daemon last ran is not converted
+ *   again when it starts.
+ * @author thayer young
+ */
+public class WatchDaemon implements Runnable
+{
+	/** The default time that neither file of a pair may change before the pair is converted. */
+	public static final long DEFAULT_QUIET_MILLISECONDS = 2000;
+	/** The suffix of the status file of a pair. */
+	public static final String STATUS_SUFFIX = "_status";
+	/** The status of a pair that is being converted. */
+	public static final String STATUS_CONVERTING = "converting";
+	/** The status of a pair that was converted. */
+	public static final String STATUS_DONE = "done";
+	/** The status of a pair that failed. */
+	public static final String STATUS_FAILED = "failed";
+	private static final String MBL_EXTENSION = ".mbl";
+	private static final String KML_EXTENSION = ".kml";
+	private static final String TEXT_EXTENSION = ".txt";
+	private static final String STAMP_LABEL = "Files: ";
+	private static final String STATUS_TEMP_PREFIX = ".witness_status";
+
+	private File folder;
+	private JobRunner runner;
+	private String fileExtension = TEXT_EXTENSION;
+	private long quietMilliseconds = DEFAULT_QUIET_MILLISECONDS;
+	private PrintStream log = System.out;
+	private volatile boolean stopped = false;
+	private boolean failed = false;
+	// by the name of the pair, the name of its MBL file without the extension
+	private HashMap<String,String> stamps = new HashMap<String,String>();		// the stamp of the files when last seen
+	private HashMap<String,Long> seen = new HashMap<String,Long>();			// when that stamp was first seen
+	private HashMap<String,String> converted = new HashMap<String,String>();	// the stamp of the files when converted
+	private HashSet<String> running = new HashSet<String>();
+
+	/**
+	 * @param folder The drop folder.
+	 * @param runner The JobRunner of the conversions, with their settings, e.g. the geo formats. It is not finished.
+	 */
+	public WatchDaemon(File folder, JobRunner runner)
+	{	this.folder = folder;
+		this.runner = runner;
+	}
+
+	/**
+	 * Watches the folder until stop() is called, converting the pairs that are already in it first.
+	 */
+	public void run()
+	{	WatchService watcher = null;
+		try
+		{	watcher = FileSystems.getDefault().newWatchService();
+			folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+			log.println("Watching " + folder.getAbsolutePath() + " for .mbl and .kml files.");
+			scan();
+			WatchKey key;
+			while(!stopped)
+			{	key = watcher.poll(Math.max(quietMilliseconds / 4, 50), TimeUnit.MILLISECONDS);
+				if(key != null)
+				{	for(WatchEvent<?> event:key.pollEvents())
+					{	if(event.kind() == StandardWatchEventKinds.OVERFLOW)
+							scan();		// some events were lost
+						else changed(((Path) event.context()).getFileName().toString());
+					}
+					if(!key.reset())
+					{	log.println("The folder " + folder + " can no longer be watched.");
+						failed = true;
+						break;
+					}
+				}
+				convertQuietPairs();
+			}
+		}catch(IOException ioe)
+		{	log.println("The folder " + folder + " can not be watched: " + ioe);
+			failed = true;
+		}catch(InterruptedException ie)
+		{	Thread.currentThread().interrupt();
+		}
+		finally
+		{	if(watcher != null)
+			{	try
+				{	watcher.close();
+				}catch(IOException ioe)
+				{	// the daemon is stopping
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops watching the folder. The conversions that are running are finished by the JobRunner.
+	 */
+	public void stop()
+	{	stopped = true;
+	}
+
+	/**
+	 * Looks at every file of the folder, as when the daemon starts or events were lost.
+	 */
+	private synchronized void scan()
+	{	File[] files = folder.listFiles();
+		if(files == null)
+			return;
+		for(File file:files)
+		{	String pair = changed(file.getName());
+			if(pair != null && !converted.containsKey(pair))
+			{	String stamp = readStamp(pair);		// converted when the daemon last ran
+				if(stamp != null)
+					converted.put(pair, stamp);
+			}
+		}
+	}
+
+	/**
+	 * @param name The name of a file of the folder that was created, modified or deleted.
+	 * @return The name of its pair, or null if it is not an MBL or KML file.
+	 */
+	private synchronized String changed(String name)
+	{	String lowerCase = name.toLowerCase();
+		if(!lowerCase.endsWith(MBL_EXTENSION) && !lowerCase.endsWith(KML_EXTENSION))
+			return null;
+		String pair = name.substring(0, name.length() - MBL_EXTENSION.length());
+		if(!stamps.containsKey(pair))
+		{	stamps.put(pair, "");
+			seen.put(pair, System.currentTimeMillis());
+		}
+		return pair;
+	}
+
+	/**
+	 * Converts each pair whose files are both there and have not changed for the quiet time, and are not converted.
+	 */
+	private synchronized void convertQuietPairs()
+	{	long now = System.currentTimeMillis();
+		Iterator<Entry<String,String>> pairs = stamps.entrySet().iterator();
+		Entry<String,String> entry;
+		String pair, stamp;
+		File mblFile, kmlFile;
+		while(pairs.hasNext())
+		{	entry = pairs.next();
+			pair = entry.getKey();
+			mblFile = findFile(pair, MBL_EXTENSION);
+			kmlFile = findFile(pair, KML_EXTENSION);
+			if(mblFile == null && kmlFile == null)		// both deleted
+			{	pairs.remove();
+				seen.remove(pair);
+				converted.remove(pair);
+				continue;
+			}
+			if(mblFile == null || kmlFile == null)		// waiting for the other file
+				continue;
+			stamp = stampOf(mblFile, kmlFile);
+			if(!stamp.equals(entry.getValue()))		// still being written
+			{	entry.setValue(stamp);
+				seen.put(pair, now);
+			}
+			else if(now - seen.get(pair) >= quietMilliseconds && !stamp.equals(converted.get(pair)) && !running.contains(pair))
+			{	running.add(pair);
+				runner.execute(new Conversion(pair, mblFile, kmlFile, stamp));
+			}
+		}
+	}
+
+	/**
+	 * Converts one pair on the JobRunner and writes its status file.
+	 */
+	private class Conversion implements Runnable
+	{	String pair, stamp;
+		File mblFile, kmlFile;
+
+		Conversion(String pair, File mblFile, File kmlFile, String stamp)
+		{	this.pair = pair;
+			this.mblFile = mblFile;
+			this.kmlFile = kmlFile;
+			this.stamp = stamp;
+		}
+
+		public void run()
+		{	File outputFile = new File(folder, pair + TEXT_EXTENSION);
+			long start = System.currentTimeMillis();
+			JoinReport report = null;
+			Throwable error = null;
+			try
+			{	writeStatus(pair, STATUS_CONVERTING, stamp, null, null);
+				report = runner.convert(mblFile, kmlFile, outputFile, fileExtension);
+			}catch(Throwable t)
+			{	error = t;
+			}
+			try
+			{	writeStatus(pair, error == null ? STATUS_DONE : STATUS_FAILED, stamp, report, error);
+			}catch(IOException ioe)
+			{	log.println("The status of " + pair + " could not be written: " + ioe);
+			}
+			finally
+			{	synchronized(WatchDaemon.this)
+				{	converted.put(pair, stamp);		// a failed pair is converted again once it changes
+					running.remove(pair);
+				}
+			}
+			if(error == null)
+				log.println(new Date() + " " + pair + " converted in " + ((System.currentTimeMillis() - start) / 1000) + " seconds.");
+			else log.println(new Date() + " " + pair + " failed: " + error);
+		}
+	}
+
+	/**
+	 * @return The file of the pair with the extension in either case, or null if there is none.
+	 */
+	private File findFile(String pair, String extension)
+	{	File file = new File(folder, pair + extension);
+		if(file.isFile())
+			return file;
+		file = new File(folder, pair + extension.toUpperCase());
+		return file.isFile() ? file : null;
+	}
+
+	private static String stampOf(File mblFile, File kmlFile)
+	{	return mblFile.length() + " " + mblFile.lastModified() + " " + kmlFile.length() + " " + kmlFile.lastModified();
+	}
+
+	private File statusFileOf(String pair)
+	{	return new File(folder, pair + STATUS_SUFFIX + TEXT_EXTENSION);
+	}
+
+	/**
+	 * Writes the status file of a pair, to a temporary file that is moved over the status file once it is complete.
+	 * @param status STATUS_CONVERTING, STATUS_DONE or STATUS_FAILED.
+	 * @param stamp The lengths and modification times of the files.
+	 * @param report The report of the join, or null.
+	 * @param error The error that stopped the conversion, or null.
+	 * @throws IOException If the file can not be written.
+	 */
+	private void writeStatus(String pair, String status, String stamp, JoinReport report, Throwable error) throws IOException
+	{	File file = statusFileOf(pair);
+		File temp = File.createTempFile(STATUS_TEMP_PREFIX, ".tmp", folder);
+		Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+		try
+		{	out.write("Status: " + status + "\n");
+			out.write("Time: " + new Date() + "\n");
+			out.write(STAMP_LABEL + stamp + "\n");
+			if(error != null)
+				out.write("Error: " + error + "\n");
+			if(report != null)
+				out.write("\n" + report.toString() + "\n");
+		}
+		finally
+		{	out.close();
+		}
+		try
+		{	Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch(IOException e)
+		{	temp.delete();
+			throw new IOException("The status file " + file + " could not be written.", e);
+		}
+	}
+
+	/**
+	 * @return The stamp of the files that the status file of the pair was written for, or null if there is none or
+	 *   the pair was not converted.
+	 */
+	private String readStamp(String pair)
+	{	File file = statusFileOf(pair);
+		if(!file.isFile())
+			return null;
+		try
+		{	BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try
+			{	String line, status = null, stamp = null;
+				while((line = in.readLine()) != null && line.length() > 0)
+				{	if(line.startsWith("Status: "))
+						status = line.substring("Status: ".length());
+					else if(line.startsWith(STAMP_LABEL))
+						stamp = line.substring(STAMP_LABEL.length());
+				}
+				return STATUS_CONVERTING.equals(status) ? null : stamp;	// a conversion that was cut short
+			}
+			finally
+			{	in.close();
+			}
+		}catch(IOException ioe)
+		{	return null;
+		}
+	}
+
+	/**
+	 * @return True if run() returned because the folder could not be watched, rather than because of stop().
+	 */
+	public boolean isFailed() {
+		return failed;
+	}
+
+	public String getFileExtension() {
+		return fileExtension;
+	}
+
+	/**
+	 * @param fileExtension The extension of the geo and flat text files, ".txt" by default, or ".txt.gz" to compress them.
+	 */
+	public void setFileExtension(String fileExtension) {
+		this.fileExtension = fileExtension;
+	}
+
+	public long getQuietMilliseconds() {
+		return quietMilliseconds;
+	}
+
+	/**
+	 * @param quietMilliseconds The time that neither file of a pair may change before the pair is converted.
+	 */
+	public void setQuietMilliseconds(long quietMilliseconds) {
+		this.quietMilliseconds = quietMilliseconds;
+	}
+
+	public PrintStream getLog() {
+		return log;
+	}
+
+	/**
+	 * @param log Where the conversions are logged, System.out by default.
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+}
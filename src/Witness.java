@@ -1,13 +1,19 @@
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import javax.swing.JOptionPane;
 
@@ -73,17 +79,23 @@ public class Witness
 	/** The index of the Y coordinate for the KML DataRecordW. */
 	public static final int KML_Y = 5;
 	
+	// A joined record is the MBL geometry record, followed by the KML record, the KML name and the join score
+	/** The index of the KML name for the joined DataRecordW. */
+	public static final int JOINED_KML_NAME = MBL_G_ID + 1 + KML_Y + 1;
+	/** The index of the join score for the joined DataRecordW. 1 for an exact join, the alignment confidence if salvaged. */
+	public static final int JOINED_SCORE = JOINED_KML_NAME + 1;
+	
 	/** checkCustomFieldType() code for a single line comment field */
-	private static final int SINGLE_LINE_FIELD = 1;
+	static final int SINGLE_LINE_FIELD = 1;
 	/** checkCustomFieldType() code for a multiple line comment field */
-	private static final int MULTIPLE_LINE_FIELD = 2;
+	static final int MULTIPLE_LINE_FIELD = 2;
 	/** checkCustomFieldType() code when the method can not distinguish the comment field type (error) */
-	private static final int UNKNOWN = 0;
+	static final int UNKNOWN = 0;
 
 	/** kmlToTable() integer code denoting that the field is not a geometry field */
-	private static final int NOT_GEOMETRY = -1;
+	static final int NOT_GEOMETRY = -1;
 	/** kmlToTable() String code denoting that the field is not a geometry field */
-	private static final String NOT_GEOMETRYs = "-1";
+	static final String NOT_GEOMETRYs = "-1";
 
 	/**
 	 * This method based on: http://www.mkyong.com/java/how-to-read-file-from-java-bufferedreader-example/
@@ -97,12 +109,7 @@ public class Witness
 		{	String sCurrentLine;
 			br = new BufferedReader(new FileReader(inFile));
 			while ((sCurrentLine = br.readLine()) != null) 
-			{	if (sCurrentLine.contains("&#62;"))
-					sCurrentLine = sCurrentLine.replace("&#62;", ">");
-				if (sCurrentLine.contains("&#60;"))
-					sCurrentLine = sCurrentLine.replace("&#60;", "<");
-				lines.add(sCurrentLine);
-			}
+				lines.add(LineReader.unescape(sCurrentLine));
 		} catch (IOException e) {
 			popupErrorDialog("There was a problem reading the file: "+inFile.getPath(),"File Read Error",e);
 		}catch(Exception e)
@@ -123,178 +130,22 @@ public class Witness
 	 * @return The formatted table containing a LinkedList of records and a CountingTree of field names
 	 */
 	public static DataTableW<String> textToTable(LinkedList<String> linesOfText, String[] singleLineFields, String[] multipleLineFields)
-	{	// unique field names are listed in the 'fieldList', except for geometry field names: pt, lc, lm, ln.  
-		CountingTree fieldList = new CountingTree();
-		// This is a unique list of the comments in the geometry sub-records, key is comment, value is count for that comment
-		CountingTree geometryCommentMap = new CountingTree(); 
-	    // one 'record' per parcel, each 'record' contains a list of 'DataRecordW' objects containing the fields and geometry of each parcel
-		Parcel<String> record = null; 
+	{	MblParser parser = new MblParser(lineSource(linesOfText), singleLineFields, multipleLineFields);
 		// the 'table' contains all of the parcels in the data file
 		LinkedList<Parcel<String>> table = new LinkedList<Parcel<String>>();  
-		int commentCntMax = 0, locLengthMin = 100, locLengthMax = 0;
-		int recordCount = 0;
-		String rcrdCntStr = (new Integer(0)).toString();
-		String allFieldsCnt = "", cmntCntStr = "", fieldCntStr = "", edgePtCntStr = "";
-		int commentCnt, fieldCnt, edgePtCnt;
-		int firstSemi, secondSemi;
-		String current;
-		String comment, commentLabel = "", before = "", after, id="";
-		String direction, distance, ddComment;
-		String[] locParam;
-		String[] temp;
-		int pos;
-		boolean multiCustom = false;
-		int customFieldType = 0;
+		Parcel<String> record;
 		try	
-		{	while(!linesOfText.isEmpty())		// begin loop that reads the data file into a 'table',  
-			{	recordCount++;	// parcel count
-				rcrdCntStr = (new Integer(recordCount)).toString();
-				commentCnt = 0;
-				fieldCnt = 0;
-				edgePtCnt = 0;
-				locParam = null;
-				temp = null;
-				id = "";
-				current = linesOfText.poll();
-				record = new Parcel<String>();	// TODO change all uses of 'record' if order changes
-				//field order for 'record' {fieldName,rcrdCntStr,allFieldsCnt,cmntCntStr,fieldCntStr,edgePtCntStr,comment or additional fields: for geometry:direction,distance,ddComment,id; for 'loc': it is split on the " " character}
-				//   fieldName may be 'commentLabel', 'before' or 'loc_tay'
-				while (!current.startsWith("end") && !linesOfText.isEmpty())	// begin parcel loop --> prepares a 'record' to add to the 'table'
-				{	firstSemi = 0;
-					secondSemi = 0;
-					direction = "";
-					distance = "";
-					ddComment = "";
-					multiCustom = false;
-					customFieldType = checkCustomFieldType(current, singleLineFields, multipleLineFields);
-					if(customFieldType == SINGLE_LINE_FIELD)	// convert single line custom fields to fields. <-- exit comment logic	
-						current = current.substring(1).trim(); 	// remove the '!' and concatenate (desirable??)
-					if(customFieldType == MULTIPLE_LINE_FIELD)	// flag multiline custom fields. <-- remain in comment logic
-					{	multiCustom = true;
-						commentLabel = getFieldMatch(current, multipleLineFields);
-					}
-					if (current.startsWith("!"))				// comment logic, concatenates comment into single list entry
-					{	if(!multiCustom)
-						{	commentCnt++;
-							commentLabel = "z_cmnt" + commentCnt;
-						}
-						cmntCntStr = (new Integer(commentCnt)).toString();
-						allFieldsCnt = (new Integer(commentCnt + fieldCnt + edgePtCnt)).toString();
-						comment = "";					
-						while (current.startsWith("!"))	
-						{	current = current.replace("\t", " ");	// TODO may want to do this to all lines, not just comments.
-							comment += current.substring(1);	// remove the '!' and concatenate (desirable??)	
-							if (!linesOfText.isEmpty())
-							{	current = linesOfText.poll();	// get next line, preview its contents, converting single line to fields
-								customFieldType = checkCustomFieldType(current, singleLineFields, multipleLineFields);
-								if(customFieldType == SINGLE_LINE_FIELD)		// convert single line custom fields to fields	
-								{	current = current.substring(1).trim();	// remove the '!' and concatenate (desirable??)
-								}
-								else if(customFieldType == MULTIPLE_LINE_FIELD)	// convert multiple line custom fields to fields
-								{	// add the current record
-									if(!comment.trim().equals("")) 
-									{	record.add(new DataRecordW<String>(new String[]{commentLabel,rcrdCntStr,allFieldsCnt,cmntCntStr,"0","0",comment},1,MBL_FIELDNAME),false);
-										fieldList.add(commentLabel);
-									}
-									else commentCnt--;	// discard comments that contain nothing but white space
-									// start a new record
-									commentLabel = getFieldMatch(current, multipleLineFields);
-								}
-							}
-						}// end multiline comment/field loop
-						if(!comment.trim().equals("")) 
-						{	record.add(new DataRecordW<String>(new String[]{commentLabel,rcrdCntStr,allFieldsCnt,cmntCntStr,"0","0",comment},1,MBL_FIELDNAME),false);
-							fieldList.add(commentLabel);
-						}
-						else commentCnt--;	// discard comments that contain nothing but white space
-					}// end comment logic
-					if (current.startsWith("end"))		// start next parcel
-					{	if(!linesOfText.isEmpty())
-							current = linesOfText.poll();
-					}
-					else	// field logic
-					{	if(current.contains(" ") && current.length() > current.indexOf(" ") + 1) // if 'after' exists
-						{	before = current.substring(0, current.indexOf(" ")); // the field name (before the first space)
-							after = current.substring(current.indexOf(" ") + 1); // the field content, which may be further subdivided
-							if (before.equals("id"))
-							{	id = after;			// capture the id so it can be added to the geometry sub-records
-								record.setComparator(id);	// the parcels will be compared using 'id' for .equals(), .contains(), etc.
-							}
-							if (!isMBLgeoField(before))
-							{// handle field names for non geometry fields	
-								fieldList.add(before);							// add all field names to fieldList
-							}// end handle field names for non geometry fields
-							if (isMBLgeoField(before))
-							{// add geometry sub-record
-								edgePtCnt++;
-								if (after.contains(";"))	// format of geometry is: 'before';'direction';'distance';'ddComment'
-								{	firstSemi = after.indexOf(";");
-									direction = after.substring(0, firstSemi);  // 'direction' assigned
-									if (after.substring(firstSemi+1).contains(";"))
-									{	secondSemi = (after.substring(firstSemi+1)).indexOf(";") + firstSemi + 1;
-										distance = after.substring(firstSemi + 1, secondSemi); // 'distance' assigned
-										if (after.length() > secondSemi + 1)
-											ddComment = after.substring(secondSemi + 1); // 'ddComment' assigned									
-									}
-									else ddComment = after.substring(firstSemi+1); // in case there is no distance, 'ddComment' assigned
-								}
-								else ddComment = after; // mostly used for 'pt' start points of tract description, 'ddComment' assigned
-								edgePtCntStr = (new Integer(edgePtCnt)).toString();
-								allFieldsCnt = (new Integer(commentCnt + fieldCnt + edgePtCnt)).toString();
-								record.add(new DataRecordW<String>(new String[]{before,rcrdCntStr,allFieldsCnt,"0","0",edgePtCntStr,direction,distance,ddComment,(id+"    ["+edgePtCnt+"]")},1,MBL_FIELDNAME),true);
-								geometryCommentMap.add(ddComment);
-							}// end add geometry sub-record
-							else if (before.equals("loc"))	// add 'loc' field. TODO change this if 'loc' handling changes
-							{	fieldCnt++;
-								fieldCntStr = (new Integer(fieldCnt)).toString();
-								allFieldsCnt = (new Integer(commentCnt + fieldCnt + edgePtCnt)).toString();
-								// standard method for handling a field
-								record.add(new DataRecordW<String>(new String[]{before,rcrdCntStr,allFieldsCnt,"0",fieldCntStr,"0",after},1,MBL_FIELDNAME),false);
-								if (after.length() > 0) // non-standard method: splits the 'after' for 'loc' on ' ' and attaches the split on the end of the 'record'  
-								{	fieldCntStr = (new Integer(++fieldCnt)).toString();
-									allFieldsCnt = (new Integer(commentCnt + fieldCnt + edgePtCnt)).toString();
-									locParam = after.split(" ");  // splits 'after' portion of 'loc' using ' ' as the delimeter
-									temp = new String[locParam.length + 6]; // creates a new array and puts the 6 basic fields up front in that array
-									temp[MBL_FIELDNAME] = "loc_tay";
-									temp[MBL_RECORDCOUNT] = rcrdCntStr;
-									temp[MBL_ALLFIELDSCOUNT] = allFieldsCnt;
-									temp[MBL_COMMENTCOUNT] = "0";
-									temp[MBL_FIELDCOUNT] = fieldCntStr;
-									temp[MBL_EDGEPOINTCOUNT] = "0";
-									pos = 5;
-									for (String cur:locParam) // then copy in the split out portions from 'loc' 
-										temp[++pos] = cur;
-									record.add(new DataRecordW<String>(temp,1,MBL_FIELDNAME),false); // add the non-standard 'loc'
-									if(pos + 1 > locLengthMax)
-										locLengthMax = pos + 1;
-									if(pos + 1 < locLengthMin)
-										locLengthMin = pos + 1;
-								} // end non-standard method for handling 'loc'
-							}// end add 'loc' field
-							else // add record for non geometry and non loc fields
-							{	fieldCnt++;
-								fieldCntStr = (new Integer(fieldCnt)).toString();
-								allFieldsCnt = (new Integer(commentCnt + fieldCnt + edgePtCnt)).toString();
-								record.add(new DataRecordW<String>(new String[]{before,rcrdCntStr,allFieldsCnt,"0",fieldCntStr,"0",after},1,MBL_FIELDNAME),false);
-							}// end add record for non geometry and non loc fields
-						}// end "if 'after' exists"
-						if(!linesOfText.isEmpty())
-							current = linesOfText.poll();
-						else current = "end";
-					}// end field logic
-				}// end parcel loop
+		{	while((record = parser.next()) != null)		// the parser reads the data file one parcel at a time
 				table.add(record);
-				if (commentCnt > commentCntMax)
-					commentCntMax = commentCnt;
-			}// end data file loop
 		}catch(Exception e)
 		{	popupErrorDialog("An error occured while reading the mbl file.","MBL File Error", e);
 		}
-		return new DataTableW<String>(table,fieldList, geometryCommentMap);
+		return new DataTableW<String>(table,parser.getFieldList(), parser.getGeometryCommentMap());
 	}// end of textToTable()
 	
 	/**
 	 * Pops up an error dialog with the corresponding message, label and the first 10 lines of the stack trace.
+	 *   Without a display, e.g. when run by WitnessCLI, the message is printed to the standard error instead.
 	 * @param message The message that precedes the error detail.
 	 * @param label The label of the dialog.
 	 * @param e The caught exception object.
@@ -306,7 +157,9 @@ public class Witness
 		while (count < 10 && count < trace.length)
 		{	message += trace[count++].toString() + "\n";	
 		}	
-		JOptionPane.showMessageDialog(null,message,label,JOptionPane.ERROR_MESSAGE);
+		if(GraphicsEnvironment.isHeadless())
+			System.err.println(label + ": " + message);
+		else JOptionPane.showMessageDialog(null,message,label,JOptionPane.ERROR_MESSAGE);
 	}
 	
 	/**
@@ -317,7 +170,7 @@ public class Witness
 	 * @param multipleLineFields The second array to be checked against
 	 * @return 0 if no match, 1 if matches a single line element, 2 if multiple line
 	 */
-	private static int checkCustomFieldType(String current, String[] singleLineFields, String[] multipleLineFields)
+	static int checkCustomFieldType(String current, String[] singleLineFields, String[] multipleLineFields)
 	{	if(checkField(current, singleLineFields))
 			return SINGLE_LINE_FIELD;
 		if(checkField(current, multipleLineFields))
@@ -363,75 +216,36 @@ public class Witness
 	 */
 	public static DataTableW<String> kmlToTable(LinkedList<String> linesOfKML)
 	{	CountingTree fieldList = new CountingTree();
-		Parcel<String> record = null;
+		KmlParser parser = new KmlParser(lineSource(linesOfKML));
 		LinkedList<Parcel<String>> table = new LinkedList<Parcel<String>>();
 		CountingTree geometryCommentMap = new CountingTree(); // not used in this method, except to create a DataTableW<String>
-		
-		String current = "";
-		int recordCount = 0, gid = NOT_GEOMETRY;
-		String rcrdCntStr = (new Integer(0)).toString();
-		String field = "", coords = "", gidStr = "", id = "";
-		String[] lsCoords = null;
-		String[] xyz = null;
+		Parcel<String> record;
 		try	
-		{	while(!linesOfKML.isEmpty() && !current.toLowerCase().equals("</kml>"))	
-			{	recordCount++;
-				rcrdCntStr = (new Integer(recordCount)).toString();
-				current = linesOfKML.poll().trim();
-				id = "";
-				// A key to the positions in the DataRecord is as follows (note that position 3 is id except when gType is name):
-			    //    0:pid, 1:gidStr, 2:gType, 3:name or id, 4:x, 5:y   
-				record = new Parcel<String>();	
-				while (!current.startsWith("</Placemark>") && !current.startsWith("</kml>"))
-				{	if (current.startsWith("<name>") && current.endsWith("</name>"))
-					{	String kmlName = getValueFromBetweenHTMLTags(current,"<name>");
-						record.add(new DataRecordW<String>(new String[]{rcrdCntStr,NOT_GEOMETRYs,"name",kmlName},1,KML_PID),false);
-						record.setKmlName(kmlName);
-					}	
-					else if (current.startsWith("<SimpleData") && current.endsWith("</SimpleData>"))
-					{	if (current.toLowerCase().contains("\"id\""))
-						{	id = getValueFromBetweenHTMLTags(current,"<SimpleData");
-							record.add(new DataRecordW<String>(new String[]{rcrdCntStr,NOT_GEOMETRYs,"id",id},1,KML_PID),false);
-							record.setComparator(id);//the parcels will be sorted by 'id' before joining tables
-						}
-					}
-					else if (current.startsWith("<Point>") || current.startsWith("<LineString>"))	// actual geometry
-					{	gid++;	// gid should begin at 0 because "point" does not join with the MBL
-						gidStr = new Integer(gid).toString();
-						field = current.substring(current.indexOf("<")+1, current.indexOf(">"));
-						while (!current.startsWith("<coordinates>"))	
-						{	current = linesOfKML.poll().trim();
-							if (current.startsWith("<coordinates>"))
-							{	coords = getValueFromBetweenHTMLTags(current,"<coordinates>");
-								if (field.equals("Point"))		// point is a centroid, not a tract description point. So gid = 0		 
-								{	xyz = coords.split(",");
-									record.add(new DataRecordW<String>(new String[]{rcrdCntStr,gidStr,field,(id+"    ["+gid+"]"),xyz[0],xyz[1]},1,KML_PID),true);
-								}
-								else if (field.equals("LineString"))	// the actual points that join with the MBL, start with 1.
-								{	lsCoords = coords.split(" ");
-									for (String ls:lsCoords)
-									{	xyz = ls.split(",");
-										record.add(new DataRecordW<String>(new String[]{rcrdCntStr,gidStr,field,(id+"    ["+gid+"]"),xyz[0],xyz[1]},1,KML_PID),true);
-										gid++;
-										gidStr = new Integer(gid).toString();
-									}
-								}
-							}
-						}
-					}
-					else;
-					if (!linesOfKML.isEmpty())
-						current = linesOfKML.poll().trim(); 
-				}
+		{	while((record = parser.next()) != null)		// the parser reads the kml file one placemark at a time
 				table.add(record);
-				gid = NOT_GEOMETRY;
-			}
 		}catch(Exception e)
 		{	popupErrorDialog("An error occured while reading the kml file.","KML File Error", e);
 		}
 		return new DataTableW<String>(table,fieldList,geometryCommentMap);
 	}
 	
+	/**
+	 * Wraps the "read in" lines of a file, so that they can be parsed by the MblParser or the KmlParser.
+	 * @param lines The lines, e.g. from readInLines(). They are removed as they are parsed.
+	 * @return The lines as a LineSource.
+	 */
+	public static LineSource lineSource(final LinkedList<String> lines)
+	{	return new LineSource()
+		{	public String poll()
+			{	return lines.poll();
+			}
+			
+			public boolean isEmpty()
+			{	return lines.isEmpty();
+			}
+		};
+	}
+	
 	
 	public static String getValueFromBetweenHTMLTags(String lineOfKML, String tag)
 	{	try
@@ -449,111 +263,230 @@ public class Witness
 	 * Joins the matching parcels and their records from the mbl and kml data tables.
 	 * @param tableMBL The data table of a DeedMapper data file, e.g. from readInLines() then textToTable().
 	 * @param tableKML The geometry table of a DeedMapper kml file, e.g. from readInLines() then kmlToTable().
-	 * @return The joined data table of only geometry records, a.k.a. the courses from the tract descriptions.
+	 * @return The report of the join, holding the joined data table of only geometry records, a.k.a. the courses from 
+	 *   the tract descriptions.
 	 */
-	public static DataTableW<String> joinTables(DataTableW<String> tableMBL, DataTableW<String> tableKML)
-	{	// Combine the tables and print out the number of joined parcels to the terminal
-		int[] combineCounts = tableMBL.combineTables(tableKML, true);	// <-- combine the tables	
-		int restoreCO = DataRecordW.getCompareOn();			// copy the comparison and key indices
-		int[] restoreKI = Arrays.copyOf(DataRecordW.getKeyIndices(),DataRecordW.getKeyIndices().length);
+	public static JoinReport joinTables(DataTableW<String> tableMBL, DataTableW<String> tableKML)
+	{	return joinTables(tableMBL, tableKML, null);
+	}
+	
+	/**
+	 * Joins the matching parcels and their records from the mbl and kml data tables. The tables are left unchanged, the
+	 *   join works on shallow copies of them and builds new records for the joined table.
+	 * @param tableMBL The data table of a DeedMapper data file, e.g. from readInLines() then textToTable().
+	 * @param tableKML The geometry table of a DeedMapper kml file, e.g. from readInLines() then kmlToTable().
+	 * @param listener Is told the outcome of each parcel as it is joined, may be null. 
+	 * @return The report of the join, holding the joined data table of only geometry records, a.k.a. the courses from 
+	 *   the tract descriptions.
+	 */
+	public static JoinReport joinTables(DataTableW<String> tableMBL, DataTableW<String> tableKML, JoinListener listener)
+	{	return joinTables(tableMBL, tableKML, listener, null);
+	}
+	
+	/**
+	 * Joins the matching parcels and their records from the mbl and kml data tables, passing each joined parcel to a
+	 *   pipe as soon as it is built, e.g. to the thread writing the geo file. The pairs that failed to combine are
+	 *   salvaged before the leftover ids are matched, the order of the StreamingJoin, so that a close id can not take
+	 *   the MBL parcel of a failed pair that the CourseAligner would have joined.
+	 * @param tableMBL The data table of a DeedMapper data file, e.g. from readInLines() then textToTable().
+	 * @param tableKML The geometry table of a DeedMapper kml file, e.g. from readInLines() then kmlToTable().
+	 * @param listener Is told the outcome of each parcel as it is joined, may be null. 
+	 * @param joined Receives the joined parcels, and is closed when the join ends. If null, the joined parcels are 
+	 *   kept in the report's joined table instead, otherwise the report's joined table is null.
+	 * @return The report of the join.
+	 */
+	public static JoinReport joinTables(DataTableW<String> tableMBL, DataTableW<String> tableKML, JoinListener listener, ParcelPipe<String> joined)
+	{	JoinReport report = new JoinReport();
+		DataTableW<String> combined = tableMBL.shallowCopy();
+		int[] combineCounts = combined.combineTables(tableKML.shallowCopy(), true);	// <-- combine the tables	
+		int[] salvageCounts = CourseAligner.salvageFailed(combined);	// <-- align the courses of failed parcels
+		int[] rematchCounts = IdMatcher.rematchUnmatched(combined);		// <-- match the leftover ids by normalized or close id
+		int[] rematchSalvageCounts = CourseAligner.salvageFailed(combined);	// <-- and align those whose counts differ
+		salvageCounts[0] += rematchSalvageCounts[0];
+		salvageCounts[1] += rematchSalvageCounts[1];
 		DataTableW<String> joinedTable = new DataTableW<String>();
-		String message = 
-			"KML & MBL Parcels combined: " + combineCounts[DataTableW.COMBINED_INDEX] 
-		+ "\nKML parcels failed:         " + combineCounts[DataTableW.FAILED_INDEX]
-		+ "\nKML parcels not matching:   " + combineCounts[DataTableW.NO_MATCH_KML_INDEX]
-		+ "\nMBL parcels not matching:   " + combineCounts[DataTableW.NO_MATCH_MBL_INDEX]
-		+ "\nTotal parcels: " + (combineCounts[DataTableW.COMBINED_INDEX]+combineCounts[DataTableW.FAILED_INDEX]
-				+combineCounts[DataTableW.NO_MATCH_KML_INDEX]+combineCounts[DataTableW.NO_MATCH_MBL_INDEX])
-		+ "\n\n To combine the 'id' must match and the number of tract courses must be equal."
-		+   "\n Failed means that the parcel id's match but their number of courses differ."
-		+   "\n Not matching means that no matching id can be found."
-		+	"\n Note that the failed and not matching likely double count parcels.";
+		report.setCombineCounts(combineCounts);
+		report.setRematchCounts(rematchCounts);
+		report.setSalvageCounts(salvageCounts);
+		if(joined == null)
+			report.setJoinedTable(joinedTable);
 		
-		Iterator<Parcel<String>> parcels = tableMBL.iterator();
-		Parcel<String> currentParcel, joinedParcel;
-		DataRecordW<String> currentRecord, findMe, joinMe = new DataRecordW<String>();
-		int size = 0, index = 0;
+		Iterator<Parcel<String>> parcels = combined.iterator();
+		Parcel<String> joinedParcel;
+		try	
+		{	while(parcels.hasNext())
+			{	joinedParcel = joinParcel(parcels.next(), report, listener);
+				if(joinedParcel.size() > 0)
+				{	if(joined != null)
+						joined.put(joinedParcel);
+					else joinedTable.add(joinedParcel);
+				}
+			}
+		}catch(Exception e)
+		{	popupErrorDialog("There was a problem joining the tables.","Table Join Error",e);
+		}
+		finally
+		{	if(joined != null)
+			{	try
+				{	joined.close();
+				}catch(InterruptedException ie)
+				{	joined.abandon();
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		return report;
+	}
+	
+	/**
+	 * Joins the records of one parcel of a combined table: each MBL course is joined with the KML point of the same 
+	 *   id, and the records of failed or unmatched parcels are filled in with blanks. The records are removed from 
+	 *   the parcel as they are joined. The outcome is passed to the report and the listener.
+	 * @param currentParcel A parcel after combineTables(), IdMatcher.rematchUnmatched() and CourseAligner.salvageFailed().
+	 * @param report Counts the parcel and its courses.
+	 * @param listener Is told the outcome of the parcel, may be null.
+	 * @return The parcel of joined records, which is empty if none of the records are written to the geo file.
+	 */
+	public static Parcel<String> joinParcel(Parcel<String> currentParcel, JoinReport report, JoinListener listener)
+	{	Parcel<String> joinedParcel = new Parcel<String>();
+		DataRecordW<String> currentRecord, joinMe;
+		ArrayList<String> joinedFields;
+		int size = 0, index = 0, kmlIndex;
 		String fieldName = "", id = "", kmlName = "", mblID = "";
-		int joinedCount = 0, kmlFailedCount = 0, kmlNoMatchCount = 0, mblNoMatchCount = 0;
+		int[] courseCounts = new int[4];	// indexed by JoinReport.COURSE_ constants
+		int status = getJoinStatus(currentParcel);
 		String[] fillMe;
 		Iterator<String> joinMeIter;
-		try	
-		{	while(parcels.hasNext())
-			{	currentParcel = parcels.next();
-				joinedParcel = new Parcel<String>();
-				kmlName = "";
-				while(!currentParcel.isEmpty())
-				{	currentRecord = currentParcel.poll();
-					size = currentRecord.size();
-					if(size >= MBL_VALUE)											// 1st check for being MBL geometry
-					{	fieldName = currentRecord.get(MBL_FIELDNAME);
-						if(fieldName.equals("id"))									// set the replacement parcel's comparator to the parcel id
-						{	mblID = currentRecord.get(MBL_VALUE);
-							joinedParcel.setComparator(mblID);
-						}
-						if (isMBLgeoField(fieldName) && size >= MBL_G_DDCOMMENT)	// 2nd check for being MBL geometry
-						{	id = currentRecord.get(MBL_G_ID);						// gather info to make search record pt1
-							fillMe = new String[MBL_G_ID + 1];						//   "      "   "  "      "     "    pt2
-							Arrays.fill(fillMe, id);								//   "      "   "  "      "     "    pt3
-							findMe = new DataRecordW<String>(fillMe,1,KML_ID);	// make the search record
-							if(currentParcel.contains(findMe))						// search for the search record
-							{	joinMe = currentParcel.remove(currentParcel.indexOf(findMe));	// remove the found KML record
-								joinMeIter = joinMe.iterator();
-								while(joinMeIter.hasNext())							// copy the KML record into the MBL record
-								{	currentRecord.add(joinMeIter.next());
-								}
-								kmlName = currentParcel.getKmlName();
-								currentRecord.getRecord().add(kmlName);
-								joinedCount++;
-								joinedParcel.add(currentRecord, true);					// add the joined record to the replacement parcel
-							}
-						}
-					}				
-					// Failed or KML records that do not match 
-					if(currentParcel.isFailed() || currentParcel.isNoMatchKML()) // fill in blank MBL positions in KML records
-					{	fieldName = currentRecord.get(KML_GTYPE);
-						if(fieldName.equalsIgnoreCase("name"))
-							kmlName = currentRecord.get(KML_NAME);
-						if (!fieldName.equals("id") && !fieldName.equals("name") && !fieldName.equalsIgnoreCase("point"))
-						{	fillMe = new String[MBL_G_ID + 1 + KML_Y + 1 + 1];
-							index = MBL_G_ID + 1;
-							for(String cur:currentRecord)	// copy the KML portions into the new array.
-								fillMe[index++] = cur;
-							fillMe[index++] = kmlName;			// add KML name on at the end
-							if(currentParcel.isFailed())
-								kmlFailedCount++;
-							if(currentParcel.isNoMatchKML())
-								kmlNoMatchCount++;
-							joinedParcel.add(new DataRecordW<String>(fillMe), true);
+		while(!currentParcel.isEmpty())
+		{	currentRecord = currentParcel.poll();
+			size = currentRecord.size();
+			if(size >= MBL_VALUE)											// 1st check for being MBL geometry
+			{	fieldName = currentRecord.get(MBL_FIELDNAME);
+				if(fieldName.equals("id"))									// set the replacement parcel's comparator to the parcel id
+				{	mblID = currentRecord.get(MBL_VALUE);
+					joinedParcel.setComparator(mblID);
+				}
+				if (size > MBL_VALUE && !isMBLgeoField(fieldName))			// keep the MBL fields, e.g. for ShardPlan.byField()
+					joinedParcel.addFieldRecord(currentRecord);
+				if (isMBLgeoField(fieldName) && size >= MBL_G_DDCOMMENT)	// 2nd check for being MBL geometry
+				{	id = currentRecord.get(MBL_G_ID);						// the id of the KML point to be joined
+					kmlIndex = indexOfKmlId(currentParcel, id);				// search for the KML record
+					if(kmlIndex > -1)
+					{	joinMe = currentParcel.remove(kmlIndex);			// remove the found KML record
+						joinedFields = new ArrayList<String>(JOINED_SCORE + 1);	// copy the MBL record, it is shared with 'tableMBL'
+						joinedFields.addAll(currentRecord.getRecord());
+						joinMeIter = joinMe.iterator();
+						while(joinMeIter.hasNext())							// copy the KML record into the joined record
+						{	joinedFields.add(joinMeIter.next());
 						}
-					}	
-					// MBL record that did not match
-					if(currentParcel.isNoMatchMBL())
-					{	fillMe = new String[MBL_G_ID + 1 + KML_Y + 1 + 1];
-						currentRecord.getRecord().toArray(fillMe);
-						fillMe = Arrays.copyOf(fillMe, MBL_G_ID + 1 + KML_Y + 1 + 1); // fill in blanks at the end for KML 
-						fillMe[MBL_G_ID + 1 + KML_Y + 1] = "";	// use nothing instead of KML name at the end
-						mblNoMatchCount++;
+						kmlName = currentParcel.getKmlName();
+						joinedFields.add(kmlName);
+						joinedFields.add(joinScore(currentParcel));
+						courseCounts[JoinReport.COURSE_JOINED]++;
+						joinedParcel.add(new DataRecordW<String>(joinedFields.toArray(new String[joinedFields.size()])), true);	// add the joined record to the replacement parcel
+					}
+					else if(currentParcel.isSalvaged())							// course that did not align, fill in blank KML
+					{	fillMe = Arrays.copyOf(currentRecord.getRecord().toArray(new String[size]), JOINED_SCORE + 1);
+						for(index = MBL_G_ID + 1; index < fillMe.length; index++)
+							fillMe[index] = "";
+						courseCounts[JoinReport.COURSE_MBL_NO_MATCH]++;
 						joinedParcel.add(new DataRecordW<String>(fillMe), true);
 					}
-				}	
-				if(joinedParcel.size() > 0)
-					joinedTable.add(joinedParcel);
+				}
+			}				
+			// Failed or KML records that do not match 
+			if(currentParcel.isFailed() || currentParcel.isNoMatchKML()) // fill in blank MBL positions in KML records
+			{	fieldName = currentRecord.get(KML_GTYPE);
+				if(fieldName.equalsIgnoreCase("name"))
+					kmlName = currentRecord.get(KML_NAME);
+				if (!fieldName.equals("id") && !fieldName.equals("name") && !fieldName.equalsIgnoreCase("point"))
+				{	fillMe = new String[JOINED_SCORE + 1];
+					index = MBL_G_ID + 1;
+					for(String cur:currentRecord)	// copy the KML portions into the new array.
+						fillMe[index++] = cur;
+					fillMe[index++] = kmlName;			// add KML name on at the end
+					fillMe[JOINED_SCORE] = "";
+					if(currentParcel.isFailed())
+						courseCounts[JoinReport.COURSE_KML_FAILED]++;
+					if(currentParcel.isNoMatchKML())
+						courseCounts[JoinReport.COURSE_KML_NO_MATCH]++;
+					joinedParcel.add(new DataRecordW<String>(fillMe), true);
+				}
+			}	
+			// MBL record that did not match
+			if(currentParcel.isNoMatchMBL())
+			{	fillMe = new String[JOINED_SCORE + 1];
+				currentRecord.getRecord().toArray(fillMe);
+				fillMe = Arrays.copyOf(fillMe, JOINED_SCORE + 1); // fill in blanks at the end for KML 
+				fillMe[JOINED_KML_NAME] = "";	// use nothing instead of KML name at the end
+				fillMe[JOINED_SCORE] = "";
+				courseCounts[JoinReport.COURSE_MBL_NO_MATCH]++;
+				joinedParcel.add(new DataRecordW<String>(fillMe), true);
 			}
-			DataRecordW.setCompareOn(restoreCO);
-			for (index = 0; index < restoreKI.length; index++)
-				DataRecordW.setKeyIndex(index, restoreKI[index]);
-		}catch(Exception e)
-		{	popupErrorDialog("There was a problem joining the tables.","Table Join Error",e);
+		}	
+		if(status != JoinReport.PARCEL_FAILED || courseCounts[JoinReport.COURSE_KML_FAILED] > 0) // skip emptied failed parcels
+		{	report.parcelJoined(currentParcel.getComparator(), status, courseCounts);
+			if(listener != null)
+				listener.parcelJoined(currentParcel.getComparator(), status, courseCounts);
 		}
-		message += "\n\nTract courses joined:     " + joinedCount 
-				+    "\nKML courses failed:       " + kmlFailedCount
-				+	 "\nKML courses not matching: " + kmlNoMatchCount
-				+    "\nMBL courses not matching: " + mblNoMatchCount
-				+    "\nTotal courses: " + (joinedCount + kmlFailedCount + kmlNoMatchCount + mblNoMatchCount);
-		String label = "Conversion Results";
-		JOptionPane.showMessageDialog(null,message,label,JOptionPane.INFORMATION_MESSAGE);
-		return joinedTable;
+		return joinedParcel;
+	}
+	
+	/**
+	 * Finds the first record of a parcel whose id field, at KML_ID, equals 'id'. This is the search that 
+	 *   Parcel.contains() does with a record keyed on KML_ID, without setting DataRecordW's static key indices, so
+	 *   that parcels can be joined while other threads parse.
+	 * @param parcel The parcel to be searched.
+	 * @param id The id of an MBL course.
+	 * @return The index of the record, or -1 if there is none.
+	 */
+	private static int indexOfKmlId(Parcel<String> parcel, String id)
+	{	int index = 0;
+		String other;
+		for(DataRecordW<String> record:parcel)
+		{	if(record.size() > KML_ID)
+			{	other = record.get(KML_ID);
+				if(id == null ? other == null : other != null && id.compareTo(other) == 0)
+					return index;
+			}
+			index++;
+		}
+		return -1;
+	}
+	
+	/**
+	 * @param parcel A parcel of the combined table.
+	 * @return The JoinReport.PARCEL_ status of the parcel.
+	 */
+	private static int getJoinStatus(Parcel<String> parcel)
+	{	if(parcel.isSalvaged())
+			return JoinReport.PARCEL_SALVAGED;
+		if(parcel.isCombined())
+			return JoinReport.PARCEL_COMBINED;
+		if(parcel.isFailed())
+			return JoinReport.PARCEL_FAILED;
+		if(parcel.isNoMatchKML())
+			return JoinReport.PARCEL_NO_MATCH_KML;
+		return JoinReport.PARCEL_NO_MATCH_MBL;
+	}
+	
+	/**
+	 * The JoinScore of the joined courses of a parcel: the alignment score of a salvaged parcel, times the similarity
+	 *   of the ids of a parcel matched by a close id. A parcel combined by its id scores "1".
+	 */
+	private static String joinScore(Parcel<String> parcel)
+	{	double score = parcel.isSalvaged() ? parcel.getAlignmentScore() : 1;
+		score *= parcel.getIdMatchScore();
+		return score == 1 ? "1" : formatScore(score);
+	}
+
+	/**
+	 * Formats a join score for the output files, to three decimal places.
+	 * @param score The score from 0 to 1.
+	 * @return The formatted score.
+	 */
+	public static String formatScore(double score)
+	{	return Double.toString(Math.round(score * 1000) / 1000.0);
 	}
 		
 	/**
@@ -562,55 +495,104 @@ public class Witness
 	 * @param tableKML The KML table, from readInLines() then kmlToTable().  
 	 * @param geoCommentSearchTerms The array of terms to be searched for in the course description comments. 
 	 * @param outputFile The tab delimited text file that will be written to.
-	 * @param fileExtension The file extension to be appended to both of the output files.
-	 * @return True if the file is written successfully.
+	 * @param fileExtension The file extension to be appended to both of the output files. The files are gzip compressed
+	 *   if it ends with GZIP_EXTENSION, e.g. ".txt.gz".
+	 * @return The report of the join if the files are written successfully, otherwise null.
 	 */
-	public static boolean writeOutputFiles(DataTableW<String> tableMBL, DataTableW<String> tableKML, String[] geoCommentSearchTerms, File outputFile, String fileExtension)
-	{			// output the formatted HTML to the outputHTMLFile
-		boolean result = false;
-		String encoding = "UTF-8";
-		Writer out = null;
-		DataTableW<String> mblCopy = tableMBL.clone();
-		
+	public static JoinReport writeOutputFiles(DataTableW<String> tableMBL, DataTableW<String> tableKML, String[] geoCommentSearchTerms, File outputFile, String fileExtension)
+	{	return writeOutputFiles(tableMBL, tableKML, geoCommentSearchTerms, outputFile, fileExtension, new OutputOptions());
+	}
+
+	/**
+	 * This method joins the MBL and KML tables and writes the result to the geo formats chosen and the flat file.
+	 * @param tableMBL The MBL table, from readInLines() then textToTable().  
+	 * @param tableKML The KML table, from readInLines() then kmlToTable().  
+	 * @param geoCommentSearchTerms The array of terms to be searched for in the course description comments. 
+	 * @param outputFile The tab delimited text file that will be written to.
+	 * @param fileExtension The file extension to be appended to both of the output files. The files are gzip compressed
+	 *   if it ends with GZIP_EXTENSION, e.g. ".txt.gz".
+	 * @param options The listener of the join, the geo formats and how the text files are split into shards.
+	 * @return The report of the join if the files are written successfully, otherwise null.
+	 */
+	public static JoinReport writeOutputFiles(DataTableW<String> tableMBL, DataTableW<String> tableKML, final String[] geoCommentSearchTerms, final File outputFile, String fileExtension, OutputOptions options)
+	{	// The flat file only needs the MBL table, so it is written while the tables are joined. The joined parcels are
+		//   piped to the geo writer as they are built, and each file's blocks go to the disk on a thread of their own. 
+		final DataTableW<String> flatTable = tableMBL;
+		final ParcelPipe<String> joined = new ParcelPipe<String>();
+		final String extension = fileExtension;
+		final ShardPlan shardPlan = options.getShardPlan();
+		final int geoFormats = options.getGeoFormats();
 		File geoFile = appendSuffix(outputFile, true, false, fileExtension); 
 		File flatFile = appendSuffix(outputFile, false, false, fileExtension);
 		
-		DataTableW<String> joinedTable = Witness.joinTables(tableMBL,tableKML); 	
+		OutputThread flatThread = new OutputThread("Flat file writer", flatFile, shardPlan, fileExtension)
+		{	protected void write(TsvWriter out) throws IOException
+			{	writeFlatFile(out,flatTable.getFieldList(),flatTable.view());
+			}
+		};
+		OutputThread geoThread = new OutputThread("Geo file writer", isGeoTextInParcelOrder(geoFormats) ? geoFile : null, shardPlan, fileExtension)
+		{	protected void write(TsvWriter out) throws IOException
+			{	GeoRowWriter[] writers = null;
+				try
+				{	writers = openGeoRowWriters(outputFile, geoFormats, extension, shardPlan);
+					writeGeoFile(out,writers,joined,geoCommentSearchTerms);
+				}
+				finally
+				{	joined.abandon();	// the join must not wait on a writer that stopped
+					closeGeoRowWriters(writers);
+				}
+			}
+		};
+		flatThread.start();
+		geoThread.start();
+		JoinReport report = Witness.joinTables(tableMBL,tableKML,options.getListener(),joined); 	
+		Throwable error = null;
 		try
-		{	out = new OutputStreamWriter(new FileOutputStream(geoFile), encoding);
-			writeGeoFile(out,joinedTable.getTable(),geoCommentSearchTerms);
-			out.close();
-			out = new OutputStreamWriter(new FileOutputStream(flatFile), encoding);
-			writeFlatFile(out,mblCopy.getFieldList(),mblCopy.getTable());
-			result = true;			
-		}catch (IOException ioe)
-	    {	popupErrorDialog("There was a problem writing the output files.","File Write Error",ioe);
-	    }catch (Exception e)
-	    {	popupErrorDialog("There was a problem writing the files.","File Write Error",e);
-	    }
-		finally 
-	    {	try 
-	    	{	out.close();
-	    	} catch (IOException ioe) 
-	    	{	popupErrorDialog("There was a problem closing the writer.","File Writer Close Error",ioe);
-	    	}
-	    }
-		return result;
+		{	error = geoThread.finish();
+			Throwable flatError = flatThread.finish();
+			if(error == null)
+				error = flatError;
+		}catch (InterruptedException ie)
+		{	error = ie;
+			Thread.currentThread().interrupt();
+		}
+		if(error instanceof IOException)
+		{	popupErrorDialog("There was a problem writing the output files.","File Write Error",(IOException) error);
+			return null;
+		}
+		if(error != null)
+		{	popupErrorDialog("There was a problem writing the files.","File Write Error",error instanceof Exception ? (Exception) error : new Exception(error));
+			return null;
+		}
+		return report;
 	}
+
 	
+	/**
+	 * Writes the flat files of the duplicate MBL and KML parcels.
+	 * @param tableMBL The duplicate MBL parcels, from countComparatorDuplicates().
+	 * @param tableKML The duplicate KML parcels, from countComparatorDuplicates().
+	 * @param outputFile The output file stub, the duplicate suffixes are appended to it.
+	 * @param fileExtension The file extension to be appended to both of the output files. The files are gzip compressed
+	 *   if it ends with GZIP_EXTENSION.
+	 * @return True if the files are written.
+	 */
 	public static boolean writeDuplicateFiles(DataTableW<String> tableMBL, DataTableW<String> tableKML, File outputFile, String fileExtension)
 	{			// output the formatted HTML to the outputHTMLFile
 		boolean result = false;
 		String encoding = "UTF-8";
 		Writer out = null;
+		TsvWriter mblOut = null;
 		File kmlFile = appendSuffix(outputFile, true, true, fileExtension); 
 		File mblFile = appendSuffix(outputFile, false, true, fileExtension);
 		try
-		{	out = new OutputStreamWriter(new FileOutputStream(kmlFile), encoding);		
-			writeKMLflatFile(out,tableKML.getTable());
+		{	out = new OutputStreamWriter(new BufferedOutputStream(Channels.newOutputStream(BlockWriter.open(kmlFile, "KML duplicates output")), 
+					DUPLICATES_BUFFER_SIZE), encoding);		
+			writeKMLflatFile(out,tableKML.view());
 			out.close();
-			out = new OutputStreamWriter(new FileOutputStream(mblFile), encoding);
-			writeFlatFile(out,tableMBL.getFieldList(),tableMBL.getTable());
+			out = null;
+			mblOut = new TsvWriter(BlockWriter.open(mblFile, "MBL duplicates output"));
+			writeFlatFile(mblOut,tableMBL.getFieldList(),tableMBL.view());
 			result = true;			
 		}catch (IOException ioe)
 	    {	popupErrorDialog("There was an IO problem writing the duplicate files.","File Write IO Error",ioe);
@@ -619,7 +601,10 @@ public class Witness
 	    }
 		finally 
 	    {	try 
-	    	{	out.close();
+	    	{	if(out != null)
+	    			out.close();
+	    		if(mblOut != null)
+	    			mblOut.close();
 	    	} catch (IOException ioe) 
 	    	{	popupErrorDialog("There was a problem closing the writer.","File Writer Close Error",ioe);
 	    	}
@@ -631,6 +616,17 @@ public class Witness
 	public static final String DATA_SUFFIX = "_flat";
 	public static final String GEO_DUPLICATES_SUFFIX = "_kmlDup";
 	public static final String DATA_DUPLICATES_SUFFIX = "_mblDup";
+	/** The extension that, at the end of the output file extension, has the output files gzip compressed. */
+	public static final String GZIP_EXTENSION = ".gz";
+	private static final int DUPLICATES_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * @param file An output file.
+	 * @return True if the file is written gzip compressed, i.e. its name ends with GZIP_EXTENSION.
+	 */
+	public static boolean isCompressed(File file)
+	{	return file.getName().endsWith(GZIP_EXTENSION);
+	}
 
 	/**
 	 * Adds the geo or data file suffix to a file name stub.
@@ -641,8 +637,24 @@ public class Witness
 	 * @return The altered file.
 	 */
 	public static File appendSuffix(File file, boolean isGeo, boolean isForDuplicates, String fileExtension)
+	{	if (isGeo && !isForDuplicates)
+			return appendSuffix(file, GEO_SUFFIX, fileExtension);
+		else if (!isGeo && !isForDuplicates)
+			return appendSuffix(file, DATA_SUFFIX, fileExtension);
+		else if (isGeo && isForDuplicates)
+			return appendSuffix(file, GEO_DUPLICATES_SUFFIX, fileExtension);
+		return appendSuffix(file, DATA_DUPLICATES_SUFFIX, fileExtension);
+	}
+
+	/**
+	 * Appends a suffix and a file extension to the file stub of 'file', e.g. ParcelDiff.DIFF_SUFFIX.
+	 * @param file The output file stub, its extension, if any, is replaced. If it is a folder the suffix is the name.
+	 * @param suffix The suffix, e.g. "_geo".
+	 * @param fileExtension The file extension, e.g. ".txt".
+	 * @return The output file.
+	 */
+	public static File appendSuffix(File file, String suffix, String fileExtension)
 	{	String path = "", stub = "", name = "";
-		File returnFile = null;
 		if (file != null)
 		{	if(!file.isDirectory())
 			{	path = file.getParent();
@@ -653,129 +665,316 @@ public class Witness
 			}
 			else path = file.getAbsolutePath();
 		}
-		if (isGeo && !isForDuplicates)
-			returnFile = new File(path,stub+GEO_SUFFIX+fileExtension); 
-		else if (!isGeo && !isForDuplicates)
-			returnFile = new File(path,stub+DATA_SUFFIX+fileExtension);
-		else if (isGeo && isForDuplicates)
-			returnFile = new File(path,stub+GEO_DUPLICATES_SUFFIX+fileExtension); 
-		else if (!isGeo && isForDuplicates)
-			returnFile = new File(path,stub+DATA_DUPLICATES_SUFFIX+fileExtension);
-		return returnFile;
+		return new File(path,stub+suffix+fileExtension);
 	}
 
+	/** How a blank field, null in a row of geoRow(), is written to the tab delimited geo file, as it always has been. */
+	public static final String GEO_BLANK_FIELD = "null";
+
+	/** The column names of the geo file, in the order they are written by writeGeoFile(). */
+	public static final String[] GEO_COLUMNS = {"UID","PID","GID","id","GType","Dir","Dist","GCmnt","FoundTerms",
+		"KML_pid","KML_gid","KML_gtype","KML_name","KML_id","KML_x","KML_y","JoinScore"};
+
+	/** The index of the KML_x column in GEO_COLUMNS, the longitude of the point. */
+	public static final int GEO_KML_X = 14;
+	/** The index of the KML_y column in GEO_COLUMNS, the latitude of the point. */
+	public static final int GEO_KML_Y = 15;
+
+	/** Geo file format flag: the tab delimited geo file. */
+	public static final int GEO_FORMAT_TEXT = 1;
+	/** Geo file format flag: a point Shapefile, see ShapefileWriter. */
+	public static final int GEO_FORMAT_SHAPEFILE = 2;
+	/** Geo file format flag: FlatGeobuf files of the points and the parcel polygons, see FlatGeobufWriter. */
+	public static final int GEO_FORMAT_FLATGEOBUF = 4;
+	/** Geo file format flag: a GeoJSON text sequence of the points and the parcel polygons, see GeoJsonSeqWriter. */
+	public static final int GEO_FORMAT_GEOJSONSEQ = 8;
+	/** Geo file format flag: with GEO_FORMAT_TEXT, the rows of the tab delimited geo file are in Hilbert curve order of
+	 *   their points rather than in parcel order, see HilbertGeoFileWriter. */
+	public static final int GEO_ORDER_HILBERT = 16;
+	/** The suffix of the parcel polygon file, appended to the geo file name. */
+	public static final String PARCELS_SUFFIX = "_parcels";
+
 	/**
-	 * A poorly written method to write the joined geometry point file
-	 * @param out 
-	 * @param parcels
-	 * @param geoCommentSearchTerms
-	 * @return
-	 * @throws IOException
+	 * Writes the joined geometry point file, one row per course. The fields are appended straight to the TsvWriter's
+	 *   buffer, so no row strings are built. A blank field, e.g. an MBL field of a KML point that did not join, is
+	 *   written as GEO_BLANK_FIELD. The parcels are read, not removed.
+	 * @param out The writer for the geo file, it is not closed.
+	 * @param parcels The joined parcels, e.g. the view() of the joined table.
+	 * @param geoCommentSearchTerms The terms to be listed in FoundTerms when a course comment contains them.
+	 * @throws IOException If the file can not be written.
 	 */
-	private static void writeGeoFile(Writer out, LinkedList<Parcel<String>> parcels, String[] geoCommentSearchTerms) throws IOException
-	{	Parcel<String> parcel = null;
-		DataRecordW<String> current;
-		String uidStr = "", pid = "", gidStr = "", id = "", gType = "", dir = "", dist = "", gCmnt = "", found = "";
-		int uid = 0, gid = 0;
-		out.write("UID\tPID\tGID\tid\tGType\tDir\tDist\tGCmnt\tFoundTerms\tKML_pid\tKML_gid\tKML_gtype\tKML_name\tKML_id\tKML_x\tKML_y\n");
-		while (!parcels.isEmpty())
-		{	parcel = parcels.poll();
-			while (!parcel.isEmpty())
-			{	current = parcel.poll();
-			//field order for 'record' {fieldName,rcrdCntStr,allFieldsCnt,cmntCntStr,fieldCntStr,edgePtCntStr,comment or additional fields: for geometry:direction,distance,ddComment,id; for 'loc': it is split on the " " character}
-			//   fieldName may be 'commentLabel', 'before' or 'loc_tay'
-				pid = current.getRecord().get(MBL_RECORDCOUNT);					// TODO change if order changes
-				gidStr = current.getRecord().get(MBL_EDGEPOINTCOUNT);				// TODO change if order changes
-				if(gidStr != null)
-					gid = Integer.parseInt(gidStr);
-				gType = current.getRecord().get(MBL_FIELDNAME);					// TODO change if order changes
-				if (current.getRecord().size() > MBL_VALUE)					// TODO change if order changes
-					dir = current.getRecord().get(MBL_G_DIRECTION);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_DISTANCE)					// TODO change if order changes
-					dist = current.getRecord().get(MBL_G_DISTANCE);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_DDCOMMENT)					// TODO change if order changes
-					gCmnt = current.getRecord().get(MBL_G_DDCOMMENT);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID)					// TODO change if order changes
-					id = current.getRecord().get(MBL_G_ID);				// TODO change if order changes
-				
-				String kpid = "", kgid = "", kgtype = "", kid = "", kx = "", ky = "", kname = "";
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_PID)					// TODO change if order changes
-					kpid = current.getRecord().get(MBL_G_ID + 1 + KML_PID);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_GID)					// TODO change if order changes
-					kgid = current.getRecord().get(MBL_G_ID + 1 + KML_GID);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_GTYPE)					// TODO change if order changes
-					kgtype = current.getRecord().get(MBL_G_ID + 1 + KML_GTYPE);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_ID)					// TODO change if order changes
-					kid = current.getRecord().get(MBL_G_ID + 1 + KML_ID);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_X)					// TODO change if order changes
-					kx = current.getRecord().get(MBL_G_ID + 1 + KML_X);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_Y)					// TODO change if order changes
-					ky = current.getRecord().get(MBL_G_ID + 1 + KML_Y);				// TODO change if order changes
-				if (current.getRecord().size() > MBL_G_ID + 1 + KML_Y + 1)			// TODO change if order changes
-					kname = current.getRecord().get(MBL_G_ID + 1 + KML_Y + 1);			// TODO change if order changes
+	public static void writeGeoFile(TsvWriter out, Iterable<Parcel<String>> parcels, String[] geoCommentSearchTerms) throws IOException
+	{	writeGeoFile(out, null, parcels, geoCommentSearchTerms);
+	}
 
-				if (gid > 0)
-				{	uidStr = (new Integer(++uid)).toString();
-					found = parseGCmnt(gCmnt, geoCommentSearchTerms);
-					if(found.length() > 1)
-						found = found.substring(0, found.length()-2);
-					out.write(uidStr+"\t"+pid+"\t"+gidStr+"\t"+id+"\t"+gType+"\t"+dir+"\t"+dist+"\t"+gCmnt+"\t"+found
-							  +"\t"+kpid+"\t"+kgid+"\t"+kgtype+"\t"+kname+"\t"+kid+"\t"+kx+"\t"+ky+"\n");
+	/**
+	 * Writes the joined geometry points to the geo file and to any other geo formats in the same pass, so that the
+	 *   parcels, e.g. those of a ParcelPipe, are only read once. Every format gets the same rows and UIDs.
+	 * @param out The writer for the geo file, it is not closed. May be null if only the other formats are written.
+	 * @param writers The writers of the other formats, they are not closed. May be null.
+	 * @param parcels The joined parcels, e.g. the view() of the joined table.
+	 * @param geoCommentSearchTerms The terms to be listed in FoundTerms when a course comment contains them.
+	 * @throws IOException If a file can not be written.
+	 */
+	public static void writeGeoFile(TsvWriter out, GeoRowWriter[] writers, Iterable<Parcel<String>> parcels, String[] geoCommentSearchTerms) throws IOException
+	{	writeGeoFile(out, writers, parcels, new TermMatcher(geoCommentSearchTerms));
+	}
+
+	/**
+	 * Writes the joined geometry points to the geo file and to any other geo formats in the same pass.
+	 * @param out The writer for the geo file, it is not closed. May be null if only the other formats are written.
+	 * @param writers The writers of the other formats, they are not closed. May be null.
+	 * @param parcels The joined parcels, e.g. the view() of the joined table.
+	 * @param terms The terms to be listed in FoundTerms when a course comment contains them, e.g. shared by the
+	 *   writers of many files.
+	 * @throws IOException If a file can not be written.
+	 */
+	public static void writeGeoFile(TsvWriter out, GeoRowWriter[] writers, Iterable<Parcel<String>> parcels, TermMatcher terms) throws IOException
+	{	String[] row = new String[GEO_COLUMNS.length];
+		int uid = 0, column;
+		boolean grouped;
+		String groupField = null;
+		if(out != null)
+		{	out.row(GEO_COLUMNS);
+			groupField = out.getGroupField();
+		}
+		for (Parcel<String> parcel:parcels)
+		{	grouped = false;
+			for (DataRecordW<String> current:parcel)
+			{	if (!geoRow(current.getRecord(), terms, row))
+					continue;
+				uid++;
+				if(out != null)
+				{	if(!grouped)		// the parcel's rows are kept in one shard
+					{	out.startGroup(groupField == null ? null : getFieldValue(parcel, groupField));
+						grouped = true;
+					}
+					out.field(uid);
+					for (column = 1; column < row.length; column++)
+						out.field(row[column] == null ? GEO_BLANK_FIELD : row[column]);
+					out.endRow();
 				}
+				if(writers != null)
+				{	for (GeoRowWriter writer:writers)
+						writer.writeRow(uid, row);
+				}
+			}
+			if(writers != null)
+			{	for (GeoRowWriter writer:writers)
+					writer.endParcel();
+			}
+		}
+	}
+
+	/**
+	 * @param geoFormats The GEO_FORMAT_ flags of the geo files to be written.
+	 * @return True if the tab delimited geo file is written in parcel order by writeGeoFile() itself, false if it is
+	 *   not written or is written in Hilbert order by a GeoRowWriter.
+	 */
+	public static boolean isGeoTextInParcelOrder(int geoFormats)
+	{	return (geoFormats & GEO_FORMAT_TEXT) != 0 && (geoFormats & GEO_ORDER_HILBERT) == 0;
+	}
+
+	/**
+	 * Opens the writers of the geo formats other than the text file in parcel order, named after the geo file.
+	 * @param outputFile The output file stub, as for writeOutputFiles().
+	 * @param geoFormats The GEO_FORMAT_ flags of the geo files to be written.
+	 * @param fileExtension The file extension of the text files, as for writeOutputFiles().
+	 * @param shards How the text files are split, or null.
+	 * @return The writers, which must be closed by closeGeoRowWriters(). Empty if only the text file is written.
+	 * @throws IOException If a file can not be created.
+	 */
+	public static GeoRowWriter[] openGeoRowWriters(File outputFile, int geoFormats, String fileExtension, ShardPlan shards) throws IOException
+	{	return openGeoRowWriters(outputFile, geoFormats, fileExtension, shards, null);
+	}
+
+	/**
+	 * Opens the writers of the geo formats other than the text file in parcel order, named after the geo file.
+	 * @param outputFile The output file stub, as for writeOutputFiles().
+	 * @param geoFormats The GEO_FORMAT_ flags of the geo files to be written.
+	 * @param fileExtension The file extension of the text files, as for writeOutputFiles().
+	 * @param shards How the text files are split, or null.
+	 * @param outputFiles Records each file the writers create, or null.
+	 * @return The writers, which must be closed by closeGeoRowWriters(). Empty if only the text file is written.
+	 * @throws IOException If a file can not be created.
+	 */
+	public static GeoRowWriter[] openGeoRowWriters(File outputFile, int geoFormats, String fileExtension, ShardPlan shards, OutputFiles outputFiles) throws IOException
+	{	LinkedList<GeoRowWriter> writers = new LinkedList<GeoRowWriter>();
+		try
+		{	if((geoFormats & GEO_FORMAT_TEXT) != 0 && (geoFormats & GEO_ORDER_HILBERT) != 0)
+				writers.add(new HilbertGeoFileWriter(appendSuffix(outputFile, true, false, fileExtension), fileExtension, shards, outputFiles));
+			if((geoFormats & GEO_FORMAT_SHAPEFILE) != 0)
+				writers.add(new ShapefileWriter(appendSuffix(outputFile, true, false, ".shp"), outputFiles));
+			if((geoFormats & GEO_FORMAT_FLATGEOBUF) != 0)
+				writers.add(new FlatGeobufWriter(appendSuffix(outputFile, true, false, ".fgb"), 
+						appendSuffix(outputFile, true, false, PARCELS_SUFFIX + ".fgb"), outputFiles));
+			if((geoFormats & GEO_FORMAT_GEOJSONSEQ) != 0)
+				writers.add(new GeoJsonSeqWriter(appendSuffix(outputFile, true, false, ".geojsons"), true, outputFiles));
+		}catch(IOException ioe)
+		{	closeGeoRowWriters(writers.toArray(new GeoRowWriter[writers.size()]));
+			throw ioe;
+		}
+		return writers.toArray(new GeoRowWriter[writers.size()]);
+	}
+
+	/**
+	 * Closes each of the writers, even if one of them fails.
+	 * @param writers The writers from openGeoRowWriters(), may be null.
+	 * @throws IOException The first error of the writers.
+	 */
+	public static void closeGeoRowWriters(GeoRowWriter[] writers) throws IOException
+	{	IOException error = null;
+		if(writers == null)
+			return;
+		for(GeoRowWriter writer:writers)
+		{	try
+			{	writer.close();
+			}catch(IOException ioe)
+			{	if(error == null)
+					error = ioe;
 			}
 		}
+		if(error != null)
+			throw error;
+	}
+
+	/**
+	 * Fills the geo file columns of one joined record, all but the UID, which is numbered by the writer.
+	 * @param record A record of a joined parcel.
+	 * @param geoCommentSearchTerms The terms to be listed in FoundTerms when the course comment contains them.
+	 * @param row The row to be filled, in the order of GEO_COLUMNS. A blank field is set to null.
+	 * @return False if the record is not written to the geo file, i.e. it is a parcel field rather than a course.
+	 */
+	public static boolean geoRow(List<String> record, String[] geoCommentSearchTerms, String[] row)
+	{	return geoRow(record, new TermMatcher(geoCommentSearchTerms), row);
+	}
+
+	/**
+	 * Fills the geo file columns of one joined record, all but the UID, which is numbered by the writer.
+	 * @param record A record of a joined parcel.
+	 * @param terms The terms to be listed in FoundTerms when the course comment contains them.
+	 * @param row The row to be filled, in the order of GEO_COLUMNS. A blank field is set to null.
+	 * @return False if the record is not written to the geo file, i.e. it is a parcel field rather than a course.
+	 */
+	public static boolean geoRow(List<String> record, TermMatcher terms, String[] row)
+	{	//field order for 'record' {fieldName,rcrdCntStr,allFieldsCnt,cmntCntStr,fieldCntStr,edgePtCntStr,comment or additional fields: for geometry:direction,distance,ddComment,id; for 'loc': it is split on the " " character}
+		//   followed by the KML fields {pid,gid,gType,id,x,y} then the KML name and the join score
+		String gidStr = record.get(MBL_EDGEPOINTCOUNT);
+		if (gidStr != null && Integer.parseInt(gidStr) < 1)	// not a course, a KML point without MBL fields is written
+			return false;
+		String gCmnt = fieldAt(record, MBL_G_DDCOMMENT);
+		String found = terms.find(gCmnt);
+		if(found.length() > 1)
+			found = found.substring(0, found.length()-2);
+		row[0] = null;
+		row[1] = record.get(MBL_RECORDCOUNT);
+		row[2] = gidStr;
+		row[3] = fieldAt(record, MBL_G_ID);
+		row[4] = record.get(MBL_FIELDNAME);
+		row[5] = fieldAt(record, MBL_G_DIRECTION);
+		row[6] = fieldAt(record, MBL_G_DISTANCE);
+		row[7] = gCmnt;
+		row[8] = found;
+		row[9] = fieldAt(record, MBL_G_ID + 1 + KML_PID);
+		row[10] = fieldAt(record, MBL_G_ID + 1 + KML_GID);
+		row[11] = fieldAt(record, MBL_G_ID + 1 + KML_GTYPE);
+		row[12] = fieldAt(record, JOINED_KML_NAME);
+		row[13] = fieldAt(record, MBL_G_ID + 1 + KML_ID);
+		row[GEO_KML_X] = fieldAt(record, MBL_G_ID + 1 + KML_X);
+		row[GEO_KML_Y] = fieldAt(record, MBL_G_ID + 1 + KML_Y);
+		row[16] = fieldAt(record, JOINED_SCORE);
+		return true;
+	}
+
+	/**
+	 * @return The field at 'index' of the record, or null if the record is shorter.
+	 */
+	private static String fieldAt(List<String> record, int index)
+	{	if (record.size() > index)
+			return record.get(index);
+		return null;
 	}
 
 	
 	/**
 	 * Writes a file of the overview information for each parcel in a tab delimited form, with one row per parcel. 
-	 *   Fields are output in alphabetical order. 
-	 * @param tree The sorted list of unique field names.
-	 * @param parcels The list of parcels from which the overview information will be printed.
+	 *   Fields are output in alphabetical order. The column of each field name is looked up once, so each parcel's
+	 *   row is filled in a single pass over its records.
+	 * @param out The writer for the flat file, it is not closed.
+	 * @param fieldList The sorted list of unique field names.
+	 * @param parcels The parcels from which the overview information will be printed, they are read, not removed.
 	 * @throws IOException 
 	 */
-	public static void writeFlatFile(Writer out, CountingTree fieldList, LinkedList<Parcel<String>> parcels) throws IOException
-	{
-		Parcel<String> parcel = null;
-		Iterator<Object> iterFN = fieldList.iterator();
-		String fieldNames = "", key = "";
-		while (iterFN.hasNext())						// Make the string of field names
-			fieldNames += iterFN.next() + "\t";
-		out.write("PID\t" + fieldNames+"PointCount\n");			// Write the field names 
-		Iterator<DataRecordW<String>> iterP = null;
-		LinkedList<String> fieldOrder = null;
-		while (!parcels.isEmpty())						// loop through the parcels
-		{	parcel = parcels.poll();
-			out.write(parcel.peek().getRecord().get(MBL_RECORDCOUNT) + "\t"); // write the parcel number
-			iterP = parcel.iterator();
-			fieldOrder = new LinkedList<String>();
-			String field = "";
-			while (iterP.hasNext())
-			{	field = iterP.next().getRecord().get(MBL_FIELDNAME);	
-				fieldOrder.add(field);										// list of field names
+	public static void writeFlatFile(TsvWriter out, CountingTree fieldList, Iterable<Parcel<String>> parcels) throws IOException
+	{	HashMap<String,Integer> columns = writeFlatHeader(out, fieldList);
+		ArrayList<List<String>> slots = new ArrayList<List<String>>(Collections.nCopies(columns.size(), (List<String>) null));
+		List<String> record;
+		Integer column;
+		String groupField = out.getGroupField();
+		for (Parcel<String> parcel:parcels)				// loop through the parcels
+		{	out.startGroup(groupField == null ? null : getFieldValue(parcel, groupField));
+			Collections.fill(slots, null);
+			for (DataRecordW<String> current:parcel)	// the first record of each field name fills its column
+			{	record = current.getRecord();
+				column = columns.get(record.get(MBL_FIELDNAME));
+				if (column != null && slots.get(column) == null)
+					slots.set(column, record);
 			}
-			iterFN = fieldList.iterator();
-			int index = 0, cnt = 0, treeSize = fieldList.size();
-			key = "";
-			while(iterFN.hasNext())
-			{	cnt++;
-				key = (String) iterFN.next();
-				index = fieldOrder.indexOf(key);
-				if (!key.equals("loc_tay") && !key.equals("lc") && !key.equals("lm") && !key.equals("ln") && !key.equals("pt"))
-				{	
-					if (index > -1 && cnt < treeSize && parcel.get(index).getRecord().size() > MBL_VALUE && !key.startsWith("z_cmnt"))
-						out.write(parcel.get(index).getRecord().get(MBL_G_DIRECTION) + "\t");
-					else if (index > -1 && cnt < treeSize && parcel.get(index).getRecord().size() > MBL_VALUE && key.startsWith("z_cmnt"))
-						out.write(parcel.get(index).getRecord().get(MBL_VALUE) + "\t");
-					else if (index > -1 && cnt == treeSize && parcel.get(index).getRecord().size() > MBL_VALUE)
-						out.write(parcel.get(index).getRecord().get(MBL_VALUE) + "\t");
-					else out.write("\t");
-				}
+			out.field(parcel.peek().getRecord().get(MBL_RECORDCOUNT)); // write the parcel number
+			for (List<String> slot:slots)
+			{	if (slot != null && slot.size() > MBL_VALUE)
+					out.field(slot.get(MBL_VALUE));			// the value, or for a course its direction
+				else out.field((String) null);
 			}
-			out.write(parcel.getGeometryCount()+"\n");
+			out.field(parcel.getGeometryCount());
+			out.endRow();
 		}
 	}
-	
+
+	/**
+	 * @param parcel An MBL parcel, or a joined parcel whose field records were kept by joinParcel().
+	 * @param fieldName An MBL field name, e.g. "typ".
+	 * @return The value of the parcel's first record of the field, or null if it has none.
+	 */
+	public static String getFieldValue(Parcel<String> parcel, String fieldName)
+	{	String value = getFieldValue((Iterable<DataRecordW<String>>) parcel, fieldName);
+		if (value == null && parcel.getFieldRecords() != null)
+			value = getFieldValue(parcel.getFieldRecords(), fieldName);
+		return value;
+	}
+
+	private static String getFieldValue(Iterable<DataRecordW<String>> records, String fieldName)
+	{	List<String> record;
+		for (DataRecordW<String> current:records)
+		{	record = current.getRecord();
+			if (fieldName.equals(record.get(MBL_FIELDNAME)))
+				return record.size() > MBL_VALUE ? record.get(MBL_VALUE) : null;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the header row of the flat file: PID, the field names, then PointCount.
+	 * @param out The writer for the flat file.
+	 * @param fieldList The sorted list of unique field names.
+	 * @return The column of each field name whose value is written, counting from the column after PID.
+	 * @throws IOException If the header can not be written.
+	 */
+	public static HashMap<String,Integer> writeFlatHeader(TsvWriter out, CountingTree fieldList) throws IOException
+	{	HashMap<String,Integer> columns = new HashMap<String,Integer>();
+		String key;
+		out.field("PID");
+		for (Object fieldName:fieldList)				// write the field names, and number the columns that are written
+		{	key = (String) fieldName;
+			out.field(key);
+			if (!key.equals("loc_tay") && !key.equals("lc") && !key.equals("lm") && !key.equals("ln") && !key.equals("pt"))
+				columns.put(key, columns.size());
+		}
+		out.field("PointCount");
+		out.endRow();
+		return columns;
+	}
+
 	/**
 	 * Use this method to find parcel 'comparator' values that are not unique. The 'fieldList' of the returned
 	 *   DataTableW will have the correct field names, but the counts will be incorrect. 
@@ -817,20 +1016,19 @@ public class Witness
 	/**
 	 * Writes the KML table as a tab delimited file, with the point count replacing the individual 
 	 * 	 courses of the tract description. 
-	 * @param placemarks The table containing the KML geometry (output from kmlToTable())
+	 * @param placemarks The table containing the KML geometry (output from kmlToTable()), it is read, not removed.
 	 */
-	public static void writeKMLflatFile(Writer out, LinkedList<Parcel<String>> placemarks)
-	{	Parcel<String> placemark = null;
-		DataRecordW<String> current;
+	public static void writeKMLflatFile(Writer out, Iterable<Parcel<String>> placemarks)
+	{	DataRecordW<String> current;
 		String pid = "", name = "", id = "", gType = "", nameOrId = "", pointCount = "";
 		try 
 		{	out.write("pid\tname\tid\tPointCount");
-			while (!placemarks.isEmpty())
-			{	placemark = placemarks.poll();
-				id = placemark.getComparator();
+			for (Parcel<String> placemark:placemarks)
+			{	id = placemark.getComparator();
 				pointCount = (new Integer(placemark.getGeometryCount())).toString();
-				while (!placemark.isEmpty())	
-				{	current = placemark.poll(); 
+				Iterator<DataRecordW<String>> records = placemark.iterator();
+				while (records.hasNext())	
+				{	current = records.next(); 
 					// A key to the positions in the DataRecord is as follows (note that position 3 is id except when gType is name):
 			    	//    0:pid, 1:gidStr, 2:gType, 3:name or id, 4:x, 5:y   
 					gType = current.get(KML_GTYPE);							// TODO change if order changes
@@ -848,7 +1046,10 @@ public class Witness
 		}
 	}
 
-	private static String parseGCmnt(String gCmnt, String[] geoCommentSearchTerms)
+	/**
+	 * @return The search terms found in a course comment, each followed by ", ", as in the FoundTerms column.
+	 */
+	static String parseGCmnt(String gCmnt, String[] geoCommentSearchTerms)
 	{	String result = "";
 		for(String searchTerm:geoCommentSearchTerms)
 			if(gCmnt != null && searchTerm != null)
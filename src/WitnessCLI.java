@@ -0,0 +1,558 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Converts many MBL and KML file pairs without a display, e.g. on a server overnight. The pairs are converted by a
+ *   JobRunner, --threads at a time, each by a ConversionPipeline, or an IncrementalConverter with --incremental. An
+ *   error stops only its own pair: it is printed and listed in the summary, and the other pairs are still converted.
+ *   Each pair also gets a "_report.txt" file, the report that the GUI shows in a dialog.
+ * <br>Each pair that is converted is recorded in a CheckpointJournal, "witness_checkpoint.txt" beside the summary by
+ *   default, so that a run that was stopped can be started again with the same arguments and only convert the pairs
+ *   that it had not finished. The pairs that were already converted are listed as skipped in the summary.
+ * <br>The summary, "witness_summary.txt" in the output folder by default, has one tab delimited row per pair with its
+ *   status, time, counts and error. The exit code is EXIT_OK if every pair was converted, EXIT_FAILED if any pair
+ *   failed and EXIT_USAGE if the arguments are wrong, in which case nothing is converted.
+ * @author thayer young
+ */
+public class WitnessCLI
+{
+	/** The exit code when every pair was converted. */
+	public static final int EXIT_OK = 0;
+	/** The exit code when at least one pair failed. */
+	public static final int EXIT_FAILED = 1;
+	/** The exit code when the arguments are wrong. */
+	public static final int EXIT_USAGE = 2;
+	/** The name of the summary file, in the output folder unless --summary is given. */
+	public static final String SUMMARY_FILE = "witness_summary.txt";
+	/** The suffix of the join report of each pair. */
+	public static final String REPORT_SUFFIX = "_report";
+	/** The column names of the summary file. */
+	public static final String[] SUMMARY_COLUMNS = {"Status","MBL","KML","Output","Seconds","Combined","Failed",
+		"KMLNoMatch","MBLNoMatch","CoursesJoined","TotalCourses","Error"};
+	/** The status of a pair that was converted. */
+	public static final String STATUS_OK = "ok";
+	/** The status of a pair that failed. */
+	public static final String STATUS_FAILED = "failed";
+	/** The status of a pair that was converted by an earlier run, according to the checkpoint journal. */
+	public static final String STATUS_SKIPPED = "skipped";
+	private static final String MBL_EXTENSION = ".mbl";
+	private static final String KML_EXTENSION = ".kml";
+	private static final String TEXT_EXTENSION = ".txt";
+	private static final String SERVER_FOLDER = "witness_server";	// in the temporary folder
+	private static final String USAGE =
+		"Usage: java WitnessCLI [options] <mbl file> <kml file> [<mbl file> <kml file> ...]\n"
+		+ "       java WitnessCLI [options] --dir <folder>\n"
+		+ "       java WitnessCLI [options] --watch <folder>\n"
+		+ "       java WitnessCLI [options] --serve <port>\n"
+		+ "Options:\n"
+		+ "  --dir <folder>       convert each .mbl file in the folder with the .kml file of the same name\n"
+		+ "  --watch <folder>     keep running, converting each pair that is dropped into the folder or changed\n"
+		+ "  --serve <port>       keep running, converting the pairs uploaded over HTTP, see ConversionServer. Only this\n"
+		+ "                       computer can connect unless a host is given, e.g. 0.0.0.0:8080\n"
+		+ "  --out <folder>       the output folder, by default the folder of each .mbl file, or for --serve the\n"
+		+ "                       folder of the jobs, by default witness_server in the temporary folder\n"
+		+ "  --single <file>      the single line custom fields, one per line\n"
+		+ "  --multiple <file>    the multiple line custom fields, one per line\n"
+		+ "  --terms <file>       the geometry comment search terms, one per line\n"
+		+ "  --threads <n>        the number of pairs converted at a time, by default the number of processors\n"
+		+ "  --formats <list>     also write these geo formats, comma separated: shp, fgb, geojson, hilbert\n"
+		+ "  --shard <plan>       split the geo and flat files: rows, gb or typ\n"
+		+ "  --gzip               compress the text files\n"
+		+ "  --no-cache           do not reuse the results of earlier conversions\n"
+		+ "  --incremental        only reconvert the edited parcels of each .mbl file\n"
+		+ "  --summary <file>     the summary file, by default " + SUMMARY_FILE + " in the output folder\n"
+		+ "  --checkpoint <file>  the journal of the converted pairs, by default " + CheckpointJournal.DEFAULT_FILE + "\n"
+		+ "                       beside the summary. A run that was stopped skips the pairs it already converted\n"
+		+ "  --restart            convert every pair again, ignoring the checkpoint journal";
+
+	private String[] singleLineFields = WitnessGUI.SINGLE_LINE_CUSTOM_FIELDS;
+	private String[] multipleLineFields = WitnessGUI.MULTIPLE_LINE_CUSTOM_FIELDS;
+	private String[] geoCommentSearchTerms = WitnessGUI.GEOCOMMENT_SEARCH_TERMS;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int geoFormats = Witness.GEO_FORMAT_TEXT;
+	private ShardPlan shardPlan = null;
+	private String fileExtension = TEXT_EXTENSION;
+	private boolean cached = true;
+	private boolean incremental = false;
+	private File outputFolder = null;
+	private File watchFolder = null;
+	private InetSocketAddress serveAddress = null;
+	private File summaryFile = null;
+	private File checkpointFile = null;
+	private boolean restart = false;
+	private CheckpointJournal journal = null;
+	private String checkpointSettings = null;
+	private ArrayList<Job> jobs = new ArrayList<Job>();
+	private JobRunner runner;
+	private PrintStream log = System.out;
+	private int done = 0;
+
+	/**
+	 * A pair of files to be converted, with the outcome of its conversion.
+	 */
+	private class Job implements Runnable
+	{	File mblFile, kmlFile, outputFile;
+		JoinReport report = null;
+		String counts = null;		// the counts of the summary, tab delimited
+		boolean skipped = false;
+		Throwable error = null;
+		long milliseconds = 0;
+
+		Job(File mblFile, File kmlFile, File outputFile)
+		{	this.mblFile = mblFile;
+			this.kmlFile = kmlFile;
+			this.outputFile = outputFile;
+		}
+
+		public void run()
+		{	long start = System.currentTimeMillis();
+			try
+			{	if(journal != null)
+					counts = journal.getDone(mblFile, kmlFile, outputFile, checkpointSettings);
+				skipped = counts != null;
+				if(!skipped)
+				{	OutputFiles outputFiles = new OutputFiles();
+					report = runner.convert(mblFile, kmlFile, outputFile, fileExtension, outputFiles);
+					File reportFile = Witness.appendSuffix(outputFile, REPORT_SUFFIX, TEXT_EXTENSION);
+					report.write(reportFile);
+					outputFiles.add(reportFile);
+					counts = countsOf(report);
+					if(journal != null)
+						record(outputFiles);
+				}
+			}catch(Throwable t)
+			{	error = t;
+			}
+			milliseconds = System.currentTimeMillis() - start;
+			finished(this);
+		}
+
+		/**
+		 * Records the pair in the journal. The pair was converted whether or not it can be recorded, so an error is only
+		 *   printed, the pair is then converted again by the next run.
+		 */
+		private void record(OutputFiles outputFiles)
+		{	try
+			{	ResultCache cache = runner.getResultCache(outputFile);	// which hashed the files for the conversion
+				journal.complete(mblFile, cache == null ? null : cache.hash(mblFile), kmlFile, cache == null ? null : cache.hash(kmlFile),
+						outputFile, checkpointSettings, counts, outputFiles.getFiles());
+			}catch(IOException ioe)
+			{	System.err.println("The conversion of " + mblFile + " could not be recorded in the checkpoint journal: " + ioe);
+			}
+		}
+	}
+
+	/**
+	 * Converts the pairs given by the arguments, or watches a folder with --watch, and exits with EXIT_OK, EXIT_FAILED
+	 *   or EXIT_USAGE.
+	 * @param args The options and the pairs of files, see USAGE.
+	 */
+	public static void main(String[] args)
+	{	System.setProperty("java.awt.headless", "true");	// errors are printed, not shown in dialogs
+		WitnessCLI cli = new WitnessCLI();
+		try
+		{	cli.parseArguments(args);
+		}catch(IllegalArgumentException iae)
+		{	System.err.println(iae.getMessage() + "\n\n" + USAGE);
+			System.exit(EXIT_USAGE);
+		}catch(IOException ioe)
+		{	System.err.println(ioe.getMessage());
+			System.exit(EXIT_USAGE);
+		}
+		System.exit(cli.run());
+	}
+
+	/**
+	 * Reads the options and the pairs of files.
+	 * @param args The options and the pairs of files, see USAGE.
+	 * @throws IllegalArgumentException If an option is unknown or a file is missing, nothing is then converted.
+	 * @throws IOException If a custom field or search term file can not be read.
+	 */
+	public void parseArguments(String[] args) throws IOException
+	{	ArrayList<File> files = new ArrayList<File>();
+		File folder = null;
+		int i = 0;
+		while(i < args.length)
+		{	String arg = args[i++];
+			if(!arg.startsWith("--"))
+				files.add(new File(arg));
+			else if(arg.equals("--gzip"))
+				fileExtension = TEXT_EXTENSION + Witness.GZIP_EXTENSION;
+			else if(arg.equals("--no-cache"))
+				cached = false;
+			else if(arg.equals("--incremental"))
+				incremental = true;
+			else if(arg.equals("--restart"))
+				restart = true;
+			else
+			{	if(i == args.length)
+					throw new IllegalArgumentException("The option " + arg + " needs a value.");
+				String value = args[i++];
+				if(arg.equals("--dir"))
+					folder = new File(value);
+				else if(arg.equals("--watch"))
+					watchFolder = new File(value);
+				else if(arg.equals("--serve"))
+					serveAddress = parseAddress(value);
+				else if(arg.equals("--out"))
+					outputFolder = new File(value);
+				else if(arg.equals("--single"))
+					singleLineFields = readLines(new File(value));
+				else if(arg.equals("--multiple"))
+					multipleLineFields = readLines(new File(value));
+				else if(arg.equals("--terms"))
+					geoCommentSearchTerms = readLines(new File(value));
+				else if(arg.equals("--threads"))
+					threads = parseCount(arg, value);
+				else if(arg.equals("--formats"))
+					geoFormats = parseFormats(value);
+				else if(arg.equals("--shard"))
+					shardPlan = parseShardPlan(value);
+				else if(arg.equals("--summary"))
+					summaryFile = new File(value);
+				else if(arg.equals("--checkpoint"))
+					checkpointFile = new File(value);
+				else throw new IllegalArgumentException("Unknown option " + arg + ".");
+			}
+		}
+		if(folder != null)
+			files.addAll(pairsInFolder(folder));
+		if(serveAddress != null)
+		{	if(!files.isEmpty() || watchFolder != null)
+				throw new IllegalArgumentException("--serve converts the uploaded files, it takes no other files or --watch.");
+			if(outputFolder == null)
+				outputFolder = new File(System.getProperty("java.io.tmpdir"), SERVER_FOLDER);
+			return;
+		}
+		if(watchFolder != null)
+		{	if(!watchFolder.isDirectory())
+				throw new IllegalArgumentException("The folder " + watchFolder + " does not exist.");
+			if(!files.isEmpty() || outputFolder != null)
+				throw new IllegalArgumentException("--watch writes beside the dropped files, it takes no other files or --out.");
+			return;
+		}
+		if(files.isEmpty())
+			throw new IllegalArgumentException("No files to convert.");
+		if(files.size() % 2 != 0)
+			throw new IllegalArgumentException("Each .mbl file needs a .kml file, " + files.get(files.size() - 1) + " has none.");
+		if(outputFolder != null && !outputFolder.isDirectory() && !outputFolder.mkdirs())
+			throw new IllegalArgumentException("The output folder " + outputFolder + " can not be created.");
+		HashMap<File,File> outputs = new HashMap<File,File>();
+		for(int pair = 0; pair < files.size(); pair += 2)
+		{	File mblFile = files.get(pair), kmlFile = files.get(pair + 1);
+			if(!mblFile.isFile())
+				throw new IllegalArgumentException("The .mbl file " + mblFile + " does not exist.");
+			if(!kmlFile.isFile())
+				throw new IllegalArgumentException("The .kml file " + kmlFile + " does not exist.");
+			File folderOut = outputFolder != null ? outputFolder : mblFile.getAbsoluteFile().getParentFile();
+			File outputFile = Witness.appendSuffix(new File(folderOut, mblFile.getName()), "", TEXT_EXTENSION);
+			File other = outputs.put(outputFile.getAbsoluteFile(), mblFile);
+			if(other != null)
+				throw new IllegalArgumentException(other + " and " + mblFile + " would both be written to " + outputFile + ".");
+			jobs.add(new Job(mblFile, kmlFile, outputFile));
+		}
+		if(summaryFile == null)
+			summaryFile = new File(outputFolder != null ? outputFolder : jobs.get(0).outputFile.getAbsoluteFile().getParentFile(), SUMMARY_FILE);
+		if(checkpointFile == null)
+			checkpointFile = new File(summaryFile.getAbsoluteFile().getParentFile(), CheckpointJournal.DEFAULT_FILE);
+	}
+
+	/**
+	 * Converts the pairs on a JobRunner and writes the summary.
+	 * @return EXIT_OK if every pair was converted, otherwise EXIT_FAILED.
+	 */
+	public int run()
+	{	long start = System.currentTimeMillis();
+		runner = new JobRunner(singleLineFields, multipleLineFields, geoCommentSearchTerms, threads);
+		runner.setGeoFormats(geoFormats);
+		runner.setShardPlan(shardPlan);
+		runner.setCached(cached);
+		runner.setIncremental(incremental);
+		if(watchFolder != null)
+			return watch();
+		if(serveAddress != null)
+			return serve();
+		journal = new CheckpointJournal(checkpointFile);
+		if(restart)
+			journal.clear();
+		checkpointSettings = ResultCache.key("checkpoint", TableSnapshot.mblSettings(singleLineFields, multipleLineFields),
+				Arrays.toString(geoCommentSearchTerms), String.valueOf(geoFormats), String.valueOf(shardPlan), fileExtension);
+		for(Job job:jobs)
+			runner.execute(job);
+		try
+		{	runner.finish();
+		}catch(InterruptedException ie)
+		{	Thread.currentThread().interrupt();
+		}
+		try
+		{	journal.flush();
+		}catch(IOException ioe)
+		{	System.err.println("The checkpoint journal " + checkpointFile + " could not be written: " + ioe);
+		}
+		int failed = 0, skipped = 0;
+		for(Job job:jobs)
+		{	if(job.counts == null || job.error != null)
+				failed++;
+			else if(job.skipped)
+				skipped++;
+		}
+		try
+		{	writeSummary(summaryFile);
+		}catch(IOException ioe)
+		{	System.err.println("The summary " + summaryFile + " could not be written: " + ioe);
+			failed = Math.max(failed, 1);
+		}
+		log.println((jobs.size() - failed - skipped) + " of " + jobs.size() + " pairs converted in "
+				+ ((System.currentTimeMillis() - start) / 1000) + " seconds, " + skipped + " skipped, " + failed + " failed. Summary: "
+				+ summaryFile);
+		return failed == 0 ? EXIT_OK : EXIT_FAILED;
+	}
+
+	/**
+	 * Runs a WatchDaemon on the watch folder, until the JVM is stopped.
+	 * @return EXIT_FAILED, once the folder can no longer be watched.
+	 */
+	private int watch()
+	{	WatchDaemon daemon = new WatchDaemon(watchFolder, runner);
+		daemon.setFileExtension(fileExtension);
+		daemon.setLog(log);
+		daemon.run();
+		try
+		{	runner.finish();
+		}catch(InterruptedException ie)
+		{	Thread.currentThread().interrupt();
+		}
+		return daemon.isFailed() ? EXIT_FAILED : EXIT_OK;
+	}
+
+	/**
+	 * Runs a ConversionServer, until the JVM is stopped.
+	 * @return EXIT_FAILED if the port can not be opened.
+	 */
+	private int serve()
+	{	runner.setCacheDirectory(new File(outputFolder, ResultCache.DEFAULT_DIRECTORY));	// shared by the jobs
+		ConversionServer server = new ConversionServer(runner, outputFolder, singleLineFields, multipleLineFields, geoCommentSearchTerms);
+		server.setFileExtension(fileExtension);
+		server.setLog(log);
+		try
+		{	server.start(serveAddress);
+			server.join();
+		}catch(IOException ioe)
+		{	System.err.println("The server could not be started: " + ioe);
+			return EXIT_FAILED;
+		}catch(InterruptedException ie)
+		{	Thread.currentThread().interrupt();
+		}
+		return EXIT_OK;
+	}
+
+	/**
+	 * Prints the outcome of a pair as soon as it is converted.
+	 */
+	private synchronized void finished(Job job)
+	{	done++;
+		String progress = "[" + done + "/" + jobs.size() + "] ";
+		if(job.error == null && job.skipped)
+			log.println(progress + job.mblFile + " skipped, it was converted by an earlier run.");
+		else if(job.error == null)
+			log.println(progress + job.mblFile + " converted in " + (job.milliseconds / 1000) + " seconds.");
+		else
+		{	log.println(progress + job.mblFile + " failed: " + job.error);
+			job.error.printStackTrace();
+		}
+	}
+
+	/**
+	 * Writes the summary, a header row and one tab delimited row per pair, in the order of the arguments.
+	 * @param file The summary file.
+	 * @throws IOException If the file can not be written.
+	 */
+	public void writeSummary(File file) throws IOException
+	{	Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{	StringBuilder header = new StringBuilder();
+			for(String column:SUMMARY_COLUMNS)
+				header.append(header.length() == 0 ? "" : "\t").append(column);
+			out.write(header + "\n");
+			for(Job job:jobs)
+			{	String counts = job.counts;
+				if(counts == null)
+					counts = job.report == null ? "\t\t\t\t\t" : countsOf(job.report);
+				String status = job.counts == null || job.error != null ? STATUS_FAILED : job.skipped ? STATUS_SKIPPED : STATUS_OK;
+				out.write(status + "\t" + job.mblFile + "\t" + job.kmlFile + "\t" + job.outputFile
+						+ "\t" + (job.milliseconds / 1000.0) + "\t" + counts
+						+ "\t" + (job.error == null ? "" : String.valueOf(job.error).replace('\t', ' ').replace('\n', ' ')) + "\n");
+			}
+		}
+		finally
+		{	out.close();
+		}
+	}
+
+	/**
+	 * @param report The report of a pair.
+	 * @return The counts of the summary, from Combined to TotalCourses, tab delimited.
+	 */
+	private static String countsOf(JoinReport report)
+	{	int[] combineCounts = report.getCombineCounts();
+		return combineCounts[DataTableW.COMBINED_INDEX] + "\t" + combineCounts[DataTableW.FAILED_INDEX]
+				+ "\t" + combineCounts[DataTableW.NO_MATCH_KML_INDEX] + "\t" + combineCounts[DataTableW.NO_MATCH_MBL_INDEX]
+				+ "\t" + report.getCourseCount(JoinReport.COURSE_JOINED) + "\t" + report.getTotalCourses();
+	}
+
+	/**
+	 * @param folder A folder of DeedMapper files.
+	 * @return Each .mbl file of the folder, by name, followed by the .kml file of the same name.
+	 * @throws IllegalArgumentException If the folder does not exist or a .kml file is missing.
+	 */
+	private static List<File> pairsInFolder(File folder)
+	{	File[] children = folder.listFiles();
+		if(children == null)
+			throw new IllegalArgumentException("The folder " + folder + " does not exist.");
+		Arrays.sort(children);
+		ArrayList<File> files = new ArrayList<File>();
+		String name;
+		for(File child:children)
+		{	name = child.getName();
+			if(child.isFile() && name.toLowerCase().endsWith(MBL_EXTENSION))
+			{	File kmlFile = new File(folder, name.substring(0, name.length() - MBL_EXTENSION.length()) + KML_EXTENSION);
+				if(!kmlFile.isFile())
+					throw new IllegalArgumentException("The .mbl file " + child + " has no .kml file " + kmlFile.getName() + ".");
+				files.add(child);
+				files.add(kmlFile);
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * @param file A list file, e.g. of search terms, as typed in the text boxes of the GUI.
+	 * @return The lines of the file, without the blank lines.
+	 * @throws IOException If the file can not be read.
+	 */
+	static String[] readLines(File file) throws IOException
+	{	ArrayList<String> lines = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+		try
+		{	String line;
+			while((line = in.readLine()) != null)
+			{	if(line.trim().length() > 0)
+					lines.add(line);
+			}
+		}
+		finally
+		{	in.close();
+		}
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	/**
+	 * @param value A port, or a host and a port, e.g. "8080" or "0.0.0.0:8080" for every network.
+	 * @return The address to listen on, 127.0.0.1 if there is no host.
+	 */
+	private static InetSocketAddress parseAddress(String value)
+	{	int colon = value.lastIndexOf(':');
+		String host = colon < 0 ? "127.0.0.1" : value.substring(0, colon);
+		return new InetSocketAddress(host, parseCount("--serve", value.substring(colon + 1)));
+	}
+
+	private static int parseCount(String option, String value)
+	{	try
+		{	int count = Integer.parseInt(value);
+			if(count > 0)
+				return count;
+		}catch(NumberFormatException nfe)
+		{	// the message below
+		}
+		throw new IllegalArgumentException("The option " + option + " needs a positive number, not " + value + ".");
+	}
+
+	/**
+	 * @param value The comma separated formats, e.g. "shp,geojson".
+	 * @return The GEO_FORMAT_ flags, always with GEO_FORMAT_TEXT.
+	 */
+	private static int parseFormats(String value)
+	{	int formats = Witness.GEO_FORMAT_TEXT;
+		for(String format:value.split(","))
+		{	format = format.trim().toLowerCase();
+			if(format.equals("shp"))
+				formats |= Witness.GEO_FORMAT_SHAPEFILE;
+			else if(format.equals("fgb"))
+				formats |= Witness.GEO_FORMAT_FLATGEOBUF;
+			else if(format.equals("geojson"))
+				formats |= Witness.GEO_FORMAT_GEOJSONSEQ;
+			else if(format.equals("hilbert"))
+				formats |= Witness.GEO_ORDER_HILBERT;
+			else if(format.length() > 0)
+				throw new IllegalArgumentException("Unknown format " + format + ".");
+		}
+		return formats;
+	}
+
+	/**
+	 * @param value rows, gb or typ, as in the shard combo box of the GUI.
+	 * @return The ShardPlan.
+	 */
+	private static ShardPlan parseShardPlan(String value)
+	{	if(value.equals("rows"))
+			return ShardPlan.byRows(1000000);
+		if(value.equals("gb"))
+			return ShardPlan.byBytes(1L << 30);
+		if(value.equals("typ"))
+			return ShardPlan.byField("typ");
+		throw new IllegalArgumentException("Unknown shard plan " + value + ".");
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads The number of pairs converted at a time.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public File getSummaryFile() {
+		return summaryFile;
+	}
+
+	public void setSummaryFile(File summaryFile) {
+		this.summaryFile = summaryFile;
+	}
+
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * @param checkpointFile The CheckpointJournal of the run, by default witness_checkpoint.txt beside the summary.
+	 */
+	public void setCheckpointFile(File checkpointFile) {
+		this.checkpointFile = checkpointFile;
+	}
+
+	public PrintStream getLog() {
+		return log;
+	}
+
+	/**
+	 * @param log Where the progress is printed, System.out by default.
+	 */
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+}
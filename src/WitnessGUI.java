@@ -43,17 +43,22 @@ import java.awt.Font;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.beans.PropertyChangeEvent;
 import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.AbstractAction;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -63,7 +68,9 @@ import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
+import javax.swing.Timer;
 import javax.swing.filechooser.FileNameExtensionFilter;
 
 /**
@@ -83,7 +90,9 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 	public final static String[] MULTIPLE_LINE_CUSTOM_FIELDS = new String[] {"! RR:"};
 	public final static String[] GEOCOMMENT_SEARCH_TERMS = new String[] {"ash","bark","bay","beech","birch","bush","cedar","cherry","chestnut","currant","cypress","dogwood","elm","gum","haw","hickory","holly","laurel","locust","maple","mulberry","myrtle","oak","peach","persimmon","pignut","pine","poplar","sassafras","scrub","spice","tree","walnut","willow","wood"};
 	public final static String RUN_DATA_DIAGNOSTIC = "Run data diagnostic";
+	public final static String COMPARE_VERSIONS = "Compare to an older MBL file";
 	public final static String CONVERT_TO_GIS_FILES = "Convert to GIS files";
+	public final static String CANCEL = "Cancel";
 	
 	// GUI Elements
 	private JFrame frame;		// The frame that holds the panels.
@@ -103,8 +112,20 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 	private JTextArea customFieldsPanelMultipleJTextArea = new JTextArea(20,0); //  "   "    "   "   "       "     "   "  second "    "
 	private JTextArea searchTermsJTextArea = new JTextArea(20,0); 				// List of terms to be searched for in the geo comments
 	private JButton   diagnosticButton = new JButton(RUN_DATA_DIAGNOSTIC);
+	private JButton   compareButton = new JButton(COMPARE_VERSIONS);
 	private JButton   convertButton = new JButton(CONVERT_TO_GIS_FILES);
+	private JButton   cancelButton = new JButton(CANCEL);
+	private JCheckBox shapefileCheckBox = new JCheckBox("Also write a Shapefile");
+	private JCheckBox flatGeobufCheckBox = new JCheckBox("Also write FlatGeobuf");
+	private JCheckBox geoJsonCheckBox = new JCheckBox("Also write GeoJSON");
+	private JCheckBox compressCheckBox = new JCheckBox("Compress the text files");
+	private JCheckBox hilbertCheckBox = new JCheckBox("Order the geo file by location");
+	private JCheckBox snapshotCheckBox = new JCheckBox("Reuse earlier results", true);
+	private JCheckBox incrementalCheckBox = new JCheckBox("Only reconvert edited parcels");
+	private final String[] SHARD_CHOICES = {"One geo and flat file","Split every million rows","Split every GB","Split by typ"};
+	private JComboBox<String> shardComboBox = new JComboBox<String>(SHARD_CHOICES);
 	private JProgressBar progress = new JProgressBar(0,100);
+	private String progressStage = "";		// what the task is doing, shown in the progress bar
 	
 	// Class Variables
 	/** the default file path to the mbl file */
@@ -116,8 +137,9 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 	private String[] singleLineCustomFields;
 	private String[] multipleLineCustomFields;
 	private String[] geoCommentSearchTerms;
-	private DataTableW<String> mblTable = null;
-	private DataTableW<String> kmlTable = null;
+	private TablePreloader preloader = new TablePreloader();	// parses the files as soon as they are chosen
+	private Timer customFieldsTimer;		// preloads the MBL file again once the custom fields stop changing
+	private SwingWorker<?,?> cancellableTask = null;	// the task that the cancel button stops
 	
 	/**
 	 * Constructor for the GUI
@@ -188,15 +210,39 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 		convertButtonContainer.add(diagnosticButton);
 		diagnosticButton.setAlignmentX(CENTER_ALIGNMENT);
 		diagnosticButton.addActionListener(this);	// <-- for progress bar, ties actionPerformed() to diagnosticButton
+		convertButtonContainer.add(compareButton);
+		compareButton.setAlignmentX(CENTER_ALIGNMENT);
+		compareButton.addActionListener(this);
 		convertButtonContainer.add(convertButton);
 		convertButton.setAlignmentX(CENTER_ALIGNMENT);
 		convertButton.addActionListener(this);	// <-- for progress bar, ties actionPerformed() to convertButton
+		convertButtonContainer.add(shapefileCheckBox);
+		shapefileCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(flatGeobufCheckBox);
+		flatGeobufCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(geoJsonCheckBox);
+		geoJsonCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(compressCheckBox);
+		compressCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(hilbertCheckBox);
+		hilbertCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(snapshotCheckBox);
+		snapshotCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(incrementalCheckBox);
+		incrementalCheckBox.setAlignmentX(CENTER_ALIGNMENT);
+		convertButtonContainer.add(shardComboBox);
+		shardComboBox.setAlignmentX(CENTER_ALIGNMENT);
+		shardComboBox.setMaximumSize(shardComboBox.getPreferredSize());
 		convertButtonContainer.add(progress);
 		progress.setAlignmentX(CENTER_ALIGNMENT);
 		progress.setEnabled(true);
 		progress.setStringPainted(true);
 		progress.setValue(0);
 		progress.setString("0%");
+		convertButtonContainer.add(cancelButton);
+		cancelButton.setAlignmentX(CENTER_ALIGNMENT);
+		cancelButton.setEnabled(false);		// while a conversion or diagnostic runs
+		cancelButton.addActionListener(this);
 		customFieldsPanel.add(convertButtonContainer);	
 		
 		customFieldsPanel.add(Box.createRigidArea(new Dimension(0,20)));
@@ -215,51 +261,147 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 	}
 	
 	/**
-	 * This class runs the logic in Witness to convert the DeedMapper files to GIS readable files.
+	 * This class runs the logic in Witness to convert the DeedMapper files to GIS readable files. It is the ProgressSink
+	 *   of the conversion: the parse moves the progress bar to 90%, by the characters read, and the flat file, written
+	 *   once the parse is done, moves it the rest of the way. The cancel button stops every stage, and the conversion
+	 *   deletes the files it had partly written.
 	 * @author thayer young, the progress bar code is modified from ProgressBarDemo.java Copyright (c) 1995, 2008, Oracle and/or its affiliates. All rights reserved. 
 	 */
-	class Convert extends SwingWorker<Void, Void>
-	{	
+	class Convert extends SwingWorker<JoinReport, Void> implements ProgressSink
+	{	private static final int PARSE_PERCENT = 90;		// the rest is for the flat file
+		private volatile boolean running = true;
+		private volatile int stage = -1;
+
 		/*
          * Main task. Executed in background thread.
          * The setProgress() calls trigger propertyChange() to advance the progress bar.
          */
-		public Void doInBackground() 
-		{	File dataFile = getCorrectFile(dataDefault, mblPathTF, true);
+		public JoinReport doInBackground() 
+		{	try
+			{	return convert();
+			}
+			finally
+			{	running = false;
+				if(isCancelled())		// done() has already run, while the conversion was stopping
+					taskCancelled();
+			}
+		}
+
+		private JoinReport convert()
+		{	JoinReport report = null;
+			File dataFile = getCorrectFile(dataDefault, mblPathTF, true);
 			File geomFile = getCorrectFile(geomDefault, kmlPathTF, true);
 			File outFile = getCorrectFile(outDefault, outPathTF, false);	// default, null, false
-			DataTableW<String> mbl = null;
-			DataTableW<String> kml = null;
 			if(isReady(dataFile, geomFile, outFile))
 			{	super.setProgress(0);
-				mbl = getOrOverwriteTable(dataFile, mblTable, true);
-				super.setProgress(20);
-				kml = getOrOverwriteTable(geomFile, kmlTable, false);
-				super.setProgress(40);
-			//	System.out.println("==================== writeGeoFile ==================== writeGeoFile ==================== writeGeoFile ====================");
-				Witness.writeOutputFiles(mbl, kml, geoCommentSearchTerms, getOutFile(), DEFAULT_FILE_EXTENSION);
-			//	System.out.println("==================== writeGeoFile ==================== writeGeoFile ==================== writeGeoFile ====================");
-				super.setProgress(100);
+				readCustomFields();
+				int geoFormats = Witness.GEO_FORMAT_TEXT | (shapefileCheckBox.isSelected() ? Witness.GEO_FORMAT_SHAPEFILE : 0)
+						| (flatGeobufCheckBox.isSelected() ? Witness.GEO_FORMAT_FLATGEOBUF : 0)
+						| (geoJsonCheckBox.isSelected() ? Witness.GEO_FORMAT_GEOJSONSEQ : 0)
+						| (hilbertCheckBox.isSelected() ? Witness.GEO_ORDER_HILBERT : 0);
+				ResultCache resultCache = preloader.getCache(new File(getOutFile().getAbsoluteFile().getParentFile(), ResultCache.DEFAULT_DIRECTORY));
+				File cacheDirectory = getCacheDirectory();
+				if(cacheDirectory != null)	// the files were parsed into the cache when they were chosen, or are being parsed
+				{	try
+					{	if(!incrementalCheckBox.isSelected())		// which reads the MBL file block by block
+							preloader.awaitSnapshot(dataFile, false, singleLineCustomFields, multipleLineCustomFields, cacheDirectory, this);
+						preloader.awaitSnapshot(geomFile, true, null, null, cacheDirectory, this);
+					}catch(CancellationException ce)
+					{	return null;		// cancelled while the files were still being parsed
+					}
+				}
+				if(incrementalCheckBox.isSelected())	// only the parcels that changed since the last conversion of the MBL file
+				{	IncrementalConverter converter = new IncrementalConverter(singleLineCustomFields, multipleLineCustomFields, geoCommentSearchTerms, resultCache);
+					converter.setGeoFormats(geoFormats);
+					converter.setShardPlan(getShardPlan());
+					converter.setProgress(this);
+					report = converter.convert(dataFile, geomFile, getOutFile(), getFileExtension());
+				}
+				else
+				{	ConversionPipeline pipeline = new ConversionPipeline(singleLineCustomFields, multipleLineCustomFields, geoCommentSearchTerms);
+					pipeline.setGeoFormats(geoFormats);
+					pipeline.setShardPlan(getShardPlan());
+					pipeline.setProgress(this);
+					if(snapshotCheckBox.isSelected())	// the parsed files and the join, by the content of the files
+						pipeline.setResultCache(resultCache);
+					report = pipeline.convert(dataFile, geomFile, getOutFile(), getFileExtension());	// streams both files, no tables
+				}
+				if(report != null)
+					super.setProgress(100);
 			}
-			return null;
+			return report;
 		}// end doInBackground() 
-	
+
+		/**
+		 * Moves the progress bar, called by the stages of the conversion on their own threads. The stages overlap, so
+		 *   the bar names the latest stage that has started.
+		 */
+		public void progress(int stage, long done, long total)
+		{	int percent = -1;
+			if(stage == ProgressSink.STAGE_PARSE && total > 0)
+				percent = (int) (PARSE_PERCENT * Math.min(done, total) / total);
+			else if(stage == ProgressSink.STAGE_WRITE_FLAT && total > 0)
+				percent = PARSE_PERCENT + (int) ((100 - PARSE_PERCENT) * Math.min(done, total) / total);
+			if(percent > getProgress())
+				super.setProgress(percent);
+			if(stage > this.stage)
+			{	this.stage = stage;
+				firePropertyChange("stage", null, stageName(stage));
+			}
+		}
+
 		public void done()
-		{	Toolkit.getDefaultToolkit().beep();
-			diagnosticButton.setEnabled(true);
-        	convertButton.setEnabled(true);
-        	mblButton.setEnabled(true);
-    		kmlButton.setEnabled(true);
-    		outButton.setEnabled(true);
-        	setCursor(null); //turn off the wait cursor
+		{	if(isCancelled() && running)		// doInBackground() calls taskCancelled() once the conversion has stopped
+				return;
+			if(isCancelled())
+			{	taskCancelled();
+				return;
+			}
+			JoinReport report = null;
+			try
+			{	report = get();
+			}catch(Exception e)
+			{	Witness.popupErrorDialog("There was a problem converting the files.","Conversion Error",e);
+			}
+			if(report != null)	// render the report on the event dispatch thread, after the conversion has finished
+				JOptionPane.showMessageDialog(null,report.toString(),"Conversion Results",JOptionPane.INFORMATION_MESSAGE);
+			Toolkit.getDefaultToolkit().beep();
+			taskFinished();
 		}
 		
 	}
 	
+	/**
+	 * Writes the parcels with duplicate ids of both files to the duplicates files. The cancel button stops it between
+	 *   its steps, before the duplicates files are written.
+	 */
 	class Diagnostic extends SwingWorker<Void, Void>
-	{
+	{	private volatile boolean running = true;
+		private ProgressSink cancellable = new ProgressSink()		// stops the wait on the preloader when cancelled
+		{	@Override
+			public void progress(int stage, long done, long total)
+			{
+			}
+
+			@Override
+			public boolean isCancelled()
+			{	return Diagnostic.this.isCancelled();
+			}
+		};
+
 		@Override
 		protected Void doInBackground() throws Exception 
+		{	try
+			{	return diagnose();
+			}
+			finally
+			{	running = false;
+				if(isCancelled())
+					taskCancelled();
+			}
+		}
+
+		private Void diagnose()
 		{	File dataFile = getCorrectFile(dataDefault, mblPathTF, true);
 			File geomFile = getCorrectFile(geomDefault, kmlPathTF, true);
 			File outFile = getCorrectFile(outDefault, outPathTF, false);	// default, null, false		
@@ -271,36 +413,48 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 			if(isReady(dataFile, geomFile, outFile))
 			{	  				
 				super.setProgress(0);
-				mbl = getOrOverwriteTable(dataFile, mblTable, true);				
-				super.setProgress(20);
-				kml = getOrOverwriteTable(geomFile, kmlTable, true);
+				try
+				{	mbl = getTable(dataFile, true, cancellable);
+					if(isCancelled())
+						return null;
+					super.setProgress(20);
+					kml = getTable(geomFile, false, cancellable);
+				}catch(CancellationException ce)
+				{	return null;		// cancelled while the file was still being parsed in the background
+				}
+				if(isCancelled())
+					return null;
 				super.setProgress(40);
 				mblDuplicates = Witness.countComparatorDuplicates(mbl, true);
 				mblSize = mblDuplicates.size();
+				if(isCancelled())
+					return null;
 				super.setProgress(60);
 				kmlDuplicates = Witness.countComparatorDuplicates(kml, true);
 				kmlSize = kmlDuplicates.size();
+				if(isCancelled())
+					return null;
 				super.setProgress(80);
-				Witness.writeDuplicateFiles(mblDuplicates, kmlDuplicates, getOutFile(), DEFAULT_FILE_EXTENSION);
+				Witness.writeDuplicateFiles(mblDuplicates, kmlDuplicates, getOutFile(), getFileExtension());
 				super.setProgress(100);
 				if(mblSize == 0 && kmlSize == 0)
 				{	JOptionPane.showMessageDialog(null, "No duplicate IDs were found in either the MBL or KML file.", 
 							"Diagnostic Results", JOptionPane.INFORMATION_MESSAGE);}
 				else if(mblSize > 0 && kmlSize == 0)
 				{	JOptionPane.showMessageDialog(null, "The MBL file contains " + mblSize 
-							+ " duplicate IDs.\nSee the:\n" + Witness.appendSuffix(dataFile, false, true, DEFAULT_FILE_EXTENSION) + " file."
+							+ " duplicate IDs.\nSee the:\n" + Witness.appendSuffix(dataFile, false, true, getFileExtension()) + " file."
 							+ "\n\nAll parcels should have unique IDs, or data will be lost!", "Diagnostic Results", 
 							JOptionPane.ERROR_MESSAGE);}
 				else if(mblSize == 0 && kmlSize > 0)
 				{	JOptionPane.showMessageDialog(null, "The KML file contains " + kmlSize
-							+ " duplicate IDs.\nSee the:\n" + Witness.appendSuffix(dataFile, true, true, DEFAULT_FILE_EXTENSION) + " file." 
+							+ " duplicate IDs.\nSee the:\n" + Witness.appendSuffix(dataFile, true, true, getFileExtension()) + " file." 
 							+ "\n\nAll parcels should have unique IDs, or data will be lost!", "Diagnostic Results", 
 							JOptionPane.ERROR_MESSAGE);}
 				else if(mblSize > 0 && kmlSize > 0)
 				{	JOptionPane.showMessageDialog(null, "The MBL file contains " + mblSize
 							+ " duplicate IDs. And the KML file contains "+ kmlSize +".\nSee the\n" 
-							 + Witness.appendSuffix(dataFile, false, true, DEFAULT_FILE_EXTENSION) + "\nand\n" 
-							 + Witness.appendSuffix(dataFile, true, true, DEFAULT_FILE_EXTENSION) + " files."
+							 + Witness.appendSuffix(dataFile, false, true, getFileExtension()) + "\nand\n" 
+							 + Witness.appendSuffix(dataFile, true, true, getFileExtension()) + " files."
 							 + "\n\nAll parcels should have unique IDs, or data will be lost!", 
 							 "Diagnostic Results", JOptionPane.ERROR_MESSAGE);}
 			}
@@ -309,16 +463,108 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 		
 		@Override
 		protected void done()
-		{	Toolkit.getDefaultToolkit().beep();
-			diagnosticButton.setEnabled(true);
-			convertButton.setEnabled(true);
-			mblButton.setEnabled(true);
-			kmlButton.setEnabled(true);
-			outButton.setEnabled(true);
-			setCursor(null);
+		{	if(isCancelled() && running)
+				return;
+			if(isCancelled())
+			{	taskCancelled();
+				return;
+			}
+			Toolkit.getDefaultToolkit().beep();
+			taskFinished();
 		}
 	}
 	
+	/**
+	 * Compares an older version of the MBL file to the chosen MBL file, and writes the changed parcels to a diff file.
+	 */
+	class Compare extends SwingWorker<ParcelDiff, Void>
+	{	private File olderFile, dataFile, diffFile;
+
+		/**
+		 * Reads the chosen files, on the event dispatch thread.
+		 */
+		Compare(File olderFile)
+		{	this.olderFile = olderFile;
+			dataFile = getCorrectFile(dataDefault, mblPathTF, true);
+			diffFile = Witness.appendSuffix(getOutFile(), ParcelDiff.DIFF_SUFFIX, ".txt");
+		}
+
+		@Override
+		protected ParcelDiff doInBackground() throws Exception 
+		{	if(dataFile == null)
+				return null;
+			super.setProgress(0);
+			readCustomFields();
+			ParcelDiff diff = new ParcelDiff(singleLineCustomFields, multipleLineCustomFields, geoCommentSearchTerms);
+			diff.diff(olderFile, dataFile, false, diffFile);	// in bounded memory, a part of the files at a time
+			super.setProgress(100);
+			return diff;
+		}
+
+		@Override
+		protected void done()
+		{	ParcelDiff diff = null;
+			try
+			{	diff = get();
+			}catch(Exception e)
+			{	Witness.popupErrorDialog("There was a problem comparing the files.", "Comparison Error", e);
+			}
+			if(dataFile == null)	// the dialogs are shown on the event dispatch thread, once the comparison has finished
+				JOptionPane.showMessageDialog(null, "Before the comparison can begin you must set the mbl file.", 
+						"Comparison Not Ready", JOptionPane.ERROR_MESSAGE);
+			else if(diff != null)
+				JOptionPane.showMessageDialog(null, diff.toString() + "\nSee the:\n" + diffFile + " file.", 
+						"Comparison Results", JOptionPane.INFORMATION_MESSAGE);
+			Toolkit.getDefaultToolkit().beep();
+			taskFinished();
+		}
+	}
+
+	/**
+	 * Enables the buttons again once a task has finished, and turns off the wait cursor.
+	 */
+	private void taskFinished()
+	{	cancellableTask = null;
+		cancelButton.setEnabled(false);
+		diagnosticButton.setEnabled(true);
+		compareButton.setEnabled(true);
+		convertButton.setEnabled(true);
+		mblButton.setEnabled(true);
+		kmlButton.setEnabled(true);
+		outButton.setEnabled(true);
+		setCursor(null);
+	}
+
+	/**
+	 * Enables the buttons again once a cancelled task has stopped, on the event dispatch thread.
+	 */
+	private void taskCancelled()
+	{	SwingUtilities.invokeLater(new Runnable()
+		{	public void run()
+			{	progressStage = "";
+				progress.setValue(0);
+				progress.setString("Cancelled");
+				taskFinished();
+			}
+		});
+	}
+
+	/**
+	 * @param stage One of the ProgressSink.STAGE_ constants.
+	 * @return What the conversion is doing in the stage, for the progress bar.
+	 */
+	private static String stageName(int stage)
+	{	if(stage == ProgressSink.STAGE_PARSE)
+			return "parsing";
+		if(stage == ProgressSink.STAGE_JOIN)
+			return "joining";
+		if(stage == ProgressSink.STAGE_WRITE_GEO)
+			return "writing the geo file";
+		if(stage == ProgressSink.STAGE_WRITE_FLAT)
+			return "writing the flat file";
+		return "";
+	}
+
 	/**
 	 * Sets up the behavior of the GUI elements, and refers to individual methods.
 	 */
@@ -348,6 +594,32 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 		};
 		outButton.addActionListener(outButtonPressed);
 
+		AbstractAction cacheChanged = new AbstractAction()		// the parse is saved in the cache of the output folder
+		{	@Override
+			public void actionPerformed(ActionEvent event) 
+			{	preloadFiles();
+			}
+		};
+		snapshotCheckBox.addActionListener(cacheChanged);
+		incrementalCheckBox.addActionListener(cacheChanged);
+		customFieldsTimer = new Timer(1000, cacheChanged);
+		customFieldsTimer.setRepeats(false);
+		DocumentListener customFieldsChanged = new DocumentListener()	// the MBL file is parsed again with the new fields
+		{	public void insertUpdate(DocumentEvent event)
+			{	customFieldsTimer.restart();
+			}
+
+			public void removeUpdate(DocumentEvent event)
+			{	customFieldsTimer.restart();
+			}
+
+			public void changedUpdate(DocumentEvent event)
+			{	// a change of style, not of text
+			}
+		};
+		customFieldsPanelSingleJTextArea.getDocument().addDocumentListener(customFieldsChanged);
+		customFieldsPanelMultipleJTextArea.getDocument().addDocumentListener(customFieldsChanged);
+
 	/*	AbstractAction convertButtonPressed = new AbstractAction()  
 		{	@Override
 			public void actionPerformed(ActionEvent event) 
@@ -368,7 +640,7 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 		}catch (IOException exception)
 		{	mblPathTF.setText(exception.toString());
 		}
-		
+		preloadFiles();
 	}
 	
 	/**
@@ -380,6 +652,7 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 		}catch (IOException exception)
 		{	kmlPathTF.setText(exception.toString());
 		}
+		preloadFiles();
 	}
 	
 	/**
@@ -391,32 +664,78 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 		}catch (IOException exception)
 		{	outPathTF.setText(exception.toString());
 		}
+		preloadFiles();		// the cache folder is in the output folder
 	}
 	
-	private DataTableW<String> getOrOverwriteTable(File sourceFile, DataTableW<String> table, boolean isMBL)
+	/**
+	 * Gets the values in the JTextAreas and uses them to update the arrays (internalizes the user's input).
+	 */
+	private void readCustomFields()
+	{	singleLineCustomFields = customFieldsPanelSingleJTextArea.getText().split("\n");
+		multipleLineCustomFields = customFieldsPanelMultipleJTextArea.getText().split("\n");
+		geoCommentSearchTerms = searchTermsJTextArea.getText().split("\n");
+	}
+
+	/**
+	 * @param sourceFile The MBL or KML file.
+	 * @param isMBL True for the MBL file.
+	 * @param progress Stops the wait for the background parse, and the parse now, if it is cancelled, may be null.
+	 * @return The table of the file: the one parsed in the background when the file was chosen, if the file and the
+	 *   custom fields have not changed since, otherwise parsed now.
+	 * @throws CancellationException If the progress is cancelled before the file is parsed.
+	 */
+	private DataTableW<String> getTable(File sourceFile, boolean isMBL, ProgressSink progress)
 	{	String type;
-		int overwrite = JOptionPane.NO_OPTION;
-		DataTableW<String> returnTable = null;
+		DataTableW<String> table;
 		LinkedList<String> initial = null;
-		// Get the values in the JTextAreas and use them to update the arrays (internalize the user's input)
 		if(isMBL)
-		{	singleLineCustomFields = customFieldsPanelSingleJTextArea.getText().split("\n");
-			multipleLineCustomFields = customFieldsPanelMultipleJTextArea.getText().split("\n");
-			geoCommentSearchTerms = searchTermsJTextArea.getText().split("\n");
+		{	readCustomFields();
 			type = "MBL";
 		}
 		else type = "KML";
+		table = preloader.getTable(sourceFile, !isMBL, singleLineCustomFields, multipleLineCustomFields, getCacheDirectory(), progress);
 		if(table != null)
-			overwrite = JOptionPane.showConfirmDialog(null, "There is already a "+type+" table, would you like to overwrite?");
-		if(table == null || overwrite == JOptionPane.YES_OPTION)
+			return table;	// the Diagnostic leaves the table intact, so it is not copied
+		ConversionPipeline.checkCancelled(progress);
+		if(snapshotCheckBox.isSelected())
+		{	try
+			{	table = TableSnapshot.readTable(sourceFile, !isMBL, singleLineCustomFields, multipleLineCustomFields);
+			}catch(IOException ioe)
+			{	Witness.popupErrorDialog("An error occured while reading the "+type+" file.", type+" File Error", ioe);
+				table = new DataTableW<String>();
+			}
+		}
+		else
 		{	initial  = Witness.readInLines(sourceFile);
 			if(isMBL) 
 				table = Witness.textToTable(initial,singleLineCustomFields,multipleLineCustomFields);
 			else
 				table = Witness.kmlToTable(initial);
 		}
-		returnTable = table.clone();
-		return returnTable;
+		return table;
+	}
+
+	/**
+	 * @return The ResultCache folder of the conversion, in the output folder, or null if earlier results are not reused.
+	 */
+	private File getCacheDirectory()
+	{	if(!snapshotCheckBox.isSelected() && !incrementalCheckBox.isSelected())
+			return null;
+		return new File(getOutFile().getAbsoluteFile().getParentFile(), ResultCache.DEFAULT_DIRECTORY);
+	}
+
+	/**
+	 * Starts to parse the chosen MBL and KML files in the background, with the custom fields of the text areas, so that
+	 *   the Diagnostic and the conversion find them parsed. A file that is already parsed, or being parsed, with the
+	 *   same custom fields and cache folder is not parsed again.
+	 */
+	private void preloadFiles()
+	{	readCustomFields();
+		File cacheDirectory = getCacheDirectory();
+		if(!mblPathTF.getText().equals(NO_FILE_CHOSEN))
+			preloader.preload(dataDefault, false, singleLineCustomFields, multipleLineCustomFields, cacheDirectory);
+		if(!kmlPathTF.getText().equals(NO_FILE_CHOSEN))
+			preloader.preload(geomDefault, true, null, null, cacheDirectory);
 	}
 
 	/**
@@ -549,6 +868,27 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
 	{	long timeStamp = System.currentTimeMillis() / 1000;		// default file name part 3
 		return DEFAULT_FILE_NAME + "_" + timeStamp + DEFAULT_FILE_EXTENSION;
 	}
+
+	/**
+	 * @return The ShardPlan chosen in the shard combo box, or null to write one geo and one flat file.
+	 */
+	private ShardPlan getShardPlan()
+	{	switch(shardComboBox.getSelectedIndex())
+		{	case 1:	return ShardPlan.byRows(1000000);
+			case 2:	return ShardPlan.byBytes(1L << 30);
+			case 3:	return ShardPlan.byField("typ");
+			default: return null;
+		}
+	}
+
+	/**
+	 * @return The extension of the output text files, with the gzip extension when they are to be compressed.
+	 */
+	private String getFileExtension()
+	{	if(compressCheckBox.isSelected())
+			return DEFAULT_FILE_EXTENSION + Witness.GZIP_EXTENSION;
+		return DEFAULT_FILE_EXTENSION;
+	}
 	
 	/**
 	 * Opens a dialog for the user to select an output file path and output root file name.  Should be an 
@@ -674,28 +1014,59 @@ public class WitnessGUI extends JFrame implements ActionListener, PropertyChange
             progress.setValue(prog);			// <-- set the value to the progress bar
             String source = evt.getSource().toString();	// <-- parse the source and display it in the progress bar
             source = source.substring(source.indexOf("$") + 1, source.indexOf("@"));
-            progress.setString(source + " " + new Integer(prog).toString()+"%");
+            progress.setString(source + " " + (progressStage.length() == 0 ? "" : progressStage + " ") + Integer.toString(prog)+"%");
+		}
+		else if ("stage".equals(evt.getPropertyName()))	// <-- a Convert task has moved on to another stage
+		{	progressStage = (String) evt.getNewValue();
+			progress.setString("Convert " + progressStage + " " + progress.getValue() + "%");
 		}
 	}
 
 	@Override
 	public void actionPerformed(ActionEvent event) 
-	{	diagnosticButton.setEnabled(false);
+	{	File olderFile = null;
+		if(event.getActionCommand().equals(CANCEL))
+		{	if(cancellableTask != null)
+				cancellableTask.cancel(false);	// the stages stop themselves, an interrupt could leave a cache file half written
+			cancelButton.setEnabled(false);
+			progress.setString("Cancelling");
+			return;
+		}
+		if(event.getActionCommand().equals(COMPARE_VERSIONS))
+		{	JFileChooser openChooser = new JFileChooser(getUserDir(dataDefault));
+			openChooser.setDialogTitle("Choose the older version of the MBL file");
+			openChooser.setFileFilter(new FileNameExtensionFilter("DeedMapper data file", "mbl"));
+			if(openChooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
+				return;
+			olderFile = openChooser.getSelectedFile();
+		}
+		diagnosticButton.setEnabled(false);
+		compareButton.setEnabled(false);
 		convertButton.setEnabled(false);
 		mblButton.setEnabled(false);
 		kmlButton.setEnabled(false);
 		outButton.setEnabled(false);
 	    setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));	// <-- changes the mouse pointer to a spinning wait disk.
+	    progressStage = "";
 	    //Instances of javax.swing.SwingWorker are not reusuable, so we create new instances as needed.
 		if(event.getActionCommand().equals(CONVERT_TO_GIS_FILES))
 		{	Convert convert = new Convert();
 	    	convert.addPropertyChangeListener(this);	// <-- tie the property change listener to 'task'
+	    	cancellableTask = convert;
+	    	cancelButton.setEnabled(true);
 	    	convert.execute();	// <-- swing worker method to execute the doInBackground() method of Task.
 		}	
 		else if(event.getActionCommand().equals(RUN_DATA_DIAGNOSTIC))
 		{	Diagnostic diagnostic = new Diagnostic();
 			diagnostic.addPropertyChangeListener(this);
+			cancellableTask = diagnostic;
+			cancelButton.setEnabled(true);
 			diagnostic.execute();
 		}
+		else if(event.getActionCommand().equals(COMPARE_VERSIONS))
+		{	Compare compare = new Compare(olderFile);
+			compare.addPropertyChangeListener(this);
+			compare.execute();
+		}
 	}
 }
\ No newline at end of file